@@ -0,0 +1,57 @@
+package net.jpountz.util.jfr;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+@Name("net.jpountz.lz4.Compression")
+@Label("LZ4 Compression")
+@Category({ "lz4-java" })
+@Description("Compression of a block by a stream")
+@StackTrace(false)
+@Threshold("1 ms")
+final class CompressionEvent extends jdk.jfr.Event {
+
+  @Label("Source")
+  String source;
+
+  @Label("Implementation")
+  @Description("JNI, Unsafe or Safe")
+  String implementation;
+
+  @Label("Compressor")
+  String compressor;
+
+  @Label("Level")
+  @Description("High compression level, 0 for the standard algorithm")
+  int level;
+
+  @Label("Uncompressed Size")
+  @DataAmount
+  int srcLen;
+
+  @Label("Compressed Size")
+  @DataAmount
+  int destLen;
+
+}
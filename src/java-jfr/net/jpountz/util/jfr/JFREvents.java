@@ -0,0 +1,115 @@
+package net.jpountz.util.jfr;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import jdk.jfr.EventType;
+
+import net.jpountz.util.FlightRecorderEvents;
+import net.jpountz.util.LZ4JavaMonitor;
+
+/**
+ * FOR INTERNAL USE ONLY
+ * <p>
+ * {@link FlightRecorderEvents} backed by <code>jdk.jfr</code>.
+ */
+public final class JFREvents extends FlightRecorderEvents {
+
+  private final EventType compressionType = EventType.getEventType(CompressionEvent.class);
+  private final EventType decompressionType = EventType.getEventType(DecompressionEvent.class);
+
+  @Override
+  public boolean isCompressionEnabled() {
+    return compressionType.isEnabled();
+  }
+
+  @Override
+  public Object beginCompression() {
+    if (!compressionType.isEnabled()) {
+      return null;
+    }
+    final CompressionEvent event = new CompressionEvent();
+    event.begin();
+    return event;
+  }
+
+  @Override
+  public void endCompression(Object e, String source, Object compressor, int implementation, int level, int srcLen, int destLen) {
+    final CompressionEvent event = (CompressionEvent) e;
+    event.end();
+    if (event.shouldCommit()) {
+      event.source = source;
+      event.implementation = LZ4JavaMonitor.implementationName(implementation);
+      event.compressor = compressor.toString();
+      event.level = level;
+      event.srcLen = srcLen;
+      event.destLen = destLen;
+      event.commit();
+    }
+  }
+
+  @Override
+  public boolean isDecompressionEnabled() {
+    return decompressionType.isEnabled();
+  }
+
+  @Override
+  public Object beginDecompression() {
+    if (!decompressionType.isEnabled()) {
+      return null;
+    }
+    final DecompressionEvent event = new DecompressionEvent();
+    event.begin();
+    return event;
+  }
+
+  @Override
+  public void endDecompression(Object e, String source, Object decompressor, int implementation, int srcLen, int destLen) {
+    final DecompressionEvent event = (DecompressionEvent) e;
+    event.end();
+    if (event.shouldCommit()) {
+      event.source = source;
+      event.implementation = LZ4JavaMonitor.implementationName(implementation);
+      event.decompressor = decompressor.toString();
+      event.srcLen = srcLen;
+      event.destLen = destLen;
+      event.commit();
+    }
+  }
+
+  @Override
+  public Object beginNativeLoad() {
+    final NativeLoadEvent event = new NativeLoadEvent();
+    if (!event.isEnabled()) {
+      return null;
+    }
+    event.begin();
+    return event;
+  }
+
+  @Override
+  public void endNativeLoad(Object e, String library, Throwable error) {
+    final NativeLoadEvent event = (NativeLoadEvent) e;
+    event.end();
+    if (event.shouldCommit()) {
+      event.library = library;
+      event.success = error == null;
+      event.error = error == null ? null : error.toString();
+      event.commit();
+    }
+  }
+
+}
@@ -0,0 +1,39 @@
+package net.jpountz.util.jfr;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("net.jpountz.util.NativeLoad")
+@Label("LZ4 Native Library Load")
+@Category({ "lz4-java" })
+@Description("Loading of the lz4-java JNI library")
+final class NativeLoadEvent extends jdk.jfr.Event {
+
+  @Label("Library")
+  String library;
+
+  @Label("Success")
+  boolean success;
+
+  @Label("Error")
+  String error;
+
+}
@@ -19,6 +19,8 @@ package net.jpountz.util;
 import static net.jpountz.util.Utils.NATIVE_BYTE_ORDER;
 
 import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
 import sun.misc.Unsafe;
@@ -33,6 +35,9 @@ public enum UnsafeUtils {
   private static final int INT_ARRAY_SCALE;
   private static final long SHORT_ARRAY_OFFSET;
   private static final int SHORT_ARRAY_SCALE;
+  private static final long BUFFER_ADDRESS_OFFSET;
+  // not final so that the JIT can't fold comparisons with it
+  private static Object unreachable = new Object();
   
   static {
     try {
@@ -52,6 +57,37 @@ public enum UnsafeUtils {
     } catch (SecurityException e) {
       throw new ExceptionInInitializerError("Cannot access Unsafe");
     }
+    long bufferAddressOffset;
+    try {
+      bufferAddressOffset = UNSAFE.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+    } catch (Exception e) {
+      // direct buffers are accessed through their methods
+      bufferAddressOffset = -1;
+    }
+    BUFFER_ADDRESS_OFFSET = bufferAddressOffset;
+  }
+
+  /**
+   * Returns whether the content of <code>buf</code> can be accessed by
+   * address, with the methods which take a <code>long</code> address.
+   *
+   * @param buf the buffer
+   * @return true if <code>buf</code> is direct and its address is known
+   */
+  public static boolean hasAddress(ByteBuffer buf) {
+    return BUFFER_ADDRESS_OFFSET != -1 && buf.isDirect();
+  }
+
+  /**
+   * Returns the address of the first byte of <code>buf</code>, which must be
+   * {@link #hasAddress(ByteBuffer) addressable}. Offsets in the buffer are
+   * offsets from this address, regardless of its position and byte order.
+   *
+   * @param buf the buffer
+   * @return the address of <code>buf</code>
+   */
+  public static long address(ByteBuffer buf) {
+    return UNSAFE.getLong(buf, BUFFER_ADDRESS_OFFSET);
   }
 
   public static void checkRange(byte[] buf, int off) {
@@ -146,4 +182,88 @@ public enum UnsafeUtils {
   public static void writeShort(short[] dest, int destOff, int value) {
     UNSAFE.putShort(dest, SHORT_ARRAY_OFFSET + SHORT_ARRAY_SCALE * destOff, (short) value);
   }
+
+  /**
+   * Keeps <code>buf</code>, and thus the memory it owns, reachable until this
+   * call, so that it isn't freed while it is accessed by address.
+   *
+   * @param buf the buffer
+   */
+  public static void reachabilityFence(ByteBuffer buf) {
+    if (buf == unreachable) {
+      throw new AssertionError();
+    }
+  }
+
+  // Address-based accessors for direct buffers. Callers check offsets against
+  // the capacity of the buffer, and call reachabilityFence after the accesses.
+
+  public static byte readByte(long src, int srcOff) {
+    return UNSAFE.getByte(src + srcOff);
+  }
+
+  public static void writeByte(long dest, int destOff, byte value) {
+    UNSAFE.putByte(dest + destOff, value);
+  }
+
+  public static void writeByte(long dest, int destOff, int value) {
+    writeByte(dest, destOff, (byte) value);
+  }
+
+  public static long readLong(long src, int srcOff) {
+    return UNSAFE.getLong(src + srcOff);
+  }
+
+  public static long readLongLE(long src, int srcOff) {
+    long i = readLong(src, srcOff);
+    if (NATIVE_BYTE_ORDER == ByteOrder.BIG_ENDIAN) {
+      i = Long.reverseBytes(i);
+    }
+    return i;
+  }
+
+  public static void writeLong(long dest, int destOff, long value) {
+    UNSAFE.putLong(dest + destOff, value);
+  }
+
+  public static int readInt(long src, int srcOff) {
+    return UNSAFE.getInt(src + srcOff);
+  }
+
+  public static int readIntLE(long src, int srcOff) {
+    int i = readInt(src, srcOff);
+    if (NATIVE_BYTE_ORDER == ByteOrder.BIG_ENDIAN) {
+      i = Integer.reverseBytes(i);
+    }
+    return i;
+  }
+
+  public static void writeInt(long dest, int destOff, int value) {
+    UNSAFE.putInt(dest + destOff, value);
+  }
+
+  public static short readShort(long src, int srcOff) {
+    return UNSAFE.getShort(src + srcOff);
+  }
+
+  public static int readShortLE(long src, int srcOff) {
+    short s = readShort(src, srcOff);
+    if (NATIVE_BYTE_ORDER == ByteOrder.BIG_ENDIAN) {
+      s = Short.reverseBytes(s);
+    }
+    return s & 0xFFFF;
+  }
+
+  public static void writeShort(long dest, int destOff, short value) {
+    UNSAFE.putShort(dest + destOff, value);
+  }
+
+  public static void writeShortLE(long dest, int destOff, int v) {
+    writeByte(dest, destOff, (byte) v);
+    writeByte(dest, destOff + 1, (byte) (v >>> 8));
+  }
+
+  public static void copyMemory(long src, int srcOff, long dest, int destOff, int len) {
+    UNSAFE.copyMemory(src + srcOff, dest + destOff, len);
+  }
 }
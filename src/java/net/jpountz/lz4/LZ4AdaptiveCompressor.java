@@ -0,0 +1,199 @@
+package net.jpountz.lz4;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static net.jpountz.lz4.LZ4Constants.DEFAULT_COMPRESSION_LEVEL;
+import static net.jpountz.lz4.LZ4Constants.MAX_COMPRESSION_LEVEL;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link LZ4Compressor} which moves between {@link LZ4Factory#fastCompressor()}
+ * and {@link LZ4Factory#highCompressor(int)} depending on the measured
+ * compression speed and ratio, in order to compress as much as possible while
+ * keeping up with a target throughput.
+ * <p>
+ * After every call to <code>compress</code>, the compression level is lowered
+ * if compression was slower than the target throughput, and raised if there is
+ * enough headroom and the higher level is expected to both keep up with the
+ * target and improve the compression ratio. Because decisions are made per
+ * call, this compressor works best with {@link LZ4FrameOutputStream} or
+ * {@link LZ4BlockOutputStream}, which compress one block at a time:
+ * <pre>
+ * LZ4Compressor compressor = new LZ4AdaptiveCompressor(LZ4Factory.fastestInstance(), 200);
+ * OutputStream os = new LZ4BlockOutputStream(out, 1 &lt;&lt; 16, compressor);
+ * </pre>
+ * <p>
+ * Instances of this class are thread-safe, but they gather statistics about
+ * the data they compress, so sharing an instance between streams which
+ * compress data of a different nature is discouraged.
+ */
+public final class LZ4AdaptiveCompressor extends LZ4Compressor {
+
+  // inputs smaller than this are too noisy to be timed
+  static final int MIN_SAMPLE_SIZE = 1 << 12;
+  // weight of the last sample in the moving averages
+  static final double ALPHA = 0.25;
+  // the level is raised without prior measurements only if compression is at
+  // least this much faster than the target
+  static final double HEADROOM = 1.25;
+  // minimum improvement of the compression ratio to justify a higher level
+  static final double MIN_RATIO_GAIN = 0.01;
+  // number of samples after which stale measurements of the next level get
+  // re-probed
+  static final int PROBE_INTERVAL = 64;
+
+  private final double targetBytesPerNano;
+  private final LZ4Compressor[] compressors;
+  // moving averages of the speed (bytes/ns) and ratio (compressed/original) per level
+  private final double[] speeds, ratios;
+  private volatile int level;
+  private int samplesSinceChange;
+
+  /**
+   * Creates a new adaptive compressor which never goes beyond the default
+   * compression level of {@link LZ4Factory#highCompressor()}.
+   *
+   * @param factory the factory to get compressors from
+   * @param targetMBPerSecond the throughput to keep up with, in MB/s (1 MB = 10<sup>6</sup> bytes)
+   */
+  public LZ4AdaptiveCompressor(LZ4Factory factory, double targetMBPerSecond) {
+    this(factory, targetMBPerSecond, DEFAULT_COMPRESSION_LEVEL);
+  }
+
+  /**
+   * Creates a new adaptive compressor.
+   *
+   * @param factory the factory to get compressors from
+   * @param targetMBPerSecond the throughput to keep up with, in MB/s (1 MB = 10<sup>6</sup> bytes)
+   * @param maxCompressionLevel the highest compression level to use, in [1, 17]
+   */
+  public LZ4AdaptiveCompressor(LZ4Factory factory, double targetMBPerSecond, int maxCompressionLevel) {
+    if (!(targetMBPerSecond > 0)) {
+      throw new IllegalArgumentException("targetMBPerSecond must be > 0, got " + targetMBPerSecond);
+    }
+    if (maxCompressionLevel < 1 || maxCompressionLevel > MAX_COMPRESSION_LEVEL) {
+      throw new IllegalArgumentException("maxCompressionLevel must be in [1, " + MAX_COMPRESSION_LEVEL + "], got " + maxCompressionLevel);
+    }
+    this.targetBytesPerNano = targetMBPerSecond / 1000;
+    this.compressors = new LZ4Compressor[maxCompressionLevel + 1];
+    compressors[0] = factory.fastCompressor();
+    for (int i = 1; i <= maxCompressionLevel; ++i) {
+      compressors[i] = factory.highCompressor(i);
+    }
+    this.speeds = new double[compressors.length];
+    this.ratios = new double[compressors.length];
+    this.level = 0;
+  }
+
+  /**
+   * Returns the compression level which will be used for the next call to
+   * <code>compress</code>: 0 stands for {@link LZ4Factory#fastCompressor()}
+   * and other values for the corresponding {@link LZ4Factory#highCompressor(int)}.
+   *
+   * @return the current compression level
+   */
+  public int getCompressionLevel() {
+    return level;
+  }
+
+  @Override
+  public int compress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int maxDestLen) {
+    final int level = this.level;
+    final long start = System.nanoTime();
+    final int compressedLen = compressors[level].compress(src, srcOff, srcLen, dest, destOff, maxDestLen);
+    record(level, srcLen, compressedLen, System.nanoTime() - start);
+    return compressedLen;
+  }
+
+  @Override
+  public int compress(ByteBuffer src, int srcOff, int srcLen, ByteBuffer dest, int destOff, int maxDestLen) {
+    final int level = this.level;
+    final long start = System.nanoTime();
+    final int compressedLen = compressors[level].compress(src, srcOff, srcLen, dest, destOff, maxDestLen);
+    record(level, srcLen, compressedLen, System.nanoTime() - start);
+    return compressedLen;
+  }
+
+  @Override
+  public int compressDestSize(byte[] src, int srcOff, int[] srcLenRef, byte[] dest, int destOff, int destCapacity) {
+    final int level = this.level;
+    final long start = System.nanoTime();
+    final int compressedLen = compressors[level].compressDestSize(src, srcOff, srcLenRef, dest, destOff, destCapacity);
+    record(level, srcLenRef[0], compressedLen, System.nanoTime() - start);
+    return compressedLen;
+  }
+
+  @Override
+  public int compressDestSize(ByteBuffer src, int srcOff, int[] srcLenRef, ByteBuffer dest, int destOff, int destCapacity) {
+    final int level = this.level;
+    final long start = System.nanoTime();
+    final int compressedLen = compressors[level].compressDestSize(src, srcOff, srcLenRef, dest, destOff, destCapacity);
+    record(level, srcLenRef[0], compressedLen, System.nanoTime() - start);
+    return compressedLen;
+  }
+
+  synchronized void record(int level, int srcLen, int compressedLen, long nanos) {
+    if (srcLen < MIN_SAMPLE_SIZE) {
+      return;
+    }
+    final double speed = (double) srcLen / Math.max(1, nanos);
+    final double ratio = (double) compressedLen / srcLen;
+    if (speeds[level] == 0) {
+      speeds[level] = speed;
+      ratios[level] = ratio;
+    } else {
+      speeds[level] += ALPHA * (speed - speeds[level]);
+      ratios[level] += ALPHA * (ratio - ratios[level]);
+    }
+    if (level != this.level) {
+      // concurrent call which started before the last change
+      return;
+    }
+
+    ++samplesSinceChange;
+    if (speeds[level] < targetBytesPerNano) {
+      if (level > 0) {
+        setLevel(level - 1);
+      }
+    } else if (level + 1 < compressors.length) {
+      final int next = level + 1;
+      final boolean nextIsKnown = speeds[next] != 0 && samplesSinceChange < PROBE_INTERVAL;
+      if (nextIsKnown
+          ? speeds[next] >= targetBytesPerNano && ratios[next] < ratios[level] * (1 - MIN_RATIO_GAIN)
+          : speeds[level] >= targetBytesPerNano * HEADROOM) {
+        setLevel(next);
+      }
+    }
+  }
+
+  private void setLevel(int level) {
+    this.level = level;
+    samplesSinceChange = 0;
+  }
+
+  @Override
+  int implementation(int srcLen) {
+    return compressors[level].implementation(srcLen);
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "(" + compressors[0] + ", target=" + (targetBytesPerNano * 1000) + "MB/s, level=" + level + ")";
+  }
+
+}
@@ -28,6 +28,8 @@ import java.io.EOFException;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.zip.Checksum;
 
 import net.jpountz.util.SafeUtils;
@@ -43,14 +45,23 @@ import net.jpountz.xxhash.XXHashFactory;
  */
 public class LZ4BlockInputStream extends FilterInputStream {
 
+  // same limit as the JDK, some VMs reserve header words in arrays
+  static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
   private final LZ4FastDecompressor decompressor;
   private final Checksum checksum;
   private final boolean stopOnEmptyBlock;
+  private final LZ4BufferPool bufferPool;
+  private final LZ4StreamInstrumentation instrumentation; // null if disabled
   private byte[] buffer;
   private byte[] compressedBuffer;
   private int originalLen;
   private int o;
   private boolean finished;
+  // header of the current block
+  private int compressionMethod;
+  private int compressedLen;
+  private int check;
 
   /**
    * Creates a new LZ4 input stream to read from the specified underlying InputStream.
@@ -62,18 +73,42 @@ public class LZ4BlockInputStream extends FilterInputStream {
    *                          equivalent to the instance which has been used to
    *                          write the stream
    * @param stopOnEmptyBlock  whether read is stopped on an empty block
+   * @param bufferPool        the {@link LZ4BufferPool} to borrow buffers from
+   *                          when reading blocks, they are released on
+   *                          {@link #close()}
    */
-  public LZ4BlockInputStream(InputStream in, LZ4FastDecompressor decompressor, Checksum checksum, boolean stopOnEmptyBlock) {
+  public LZ4BlockInputStream(InputStream in, LZ4FastDecompressor decompressor, Checksum checksum, boolean stopOnEmptyBlock,
+      LZ4BufferPool bufferPool) {
     super(in);
     this.decompressor = decompressor;
     this.checksum = checksum;
     this.stopOnEmptyBlock = stopOnEmptyBlock;
+    this.bufferPool = bufferPool;
+    this.instrumentation = LZ4StreamInstrumentation.forDecompression("LZ4BlockInputStream", decompressor);
     this.buffer = new byte[0];
     this.compressedBuffer = new byte[HEADER_LENGTH];
     o = originalLen = 0;
     finished = false;
   }
 
+  /**
+   * Creates a new LZ4 input stream to read from the specified underlying
+   * InputStream, which allocates its own buffers.
+   *
+   * @param in                the {@link InputStream} to poll
+   * @param decompressor      the {@link LZ4FastDecompressor decompressor} instance to
+   *                          use
+   * @param checksum          the {@link Checksum} instance to use, must be
+   *                          equivalent to the instance which has been used to
+   *                          write the stream
+   * @param stopOnEmptyBlock  whether read is stopped on an empty block
+   *
+   * @see #LZ4BlockInputStream(InputStream, LZ4FastDecompressor, Checksum, boolean, LZ4BufferPool)
+   */
+  public LZ4BlockInputStream(InputStream in, LZ4FastDecompressor decompressor, Checksum checksum, boolean stopOnEmptyBlock) {
+    this(in, decompressor, checksum, stopOnEmptyBlock, LZ4BufferPool.unpooled());
+  }
+
   /**
    * Creates a new LZ4 input stream to read from the specified underlying InputStream.
    *
@@ -137,6 +172,7 @@ public class LZ4BlockInputStream extends FilterInputStream {
 
   @Override
   public int read() throws IOException {
+    ensureOpen();
     if (finished) {
       return -1;
     }
@@ -149,17 +185,28 @@ public class LZ4BlockInputStream extends FilterInputStream {
     return buffer[o++] & 0xFF;
   }
 
+  /**
+   * Reads up to <code>len</code> bytes of decompressed data. If no data is
+   * buffered and <code>len</code> is at least the decompressed size of the next
+   * block, the block is decompressed directly into <code>b</code>.
+   */
   @Override
   public int read(byte[] b, int off, int len) throws IOException {
     SafeUtils.checkRange(b, off, len);
+    ensureOpen();
     if (finished) {
       return -1;
     }
     if (o == originalLen) {
-      refill();
-    }
-    if (finished) {
-      return -1;
+      if (!readHeader()) {
+        return -1;
+      }
+      if (len >= originalLen) {
+        readBlock(b, off);
+        o = originalLen;
+        return originalLen;
+      }
+      readBlock();
     }
     len = Math.min(len, originalLen - o);
     System.arraycopy(buffer, o, b, off, len);
@@ -172,30 +219,145 @@ public class LZ4BlockInputStream extends FilterInputStream {
     return read(b, 0, b.length);
   }
 
+  /**
+   * Reads all remaining decompressed data. Blocks are decompressed directly
+   * into the returned array. This overrides <code>InputStream.readAllBytes()</code>
+   * on Java 9+.
+   *
+   * @return the remaining decompressed data
+   * @throws IOException if an I/O error occurs or if the stream is corrupted
+   */
+  public byte[] readAllBytes() throws IOException {
+    return readBytes(MAX_ARRAY_SIZE);
+  }
+
+  /**
+   * Reads up to <code>len</code> bytes of decompressed data. Blocks which fit
+   * are decompressed directly into the returned array. This overrides
+   * <code>InputStream.readNBytes(int)</code> on Java 11+.
+   *
+   * @param len the maximum number of bytes to read
+   * @return the decompressed data, which is shorter than <code>len</code>
+   *         only if the end of the stream has been reached
+   * @throws IOException if an I/O error occurs or if the stream is corrupted
+   */
+  public byte[] readNBytes(int len) throws IOException {
+    if (len < 0) {
+      throw new IllegalArgumentException("len must be >= 0, got " + len);
+    }
+    return readBytes(len);
+  }
+
+  /**
+   * Writes all remaining decompressed data to <code>out</code>. Every block
+   * is written directly from the buffer it is decompressed into, or read
+   * into if it is stored uncompressed. This overrides
+   * <code>InputStream.transferTo(OutputStream)</code> on Java 9+.
+   *
+   * @param out the stream to write decompressed data to
+   * @return the number of bytes which have been transferred
+   * @throws IOException if an I/O error occurs or if the stream is corrupted
+   */
+  public long transferTo(OutputStream out) throws IOException {
+    ensureOpen();
+    long transferred = 0;
+    while (true) {
+      if (o < originalLen) {
+        out.write(buffer, o, originalLen - o);
+        transferred += originalLen - o;
+        o = originalLen;
+      }
+      if (finished || !readHeader()) {
+        return transferred;
+      }
+      readBlock();
+    }
+  }
+
+  private byte[] readBytes(int limit) throws IOException {
+    ensureOpen();
+    byte[] result = new byte[Math.min(limit, originalLen - o)];
+    int n = 0;
+    while (n < limit) {
+      if (o < originalLen) {
+        final int len = Math.min(limit - n, originalLen - o);
+        result = grow(result, n, len, limit);
+        System.arraycopy(buffer, o, result, n, len);
+        o += len;
+        n += len;
+      } else if (finished || !readHeader()) {
+        break;
+      } else if (limit - n >= originalLen) {
+        result = grow(result, n, originalLen, limit);
+        readBlock(result, n);
+        o = originalLen;
+        n += originalLen;
+      } else {
+        readBlock();
+      }
+    }
+    return n == result.length ? result : Arrays.copyOf(result, n);
+  }
+
+  // Makes sure that b has room for len bytes after the first n bytes
+  private static byte[] grow(byte[] b, int n, int len, int limit) {
+    if (b.length - n >= len) {
+      return b;
+    }
+    final long newLength = Math.max(n + (long) len, Math.min(2L * b.length, limit));
+    if (newLength > MAX_ARRAY_SIZE) {
+      throw new OutOfMemoryError("Required array size too large");
+    }
+    return Arrays.copyOf(b, (int) newLength);
+  }
+
+  /**
+   * Skips over and discards <code>n</code> bytes of decompressed data. Blocks
+   * which are skipped entirely are neither decompressed nor verified against
+   * their checksum: only their header is read, and their compressed data is
+   * skipped in the underlying stream.
+   */
   @Override
   public long skip(long n) throws IOException {
+    ensureOpen();
     if (n <= 0 || finished) {
       return 0;
     }
-    if (o == originalLen) {
-      refill();
-    }
-    if (finished) {
-      return 0;
-    }
-    final int skipped = (int) Math.min(n, originalLen - o);
+    long skipped = Math.min(n, originalLen - o);
     o += skipped;
+    while (skipped < n) {
+      if (!readHeader()) {
+        break;
+      }
+      if (n - skipped >= originalLen) {
+        skipFully(compressedLen);
+        skipped += originalLen;
+        o = originalLen;
+      } else {
+        readBlock();
+        o = (int) (n - skipped);
+        skipped = n;
+      }
+    }
     return skipped;
   }
 
   private void refill() throws IOException {
-    if (!tryReadFully(compressedBuffer, HEADER_LENGTH)) {
+    if (readHeader()) {
+      readBlock();
+    }
+  }
+
+  // Reads the header of the next non-empty block, returns false if the end
+  // of the stream has been reached.
+  private boolean readHeader() throws IOException {
+    if (!tryReadFully(compressedBuffer, 0, HEADER_LENGTH)) {
       if (!stopOnEmptyBlock) {
         finished = true;
       } else {
         throw new EOFException("Stream ended prematurely");
       }
-      return;
+      return false;
     }
     for (int i = 0; i < MAGIC_LENGTH; ++i) {
       if (compressedBuffer[i] != MAGIC[i]) {
@@ -203,15 +365,17 @@ public class LZ4BlockInputStream extends FilterInputStream {
       }
     }
     final int token = compressedBuffer[MAGIC_LENGTH] & 0xFF;
-    final int compressionMethod = token & 0xF0;
+    compressionMethod = token & 0xF0;
     final int compressionLevel = COMPRESSION_LEVEL_BASE + (token & 0x0F);
     if (compressionMethod != COMPRESSION_METHOD_RAW && compressionMethod != COMPRESSION_METHOD_LZ4) {
       throw new IOException("Stream is corrupted");
     }
-    final int compressedLen = SafeUtils.readIntLE(compressedBuffer, MAGIC_LENGTH + 1);
+    compressedLen = SafeUtils.readIntLE(compressedBuffer, MAGIC_LENGTH + 1);
     originalLen = SafeUtils.readIntLE(compressedBuffer, MAGIC_LENGTH + 5);
-    final int check = SafeUtils.readIntLE(compressedBuffer, MAGIC_LENGTH + 9);
+    check = SafeUtils.readIntLE(compressedBuffer, MAGIC_LENGTH + 9);
     assert HEADER_LENGTH == MAGIC_LENGTH + 13;
+    // nothing is buffered until the block is read
+    o = originalLen;
     if (originalLen > 1 << compressionLevel
         || originalLen < 0
         || compressedLen < 0
@@ -225,26 +389,56 @@ public class LZ4BlockInputStream extends FilterInputStream {
         throw new IOException("Stream is corrupted");
       }
       if (!stopOnEmptyBlock) {
-        refill();
+        return readHeader();
       } else {
         finished = true;
+        return false;
       }
-      return;
     }
+    return true;
+  }
+
+  // Reads, decompresses and verifies the block whose header has just been
+  // read into the internal buffer.
+  private void readBlock() throws IOException {
     if (buffer.length < originalLen) {
-      buffer = new byte[Math.max(originalLen, buffer.length * 3 / 2)];
+      final int oldLength = buffer.length;
+      bufferPool.release(buffer);
+      buffer = bufferPool.borrow(Math.max(originalLen, oldLength * 3 / 2));
+      if (instrumentation != null && oldLength > 0) {
+        instrumentation.bufferReallocated(oldLength, buffer.length);
+      }
     }
+    readBlock(buffer, 0);
+    o = 0;
+  }
+
+  // Reads, decompresses and verifies the block whose header has just been
+  // read into dest, which must have room for originalLen bytes at destOff.
+  private void readBlock(byte[] dest, int destOff) throws IOException {
     switch (compressionMethod) {
     case COMPRESSION_METHOD_RAW:
-      readFully(buffer, originalLen);
+      readFully(dest, destOff, originalLen);
       break;
     case COMPRESSION_METHOD_LZ4:
       if (compressedBuffer.length < compressedLen) {
-        compressedBuffer = new byte[Math.max(compressedLen, compressedBuffer.length * 3 / 2)];
+        final int oldLength = compressedBuffer.length;
+        bufferPool.release(compressedBuffer);
+        compressedBuffer = bufferPool.borrow(Math.max(compressedLen, oldLength * 3 / 2));
+        // the initial buffer is only large enough for headers
+        if (instrumentation != null && oldLength > HEADER_LENGTH) {
+          instrumentation.bufferReallocated(oldLength, compressedBuffer.length);
+        }
       }
-      readFully(compressedBuffer, compressedLen);
+      readFully(compressedBuffer, 0, compressedLen);
       try {
-        final int compressedLen2 = decompressor.decompress(compressedBuffer, 0, buffer, 0, originalLen);
+        if (instrumentation != null) {
+          instrumentation.beginDecompression();
+        }
+        final int compressedLen2 = decompressor.decompress(compressedBuffer, 0, dest, destOff, originalLen);
+        if (instrumentation != null) {
+          instrumentation.endDecompression(compressedLen2, originalLen);
+        }
         if (compressedLen != compressedLen2) {
           throw new IOException("Stream is corrupted");
         }
@@ -255,20 +449,26 @@ public class LZ4BlockInputStream extends FilterInputStream {
     default:
       throw new AssertionError();
     }
+    if (instrumentation != null) {
+      instrumentation.beginHash();
+    }
     checksum.reset();
-    checksum.update(buffer, 0, originalLen);
-    if ((int) checksum.getValue() != check) {
+    checksum.update(dest, destOff, originalLen);
+    final int value = (int) checksum.getValue();
+    if (instrumentation != null) {
+      instrumentation.endHash(originalLen);
+    }
+    if (value != check) {
       throw new IOException("Stream is corrupted");
     }
-    o = 0;
   }
 
   // Like readFully(), except it signals incomplete reads by returning
   // false instead of throwing EOFException.
-  private boolean tryReadFully(byte[] b, int len) throws IOException {
+  private boolean tryReadFully(byte[] b, int off, int len) throws IOException {
     int read = 0;
     while (read < len) {
-      final int r = in.read(b, read, len - read);
+      final int r = in.read(b, off + read, len - read);
       if (r < 0) {
         return false;
       }
@@ -278,12 +478,46 @@ public class LZ4BlockInputStream extends FilterInputStream {
     return true;
   }
 
-  private void readFully(byte[] b, int len) throws IOException {
-    if (!tryReadFully(b, len)) {
+  private void readFully(byte[] b, int off, int len) throws IOException {
+    if (!tryReadFully(b, off, len)) {
       throw new EOFException("Stream ended prematurely");
     }
   }
 
+  private void skipFully(long len) throws IOException {
+    while (len > 0) {
+      final long skipped = in.skip(len);
+      if (skipped > 0) {
+        len -= skipped;
+      } else if (in.read() >= 0) {
+        // InputStream.skip may skip nothing before the end of the stream
+        --len;
+      } else {
+        throw new EOFException("Stream ended prematurely");
+      }
+    }
+  }
+
+  private void ensureOpen() throws IOException {
+    if (buffer == null) {
+      throw new IOException("Stream closed");
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      super.close();
+    } finally {
+      if (buffer != null) {
+        bufferPool.release(buffer);
+        bufferPool.release(compressedBuffer);
+        buffer = compressedBuffer = null;
+        o = originalLen = 0;
+      }
+    }
+  }
+
   @Override
   public boolean markSupported() {
     return false;
@@ -55,7 +55,11 @@ public class LZ4BlockOutputStream extends FilterOutputStream {
 
   static final int DEFAULT_SEED = 0x9747b28c;
 
-  private static int compressionLevel(int blockSize) {
+  // upper bound of the number of blocks which are stored without trying to
+  // compress them after a block failed to compress
+  static final int MAX_SKIPPED_BLOCKS = 64;
+
+  static int compressionLevel(int blockSize) {
     if (blockSize < MIN_BLOCK_SIZE) {
       throw new IllegalArgumentException("blockSize must be >= " + MIN_BLOCK_SIZE + ", got " + blockSize);
     } else if (blockSize > MAX_BLOCK_SIZE) {
@@ -73,11 +77,19 @@ public class LZ4BlockOutputStream extends FilterOutputStream {
   private final int compressionLevel;
   private final LZ4Compressor compressor;
   private final Checksum checksum;
-  private final byte[] buffer;
-  private final byte[] compressedBuffer;
+  private final LZ4BufferPool bufferPool;
+  private final LZ4StreamInstrumentation instrumentation; // null if disabled
+  private byte[] buffer;
+  private byte[] compressedBuffer;
   private final boolean syncFlush;
+  private final boolean skipIncompressible;
   private boolean finished;
   private int o;
+  private int skipInterval;
+  private int blocksToSkip;
+  private long blockCount;
+  private long rawBlockCount;
+  private long skippedCompressionCount;
 
   /**
    * Creates a new {@link OutputStream} with configurable block size. Large
@@ -92,22 +104,70 @@ public class LZ4BlockOutputStream extends FilterOutputStream {
    * @param checksum    the {@link Checksum} instance to use to check data for
    *                    integrity.
    * @param syncFlush   true if pending data should also be flushed on {@link #flush()}
+   * @param skipIncompressible true if blocks should be stored without trying
+   *                    to compress them when previous blocks did not compress,
+   *                    see {@link #getSkippedCompressionCount()}
+   * @param bufferPool  the {@link LZ4BufferPool} to borrow buffers from, they
+   *                    are released on {@link #close()}
    */
-  public LZ4BlockOutputStream(OutputStream out, int blockSize, LZ4Compressor compressor, Checksum checksum, boolean syncFlush) {
+  public LZ4BlockOutputStream(OutputStream out, int blockSize, LZ4Compressor compressor, Checksum checksum, boolean syncFlush,
+      boolean skipIncompressible, LZ4BufferPool bufferPool) {
     super(out);
     this.blockSize = blockSize;
     this.compressor = compressor;
     this.checksum = checksum;
     this.compressionLevel = compressionLevel(blockSize);
-    this.buffer = new byte[blockSize];
+    this.bufferPool = bufferPool;
+    this.instrumentation = LZ4StreamInstrumentation.forCompression("LZ4BlockOutputStream", compressor);
+    this.buffer = bufferPool.borrow(blockSize);
     final int compressedBlockSize = HEADER_LENGTH + compressor.maxCompressedLength(blockSize);
-    this.compressedBuffer = new byte[compressedBlockSize];
+    this.compressedBuffer = bufferPool.borrow(compressedBlockSize);
     this.syncFlush = syncFlush;
+    this.skipIncompressible = skipIncompressible;
     o = 0;
     finished = false;
     System.arraycopy(MAGIC, 0, compressedBuffer, 0, MAGIC_LENGTH);
   }
 
+  /**
+   * Creates a new instance which allocates its own buffers.
+   *
+   * @param out         the {@link OutputStream} to feed
+   * @param blockSize   the maximum number of bytes to try to compress at once,
+   *                    must be &gt;= 64 and &lt;= 32 M
+   * @param compressor  the {@link LZ4Compressor} instance to use to compress
+   *                    data
+   * @param checksum    the {@link Checksum} instance to use to check data for
+   *                    integrity.
+   * @param syncFlush   true if pending data should also be flushed on {@link #flush()}
+   * @param skipIncompressible true if blocks should be stored without trying
+   *                    to compress them when previous blocks did not compress,
+   *                    see {@link #getSkippedCompressionCount()}
+   *
+   * @see #LZ4BlockOutputStream(OutputStream, int, LZ4Compressor, Checksum, boolean, boolean, LZ4BufferPool)
+   */
+  public LZ4BlockOutputStream(OutputStream out, int blockSize, LZ4Compressor compressor, Checksum checksum, boolean syncFlush, boolean skipIncompressible) {
+    this(out, blockSize, compressor, checksum, syncFlush, skipIncompressible, LZ4BufferPool.unpooled());
+  }
+
+  /**
+   * Creates a new instance which always tries to compress blocks.
+   *
+   * @param out         the {@link OutputStream} to feed
+   * @param blockSize   the maximum number of bytes to try to compress at once,
+   *                    must be &gt;= 64 and &lt;= 32 M
+   * @param compressor  the {@link LZ4Compressor} instance to use to compress
+   *                    data
+   * @param checksum    the {@link Checksum} instance to use to check data for
+   *                    integrity.
+   * @param syncFlush   true if pending data should also be flushed on {@link #flush()}
+   *
+   * @see #LZ4BlockOutputStream(OutputStream, int, LZ4Compressor, Checksum, boolean, boolean)
+   */
+  public LZ4BlockOutputStream(OutputStream out, int blockSize, LZ4Compressor compressor, Checksum checksum, boolean syncFlush) {
+    this(out, blockSize, compressor, checksum, syncFlush, false);
+  }
+
   /**
    * Creates a new instance which checks stream integrity using
    * {@link StreamingXXHash32} and doesn't sync flush.
@@ -166,12 +226,25 @@ public class LZ4BlockOutputStream extends FilterOutputStream {
     buffer[o++] = (byte) b;
   }
 
+  /**
+   * Writes <code>len</code> bytes. When nothing is buffered, full blocks of
+   * <code>b</code> which are followed by more data are compressed directly
+   * from <code>b</code>, without being copied to the internal buffer first.
+   * The output is the same as if bytes were written one by one.
+   */
   @Override
   public void write(byte[] b, int off, int len) throws IOException {
     SafeUtils.checkRange(b, off, len);
     ensureNotFinished();
 
     while (o + len > blockSize) {
+      if (o == 0) {
+        // no need to copy full blocks
+        writeBlock(b, off, blockSize);
+        off += blockSize;
+        len -= blockSize;
+        continue;
+      }
       final int l = blockSize - o;
       System.arraycopy(b, off, buffer, o, blockSize - o);
       o = blockSize;
@@ -191,12 +264,22 @@ public class LZ4BlockOutputStream extends FilterOutputStream {
 
   @Override
   public void close() throws IOException {
-    if (!finished) {
-      finish();
-    }
-    if (out != null) {
-      out.close();
-      out = null;
+    try {
+      if (!finished) {
+        finish();
+      }
+      if (out != null) {
+        out.close();
+        out = null;
+      }
+    } finally {
+      if (buffer != null) {
+        finished = true;
+        o = 0;
+        bufferPool.release(buffer);
+        bufferPool.release(compressedBuffer);
+        buffer = compressedBuffer = null;
+      }
     }
   }
 
@@ -204,26 +287,64 @@ public class LZ4BlockOutputStream extends FilterOutputStream {
     if (o == 0) {
       return;
     }
+    writeBlock(buffer, 0, o);
+    o = 0;
+  }
+
+  // Compresses and writes src[srcOff:srcOff+len] as a block
+  private void writeBlock(byte[] src, int srcOff, int len) throws IOException {
+    if (instrumentation != null) {
+      instrumentation.beginHash();
+    }
     checksum.reset();
-    checksum.update(buffer, 0, o);
+    checksum.update(src, srcOff, len);
     final int check = (int) checksum.getValue();
-    int compressedLength = compressor.compress(buffer, 0, o, compressedBuffer, HEADER_LENGTH);
+    if (instrumentation != null) {
+      instrumentation.endHash(len);
+    }
+    final boolean skipCompression = blocksToSkip > 0;
+    int compressedLength;
+    if (skipCompression) {
+      // previous blocks did not compress, don't waste CPU on this one
+      --blocksToSkip;
+      ++skippedCompressionCount;
+      compressedLength = len;
+    } else {
+      if (instrumentation != null) {
+        instrumentation.beginCompression();
+      }
+      compressedLength = compressor.compress(src, srcOff, len, compressedBuffer, HEADER_LENGTH);
+      if (instrumentation != null) {
+        instrumentation.endCompression(len, compressedLength);
+      }
+    }
     final int compressMethod;
-    if (compressedLength >= o) {
+    if (compressedLength >= len) {
       compressMethod = COMPRESSION_METHOD_RAW;
-      compressedLength = o;
-      System.arraycopy(buffer, 0, compressedBuffer, HEADER_LENGTH, o);
+      compressedLength = len;
+      System.arraycopy(src, srcOff, compressedBuffer, HEADER_LENGTH, len);
+      ++rawBlockCount;
+      if (instrumentation != null) {
+        instrumentation.incompressibleBlock(len);
+      }
+      if (skipIncompressible && !skipCompression) {
+        // back off exponentially while the data remains incompressible, the
+        // next block which is not skipped probes whether it still is
+        skipInterval = Math.min(Math.max(1, skipInterval << 1), MAX_SKIPPED_BLOCKS);
+        blocksToSkip = skipInterval;
+      }
     } else {
       compressMethod = COMPRESSION_METHOD_LZ4;
+      skipInterval = 0;
     }
+    ++blockCount;
 
     compressedBuffer[MAGIC_LENGTH] = (byte) (compressMethod | compressionLevel);
     writeIntLE(compressedLength, compressedBuffer, MAGIC_LENGTH + 1);
-    writeIntLE(o, compressedBuffer, MAGIC_LENGTH + 5);
+    writeIntLE(len, compressedBuffer, MAGIC_LENGTH + 5);
     writeIntLE(check, compressedBuffer, MAGIC_LENGTH + 9);
     assert MAGIC_LENGTH + 13 == HEADER_LENGTH;
     out.write(compressedBuffer, 0, HEADER_LENGTH + compressedLength);
-    o = 0;
   }
 
   /**
@@ -265,6 +386,38 @@ public class LZ4BlockOutputStream extends FilterOutputStream {
     out.flush();
   }
 
+  /**
+   * Returns the number of data blocks which have been written so far.
+   *
+   * @return the number of blocks
+   */
+  public long getBlockCount() {
+    return blockCount;
+  }
+
+  /**
+   * Returns the number of blocks which have been stored uncompressed so far,
+   * either because compressing them did not reduce their size or because
+   * compression was skipped.
+   *
+   * @return the number of uncompressed blocks
+   */
+  public long getRawBlockCount() {
+    return rawBlockCount;
+  }
+
+  /**
+   * Returns the number of blocks which have been stored uncompressed without
+   * trying to compress them, because the blocks before them did not compress.
+   * This is always 0 unless this stream has been created with
+   * <code>skipIncompressible=true</code>.
+   *
+   * @return the number of blocks whose compression has been skipped
+   */
+  public long getSkippedCompressionCount() {
+    return skippedCompressionCount;
+  }
+
   private static void writeIntLE(int i, byte[] buf, int off) {
     buf[off++] = (byte) i;
     buf[off++] = (byte) (i >>> 8);
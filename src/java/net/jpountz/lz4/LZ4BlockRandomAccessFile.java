@@ -0,0 +1,376 @@
+package net.jpountz.lz4;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static net.jpountz.lz4.LZ4BlockOutputStream.COMPRESSION_LEVEL_BASE;
+import static net.jpountz.lz4.LZ4BlockOutputStream.COMPRESSION_METHOD_LZ4;
+import static net.jpountz.lz4.LZ4BlockOutputStream.COMPRESSION_METHOD_RAW;
+import static net.jpountz.lz4.LZ4BlockOutputStream.DEFAULT_SEED;
+import static net.jpountz.lz4.LZ4BlockOutputStream.HEADER_LENGTH;
+import static net.jpountz.lz4.LZ4BlockOutputStream.MAGIC;
+import static net.jpountz.lz4.LZ4BlockOutputStream.MAGIC_LENGTH;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.jpountz.util.SafeUtils;
+import net.jpountz.xxhash.XXHash32;
+import net.jpountz.xxhash.XXHashFactory;
+
+/**
+ * Random access to the decompressed content of a file written with
+ * {@link LZ4BlockOutputStream}, using the default {@link XXHash32} checksum.
+ * <p>
+ * Block headers are scanned once when the file is opened in order to build an
+ * index of blocks, and reads at arbitrary offsets then only decompress the
+ * blocks they overlap. Decompressed blocks are kept in a bounded LRU cache
+ * which is shared by all readers, so that hot regions of the file get
+ * decompressed only once.
+ * <p>
+ * Instances of this class are thread-safe. Concatenated streams are supported,
+ * empty blocks are ignored.
+ *
+ * @see LZ4BlockOutputStream
+ */
+public final class LZ4BlockRandomAccessFile implements Closeable {
+
+  static final int DEFAULT_MAX_CACHED_BLOCKS = 16;
+  // maximum size of a memory-mapped region
+  static final int MAX_MAPPING_SIZE = 1 << 30;
+
+  private final FileChannel channel;
+  private final LZ4FastDecompressor decompressor;
+  private final XXHash32 checksum;
+  // the header of every non-empty block
+  private final long[] blockOffsets; // offset of the compressed data in the file
+  private final int[] compressionMethods, compressedLens, checks;
+  // offsets of blocks in the uncompressed data, with an additional entry
+  // which marks the end of the last block
+  private final long[] offsets;
+  // null unless the file is memory-mapped
+  private final ByteBuffer[] mappings;
+  private final long[] mappingOffsets;
+  private final int[] blockMappings;
+  private final Map<Integer, Block> cache;
+
+  /**
+   * Opens a file for random access, using the fastest instances of
+   * {@link LZ4FastDecompressor} and {@link XXHash32} and caching up to
+   * {@value #DEFAULT_MAX_CACHED_BLOCKS} decompressed blocks.
+   *
+   * @param channel the channel to read from, which is closed by {@link #close()}
+   * @throws IOException if an I/O error occurs or if the file is corrupted
+   *
+   * @see #LZ4BlockRandomAccessFile(FileChannel, LZ4FastDecompressor, XXHash32, int, boolean)
+   */
+  public LZ4BlockRandomAccessFile(FileChannel channel) throws IOException {
+    this(channel, LZ4Factory.fastestInstance().fastDecompressor(), XXHashFactory.fastestInstance().hash32(),
+        DEFAULT_MAX_CACHED_BLOCKS, false);
+  }
+
+  /**
+   * Opens a file for random access.
+   *
+   * @param channel         the channel to read from, which is closed by {@link #close()}
+   * @param decompressor    the {@link LZ4FastDecompressor decompressor} instance to use
+   * @param checksum        the {@link XXHash32} instance to verify blocks with
+   * @param maxCachedBlocks the maximum number of decompressed blocks to cache
+   * @param memoryMap       whether to memory-map the file instead of reading
+   *                        blocks from the channel
+   * @throws IOException if an I/O error occurs or if the file is corrupted
+   */
+  public LZ4BlockRandomAccessFile(FileChannel channel, LZ4FastDecompressor decompressor, XXHash32 checksum,
+      final int maxCachedBlocks, boolean memoryMap) throws IOException {
+    if (maxCachedBlocks < 0) {
+      throw new IllegalArgumentException("maxCachedBlocks must be >= 0, got " + maxCachedBlocks);
+    }
+    this.channel = channel;
+    this.decompressor = decompressor;
+    this.checksum = checksum;
+
+    final long size = channel.size();
+    long[] blockOffsets = new long[16];
+    int[] compressionMethods = new int[16], compressedLens = new int[16], originalLens = new int[16], checks = new int[16];
+    int blockCount = 0;
+    final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+    for (long offset = 0; offset < size; ) {
+      header.clear();
+      readFully(offset, header);
+      offset += HEADER_LENGTH;
+      for (int i = 0; i < MAGIC_LENGTH; ++i) {
+        if (header.get(i) != MAGIC[i]) {
+          throw new IOException("Stream is corrupted");
+        }
+      }
+      final int token = header.get(MAGIC_LENGTH) & 0xFF;
+      final int compressionMethod = token & 0xF0;
+      final int compressionLevel = COMPRESSION_LEVEL_BASE + (token & 0x0F);
+      final int compressedLen = header.getInt(MAGIC_LENGTH + 1);
+      final int originalLen = header.getInt(MAGIC_LENGTH + 5);
+      final int check = header.getInt(MAGIC_LENGTH + 9);
+      if ((compressionMethod != COMPRESSION_METHOD_RAW && compressionMethod != COMPRESSION_METHOD_LZ4)
+          || originalLen > 1 << compressionLevel
+          || originalLen < 0
+          || compressedLen < 0
+          || (originalLen == 0 && (compressedLen != 0 || check != 0))
+          || (originalLen != 0 && compressedLen == 0)
+          || (compressionMethod == COMPRESSION_METHOD_RAW && originalLen != compressedLen)) {
+        throw new IOException("Stream is corrupted");
+      }
+      if (offset + compressedLen > size) {
+        throw new EOFException("Stream ended prematurely");
+      }
+      if (originalLen != 0) {
+        if (blockCount == blockOffsets.length) {
+          final int newLength = blockCount * 2;
+          blockOffsets = Arrays.copyOf(blockOffsets, newLength);
+          compressionMethods = Arrays.copyOf(compressionMethods, newLength);
+          compressedLens = Arrays.copyOf(compressedLens, newLength);
+          originalLens = Arrays.copyOf(originalLens, newLength);
+          checks = Arrays.copyOf(checks, newLength);
+        }
+        blockOffsets[blockCount] = offset;
+        compressionMethods[blockCount] = compressionMethod;
+        compressedLens[blockCount] = compressedLen;
+        originalLens[blockCount] = originalLen;
+        checks[blockCount] = check;
+        ++blockCount;
+      }
+      offset += compressedLen;
+    }
+
+    this.blockOffsets = Arrays.copyOf(blockOffsets, blockCount);
+    this.compressionMethods = Arrays.copyOf(compressionMethods, blockCount);
+    this.compressedLens = Arrays.copyOf(compressedLens, blockCount);
+    this.checks = Arrays.copyOf(checks, blockCount);
+    this.offsets = new long[blockCount + 1];
+    for (int i = 0; i < blockCount; ++i) {
+      offsets[i + 1] = offsets[i] + originalLens[i];
+    }
+
+    if (memoryMap) {
+      // map regions which start and end at block boundaries so that every
+      // block is contained in a single mapping
+      final List<ByteBuffer> mappings = new ArrayList<ByteBuffer>();
+      final List<Long> mappingOffsets = new ArrayList<Long>();
+      this.blockMappings = new int[blockCount];
+      for (int i = 0; i < blockCount; ) {
+        final long start = this.blockOffsets[i];
+        long end = start + compressedLens[i];
+        int j = i + 1;
+        while (j < blockCount && this.blockOffsets[j] + compressedLens[j] - start <= MAX_MAPPING_SIZE) {
+          end = this.blockOffsets[j] + compressedLens[j];
+          ++j;
+        }
+        for (int k = i; k < j; ++k) {
+          blockMappings[k] = mappings.size();
+        }
+        mappings.add(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+        mappingOffsets.add(start);
+        i = j;
+      }
+      this.mappings = mappings.toArray(new ByteBuffer[mappings.size()]);
+      this.mappingOffsets = new long[mappingOffsets.size()];
+      for (int i = 0; i < this.mappingOffsets.length; ++i) {
+        this.mappingOffsets[i] = mappingOffsets.get(i);
+      }
+    } else {
+      this.mappings = null;
+      this.mappingOffsets = null;
+      this.blockMappings = null;
+    }
+
+    this.cache = new LinkedHashMap<Integer, Block>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Integer, Block> eldest) {
+        return size() > maxCachedBlocks;
+      }
+    };
+  }
+
+  private void readFully(long offset, ByteBuffer dst) throws IOException {
+    while (dst.hasRemaining()) {
+      final int read = channel.read(dst, offset);
+      if (read < 0) {
+        throw new EOFException("Stream ended prematurely");
+      }
+      offset += read;
+    }
+  }
+
+  /**
+   * Returns the length of the decompressed content of the file.
+   *
+   * @return the decompressed length
+   */
+  public long length() {
+    return offsets[offsets.length - 1];
+  }
+
+  /**
+   * Returns the number of non-empty blocks of the file.
+   *
+   * @return the number of blocks
+   */
+  public int getBlockCount() {
+    return compressedLens.length;
+  }
+
+  /**
+   * Reads up to <code>len</code> bytes of decompressed content starting at
+   * <code>position</code> into <code>b[off:off+len]</code>. Unlike
+   * {@link java.io.InputStream#read(byte[], int, int)}, this method only
+   * returns fewer than <code>len</code> bytes if the end of the content is
+   * reached.
+   *
+   * @param position the offset in the decompressed content to read from
+   * @param b the destination buffer
+   * @param off the start offset in b
+   * @param len the maximum number of bytes to read
+   * @return the number of bytes read, or -1 if <code>position</code> is at or
+   *         beyond the end of the content
+   * @throws IOException if an I/O error occurs or if a block is corrupted
+   */
+  public int read(long position, byte[] b, int off, int len) throws IOException {
+    SafeUtils.checkRange(b, off, len);
+    if (position < 0) {
+      throw new IllegalArgumentException("position must be >= 0, got " + position);
+    }
+    if (position >= length()) {
+      return len == 0 ? 0 : -1;
+    }
+    int i = Arrays.binarySearch(offsets, position);
+    if (i < 0) {
+      i = -2 - i;
+    }
+    int read = 0;
+    while (read < len && i < compressedLens.length) {
+      final byte[] block = block(i);
+      final int o = (int) (position + read - offsets[i]);
+      final int l = Math.min(len - read, block.length - o);
+      System.arraycopy(block, o, b, off + read, l);
+      read += l;
+      ++i;
+    }
+    return read;
+  }
+
+  /**
+   * Reads exactly <code>len</code> bytes of decompressed content starting at
+   * <code>position</code> into <code>b[off:off+len]</code>.
+   *
+   * @param position the offset in the decompressed content to read from
+   * @param b the destination buffer
+   * @param off the start offset in b
+   * @param len the number of bytes to read
+   * @throws EOFException if the content ends before <code>len</code> bytes could be read
+   * @throws IOException if an I/O error occurs or if a block is corrupted
+   */
+  public void readFully(long position, byte[] b, int off, int len) throws IOException {
+    if (read(position, b, off, len) != len) {
+      throw new EOFException("Stream ended prematurely");
+    }
+  }
+
+  // Returns the decompressed content of block i, from the cache if possible.
+  private byte[] block(int i) throws IOException {
+    Block block;
+    synchronized (cache) {
+      block = cache.get(i);
+      if (block == null) {
+        block = new Block();
+        cache.put(i, block);
+      }
+    }
+    // concurrent readers of the same block wait for the first one to
+    // decompress it
+    synchronized (block) {
+      if (block.data == null) {
+        block.data = decompress(i);
+      }
+      return block.data;
+    }
+  }
+
+  private byte[] decompress(int i) throws IOException {
+    final int originalLen = (int) (offsets[i + 1] - offsets[i]);
+    final int compressedLen = compressedLens[i];
+    final byte[] data = new byte[originalLen];
+    try {
+      if (mappings != null) {
+        final ByteBuffer mapping = mappings[blockMappings[i]];
+        final int o = (int) (blockOffsets[i] - mappingOffsets[blockMappings[i]]);
+        if (compressionMethods[i] == COMPRESSION_METHOD_RAW) {
+          final ByteBuffer src = mapping.duplicate();
+          src.position(o);
+          src.get(data);
+        } else if (decompressor.decompress(mapping, o, ByteBuffer.wrap(data), 0, originalLen) != compressedLen) {
+          throw new IOException("Stream is corrupted");
+        }
+      } else {
+        final byte[] compressed = new byte[compressedLen];
+        readFully(blockOffsets[i], ByteBuffer.wrap(compressed));
+        if (compressionMethods[i] == COMPRESSION_METHOD_RAW) {
+          System.arraycopy(compressed, 0, data, 0, originalLen);
+        } else if (decompressor.decompress(compressed, 0, data, 0, originalLen) != compressedLen) {
+          throw new IOException("Stream is corrupted");
+        }
+      }
+    } catch (LZ4Exception e) {
+      throw new IOException("Stream is corrupted", e);
+    }
+    // same as StreamingXXHash32.asChecksum().getValue()
+    if ((checksum.hash(data, 0, originalLen, DEFAULT_SEED) & 0xFFFFFFF) != checks[i]) {
+      throw new IOException("Stream is corrupted");
+    }
+    return data;
+  }
+
+  private static final class Block {
+    byte[] data;
+  }
+
+  /**
+   * Closes the underlying channel. Memory-mapped regions are released when
+   * they get garbage-collected.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (cache) {
+      cache.clear();
+    }
+    channel.close();
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "(channel=" + channel + ", decompressor=" + decompressor
+        + ", checksum=" + checksum + ")";
+  }
+
+}
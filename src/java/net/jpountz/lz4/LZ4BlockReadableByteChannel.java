@@ -0,0 +1,231 @@
+package net.jpountz.lz4;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static net.jpountz.lz4.LZ4BlockOutputStream.COMPRESSION_LEVEL_BASE;
+import static net.jpountz.lz4.LZ4BlockOutputStream.COMPRESSION_METHOD_LZ4;
+import static net.jpountz.lz4.LZ4BlockOutputStream.COMPRESSION_METHOD_RAW;
+import static net.jpountz.lz4.LZ4BlockOutputStream.DEFAULT_SEED;
+import static net.jpountz.lz4.LZ4BlockOutputStream.HEADER_LENGTH;
+import static net.jpountz.lz4.LZ4BlockOutputStream.MAGIC;
+import static net.jpountz.lz4.LZ4BlockOutputStream.MAGIC_LENGTH;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+import net.jpountz.xxhash.XXHash32;
+import net.jpountz.xxhash.XXHashFactory;
+
+/**
+ * {@link ReadableByteChannel} which decodes data written with
+ * {@link LZ4BlockOutputStream} or {@link LZ4BlockWritableByteChannel} using the
+ * default {@link XXHash32} checksum. This class is not thread-safe.
+ * <p>
+ * Reads never go past the end of the block which is being returned, so that
+ * data is returned as soon as its block has been written, even if the writer
+ * waits for an answer before writing the next one. Blocks are decompressed
+ * directly into the destination buffer when it has room for the whole block,
+ * and into an intermediate direct buffer otherwise. The underlying channel must
+ * be in blocking mode.
+ *
+ * @see LZ4BlockInputStream
+ */
+public class LZ4BlockReadableByteChannel implements ReadableByteChannel {
+
+  private final ReadableByteChannel channel;
+  private final LZ4SafeDecompressor decompressor;
+  private final XXHash32 checksum;
+  private final boolean stopOnEmptyBlock;
+  private final ByteBuffer header = ByteBuffer.allocateDirect(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+  private ByteBuffer buffer = ByteBuffer.allocateDirect(0); // decompressed data which has not been read yet
+  private ByteBuffer compressedBuffer = ByteBuffer.allocateDirect(0);
+  private boolean finished;
+  private boolean open = true;
+
+  /**
+   * Creates a new channel to read from the specified underlying channel.
+   *
+   * @param channel           the channel to read compressed data from
+   * @param decompressor      the {@link LZ4SafeDecompressor decompressor} instance to use
+   * @param checksum          the {@link XXHash32} instance to verify blocks with
+   * @param stopOnEmptyBlock  whether read is stopped on an empty block
+   */
+  public LZ4BlockReadableByteChannel(ReadableByteChannel channel, LZ4SafeDecompressor decompressor, XXHash32 checksum,
+      boolean stopOnEmptyBlock) {
+    this.channel = channel;
+    this.decompressor = decompressor;
+    this.checksum = checksum;
+    this.stopOnEmptyBlock = stopOnEmptyBlock;
+  }
+
+  /**
+   * Creates a new channel to read from the specified underlying channel,
+   * using the fastest instances of {@link LZ4SafeDecompressor} and
+   * {@link XXHash32}.
+   *
+   * @param channel           the channel to read compressed data from
+   *
+   * @see #LZ4BlockReadableByteChannel(ReadableByteChannel, LZ4SafeDecompressor, XXHash32, boolean)
+   */
+  public LZ4BlockReadableByteChannel(ReadableByteChannel channel) {
+    this(channel, LZ4Factory.fastestInstance().safeDecompressor(), XXHashFactory.fastestInstance().hash32(), true);
+  }
+
+  @Override
+  public int read(ByteBuffer dst) throws IOException {
+    ensureOpen();
+    if (!dst.hasRemaining()) {
+      return 0;
+    }
+    while (!buffer.hasRemaining()) {
+      if (finished || !nextHeader()) {
+        return -1;
+      }
+      final int originalLen = header.getInt(MAGIC_LENGTH + 5);
+      if (dst.remaining() >= originalLen) {
+        return readBlock(dst);
+      }
+      if (buffer.capacity() < originalLen) {
+        buffer = ByteBuffer.allocateDirect(Math.max(originalLen, buffer.capacity() * 3 / 2));
+      }
+      buffer.clear();
+      readBlock(buffer);
+      buffer.flip();
+    }
+    final int len = Math.min(dst.remaining(), buffer.remaining());
+    final ByteBuffer slice = buffer.duplicate();
+    slice.limit(slice.position() + len);
+    dst.put(slice);
+    buffer.position(buffer.position() + len);
+    return len;
+  }
+
+  // Reads and validates the header of the next non-empty block, returns false
+  // if the end of the stream has been reached.
+  private boolean nextHeader() throws IOException {
+    header.clear();
+    if (!LZ4ChannelUtils.tryReadFully(channel, header)) {
+      if (stopOnEmptyBlock || header.position() > 0) {
+        throw new EOFException("Stream ended prematurely");
+      }
+      // the last block of a stream which has not been finished
+      finished = true;
+      return false;
+    }
+    for (int i = 0; i < MAGIC_LENGTH; ++i) {
+      if (header.get(i) != MAGIC[i]) {
+        throw new IOException("Stream is corrupted");
+      }
+    }
+    final int token = header.get(MAGIC_LENGTH) & 0xFF;
+    final int compressionMethod = token & 0xF0;
+    final int compressionLevel = COMPRESSION_LEVEL_BASE + (token & 0x0F);
+    final int compressedLen = header.getInt(MAGIC_LENGTH + 1);
+    final int originalLen = header.getInt(MAGIC_LENGTH + 5);
+    final int check = header.getInt(MAGIC_LENGTH + 9);
+    if ((compressionMethod != COMPRESSION_METHOD_RAW && compressionMethod != COMPRESSION_METHOD_LZ4)
+        || originalLen > 1 << compressionLevel
+        || originalLen < 0
+        || compressedLen < 0
+        || (originalLen == 0 && (compressedLen != 0 || check != 0))
+        || (originalLen != 0 && compressedLen == 0)
+        || (compressionMethod == COMPRESSION_METHOD_RAW && originalLen != compressedLen)) {
+      throw new IOException("Stream is corrupted");
+    }
+    if (originalLen == 0) {
+      if (stopOnEmptyBlock) {
+        finished = true;
+        return false;
+      }
+      return nextHeader();
+    }
+    return true;
+  }
+
+  // Reads the block whose header has just been read, and decompresses it into
+  // out, which must have room for the whole block.
+  private int readBlock(ByteBuffer out) throws IOException {
+    final int compressionMethod = header.get(MAGIC_LENGTH) & 0xF0;
+    final int compressedLen = header.getInt(MAGIC_LENGTH + 1);
+    final int originalLen = header.getInt(MAGIC_LENGTH + 5);
+    final int check = header.getInt(MAGIC_LENGTH + 9);
+
+    final ByteBuffer target;
+    final int targetOff;
+    if (compressionMethod == COMPRESSION_METHOD_LZ4) {
+      if (compressedBuffer.capacity() < compressedLen) {
+        compressedBuffer = ByteBuffer.allocateDirect(Math.max(compressedLen, compressedBuffer.capacity() * 3 / 2));
+      }
+      target = compressedBuffer;
+      target.clear();
+      targetOff = 0;
+    } else {
+      target = out.duplicate();
+      targetOff = out.position();
+    }
+    target.limit(targetOff + compressedLen);
+    if (!LZ4ChannelUtils.tryReadFully(channel, target)) {
+      throw new EOFException("Stream ended prematurely");
+    }
+
+    if (compressionMethod == COMPRESSION_METHOD_LZ4) {
+      try {
+        if (decompressor.decompress(compressedBuffer, 0, compressedLen, out, out.position(), originalLen) != originalLen) {
+          throw new IOException("Stream is corrupted");
+        }
+      } catch (LZ4Exception e) {
+        throw new IOException("Stream is corrupted", e);
+      }
+    }
+    // same as StreamingXXHash32.asChecksum().getValue()
+    if ((checksum.hash(out, out.position(), originalLen, DEFAULT_SEED) & 0xFFFFFFF) != check) {
+      throw new IOException("Stream is corrupted");
+    }
+    out.position(out.position() + originalLen);
+    return originalLen;
+  }
+
+  private void ensureOpen() throws IOException {
+    if (!open) {
+      throw new ClosedChannelException();
+    }
+  }
+
+  @Override
+  public boolean isOpen() {
+    return open;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (open) {
+      open = false;
+      channel.close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "(channel=" + channel + ", decompressor=" + decompressor
+        + ", checksum=" + checksum + ")";
+  }
+
+}
@@ -0,0 +1,226 @@
+package net.jpountz.lz4;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static net.jpountz.lz4.LZ4BlockOutputStream.COMPRESSION_METHOD_LZ4;
+import static net.jpountz.lz4.LZ4BlockOutputStream.COMPRESSION_METHOD_RAW;
+import static net.jpountz.lz4.LZ4BlockOutputStream.DEFAULT_SEED;
+import static net.jpountz.lz4.LZ4BlockOutputStream.HEADER_LENGTH;
+import static net.jpountz.lz4.LZ4BlockOutputStream.MAGIC;
+import static net.jpountz.lz4.LZ4BlockOutputStream.MAGIC_LENGTH;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+
+import net.jpountz.xxhash.XXHash32;
+import net.jpountz.xxhash.XXHashFactory;
+
+/**
+ * {@link WritableByteChannel} which compresses data into blocks that can be
+ * read by {@link LZ4BlockInputStream} or {@link LZ4BlockReadableByteChannel},
+ * using the default {@link XXHash32} checksum. This class is not thread-safe.
+ * <p>
+ * Data is buffered in direct memory, and the header and body of every block
+ * are written with a single gathering write when the underlying channel is a
+ * {@link java.nio.channels.GatheringByteChannel}. Full blocks are compressed
+ * directly from the source buffer when possible. The underlying channel must
+ * be in blocking mode.
+ *
+ * @see LZ4BlockOutputStream
+ */
+public class LZ4BlockWritableByteChannel implements WritableByteChannel {
+
+  private final WritableByteChannel channel;
+  private final int blockSize;
+  private final int compressionLevel;
+  private final LZ4Compressor compressor;
+  private final XXHash32 checksum;
+  private final ByteBuffer buffer;
+  private final ByteBuffer compressedBuffer;
+  private final ByteBuffer header = ByteBuffer.allocateDirect(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+  private boolean open = true;
+
+  /**
+   * Creates a new {@link WritableByteChannel} with configurable block size.
+   *
+   * @param channel     the channel to write compressed data to
+   * @param blockSize   the maximum number of bytes to try to compress at once,
+   *                    must be &gt;= 64 and &lt;= 32 M
+   * @param compressor  the {@link LZ4Compressor} instance to use to compress
+   *                    data
+   * @param checksum    the {@link XXHash32} instance to compute the checksum
+   *                    of blocks with
+   */
+  public LZ4BlockWritableByteChannel(WritableByteChannel channel, int blockSize, LZ4Compressor compressor, XXHash32 checksum) {
+    this.channel = channel;
+    this.blockSize = blockSize;
+    this.compressionLevel = LZ4BlockOutputStream.compressionLevel(blockSize);
+    this.compressor = compressor;
+    this.checksum = checksum;
+    this.buffer = ByteBuffer.allocateDirect(blockSize);
+    this.compressedBuffer = ByteBuffer.allocateDirect(compressor.maxCompressedLength(blockSize));
+    for (int i = 0; i < MAGIC_LENGTH; ++i) {
+      header.put(i, MAGIC[i]);
+    }
+  }
+
+  /**
+   * Creates a new instance which compresses with the standard LZ4 compression
+   * algorithm.
+   *
+   * @param channel     the channel to write compressed data to
+   * @param blockSize   the maximum number of bytes to try to compress at once,
+   *                    must be &gt;= 64 and &lt;= 32 M
+   *
+   * @see #LZ4BlockWritableByteChannel(WritableByteChannel, int, LZ4Compressor, XXHash32)
+   */
+  public LZ4BlockWritableByteChannel(WritableByteChannel channel, int blockSize) {
+    this(channel, blockSize, LZ4Factory.fastestInstance().fastCompressor(), XXHashFactory.fastestInstance().hash32());
+  }
+
+  /**
+   * Creates a new instance which compresses into blocks of 64 KB.
+   *
+   * @param channel     the channel to write compressed data to
+   *
+   * @see #LZ4BlockWritableByteChannel(WritableByteChannel, int)
+   */
+  public LZ4BlockWritableByteChannel(WritableByteChannel channel) {
+    this(channel, 1 << 16);
+  }
+
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    ensureOpen();
+    final int len = src.remaining();
+    while (src.hasRemaining()) {
+      if (buffer.position() == 0 && src.remaining() >= blockSize) {
+        // no need to copy full blocks
+        writeBlock(src, src.position(), blockSize);
+        src.position(src.position() + blockSize);
+      } else {
+        final int l = Math.min(buffer.remaining(), src.remaining());
+        final ByteBuffer slice = src.duplicate();
+        slice.limit(slice.position() + l);
+        buffer.put(slice);
+        src.position(src.position() + l);
+        if (!buffer.hasRemaining()) {
+          flushBlock();
+        }
+      }
+    }
+    return len;
+  }
+
+  /**
+   * Compresses and writes buffered data as a block, even if it is not full.
+   *
+   * @throws IOException if an I/O error occurs
+   */
+  public void flush() throws IOException {
+    ensureOpen();
+    flushBlock();
+  }
+
+  private void flushBlock() throws IOException {
+    if (buffer.position() > 0) {
+      writeBlock(buffer, 0, buffer.position());
+      buffer.clear();
+    }
+  }
+
+  private void writeBlock(ByteBuffer src, int off, int len) throws IOException {
+    // same as StreamingXXHash32.asChecksum().getValue()
+    final int check = checksum.hash(src, off, len, DEFAULT_SEED) & 0xFFFFFFF;
+    // the limit of the previous block would prevent compressors which go
+    // through the ByteBuffer API from using the whole buffer
+    compressedBuffer.clear();
+    int compressedLength = compressor.compress(src, off, len, compressedBuffer, 0, compressedBuffer.capacity());
+    final ByteBuffer payload;
+    final int compressMethod;
+    if (compressedLength >= len) {
+      compressMethod = COMPRESSION_METHOD_RAW;
+      compressedLength = len;
+      payload = src.duplicate();
+      payload.limit(off + len);
+      payload.position(off);
+    } else {
+      compressMethod = COMPRESSION_METHOD_LZ4;
+      payload = compressedBuffer;
+      payload.limit(compressedLength);
+      payload.position(0);
+    }
+    writeHeader(compressMethod, compressedLength, len, check);
+    LZ4ChannelUtils.writeFully(channel, header, payload);
+  }
+
+  private void writeHeader(int compressMethod, int compressedLength, int length, int check) {
+    header.clear();
+    header.put(MAGIC_LENGTH, (byte) (compressMethod | compressionLevel));
+    header.putInt(MAGIC_LENGTH + 1, compressedLength);
+    header.putInt(MAGIC_LENGTH + 5, length);
+    header.putInt(MAGIC_LENGTH + 9, check);
+    assert MAGIC_LENGTH + 13 == HEADER_LENGTH;
+  }
+
+  /**
+   * Same as {@link #close()} except that it doesn't close the underlying
+   * channel.
+   *
+   * @throws IOException if an I/O error occurs
+   */
+  public void finish() throws IOException {
+    ensureOpen();
+    flushBlock();
+    writeHeader(COMPRESSION_METHOD_RAW, 0, 0, 0);
+    LZ4ChannelUtils.writeFully(channel, header);
+    open = false;
+  }
+
+  private void ensureOpen() throws IOException {
+    if (!open) {
+      throw new ClosedChannelException();
+    }
+  }
+
+  @Override
+  public boolean isOpen() {
+    return open;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      if (open) {
+        finish();
+      }
+    } finally {
+      open = false;
+      channel.close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "(channel=" + channel + ", blockSize=" + blockSize
+        + ", compressor=" + compressor + ", checksum=" + checksum + ")";
+  }
+
+}
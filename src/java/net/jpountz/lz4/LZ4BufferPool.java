@@ -0,0 +1,221 @@
+package net.jpountz.lz4;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Pool of the <code>byte[]</code> buffers used by {@link LZ4BlockOutputStream},
+ * {@link LZ4BlockInputStream}, {@link LZ4FrameOutputStream} and
+ * {@link LZ4FrameInputStream}. Streams borrow their buffers when they are
+ * created or when they read the first header, and release them when they are
+ * closed, so that applications which create many short-lived streams don't
+ * need to allocate up to several MB for each of them. Streams which are not
+ * closed simply leave their buffers to the garbage collector.
+ * <p>
+ * Implementations must be thread-safe.
+ *
+ * @see #newStripedPool(int, int)
+ */
+public abstract class LZ4BufferPool {
+
+  // buffers which are smaller than this are not worth pooling
+  static final int MIN_POOLED_SIZE = 1 << 10;
+  // number of adjacent slots which are tried before giving up
+  static final int PROBES = 4;
+  // total size of the buffers that the default instance may retain
+  static final long DEFAULT_MAX_RETAINED_BYTES = 1L << 25;
+
+  private static final LZ4BufferPool UNPOOLED = new LZ4BufferPool() {
+
+    @Override
+    public byte[] borrow(int length) {
+      return new byte[length];
+    }
+
+    @Override
+    public void release(byte[] buffer) {
+      // let the garbage collector reclaim it
+    }
+
+    @Override
+    public String toString() {
+      return "LZ4BufferPool.unpooled()";
+    }
+  };
+
+  private static LZ4BufferPool DEFAULT_INSTANCE;
+
+  /**
+   * Returns a {@link LZ4BufferPool} which allocates a new buffer on every call
+   * to {@link #borrow(int)}. This is what streams use unless they are given
+   * another pool.
+   *
+   * @return a {@link LZ4BufferPool} which doesn't pool anything
+   */
+  public static LZ4BufferPool unpooled() {
+    return UNPOOLED;
+  }
+
+  /**
+   * Returns a shared striped pool which holds up to four buffers per
+   * available processor, of at most 8 MB each, which is enough for frame
+   * streams with 4-MB blocks, and at most 32 MB of buffers in total.
+   *
+   * @return the shared {@link LZ4BufferPool}
+   *
+   * @see #newStripedPool(int, int)
+   */
+  public static synchronized LZ4BufferPool defaultInstance() {
+    if (DEFAULT_INSTANCE == null) {
+      DEFAULT_INSTANCE = newStripedPool(4 * Runtime.getRuntime().availableProcessors(), 1 << 23,
+          DEFAULT_MAX_RETAINED_BYTES);
+    }
+    return DEFAULT_INSTANCE;
+  }
+
+  /**
+   * Creates a new lock-free pool which holds up to <code>maxPooledBuffers</code>
+   * buffers. Buffers are stored in slots which are chosen based on the
+   * current thread, so that threads which borrow and release buffers
+   * concurrently rarely contend on the same slots. When no pooled buffer is
+   * available, a new buffer is allocated, and when all slots are occupied,
+   * released buffers are dropped.
+   *
+   * @param maxPooledBuffers the maximum number of buffers to retain
+   * @param maxBufferSize the size of the largest buffers to retain, larger
+   *        buffers are always allocated
+   * @return a new {@link LZ4BufferPool}
+   *
+   * @see #newStripedPool(int, int, long)
+   */
+  public static LZ4BufferPool newStripedPool(int maxPooledBuffers, int maxBufferSize) {
+    return newStripedPool(maxPooledBuffers, maxBufferSize, (long) maxPooledBuffers * maxBufferSize);
+  }
+
+  /**
+   * Same as {@link #newStripedPool(int, int)}, but released buffers are also
+   * dropped when retaining them would take the total size of the pooled
+   * buffers over <code>maxRetainedBytes</code>.
+   *
+   * @param maxPooledBuffers the maximum number of buffers to retain
+   * @param maxBufferSize the size of the largest buffers to retain, larger
+   *        buffers are always allocated
+   * @param maxRetainedBytes the maximum total size of the retained buffers
+   * @return a new {@link LZ4BufferPool}
+   */
+  public static LZ4BufferPool newStripedPool(int maxPooledBuffers, int maxBufferSize, long maxRetainedBytes) {
+    if (maxPooledBuffers < 1) {
+      throw new IllegalArgumentException("maxPooledBuffers must be >= 1, got " + maxPooledBuffers);
+    }
+    if (maxBufferSize < 0) {
+      throw new IllegalArgumentException("maxBufferSize must be >= 0, got " + maxBufferSize);
+    }
+    if (maxRetainedBytes < 0) {
+      throw new IllegalArgumentException("maxRetainedBytes must be >= 0, got " + maxRetainedBytes);
+    }
+    return new StripedBufferPool(maxPooledBuffers, maxBufferSize, maxRetainedBytes);
+  }
+
+  /**
+   * Sole constructor, for subclasses.
+   */
+  protected LZ4BufferPool() {}
+
+  /**
+   * Returns a buffer of at least <code>length</code> bytes. Its content is
+   * undefined.
+   *
+   * @param length the minimum length of the buffer
+   * @return a buffer that the caller owns until it is released
+   */
+  public abstract byte[] borrow(int length);
+
+  /**
+   * Gives back a buffer which is not used anymore. The caller must not use
+   * <code>buffer</code> after this call.
+   *
+   * @param buffer a buffer which has been returned by {@link #borrow(int)}
+   */
+  public abstract void release(byte[] buffer);
+
+  private static final class StripedBufferPool extends LZ4BufferPool {
+
+    private final AtomicReferenceArray<byte[]> slots;
+    private final int maxBufferSize;
+    private final long maxRetainedBytes;
+    // total size of the buffers in slots, reserved before they are stored
+    private final AtomicLong retainedBytes = new AtomicLong();
+
+    StripedBufferPool(int maxPooledBuffers, int maxBufferSize, long maxRetainedBytes) {
+      this.slots = new AtomicReferenceArray<byte[]>(maxPooledBuffers);
+      this.maxBufferSize = maxBufferSize;
+      this.maxRetainedBytes = maxRetainedBytes;
+    }
+
+    private int stripe() {
+      // Fibonacci hashing spreads sequential thread ids
+      final long h = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+      return (int) ((h >>> 32) % slots.length());
+    }
+
+    @Override
+    public byte[] borrow(int length) {
+      if (length >= MIN_POOLED_SIZE && length <= maxBufferSize) {
+        final int stripe = stripe();
+        for (int i = 0; i < Math.min(PROBES, slots.length()); ++i) {
+          final int slot = (stripe + i) % slots.length();
+          final byte[] buffer = slots.get(slot);
+          // don't hand out buffers which are much larger than necessary
+          if (buffer != null && buffer.length >= length && buffer.length / 2 <= length
+              && slots.compareAndSet(slot, buffer, null)) {
+            retainedBytes.addAndGet(-buffer.length);
+            return buffer;
+          }
+        }
+      }
+      return new byte[length];
+    }
+
+    @Override
+    public void release(byte[] buffer) {
+      if (buffer == null || buffer.length < MIN_POOLED_SIZE || buffer.length > maxBufferSize) {
+        return;
+      }
+      if (retainedBytes.addAndGet(buffer.length) > maxRetainedBytes) {
+        retainedBytes.addAndGet(-buffer.length);
+        return;
+      }
+      final int stripe = stripe();
+      for (int i = 0; i < Math.min(PROBES, slots.length()); ++i) {
+        final int slot = (stripe + i) % slots.length();
+        if (slots.get(slot) == null && slots.compareAndSet(slot, null, buffer)) {
+          return;
+        }
+      }
+      retainedBytes.addAndGet(-buffer.length);
+    }
+
+    @Override
+    public String toString() {
+      return "LZ4BufferPool.newStripedPool(maxPooledBuffers=" + slots.length() + ", maxBufferSize=" + maxBufferSize
+          + ", maxRetainedBytes=" + maxRetainedBytes + ")";
+    }
+  }
+
+}
@@ -0,0 +1,105 @@
+package net.jpountz.lz4;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Helpers for the channel implementations of the block and frame formats.
+ */
+enum LZ4ChannelUtils {
+  ;
+
+  static final int SCRATCH_SIZE = 1 << 13;
+
+  private static long remaining(ByteBuffer[] buffers) {
+    long remaining = 0;
+    for (ByteBuffer buffer : buffers) {
+      remaining += buffer.remaining();
+    }
+    return remaining;
+  }
+
+  /**
+   * Writes all remaining bytes of <code>srcs</code>, with a single gathering
+   * write if the channel supports it and accepts all bytes at once.
+   */
+  static void writeFully(WritableByteChannel channel, ByteBuffer... srcs) throws IOException {
+    if (channel instanceof GatheringByteChannel) {
+      final GatheringByteChannel gathering = (GatheringByteChannel) channel;
+      for (long remaining = remaining(srcs); remaining > 0; ) {
+        remaining -= gathering.write(srcs);
+      }
+    } else {
+      for (ByteBuffer src : srcs) {
+        while (src.hasRemaining()) {
+          channel.write(src);
+        }
+      }
+    }
+  }
+
+  /**
+   * Fills <code>dsts</code>, with a single scattering read if the channel
+   * supports it and has enough bytes available. Returns false if the end of
+   * the channel is reached before all buffers are full.
+   */
+  static boolean tryReadFully(ReadableByteChannel channel, ByteBuffer... dsts) throws IOException {
+    for (long remaining = remaining(dsts); remaining > 0; ) {
+      final long read;
+      if (channel instanceof ScatteringByteChannel) {
+        read = ((ScatteringByteChannel) channel).read(dsts);
+      } else {
+        int i = 0;
+        while (!dsts[i].hasRemaining()) {
+          ++i;
+        }
+        read = channel.read(dsts[i]);
+      }
+      if (read < 0) {
+        return false;
+      }
+      remaining -= read;
+    }
+    return true;
+  }
+
+  /**
+   * Updates the content hash of <code>frameInfo</code> with
+   * <code>buf[off:off+len]</code>, going through <code>scratch</code> if the
+   * buffer is not backed by an array.
+   */
+  static void updateStreamHash(LZ4FrameOutputStream.FrameInfo frameInfo, ByteBuffer buf, int off, int len, byte[] scratch) {
+    if (buf.hasArray()) {
+      frameInfo.updateStreamHash(buf.array(), buf.arrayOffset() + off, len);
+      return;
+    }
+    final ByteBuffer src = buf.duplicate();
+    src.limit(off + len).position(off);
+    while (src.hasRemaining()) {
+      final int l = Math.min(scratch.length, src.remaining());
+      src.get(scratch, 0, l);
+      frameInfo.updateStreamHash(scratch, 0, l);
+    }
+  }
+
+}
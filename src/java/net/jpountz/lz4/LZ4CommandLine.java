@@ -0,0 +1,685 @@
+package net.jpountz.lz4;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static net.jpountz.lz4.LZ4Constants.MAX_COMPRESSION_LEVEL;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import net.jpountz.lz4.LZ4FrameOutputStream.BLOCKSIZE;
+import net.jpountz.lz4.LZ4FrameOutputStream.FLG;
+import net.jpountz.xxhash.XXHashFactory;
+
+/**
+ * Command-line interface to compress, decompress and test files in the LZ4
+ * Frame format, which is the entry point of the lz4-java JAR:
+ * <pre>
+ * java -jar lz4-java.jar [arg] [input] [output]
+ * </pre>
+ * The most common options of the reference <code>lz4</code> program are
+ * supported, see <code>-h</code>. Files are compressed and decompressed with
+ * several threads using {@link LZ4Files} when both the input and the output
+ * are regular files. <code>-b</code> benchmarks all available
+ * {@link LZ4Factory} implementations on the given files instead, and
+ * <code>--gc-probe</code> additionally reports how long garbage collections
+ * were held up, for instance by native code which pins arrays (see
+ * {@link net.jpountz.util.JNIStaging}).
+ */
+public final class LZ4CommandLine {
+
+  static final String SUFFIX = ".lz4";
+  static final String STDIN_STDOUT = "-";
+  private static final int MB = 1 << 20;
+
+  private enum Mode { COMPRESS, DECOMPRESS, TEST, BENCHMARK }
+
+  private final InputStream stdin;
+  private final PrintStream stdout;
+  private final PrintStream stderr;
+
+  private Mode mode = Mode.COMPRESS;
+  private int level = 1;
+  private int endLevel = -1;
+  private int benchmarkSeconds = 3;
+  private boolean gcProbe;
+  private BLOCKSIZE blockSize = BLOCKSIZE.SIZE_4MB;
+  private boolean blockChecksum;
+  private boolean contentChecksum = true;
+  private boolean contentSize;
+  private int threads;
+  private boolean toStdout;
+  private boolean force;
+  private boolean removeSource;
+  private boolean multipleFiles;
+  private int verbosity = 1;
+  private final List<String> files = new ArrayList<String>();
+
+  private LZ4CommandLine(InputStream stdin, PrintStream stdout, PrintStream stderr) {
+    this.stdin = stdin;
+    this.stdout = stdout;
+    this.stderr = stderr;
+  }
+
+  /**
+   * Runs the command-line interface and exits the JVM with its exit code.
+   *
+   * @param args the command-line arguments, <code>-h</code> lists them
+   */
+  public static void main(String[] args) {
+    final int exitCode = run(args, System.in, System.out, System.err);
+    System.out.flush();
+    System.exit(exitCode);
+  }
+
+  /**
+   * Runs the command-line interface against the given standard streams and
+   * returns its exit code, 0 on success.
+   */
+  static int run(String[] args, InputStream stdin, PrintStream stdout, PrintStream stderr) {
+    final LZ4CommandLine cli = new LZ4CommandLine(stdin, stdout, stderr);
+    try {
+      if (!cli.parse(args)) {
+        return 0;
+      }
+    } catch (IllegalArgumentException e) {
+      stderr.println("Error: " + e.getMessage());
+      stderr.println("Run with -h for usage.");
+      return 1;
+    }
+    return cli.execute();
+  }
+
+  private void usage() {
+    stdout.println("Usage: java -jar lz4-java.jar [arg] [input] [output]");
+    stdout.println();
+    stdout.println("input   : a filename, or standard input when absent or '-'");
+    stdout.println("output  : the input with '" + SUFFIX + "' appended or removed, or standard output for standard input");
+    stdout.println();
+    stdout.println("Arguments:");
+    stdout.println(" -1 .. -" + MAX_COMPRESSION_LEVEL + " : compression level, levels >= 3 use the high compressor (default: 1)");
+    stdout.println(" -z     : force compression");
+    stdout.println(" -d     : decompression");
+    stdout.println(" -t     : test the integrity of compressed files");
+    stdout.println(" -c     : write to standard output");
+    stdout.println(" -f     : overwrite existing output files");
+    stdout.println(" -k     : keep source files (default)");
+    stdout.println(" -m     : process multiple files, each to its own output");
+    stdout.println(" -q     : suppress messages, -v: more messages");
+    stdout.println(" -B#    : block size, 4 = 64 KB, 5 = 256 KB, 6 = 1 MB, 7 = 4 MB (default)");
+    stdout.println(" -BX    : enable block checksums");
+    stdout.println(" -T#    : number of threads, 0 = number of processors (default)");
+    stdout.println(" -b#    : benchmark the given files at compression level #");
+    stdout.println(" -e#    : benchmark up to compression level #");
+    stdout.println(" -i#    : minimum duration of every benchmark in seconds (default: 3)");
+    stdout.println(" --gc-probe : benchmark: report the longest stall of a concurrently allocating thread");
+    stdout.println(" -h     : display this help, -V: display the version");
+    stdout.println(" --rm   : remove source files after success");
+    stdout.println(" --content-size, --no-content-size : record the uncompressed size (default: off)");
+    stdout.println(" --frame-crc, --no-frame-crc       : record a content checksum (default: on)");
+    stdout.println(" --fast, --best                    : compression level 1, " + MAX_COMPRESSION_LEVEL);
+  }
+
+  // Returns false if there is nothing to execute
+  private boolean parse(String[] args) {
+    boolean optionsDone = false;
+    for (String arg : args) {
+      if (optionsDone || arg.equals(STDIN_STDOUT) || !arg.startsWith("-")) {
+        files.add(arg);
+      } else if (arg.equals("--")) {
+        optionsDone = true;
+      } else if (arg.startsWith("--")) {
+        if (!parseLongOption(arg)) {
+          return false;
+        }
+      } else {
+        for (int i = 1; i < arg.length(); ) {
+          final char c = arg.charAt(i++);
+          if (c >= '0' && c <= '9') {
+            final int end = numberEnd(arg, i - 1);
+            level = checkLevel(Integer.parseInt(arg.substring(i - 1, end)));
+            i = end;
+            continue;
+          }
+          final int end = numberEnd(arg, i);
+          final int value = end > i ? Integer.parseInt(arg.substring(i, end)) : -1;
+          switch (c) {
+            case 'z': mode = Mode.COMPRESS; break;
+            case 'd': mode = Mode.DECOMPRESS; break;
+            case 't': mode = Mode.TEST; break;
+            case 'c': toStdout = true; break;
+            case 'f': force = true; break;
+            case 'k': removeSource = false; break;
+            case 'm': multipleFiles = true; break;
+            case 'q': verbosity = Math.max(0, verbosity - 1); break;
+            case 'v': ++verbosity; break;
+            case 'h':
+            case 'H':
+              usage();
+              return false;
+            case 'V':
+              stdout.println("lz4-java " + version() + ", " + LZ4Factory.fastestInstance());
+              return false;
+            case 'b':
+              mode = Mode.BENCHMARK;
+              if (value >= 0) {
+                level = checkLevel(value);
+              }
+              i = end;
+              break;
+            case 'e':
+              endLevel = checkLevel(requireNumber(c, value));
+              i = end;
+              break;
+            case 'i':
+              benchmarkSeconds = requireNumber(c, value);
+              i = end;
+              break;
+            case 'T':
+              threads = requireNumber(c, value);
+              i = end;
+              break;
+            case 'B':
+              if (value >= 0) {
+                blockSize = blockSize(value);
+                i = end;
+              } else if (i < arg.length() && arg.charAt(i) == 'X') {
+                blockChecksum = true;
+                ++i;
+              } else if (i < arg.length() && arg.charAt(i) == 'D') {
+                throw new IllegalArgumentException("-BD is not supported, blocks are always independent");
+              } else {
+                throw new IllegalArgumentException("invalid argument " + arg);
+              }
+              break;
+            default:
+              throw new IllegalArgumentException("unknown argument -" + c);
+          }
+        }
+      }
+    }
+    return true;
+  }
+
+  private boolean parseLongOption(String arg) {
+    if (arg.equals("--compress")) {
+      mode = Mode.COMPRESS;
+    } else if (arg.equals("--decompress") || arg.equals("--uncompress")) {
+      mode = Mode.DECOMPRESS;
+    } else if (arg.equals("--test")) {
+      mode = Mode.TEST;
+    } else if (arg.equals("--stdout") || arg.equals("--to-stdout")) {
+      toStdout = true;
+    } else if (arg.equals("--force")) {
+      force = true;
+    } else if (arg.equals("--keep")) {
+      removeSource = false;
+    } else if (arg.equals("--rm")) {
+      removeSource = true;
+    } else if (arg.equals("--multiple")) {
+      multipleFiles = true;
+    } else if (arg.equals("--quiet")) {
+      verbosity = Math.max(0, verbosity - 1);
+    } else if (arg.equals("--verbose")) {
+      ++verbosity;
+    } else if (arg.equals("--content-size")) {
+      contentSize = true;
+    } else if (arg.equals("--no-content-size")) {
+      contentSize = false;
+    } else if (arg.equals("--frame-crc")) {
+      contentChecksum = true;
+    } else if (arg.equals("--no-frame-crc")) {
+      contentChecksum = false;
+    } else if (arg.equals("--fast")) {
+      level = 1;
+    } else if (arg.equals("--best")) {
+      level = MAX_COMPRESSION_LEVEL;
+    } else if (arg.equals("--gc-probe")) {
+      gcProbe = true;
+    } else if (arg.equals("--help")) {
+      usage();
+      return false;
+    } else if (arg.equals("--version")) {
+      stdout.println("lz4-java " + version() + ", " + LZ4Factory.fastestInstance());
+      return false;
+    } else {
+      throw new IllegalArgumentException("unknown argument " + arg);
+    }
+    return true;
+  }
+
+  private static int numberEnd(String arg, int start) {
+    int end = start;
+    while (end < arg.length() && arg.charAt(end) >= '0' && arg.charAt(end) <= '9') {
+      ++end;
+    }
+    return end;
+  }
+
+  private static int requireNumber(char option, int value) {
+    if (value < 0) {
+      throw new IllegalArgumentException("-" + option + " requires a number");
+    }
+    return value;
+  }
+
+  private static int checkLevel(int level) {
+    if (level > MAX_COMPRESSION_LEVEL) {
+      throw new IllegalArgumentException("compression level must be in 1-" + MAX_COMPRESSION_LEVEL + ", got " + level);
+    }
+    // like lz4, -0 is the fast level
+    return Math.max(level, 1);
+  }
+
+  private static BLOCKSIZE blockSize(int id) {
+    for (BLOCKSIZE blockSize : BLOCKSIZE.values()) {
+      if (blockSize.getIndicator() == id) {
+        return blockSize;
+      }
+    }
+    throw new IllegalArgumentException("block size must be in 4-7, got " + id);
+  }
+
+  private static String version() {
+    final String version = LZ4CommandLine.class.getPackage().getImplementationVersion();
+    return version == null ? "(unknown version)" : version;
+  }
+
+  private static LZ4Compressor compressor(LZ4Factory factory, int level) {
+    return level < 3 ? factory.fastCompressor() : factory.highCompressor(level);
+  }
+
+  private int threads() {
+    return threads == 0 ? Runtime.getRuntime().availableProcessors() : threads;
+  }
+
+  private int execute() {
+    if (mode == Mode.BENCHMARK) {
+      return benchmark();
+    }
+    if (files.isEmpty()) {
+      files.add(STDIN_STDOUT);
+    }
+    if (!multipleFiles && files.size() > 2) {
+      stderr.println("Error: too many files, use -m to process multiple files");
+      return 1;
+    }
+    if (!multipleFiles && files.size() == 2) {
+      if (toStdout || mode == Mode.TEST) {
+        stderr.println("Error: an output file cannot be combined with -c or -t");
+        return 1;
+      }
+      return process(files.get(0), files.get(1));
+    }
+    int exitCode = 0;
+    for (String file : files) {
+      final String output;
+      if (mode == Mode.TEST || toStdout || file.equals(STDIN_STDOUT)) {
+        output = STDIN_STDOUT;
+      } else if (mode == Mode.COMPRESS) {
+        output = file + SUFFIX;
+      } else if (file.endsWith(SUFFIX) && file.length() > SUFFIX.length()) {
+        output = file.substring(0, file.length() - SUFFIX.length());
+      } else {
+        stderr.println("Error: " + file + ": unknown suffix, expected " + SUFFIX);
+        exitCode = 1;
+        continue;
+      }
+      exitCode = Math.max(exitCode, process(file, output));
+    }
+    return exitCode;
+  }
+
+  private int process(String input, String output) {
+    final Path in = input.equals(STDIN_STDOUT) ? null : Paths.get(input);
+    final Path out = mode == Mode.TEST || output.equals(STDIN_STDOUT) ? null : Paths.get(output);
+    try {
+      if (in != null && !Files.isRegularFile(in)) {
+        if (Files.isDirectory(in)) {
+          throw new IOException("is a directory");
+        }
+        throw new IOException(Files.exists(in) ? "not a regular file" : "no such file");
+      }
+      if (out != null && !force && Files.exists(out)) {
+        throw new IOException(output + " already exists, use -f to overwrite it");
+      }
+      final long start = System.nanoTime();
+      final long[] sizes;
+      if (mode == Mode.COMPRESS) {
+        sizes = compress(in, out);
+      } else {
+        sizes = decompress(in, out);
+      }
+      final long elapsed = System.nanoTime() - start;
+      if (removeSource && in != null) {
+        Files.delete(in);
+      }
+      if (verbosity >= (out == null && mode != Mode.TEST ? 2 : 1)) {
+        final String name = in == null ? "stdin" : input;
+        final double mbs = (double) Math.max(sizes[0], sizes[1]) / MB / Math.max(elapsed / 1e9, 1e-9);
+        if (mode == Mode.COMPRESS) {
+          stderr.println(String.format(Locale.ROOT, "%s: compressed %d bytes into %d bytes ==> %.2f%% (%.1f MB/s)",
+              name, sizes[0], sizes[1], sizes[0] == 0 ? 0d : 100d * sizes[1] / sizes[0], mbs));
+        } else if (mode == Mode.DECOMPRESS) {
+          stderr.println(String.format(Locale.ROOT, "%s: decoded %d bytes (%.1f MB/s)", name, sizes[1], mbs));
+        } else {
+          stderr.println(String.format(Locale.ROOT, "%s: OK, %d bytes", name, sizes[1]));
+        }
+      }
+      return 0;
+    } catch (IOException e) {
+      stderr.println("Error: " + (in == null ? "stdin" : input) + ": " + e.getMessage());
+      return 1;
+    }
+  }
+
+  // Returns the number of bytes read and written
+  private long[] compress(Path in, Path out) throws IOException {
+    final LZ4Factory factory = LZ4Factory.fastestInstance();
+    final LZ4Compressor compressor = compressor(factory, level);
+    final Set<FLG.Bits> bits = EnumSet.of(FLG.Bits.BLOCK_INDEPENDENCE);
+    if (contentChecksum) {
+      bits.add(FLG.Bits.CONTENT_CHECKSUM);
+    }
+    if (blockChecksum) {
+      bits.add(FLG.Bits.BLOCK_CHECKSUM);
+    }
+    final long knownSize;
+    if (contentSize && in != null) {
+      bits.add(FLG.Bits.CONTENT_SIZE);
+      knownSize = Files.size(in);
+    } else {
+      knownSize = -1L;
+    }
+    final int threads = threads();
+    if (in != null && out != null && threads > 1) {
+      LZ4Files.compress(in, out, compressor, blockSize, threads, bits.toArray(new FLG.Bits[0]));
+      return new long[] { Files.size(in), Files.size(out) };
+    }
+    final CountingOutputStream counter = new CountingOutputStream(openOutput(out));
+    long read = 0;
+    try (InputStream is = openInput(in);
+        OutputStream os = new LZ4FrameOutputStream(counter, blockSize, knownSize, compressor,
+            XXHashFactory.fastestInstance().hash32(), bits.toArray(new FLG.Bits[0]))) {
+      read = copy(is, os);
+    }
+    return new long[] { read, counter.count };
+  }
+
+  // Returns the number of bytes read and written
+  private long[] decompress(Path in, Path out) throws IOException {
+    final LZ4Factory factory = LZ4Factory.fastestInstance();
+    final int threads = threads();
+    if (in != null && out != null && threads > 1) {
+      LZ4Files.decompress(in, out, factory.safeDecompressor(), threads);
+      return new long[] { Files.size(in), Files.size(out) };
+    }
+    final long inputSize = in == null ? -1L : Files.size(in);
+    long written = 0;
+    try (InputStream is = new LZ4FrameInputStream(openInput(in), factory.safeDecompressor(),
+            XXHashFactory.fastestInstance().hash32());
+        OutputStream os = mode == Mode.TEST ? new CountingOutputStream(null) : openOutput(out)) {
+      written = copy(is, os);
+    }
+    return new long[] { inputSize, written };
+  }
+
+  private InputStream openInput(Path path) throws IOException {
+    return new BufferedInputStream(path == null ? stdin : Files.newInputStream(path), 1 << 16);
+  }
+
+  private OutputStream openOutput(Path path) throws IOException {
+    if (path == null) {
+      // don't close standard output
+      return new FilterOutputStream(stdout) {
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+          out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+          flush();
+        }
+      };
+    }
+    return new BufferedOutputStream(Files.newOutputStream(path), 1 << 16);
+  }
+
+  private static long copy(InputStream in, OutputStream out) throws IOException {
+    final byte[] buffer = new byte[1 << 16];
+    long total = 0;
+    for (int len = in.read(buffer); len != -1; len = in.read(buffer)) {
+      out.write(buffer, 0, len);
+      total += len;
+    }
+    return total;
+  }
+
+  private static final class CountingOutputStream extends FilterOutputStream {
+
+    long count;
+
+    // a null stream discards written bytes
+    CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      ++count;
+      if (out != null) {
+        out.write(b);
+      }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      count += len;
+      if (out != null) {
+        out.write(b, off, len);
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (out != null) {
+        out.flush();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (out != null) {
+        out.close();
+      }
+    }
+  }
+
+  private int benchmark() {
+    if (files.isEmpty()) {
+      stderr.println("Error: -b requires at least one file");
+      return 1;
+    }
+    final int end = Math.max(level, endLevel);
+    final List<String> names = new ArrayList<String>();
+    final List<LZ4Factory> factories = new ArrayList<LZ4Factory>();
+    try {
+      factories.add(LZ4Factory.nativeInstance());
+      names.add("native");
+    } catch (Throwable t) {
+      if (verbosity > 1) {
+        stderr.println("native: not available, " + t);
+      }
+    }
+    factories.add(LZ4Factory.unsafeInstance());
+    names.add("unsafe");
+    factories.add(LZ4Factory.safeInstance());
+    names.add("safe");
+
+    final int maxBlockSize = 1 << (2 * blockSize.getIndicator() + 8);
+    int exitCode = 0;
+    for (String file : files) {
+      final byte[] data;
+      try {
+        data = Files.readAllBytes(Paths.get(file));
+      } catch (IOException | OutOfMemoryError e) {
+        stderr.println("Error: " + file + ": " + e.getMessage());
+        exitCode = 1;
+        continue;
+      }
+      for (int i = 0; i < factories.size(); ++i) {
+        for (int l = level; l <= end; ++l) {
+          final LZ4Factory factory = factories.get(i);
+          final GCProbe probe = gcProbe ? new GCProbe() : null;
+          if (probe != null) {
+            probe.start();
+          }
+          final Result result;
+          try {
+            result = benchmark(data, maxBlockSize, compressor(factory, l), factory.safeDecompressor());
+          } finally {
+            if (probe != null) {
+              probe.finish();
+            }
+          }
+          if (result == null) {
+            stderr.println("Error: " + names.get(i) + " " + l + "#" + file + ": round trip failed");
+            exitCode = 1;
+            continue;
+          }
+          stdout.println(String.format(Locale.ROOT, "%-6s %2d#%-20s : %12d -> %12d (%6.3f), %8.1f MB/s, %8.1f MB/s",
+              names.get(i), l, Paths.get(file).getFileName(), data.length, result.compressedLength,
+              result.compressedLength == 0 ? 0d : (double) data.length / result.compressedLength,
+              result.compressionSpeed, result.decompressionSpeed)
+              + (probe == null ? "" : String.format(Locale.ROOT, ", max stall %7.1f ms", probe.maxStallNanos / 1e6)));
+        }
+      }
+    }
+    return exitCode;
+  }
+
+  // Allocates continuously and records the longest time between two
+  // allocations, which includes the time spent waiting for garbage collections
+  // that native code delays by pinning arrays in critical sections
+  private static final class GCProbe extends Thread {
+
+    private volatile boolean stop;
+    private volatile long maxStallNanos;
+    volatile Object sink;
+
+    GCProbe() {
+      super("lz4-gc-probe");
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      final Object[] garbage = new Object[64];
+      long max = 0;
+      long previous = System.nanoTime();
+      for (int i = 0; !stop; ++i) {
+        garbage[i & 63] = new byte[1 << 14];
+        final long now = System.nanoTime();
+        max = Math.max(max, now - previous);
+        previous = now;
+        if ((i & 1023) == 0) {
+          maxStallNanos = max;
+        }
+      }
+      maxStallNanos = max;
+      sink = garbage;
+    }
+
+    void finish() {
+      stop = true;
+      try {
+        join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private static final class Result {
+    long compressedLength;
+    double compressionSpeed, decompressionSpeed;
+  }
+
+  // Compresses and decompresses data in blocks of maxBlockSize bytes for at
+  // least benchmarkSeconds each, returns null if data doesn't round trip
+  private Result benchmark(byte[] data, int maxBlockSize, LZ4Compressor compressor, LZ4SafeDecompressor decompressor) {
+    final int blockCount = Math.max(1, (data.length + maxBlockSize - 1) / maxBlockSize);
+    final int maxCompressedBlockSize = compressor.maxCompressedLength(maxBlockSize);
+    final byte[][] compressed = new byte[blockCount][];
+    final int[] compressedLengths = new int[blockCount];
+    final byte[] restored = new byte[data.length];
+    final long minNanos = benchmarkSeconds * 1000000000L;
+    final Result result = new Result();
+
+    long iterations = 0;
+    final long compressionStart = System.nanoTime();
+    long elapsed;
+    do {
+      for (int b = 0; b < blockCount; ++b) {
+        final int off = b * maxBlockSize;
+        final int len = Math.min(maxBlockSize, data.length - off);
+        if (compressed[b] == null) {
+          compressed[b] = new byte[maxCompressedBlockSize];
+        }
+        compressedLengths[b] = compressor.compress(data, off, len, compressed[b], 0, maxCompressedBlockSize);
+      }
+      ++iterations;
+      elapsed = System.nanoTime() - compressionStart;
+    } while (elapsed < minNanos);
+    result.compressionSpeed = (double) data.length * iterations / MB / Math.max(elapsed / 1e9, 1e-9);
+    for (int length : compressedLengths) {
+      result.compressedLength += length;
+    }
+
+    iterations = 0;
+    final long decompressionStart = System.nanoTime();
+    do {
+      for (int b = 0; b < blockCount; ++b) {
+        final int off = b * maxBlockSize;
+        final int len = Math.min(maxBlockSize, data.length - off);
+        if (decompressor.decompress(compressed[b], 0, compressedLengths[b], restored, off, len) != len) {
+          return null;
+        }
+      }
+      ++iterations;
+      elapsed = System.nanoTime() - decompressionStart;
+    } while (elapsed < minNanos);
+    result.decompressionSpeed = (double) data.length * iterations / MB / Math.max(elapsed / 1e9, 1e-9);
+    return Arrays.equals(data, restored) ? result : null;
+  }
+
+}
@@ -19,6 +19,8 @@ package net.jpountz.lz4;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 
+import net.jpountz.util.LZ4JavaMonitor;
+
 /**
  * LZ4 compressor.
  * <p>
@@ -162,6 +164,120 @@ public abstract class LZ4Compressor {
     dest.position(dest.position() + cpLen);
   }
 
+  /**
+   * Compresses as much of <code>src[srcOff:srcOff+srcLenRef[0]]</code> as
+   * fits into <code>dest[destOff:destOff+destCapacity]</code> and returns the
+   * compressed length. On return, <code>srcLenRef[0]</code> holds the number
+   * of bytes of <code>src</code> which have been consumed, so that
+   * decompressing the output yields exactly
+   * <code>src[srcOff:srcOff+srcLenRef[0]]</code>.
+   * <p>
+   * Unlike {@link #compress(byte[], int, int, byte[], int, int)}, this method
+   * never fails because <code>dest</code> is too small: it fills
+   * <code>dest</code> as much as possible instead. This is the equivalent of
+   * <code>LZ4_compress_destSize</code> in the original C library.
+   * <p>
+   * The compressors returned by {@link LZ4Factory} fill <code>dest</code> in
+   * a single pass. Other implementations of this class get a generic
+   * implementation which searches for the largest prefix of <code>src</code>
+   * which {@link #compress(byte[], int, int, byte[], int, int)} can compress
+   * into <code>dest</code>, which takes about
+   * <code>log2(srcLenRef[0])</code> compressions.
+   *
+   * @param src the source data
+   * @param srcOff the start offset in src
+   * @param srcLenRef a single-element array holding the number of bytes to
+   *                  compress on input, and the number of bytes consumed on
+   *                  output
+   * @param dest the destination buffer
+   * @param destOff the start offset in dest
+   * @param destCapacity the maximum number of bytes to write in dest
+   * @return the compressed size
+   */
+  public int compressDestSize(byte[] src, int srcOff, int[] srcLenRef, byte[] dest, int destOff, int destCapacity) {
+    final int srcLen = srcLenRef[0];
+    if (destCapacity <= 0) {
+      srcLenRef[0] = 0;
+      return 0;
+    }
+    try {
+      return compress(src, srcOff, srcLen, dest, destOff, destCapacity);
+    } catch (LZ4Exception e) {
+      // doesn't fit, search for the largest prefix which does
+    }
+    // an empty input compresses to a single token
+    int fits = 0;
+    int doesNotFit = srcLen;
+    while (doesNotFit - fits > 1) {
+      final int len = (fits + doesNotFit) >>> 1;
+      try {
+        compress(src, srcOff, len, dest, destOff, destCapacity);
+        fits = len;
+      } catch (LZ4Exception e) {
+        doesNotFit = len;
+      }
+    }
+    srcLenRef[0] = fits;
+    return compress(src, srcOff, fits, dest, destOff, destCapacity);
+  }
+
+  /**
+   * Compresses as much of <code>src[srcOff:srcOff+srcLenRef[0]]</code> as
+   * fits into <code>dest[destOff:destOff+destCapacity]</code> and returns the
+   * compressed length. On return, <code>srcLenRef[0]</code> holds the number
+   * of bytes of <code>src</code> which have been consumed.
+   *
+   * {@link ByteBuffer} positions remain unchanged.
+   *
+   * @param src the source data
+   * @param srcOff the start offset in src
+   * @param srcLenRef a single-element array holding the number of bytes to
+   *                  compress on input, and the number of bytes consumed on
+   *                  output
+   * @param dest the destination buffer
+   * @param destOff the start offset in dest
+   * @param destCapacity the maximum number of bytes to write in dest
+   * @return the compressed size
+   * @see #compressDestSize(byte[], int, int[], byte[], int, int)
+   */
+  public int compressDestSize(ByteBuffer src, int srcOff, int[] srcLenRef, ByteBuffer dest, int destOff, int destCapacity) {
+    final int srcLen = srcLenRef[0];
+    if (destCapacity <= 0) {
+      srcLenRef[0] = 0;
+      return 0;
+    }
+    try {
+      return compress(src, srcOff, srcLen, dest, destOff, destCapacity);
+    } catch (LZ4Exception e) {
+      // doesn't fit, search for the largest prefix which does
+    }
+    int fits = 0;
+    int doesNotFit = srcLen;
+    while (doesNotFit - fits > 1) {
+      final int len = (fits + doesNotFit) >>> 1;
+      try {
+        compress(src, srcOff, len, dest, destOff, destCapacity);
+        fits = len;
+      } catch (LZ4Exception e) {
+        doesNotFit = len;
+      }
+    }
+    srcLenRef[0] = fits;
+    return compress(src, srcOff, fits, dest, destOff, destCapacity);
+  }
+
+  // The high compression level of this compressor, or 0 if it uses the
+  // standard LZ4 compression algorithm, for diagnostics
+  int compressionLevel() {
+    return 0;
+  }
+
+  // The implementation which compresses inputs of srcLen bytes, one of the
+  // implementation constants of LZ4JavaMonitor, for diagnostics
+  int implementation(int srcLen) {
+    return LZ4JavaMonitor.UNKNOWN;
+  }
+
   @Override
   public String toString() {
     return getClass().getSimpleName();
@@ -24,6 +24,8 @@ enum LZ4Constants {
   static final int MAX_COMPRESSION_LEVEL = 16+1;
 
   static final int MEMORY_USAGE = 14;
+  static final int MIN_MEMORY_USAGE = 10;
+  static final int MAX_MEMORY_USAGE = 20;
   static final int NOT_COMPRESSIBLE_DETECTION_LEVEL = 6;
 
   static final int MIN_MATCH = 4;
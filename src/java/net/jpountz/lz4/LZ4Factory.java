@@ -16,15 +16,17 @@ package net.jpountz.lz4;
  * limitations under the License.
  */
 
-import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+import net.jpountz.util.LZ4JavaMonitor;
 import net.jpountz.util.Native;
 import net.jpountz.util.Utils;
 import static net.jpountz.lz4.LZ4Constants.DEFAULT_COMPRESSION_LEVEL;
 import static net.jpountz.lz4.LZ4Constants.MAX_COMPRESSION_LEVEL;
+import static net.jpountz.lz4.LZ4Constants.MAX_MEMORY_USAGE;
+import static net.jpountz.lz4.LZ4Constants.MEMORY_USAGE;
+import static net.jpountz.lz4.LZ4Constants.MIN_MEMORY_USAGE;
 
 /**
  * Entry point for the LZ4 API.
@@ -45,6 +47,12 @@ import static net.jpountz.lz4.LZ4Constants.MAX_COMPRESSION_LEVEL;
  * All methods from this class are very costly, so you should get an instance
  * once, and then reuse it whenever possible. This is typically done by storing
  * a {@link LZ4Factory} instance in a static field.
+ * <p>
+ * Instances quickly check that their implementation works when they are
+ * created. Applications which need to start as fast as possible, such as
+ * command-line tools compiled with GraalVM native-image, can skip this check
+ * by setting the <code>lz4java.factory.selftest</code> system property to
+ * <code>false</code>.
  */
 public final class LZ4Factory {
 
@@ -58,7 +66,8 @@ public final class LZ4Factory {
 
   private static LZ4Factory NATIVE_INSTANCE,
                             JAVA_UNSAFE_INSTANCE,
-                            JAVA_SAFE_INSTANCE;
+                            JAVA_SAFE_INSTANCE,
+                            HYBRID_INSTANCE;
 
   /**
    * Returns a {@link LZ4Factory} instance that returns compressors and
@@ -68,14 +77,19 @@ public final class LZ4Factory {
    * <li>Upon loading this instance, files will be written to the temporary
    * directory of the system. Although these files are supposed to be deleted
    * when the JVM exits, they might remain on systems that don't support
-   * removal of files being used such as Windows.
-   * <li>The instance can only be loaded once per JVM. This can be a problem
-   * if your application uses multiple class loaders (such as most servlet
-   * containers): this instance will only be available to the children of the
-   * class loader which has loaded it. As a consequence, it is advised to
-   * either not use this instance in webapps or to put this library in the lib
-   * directory of your servlet container so that it is loaded by the system
-   * class loader.
+   * removal of files being used such as Windows. Setting the
+   * <code>lz4java.jnilib.cache.dir</code> system property to a directory
+   * makes JVMs extract the library there once and reuse it afterwards.
+   * <li>A native library file can only be loaded by one class loader per
+   * JVM. If your application uses multiple class loaders (such as most
+   * servlet containers) and each of them has its own copy of lz4-java, every
+   * copy but the first extracts and loads a private copy of the bundled
+   * library, which is deleted when the JVM exits. Putting this library in the
+   * lib directory of your servlet container, so that it is loaded by the
+   * system class loader, avoids these copies. Setting the
+   * <code>lz4java.jnilib.isolated</code> system property to <code>false</code>
+   * restores the previous behaviour, where {@link #fastestInstance()} only
+   * returns this instance if lz4-java was loaded by the system class loader.
    * <li>From lz4-java version 1.6.0, a {@link LZ4FastDecompressor} instance
    * returned by {@link #fastDecompressor()} of this instance is SLOWER
    * than a {@link LZ4SafeDecompressor} instance returned by
@@ -136,69 +150,117 @@ public final class LZ4Factory {
    * rely on JNI bindings.
    */
   public static LZ4Factory fastestJavaInstance() {
+    LZ4Factory factory;
     if (Utils.isUnalignedAccessAllowed()) {
       try {
-        return unsafeInstance();
+        factory = unsafeInstance();
       } catch (Throwable t) {
-        return safeInstance();
+        factory = safeInstance();
       }
     } else {
-      return safeInstance();
+      factory = safeInstance();
     }
+    LZ4JavaMonitor.resolved(LZ4JavaMonitor.LZ4_FASTEST_JAVA, factory);
+    return factory;
   }
 
   /**
-   * Returns the fastest available {@link LZ4Factory} instance. If the class
-   * loader is the system class loader and if the
+   * Returns the fastest available {@link LZ4Factory} instance. If the
    * {@link #nativeInstance() native instance} loads successfully, then the
    * {@link #nativeInstance() native instance} is returned, otherwise the
    * {@link #fastestJavaInstance() fastest Java instance} is returned.
    * <p>
    * Please read {@link #nativeInstance() javadocs of nativeInstance()} before
    * using this method.
+   * <p>
+   * The instance which has been returned, and the reason why the native
+   * instance could not be used, are reported by {@link LZ4JavaMonitor}.
    *
    * @return the fastest available {@link LZ4Factory} instance
    */
   public static LZ4Factory fastestInstance() {
-    if (Native.isLoaded()
-        || Native.class.getClassLoader() == ClassLoader.getSystemClassLoader()) {
+    LZ4Factory factory;
+    if (Native.isLoaded() || Native.isClassLoaderSupported()) {
       try {
-        return nativeInstance();
+        factory = nativeInstance();
       } catch (Throwable t) {
-        return fastestJavaInstance();
+        LZ4JavaMonitor.nativeUnavailable(t.toString());
+        factory = fastestJavaInstance();
       }
     } else {
-      return fastestJavaInstance();
+      LZ4JavaMonitor.nativeUnavailable("lz4-java was not loaded by the system class loader and lz4java.jnilib.isolated is false");
+      factory = fastestJavaInstance();
     }
+    LZ4JavaMonitor.resolved(LZ4JavaMonitor.LZ4_FASTEST, factory);
+    return factory;
   }
 
-  @SuppressWarnings("unchecked")
-  private static <T> T classInstance(String cls) throws NoSuchFieldException, SecurityException, ClassNotFoundException, IllegalArgumentException, IllegalAccessException {
-    ClassLoader loader = LZ4Factory.class.getClassLoader();
-    loader = loader == null ? ClassLoader.getSystemClassLoader() : loader;
-    final Class<?> c = loader.loadClass(cls);
-    Field f = c.getField("INSTANCE");
-    return (T) f.get(null);
+  /**
+   * Returns a {@link LZ4Factory} instance whose compressors and decompressors
+   * use the {@link #fastestJavaInstance() fastest Java instance} for inputs
+   * shorter than a threshold, and the {@link #nativeInstance() native
+   * instance} for longer inputs, on which the fixed cost of JNI calls is
+   * amortized. They are useful when input lengths vary widely.
+   * <p>
+   * Thresholds are calibrated by timing both instances when this method is
+   * first called, which may take up to a second, unless they are set
+   * with the <code>lz4java.jni.threshold.compress</code> and
+   * <code>lz4java.jni.threshold.decompress</code> system properties, in
+   * uncompressed bytes. High compressors use the native instance from
+   * <code>lz4java.jni.threshold.compresshc</code> bytes, 0 by default since
+   * the Java high compressors are slower on all lengths. Decompressors
+   * returned by {@link #safeDecompressor()} compare compressed lengths with
+   * the threshold scaled by the compression ratio of the calibration data.
+   * <p>
+   * If the native instance can't be used, as in
+   * {@link #fastestInstance()}, then the
+   * {@link #fastestJavaInstance() fastest Java instance} is returned.
+   *
+   * @return a {@link LZ4Factory} instance which dispatches between native
+   * bindings and Java on input length
+   */
+  public static synchronized LZ4Factory hybridInstance() {
+    if (HYBRID_INSTANCE == null) {
+      final LZ4Factory nativeFactory;
+      try {
+        if (!Native.isLoaded() && !Native.isClassLoaderSupported()) {
+          return fastestJavaInstance();
+        }
+        nativeFactory = nativeInstance();
+      } catch (Throwable t) {
+        return fastestJavaInstance();
+      }
+      HYBRID_INSTANCE = new LZ4Factory("Hybrid", new LZ4HybridProvider(fastestJavaInstance(), nativeFactory));
+    }
+    return HYBRID_INSTANCE;
   }
 
   private final String impl;
+  private final LZ4Provider provider;
   private final LZ4Compressor fastCompressor;
   private final LZ4Compressor highCompressor;
   private final LZ4FastDecompressor fastDecompressor;
   private final LZ4SafeDecompressor safeDecompressor;
-  private final LZ4Compressor[] highCompressors = new LZ4Compressor[MAX_COMPRESSION_LEVEL+1];
+  // created on first use
+  private final AtomicReferenceArray<LZ4Compressor> fastCompressors = new AtomicReferenceArray<LZ4Compressor>(MAX_MEMORY_USAGE+1);
+  private final AtomicReferenceArray<LZ4Compressor> highCompressors = new AtomicReferenceArray<LZ4Compressor>(MAX_COMPRESSION_LEVEL+1);
+
+  private LZ4Factory(String impl) throws ClassNotFoundException, InstantiationException, IllegalAccessException {
+    this(impl, LZ4Provider.forName(impl));
+  }
 
-  private LZ4Factory(String impl) throws ClassNotFoundException, NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException, NoSuchMethodException, InstantiationException, InvocationTargetException {
+  private LZ4Factory(String impl, LZ4Provider provider) {
     this.impl = impl;
-    fastCompressor = classInstance("net.jpountz.lz4.LZ4" + impl + "Compressor");
-    highCompressor = classInstance("net.jpountz.lz4.LZ4HC" + impl + "Compressor");
-    fastDecompressor = classInstance("net.jpountz.lz4.LZ4" + impl + "FastDecompressor");
-    safeDecompressor = classInstance("net.jpountz.lz4.LZ4" + impl + "SafeDecompressor");
-    Constructor<? extends LZ4Compressor> highConstructor = highCompressor.getClass().getDeclaredConstructor(int.class);
-    highCompressors[DEFAULT_COMPRESSION_LEVEL] = highCompressor;
-    for(int level = 1; level <= MAX_COMPRESSION_LEVEL; level++) {
-      if(level == DEFAULT_COMPRESSION_LEVEL) continue;
-      highCompressors[level] = highConstructor.newInstance(level);
+    this.provider = provider;
+    fastCompressor = provider.fastCompressor();
+    highCompressor = provider.highCompressor();
+    fastDecompressor = provider.fastDecompressor();
+    safeDecompressor = provider.safeDecompressor();
+    fastCompressors.set(MEMORY_USAGE, fastCompressor);
+    highCompressors.set(DEFAULT_COMPRESSION_LEVEL, highCompressor);
+
+    if ("false".equals(System.getProperty("lz4java.factory.selftest"))) {
+      return;
     }
 
     // quickly test that everything works as expected
@@ -230,6 +292,36 @@ public final class LZ4Factory {
     return fastCompressor;
   }
 
+  /**
+   * Returns a fast {@link LZ4Compressor} whose hash table uses
+   * <code>2^memoryUsage</code> bytes, like <code>LZ4_MEMORY_USAGE</code> in
+   * the C library. {@link #fastCompressor()} uses 14, 16KB. Smaller tables
+   * are cheaper to allocate and stay in the CPU caches, which speeds up the
+   * compression of small inputs, while larger tables find more matches in
+   * large inputs and improve the compression ratio. Inputs under 64KB use
+   * twice as many entries of half the size.
+   * <p>
+   * The size of the hash table of the native library is set when it is
+   * built, so the {@link #nativeInstance() native instance} returns the
+   * compressor of the {@link #fastestJavaInstance() fastest Java instance}
+   * for other values than 14.
+   *
+   * @param memoryUsage the base-2 logarithm of the size of the hash table, in [10, 20]
+   * @return a fast {@link LZ4Compressor} which uses a hash table of
+   * <code>2^memoryUsage</code> bytes
+   */
+  public LZ4Compressor fastCompressor(int memoryUsage) {
+    if (memoryUsage < MIN_MEMORY_USAGE || memoryUsage > MAX_MEMORY_USAGE) {
+      throw new IllegalArgumentException("memoryUsage must be in [" + MIN_MEMORY_USAGE + ", " + MAX_MEMORY_USAGE + "], got " + memoryUsage);
+    }
+    LZ4Compressor compressor = fastCompressors.get(memoryUsage);
+    if (compressor == null) {
+      fastCompressors.compareAndSet(memoryUsage, null, provider.fastCompressor(memoryUsage));
+      compressor = fastCompressors.get(memoryUsage);
+    }
+    return compressor;
+  }
+
   /**
    * Returns a {@link LZ4Compressor} which requires more memory than
    * {@link #fastCompressor()} and is slower but compresses more efficiently.
@@ -266,7 +358,12 @@ public final class LZ4Factory {
     } else if (compressionLevel < 1) {
       compressionLevel = DEFAULT_COMPRESSION_LEVEL;
     }
-    return highCompressors[compressionLevel];
+    LZ4Compressor compressor = highCompressors.get(compressionLevel);
+    if (compressor == null) {
+      highCompressors.compareAndSet(compressionLevel, null, provider.highCompressor(compressionLevel));
+      compressor = highCompressors.get(compressionLevel);
+    }
+    return compressor;
   }
 
   /**
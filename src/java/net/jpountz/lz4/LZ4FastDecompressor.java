@@ -2,6 +2,8 @@ package net.jpountz.lz4;
 
 import java.nio.ByteBuffer;
 
+import net.jpountz.util.LZ4JavaMonitor;
+
 /*
  * Copyright 2020 Adrien Grand and the lz4-java contributors.
  *
@@ -136,6 +138,12 @@ public abstract class LZ4FastDecompressor implements LZ4Decompressor {
     src.position(src.position() + read);
   }
 
+  // The implementation which decompresses blocks of destLen bytes, one of
+  // the implementation constants of LZ4JavaMonitor, for diagnostics
+  int implementation(int destLen) {
+    return LZ4JavaMonitor.UNKNOWN;
+  }
+
   @Override
   public String toString() {
     return getClass().getSimpleName();
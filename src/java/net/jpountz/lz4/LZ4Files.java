@@ -0,0 +1,425 @@
+package net.jpountz.lz4;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static net.jpountz.lz4.LZ4FrameInputStream.BLOCK_HASH_MISMATCH;
+import static net.jpountz.lz4.LZ4FrameInputStream.DESCRIPTOR_HASH_MISMATCH;
+import static net.jpountz.lz4.LZ4FrameInputStream.MAGIC_SKIPPABLE_BASE;
+import static net.jpountz.lz4.LZ4FrameInputStream.NOT_SUPPORTED;
+import static net.jpountz.lz4.LZ4FrameInputStream.PREMATURE_EOS;
+import static net.jpountz.lz4.LZ4FrameOutputStream.INTEGER_BYTES;
+import static net.jpountz.lz4.LZ4FrameOutputStream.LONG_BYTES;
+import static net.jpountz.lz4.LZ4FrameOutputStream.LZ4_FRAME_INCOMPRESSIBLE_MASK;
+import static net.jpountz.lz4.LZ4FrameOutputStream.LZ4_MAX_HEADER_LENGTH;
+import static net.jpountz.lz4.LZ4FrameOutputStream.MAGIC;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.jpountz.lz4.LZ4FrameOutputStream.BD;
+import net.jpountz.lz4.LZ4FrameOutputStream.BLOCKSIZE;
+import net.jpountz.lz4.LZ4FrameOutputStream.FLG;
+import net.jpountz.lz4.LZ4FrameOutputStream.FrameInfo;
+import net.jpountz.xxhash.XXHash32;
+import net.jpountz.xxhash.XXHashFactory;
+
+/**
+ * Utility methods to compress and decompress files to and from the LZ4 Frame
+ * format using several threads.
+ * <p>
+ * {@link #compress(Path, Path)} memory-maps the input file and compresses its
+ * blocks in parallel directly from the mapped memory. The output is a
+ * standard frame with independent blocks, whose content size and content
+ * checksum are filled in by default, that can be read by {@link LZ4FrameInputStream} or
+ * any other LZ4 decoder. {@link #decompress(Path, Path)} decompresses the
+ * blocks of such frames in parallel.
+ */
+public enum LZ4Files {
+  ;
+
+  // maximum size of a memory-mapped region, a multiple of all block sizes
+  static final int MAX_MAPPING_SIZE = 1 << 30;
+  // number of blocks which may be in flight per thread
+  static final int BLOCKS_PER_THREAD = 2;
+
+  private static final XXHash32 CHECKSUM = XXHashFactory.fastestInstance().hash32();
+
+  /**
+   * Compresses <code>in</code> into <code>out</code> with 4-MB blocks, using the
+   * fastest {@link LZ4Compressor} and as many threads as available processors.
+   *
+   * @param in the file to compress
+   * @param out the file to write the compressed frame to, which is created or truncated
+   * @throws IOException if an I/O error occurs
+   *
+   * @see #compress(Path, Path, LZ4Compressor, BLOCKSIZE, int)
+   */
+  public static void compress(Path in, Path out) throws IOException {
+    compress(in, out, LZ4Factory.fastestInstance().fastCompressor(), BLOCKSIZE.SIZE_4MB,
+        Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Compresses <code>in</code> into <code>out</code> as a single LZ4 frame.
+   *
+   * @param in the file to compress
+   * @param out the file to write the compressed frame to, which is created or truncated
+   * @param compressor the compressor to use, which is shared by all threads
+   * @param blockSize the BLOCKSIZE to use
+   * @param threads the number of threads to compress with
+   * @throws IOException if an I/O error occurs
+   */
+  public static void compress(Path in, Path out, LZ4Compressor compressor, BLOCKSIZE blockSize, int threads) throws IOException {
+    compress(in, out, compressor, blockSize, threads, FLG.Bits.CONTENT_SIZE, FLG.Bits.CONTENT_CHECKSUM);
+  }
+
+  /**
+   * Compresses <code>in</code> into <code>out</code> as a single LZ4 frame
+   * with the given features. Blocks are always independent, so
+   * {@link FLG.Bits#BLOCK_INDEPENDENCE} is implied.
+   *
+   * @param in the file to compress
+   * @param out the file to write the compressed frame to, which is created or truncated
+   * @param compressor the compressor to use, which is shared by all threads
+   * @param blockSize the BLOCKSIZE to use
+   * @param threads the number of threads to compress with
+   * @param bits the features of the frame: {@link FLG.Bits#CONTENT_SIZE},
+   *             {@link FLG.Bits#CONTENT_CHECKSUM} and/or {@link FLG.Bits#BLOCK_CHECKSUM}
+   * @throws IOException if an I/O error occurs
+   */
+  public static void compress(Path in, Path out, final LZ4Compressor compressor, BLOCKSIZE blockSize, int threads,
+      FLG.Bits... bits) throws IOException {
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads must be >= 1, got " + threads);
+    }
+    final FLG.Bits[] allBits = Arrays.copyOf(bits, bits.length + 1);
+    allBits[bits.length] = FLG.Bits.BLOCK_INDEPENDENCE;
+    final FrameInfo frameInfo = new FrameInfo(new FLG(FLG.DEFAULT_VERSION, allBits), new BD(blockSize));
+    final int maxBlockSize = frameInfo.getBD().getBlockMaximumSize();
+    final byte[] hashScratch = new byte[LZ4ChannelUtils.SCRATCH_SIZE];
+    final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try (FileChannel input = FileChannel.open(in, StandardOpenOption.READ);
+         FileChannel output = FileChannel.open(out, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+             StandardOpenOption.TRUNCATE_EXISTING)) {
+      final long size = input.size();
+      writeHeader(output, frameInfo, size);
+      final ByteBuffer blockChecksum = ByteBuffer.allocate(INTEGER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+      final Deque<Future<ByteBuffer>> pending = new ArrayDeque<Future<ByteBuffer>>();
+      final Deque<ByteBuffer> pendingSources = new ArrayDeque<ByteBuffer>();
+      final ByteBuffer blockHeader = ByteBuffer.allocate(INTEGER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+      for (long mappingOffset = 0; mappingOffset < size; mappingOffset += MAX_MAPPING_SIZE) {
+        final ByteBuffer mapping = input.map(FileChannel.MapMode.READ_ONLY, mappingOffset,
+            Math.min(MAX_MAPPING_SIZE, size - mappingOffset));
+        for (int off = 0; off < mapping.capacity(); off += maxBlockSize) {
+          final ByteBuffer src = mapping.duplicate();
+          src.limit(Math.min(mapping.capacity(), off + maxBlockSize));
+          src.position(off);
+          final ByteBuffer block = src.slice();
+          if (pending.size() >= threads * BLOCKS_PER_THREAD) {
+            writeBlock(output, frameInfo, pendingSources.poll(), get(pending.poll()), blockHeader, blockChecksum,
+                hashScratch, buffers);
+          }
+          pending.add(executor.submit(new Callable<ByteBuffer>() {
+            @Override
+            public ByteBuffer call() {
+              ByteBuffer dest = buffers.poll();
+              if (dest == null) {
+                dest = ByteBuffer.allocate(compressor.maxCompressedLength(maxBlockSize));
+              }
+              final int compressedLength = compressor.compress(block, 0, block.capacity(), dest, 0, dest.capacity());
+              dest.clear();
+              dest.limit(compressedLength);
+              return dest;
+            }
+          }));
+          pendingSources.add(block);
+        }
+      }
+      while (!pending.isEmpty()) {
+        writeBlock(output, frameInfo, pendingSources.poll(), get(pending.poll()), blockHeader, blockChecksum,
+            hashScratch, buffers);
+      }
+
+      // end mark and content checksum
+      final ByteBuffer endMark = ByteBuffer.allocate(2 * INTEGER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+      endMark.putInt(0);
+      if (frameInfo.isEnabled(FLG.Bits.CONTENT_CHECKSUM)) {
+        endMark.putInt(frameInfo.currentStreamHash());
+      }
+      endMark.flip();
+      LZ4ChannelUtils.writeFully(output, endMark);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static void writeHeader(FileChannel output, FrameInfo frameInfo, long contentSize) throws IOException {
+    final ByteBuffer header = ByteBuffer.allocate(LZ4_MAX_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(MAGIC);
+    header.put(frameInfo.getFLG().toByte());
+    header.put(frameInfo.getBD().toByte());
+    if (frameInfo.isEnabled(FLG.Bits.CONTENT_SIZE)) {
+      header.putLong(contentSize);
+    }
+    final int hash = (CHECKSUM.hash(header.array(), INTEGER_BYTES, header.position() - INTEGER_BYTES, 0) >> 8) & 0xFF;
+    header.put((byte) hash);
+    header.flip();
+    LZ4ChannelUtils.writeFully(output, header);
+  }
+
+  private static void writeBlock(FileChannel output, FrameInfo frameInfo, ByteBuffer src, ByteBuffer compressed,
+      ByteBuffer blockHeader, ByteBuffer blockChecksum, byte[] hashScratch, Queue<ByteBuffer> buffers) throws IOException {
+    if (frameInfo.isEnabled(FLG.Bits.CONTENT_CHECKSUM)) {
+      LZ4ChannelUtils.updateStreamHash(frameInfo, src, 0, src.capacity(), hashScratch);
+    }
+    final ByteBuffer payload;
+    blockHeader.clear();
+    if (compressed.remaining() >= src.capacity()) {
+      // incompressible, store as-is
+      blockHeader.putInt(0, src.capacity() | LZ4_FRAME_INCOMPRESSIBLE_MASK);
+      payload = src.duplicate();
+    } else {
+      blockHeader.putInt(0, compressed.remaining());
+      payload = compressed;
+    }
+    if (frameInfo.isEnabled(FLG.Bits.BLOCK_CHECKSUM)) {
+      blockChecksum.clear();
+      blockChecksum.putInt(0, CHECKSUM.hash(payload, payload.position(), payload.remaining(), 0));
+      LZ4ChannelUtils.writeFully(output, blockHeader, payload, blockChecksum);
+    } else {
+      LZ4ChannelUtils.writeFully(output, blockHeader, payload);
+    }
+    buffers.add(compressed);
+  }
+
+  /**
+   * Decompresses <code>in</code> into <code>out</code> using the fastest
+   * {@link LZ4SafeDecompressor} and as many threads as available processors.
+   *
+   * @param in the file to decompress
+   * @param out the file to write decompressed data to, which is created or truncated
+   * @throws IOException if an I/O error occurs or if <code>in</code> is not a valid LZ4 file
+   *
+   * @see #decompress(Path, Path, LZ4SafeDecompressor, int)
+   */
+  public static void decompress(Path in, Path out) throws IOException {
+    decompress(in, out, LZ4Factory.fastestInstance().safeDecompressor(), Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Decompresses <code>in</code> into <code>out</code>. The blocks of every
+   * frame are located by reading their sizes, and are then read, verified and
+   * decompressed in parallel. Concatenated and skippable frames are supported.
+   *
+   * @param in the file to decompress
+   * @param out the file to write decompressed data to, which is created or truncated
+   * @param decompressor the decompressor to use, which is shared by all threads
+   * @param threads the number of threads to decompress with
+   * @throws IOException if an I/O error occurs or if <code>in</code> is not a valid LZ4 file
+   */
+  public static void decompress(Path in, Path out, final LZ4SafeDecompressor decompressor, int threads) throws IOException {
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads must be >= 1, got " + threads);
+    }
+    final Queue<byte[]> buffers = new ConcurrentLinkedQueue<byte[]>();
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try (final FileChannel input = FileChannel.open(in, StandardOpenOption.READ);
+         FileChannel output = FileChannel.open(out, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+             StandardOpenOption.TRUNCATE_EXISTING)) {
+      final long size = input.size();
+      final ByteBuffer number = ByteBuffer.allocate(LONG_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+      final Deque<Future<ByteBuffer>> pending = new ArrayDeque<Future<ByteBuffer>>();
+      long pos = 0;
+      do {
+        final int magic = readInt(input, pos, number);
+        pos += INTEGER_BYTES;
+        if ((magic >>> 4) == (MAGIC_SKIPPABLE_BASE >>> 4)) {
+          pos += INTEGER_BYTES + (readInt(input, pos, number) & 0xFFFFFFFFL);
+          if (pos > size) {
+            throw new EOFException(PREMATURE_EOS);
+          }
+          continue;
+        } else if (magic != MAGIC) {
+          throw new IOException(NOT_SUPPORTED);
+        }
+
+        // frame descriptor
+        final ByteBuffer header = ByteBuffer.allocate(LZ4_MAX_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        header.limit(2);
+        readFully(input, pos, header);
+        final FLG flg = FLG.fromByte(header.get(0));
+        final BD bd = BD.fromByte(header.get(1));
+        final int descriptorLength = 2 + (flg.isEnabled(FLG.Bits.CONTENT_SIZE) ? LONG_BYTES : 0);
+        header.limit(descriptorLength + 1);
+        readFully(input, pos, header);
+        final int hash = (CHECKSUM.hash(header.array(), 0, descriptorLength, 0) >> 8) & 0xFF;
+        if (hash != (header.get(descriptorLength) & 0xFF)) {
+          throw new IOException(DESCRIPTOR_HASH_MISMATCH);
+        }
+        pos += descriptorLength + 1;
+        final FrameInfo frameInfo = new FrameInfo(flg, bd);
+        final long expectedContentSize = flg.isEnabled(FLG.Bits.CONTENT_SIZE) ? header.getLong(2) : -1L;
+        final boolean blockChecksum = flg.isEnabled(FLG.Bits.BLOCK_CHECKSUM);
+        final int maxBlockSize = bd.getBlockMaximumSize();
+
+        // blocks
+        long contentSize = 0;
+        while (true) {
+          final int sizeAndFlag = readInt(input, pos, number);
+          pos += INTEGER_BYTES;
+          final int blockSize = sizeAndFlag & ~LZ4_FRAME_INCOMPRESSIBLE_MASK;
+          if (blockSize == 0) {
+            break;
+          }
+          if (blockSize > maxBlockSize) {
+            throw new IOException(String.format(Locale.ROOT, "Block size %s exceeded max: %s", blockSize, maxBlockSize));
+          }
+          final boolean compressed = (sizeAndFlag & LZ4_FRAME_INCOMPRESSIBLE_MASK) == 0;
+          final long blockOffset = pos;
+          pos += blockSize + (blockChecksum ? INTEGER_BYTES : 0);
+          if (pos > size) {
+            throw new EOFException(PREMATURE_EOS);
+          }
+          if (pending.size() >= threads * BLOCKS_PER_THREAD) {
+            contentSize += writeBlock(output, frameInfo, get(pending.poll()), buffers);
+          }
+          pending.add(executor.submit(new Callable<ByteBuffer>() {
+            @Override
+            public ByteBuffer call() throws IOException {
+              return decompressBlock(input, blockOffset, blockSize, compressed, blockChecksum, maxBlockSize,
+                  decompressor, buffers);
+            }
+          }));
+        }
+        while (!pending.isEmpty()) {
+          contentSize += writeBlock(output, frameInfo, get(pending.poll()), buffers);
+        }
+        if (flg.isEnabled(FLG.Bits.CONTENT_CHECKSUM)) {
+          if (readInt(input, pos, number) != frameInfo.currentStreamHash()) {
+            throw new IOException("Content checksum mismatch");
+          }
+          pos += INTEGER_BYTES;
+        }
+        if (flg.isEnabled(FLG.Bits.CONTENT_SIZE) && expectedContentSize != contentSize) {
+          throw new IOException("Size check mismatch");
+        }
+      } while (pos < size);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static ByteBuffer decompressBlock(FileChannel input, long offset, int blockSize, boolean compressed,
+      boolean blockChecksum, int maxBlockSize, LZ4SafeDecompressor decompressor, Queue<byte[]> buffers) throws IOException {
+    // all buffers can hold a block and its checksum so that they can be used
+    // for both compressed and decompressed data
+    final int bufferSize = maxBlockSize + INTEGER_BYTES;
+    final int readLength = blockSize + (blockChecksum ? INTEGER_BYTES : 0);
+    byte[] src = buffers.poll();
+    if (src == null || src.length < bufferSize) {
+      src = new byte[bufferSize];
+    }
+    final ByteBuffer srcBuffer = ByteBuffer.wrap(src, 0, readLength).order(ByteOrder.LITTLE_ENDIAN);
+    readFully(input, offset, srcBuffer);
+    if (blockChecksum && srcBuffer.getInt(blockSize) != CHECKSUM.hash(src, 0, blockSize, 0)) {
+      throw new IOException(BLOCK_HASH_MISMATCH);
+    }
+    if (!compressed) {
+      return ByteBuffer.wrap(src, 0, blockSize);
+    }
+    byte[] dest = buffers.poll();
+    if (dest == null || dest.length < bufferSize) {
+      dest = new byte[bufferSize];
+    }
+    final int decompressedLength;
+    try {
+      decompressedLength = decompressor.decompress(src, 0, blockSize, dest, 0, maxBlockSize);
+    } catch (LZ4Exception e) {
+      throw new IOException(e);
+    } finally {
+      buffers.add(src);
+    }
+    return ByteBuffer.wrap(dest, 0, decompressedLength);
+  }
+
+  private static int writeBlock(FileChannel output, FrameInfo frameInfo, ByteBuffer block, Queue<byte[]> buffers) throws IOException {
+    final int length = block.remaining();
+    if (frameInfo.isEnabled(FLG.Bits.CONTENT_CHECKSUM)) {
+      frameInfo.updateStreamHash(block.array(), block.arrayOffset() + block.position(), length);
+    }
+    LZ4ChannelUtils.writeFully(output, block);
+    buffers.add(block.array());
+    return length;
+  }
+
+  private static int readInt(FileChannel input, long offset, ByteBuffer number) throws IOException {
+    number.clear();
+    number.limit(INTEGER_BYTES);
+    readFully(input, offset, number);
+    return number.getInt(0);
+  }
+
+  private static void readFully(FileChannel input, long offset, ByteBuffer dst) throws IOException {
+    for (long o = offset + dst.position(); dst.hasRemaining(); ) {
+      final int read = input.read(dst, o);
+      if (read < 0) {
+        throw new EOFException(PREMATURE_EOS);
+      }
+      o += read;
+    }
+  }
+
+  private static <T> T get(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      final InterruptedIOException ioe = new InterruptedIOException();
+      ioe.initCause(e);
+      throw ioe;
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+}
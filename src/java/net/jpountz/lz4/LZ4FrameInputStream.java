@@ -22,8 +22,10 @@ import net.jpountz.xxhash.XXHashFactory;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.Locale;
 
 /**
@@ -51,6 +53,8 @@ public class LZ4FrameInputStream extends FilterInputStream {
   private final byte[] headerArray = new byte[LZ4FrameOutputStream.LZ4_MAX_HEADER_LENGTH];
   private final ByteBuffer headerBuffer = ByteBuffer.wrap(headerArray).order(ByteOrder.LITTLE_ENDIAN);
   private final boolean readSingleFrame;
+  private final LZ4BufferPool bufferPool;
+  private final LZ4StreamInstrumentation instrumentation; // null if disabled
   private byte[] compressedBuffer;
   private ByteBuffer buffer = null;
   private byte[] rawBuffer = null;
@@ -58,6 +62,7 @@ public class LZ4FrameInputStream extends FilterInputStream {
   private long expectedContentSize = -1L;
   private long totalContentSize = 0L;
   private boolean firstFrameHeaderRead = false;
+  private boolean closed = false;
 
   private LZ4FrameOutputStream.FrameInfo frameInfo = null;
 
@@ -114,12 +119,32 @@ public class LZ4FrameInputStream extends FilterInputStream {
    * @param checksum the hash function to use
    * @param readSingleFrame whether read is stopped after the first non-skippable frame
    * @throws IOException if an I/O error occurs
+   *
+   * @see #LZ4FrameInputStream(InputStream, LZ4SafeDecompressor,  XXHash32, boolean, LZ4BufferPool)
    */
   public LZ4FrameInputStream(InputStream in, LZ4SafeDecompressor decompressor,  XXHash32 checksum, boolean readSingleFrame) throws IOException {
+    this(in, decompressor, checksum, readSingleFrame, LZ4BufferPool.unpooled());
+  }
+
+  /**
+   * Creates a new {@link InputStream} that will decompress data using the LZ4 algorithm, and borrow its buffers from
+   * <code>bufferPool</code> when reading the first frame header. They are released on {@link #close()}.
+   *
+   * @param in the stream to decompress
+   * @param decompressor the decompressor to use
+   * @param checksum the hash function to use
+   * @param readSingleFrame whether read is stopped after the first non-skippable frame
+   * @param bufferPool the {@link LZ4BufferPool} to borrow buffers from
+   * @throws IOException if an I/O error occurs
+   */
+  public LZ4FrameInputStream(InputStream in, LZ4SafeDecompressor decompressor,  XXHash32 checksum, boolean readSingleFrame,
+                             LZ4BufferPool bufferPool) throws IOException {
     super(in);
     this.decompressor = decompressor;
     this.checksum = checksum;
     this.readSingleFrame = readSingleFrame;
+    this.bufferPool = bufferPool;
+    this.instrumentation = LZ4StreamInstrumentation.forDecompression("LZ4FrameInputStream", decompressor);
   }
 
 
@@ -216,9 +241,16 @@ public class LZ4FrameInputStream extends FilterInputStream {
     }
 
     maxBlockSize = frameInfo.getBD().getBlockMaximumSize();
-    compressedBuffer = new byte[maxBlockSize]; // Reused during different compressions
-    rawBuffer = new byte[maxBlockSize];
-    buffer = ByteBuffer.wrap(rawBuffer);
+    if (rawBuffer == null || rawBuffer.length < maxBlockSize) {
+      // Reused during different compressions and frames
+      if (instrumentation != null && rawBuffer != null) {
+        instrumentation.bufferReallocated(rawBuffer.length, maxBlockSize);
+      }
+      releaseBuffers();
+      compressedBuffer = bufferPool.borrow(maxBlockSize);
+      rawBuffer = bufferPool.borrow(maxBlockSize);
+      buffer = ByteBuffer.wrap(rawBuffer);
+    }
     buffer.limit(0);
     firstFrameHeaderRead = true;
   }
@@ -256,6 +288,19 @@ public class LZ4FrameInputStream extends FilterInputStream {
    * @throws IOException
    */
   private void readBlock() throws IOException {
+    final int size = readBlock(rawBuffer, 0);
+    buffer.limit(size);
+    buffer.rewind();
+  }
+
+  /**
+   * Reads the next block of the current frame into <code>dest</code>, which must have room for
+   * <code>maxBlockSize</code> bytes at <code>destOff</code>.
+   *
+   * @return the number of decompressed bytes, 0 if the end of the frame has been reached
+   * @throws IOException
+   */
+  private int readBlock(byte[] dest, int destOff) throws IOException {
     int blockSize = readInt(in);
     final boolean compressed = (blockSize & LZ4FrameOutputStream.LZ4_FRAME_INCOMPRESSIBLE_MASK) == 0;
     blockSize &= ~LZ4FrameOutputStream.LZ4_FRAME_INCOMPRESSIBLE_MASK;
@@ -272,14 +317,17 @@ public class LZ4FrameInputStream extends FilterInputStream {
 	throw new IOException("Size check mismatch");
       }
       frameInfo.finish();
-      return;
+      return 0;
     }
 
     final byte[] tmpBuffer; // Use a temporary buffer, potentially one used for compression
+    final int tmpOff;
     if (compressed) {
       tmpBuffer = compressedBuffer;
+      tmpOff = 0;
     } else {
-      tmpBuffer = rawBuffer;
+      tmpBuffer = dest;
+      tmpOff = destOff;
     }
     if (blockSize > maxBlockSize) {
       throw new IOException(String.format(Locale.ROOT, "Block size %s exceeded max: %s", blockSize, maxBlockSize));
@@ -287,7 +335,7 @@ public class LZ4FrameInputStream extends FilterInputStream {
 
     int offset = 0;
     while (offset < blockSize) {
-      final int lastRead = in.read(tmpBuffer, offset, blockSize - offset);
+      final int lastRead = in.read(tmpBuffer, tmpOff + offset, blockSize - offset);
       if (lastRead < 0) {
         throw new IOException(PREMATURE_EOS);
       }
@@ -297,7 +345,14 @@ public class LZ4FrameInputStream extends FilterInputStream {
     // verify block checksum
     if (frameInfo.isEnabled(LZ4FrameOutputStream.FLG.Bits.BLOCK_CHECKSUM)) {
       final int hashCheck = readInt(in);
-      if (hashCheck != checksum.hash(tmpBuffer, 0, blockSize, 0)) {
+      if (instrumentation != null) {
+        instrumentation.beginHash();
+      }
+      final int hash = checksum.hash(tmpBuffer, tmpOff, blockSize, 0);
+      if (instrumentation != null) {
+        instrumentation.endHash(blockSize);
+      }
+      if (hashCheck != hash) {
         throw new IOException(BLOCK_HASH_MISMATCH);
       }
     }
@@ -305,7 +360,13 @@ public class LZ4FrameInputStream extends FilterInputStream {
     final int currentBufferSize;
     if (compressed) {
       try {
-        currentBufferSize = decompressor.decompress(tmpBuffer, 0, blockSize, rawBuffer, 0, rawBuffer.length);
+        if (instrumentation != null) {
+          instrumentation.beginDecompression();
+        }
+        currentBufferSize = decompressor.decompress(tmpBuffer, 0, blockSize, dest, destOff, maxBlockSize);
+        if (instrumentation != null) {
+          instrumentation.endDecompression(blockSize, currentBufferSize);
+        }
       } catch (LZ4Exception e) {
         throw new IOException(e);
       }
@@ -313,15 +374,21 @@ public class LZ4FrameInputStream extends FilterInputStream {
       currentBufferSize = blockSize;
     }
     if (frameInfo.isEnabled(LZ4FrameOutputStream.FLG.Bits.CONTENT_CHECKSUM)) {
-      frameInfo.updateStreamHash(rawBuffer, 0, currentBufferSize);
+      if (instrumentation != null) {
+        instrumentation.beginHash();
+      }
+      frameInfo.updateStreamHash(dest, destOff, currentBufferSize);
+      if (instrumentation != null) {
+        instrumentation.endHash(currentBufferSize);
+      }
     }
     totalContentSize += currentBufferSize;
-    buffer.limit(currentBufferSize);
-    buffer.rewind();
+    return currentBufferSize;
   }
 
   @Override
   public int read() throws IOException {
+    ensureOpen();
     while (!firstFrameHeaderRead || buffer.remaining() == 0) {
       if (!firstFrameHeaderRead || frameInfo.isFinished()) {
         if (firstFrameHeaderRead && readSingleFrame) {
@@ -336,11 +403,16 @@ public class LZ4FrameInputStream extends FilterInputStream {
     return (int)buffer.get() & 0xFF;
   }
 
+  /**
+   * Reads up to <code>len</code> bytes of decompressed data. If no data is buffered and <code>len</code> is at least
+   * the maximum block size of the current frame, the next block is decompressed directly into <code>b</code>.
+   */
   @Override
   public int read(byte[] b, int off, int len) throws IOException {
     if ((off < 0) || (len < 0) || (off + len > b.length)) {
       throw new IndexOutOfBoundsException();
     }
+    ensureOpen();
     while (!firstFrameHeaderRead || buffer.remaining() == 0) {
       if (!firstFrameHeaderRead || frameInfo.isFinished()) {
         if (firstFrameHeaderRead && readSingleFrame) {
@@ -350,15 +422,101 @@ public class LZ4FrameInputStream extends FilterInputStream {
 	  return -1;
 	}
       }
-      readBlock();
+      if (len >= maxBlockSize) {
+        final int size = readBlock(b, off);
+        if (size > 0) {
+          return size;
+        }
+      } else {
+        readBlock();
+      }
     }
     len = Math.min(len, buffer.remaining());
     buffer.get(b, off, len);
     return len;
   }
 
+  /**
+   * Reads all remaining decompressed data. Blocks are decompressed directly into the returned array. This overrides
+   * <code>InputStream.readAllBytes()</code> on Java 9+.
+   *
+   * @return the remaining decompressed data
+   * @throws IOException if an I/O error occurs or if the stream is corrupted
+   */
+  public byte[] readAllBytes() throws IOException {
+    return readBytes(LZ4BlockInputStream.MAX_ARRAY_SIZE);
+  }
+
+  /**
+   * Reads up to <code>len</code> bytes of decompressed data. Blocks which fit are decompressed directly into the
+   * returned array. This overrides <code>InputStream.readNBytes(int)</code> on Java 11+.
+   *
+   * @param len the maximum number of bytes to read
+   * @return the decompressed data, which is shorter than <code>len</code> only if the end of the stream has been
+   *         reached
+   * @throws IOException if an I/O error occurs or if the stream is corrupted
+   */
+  public byte[] readNBytes(int len) throws IOException {
+    if (len < 0) {
+      throw new IllegalArgumentException("len must be >= 0, got " + len);
+    }
+    return readBytes(len);
+  }
+
+  /**
+   * Writes all remaining decompressed data to <code>out</code>. Every block is written directly from the buffer it is
+   * decompressed into, or read into if it is stored uncompressed. This overrides
+   * <code>InputStream.transferTo(OutputStream)</code> on Java 9+.
+   *
+   * @param out the stream to write decompressed data to
+   * @return the number of bytes which have been transferred
+   * @throws IOException if an I/O error occurs or if the stream is corrupted
+   */
+  public long transferTo(OutputStream out) throws IOException {
+    ensureOpen();
+    long transferred = 0;
+    while (true) {
+      if (buffer != null && buffer.hasRemaining()) {
+        final int len = buffer.remaining();
+        out.write(rawBuffer, buffer.position(), len);
+        buffer.position(buffer.limit());
+        transferred += len;
+      }
+      if (!firstFrameHeaderRead || frameInfo.isFinished()) {
+        if (firstFrameHeaderRead && readSingleFrame) {
+          return transferred;
+        }
+        if (!nextFrameInfo()) {
+          return transferred;
+        }
+      }
+      readBlock();
+    }
+  }
+
+  private byte[] readBytes(int limit) throws IOException {
+    ensureOpen();
+    byte[] result = new byte[Math.min(limit, available())];
+    int n = 0;
+    while (n < limit) {
+      // room for a whole block lets read() decompress directly into result
+      final int needed = available() > 0 ? available() : Math.max(maxBlockSize, 1 << 13);
+      if (result.length - n < Math.min(needed, limit - n)) {
+        final long newLength = Math.min(limit, Math.max(n + (long) needed, 2L * result.length));
+        result = Arrays.copyOf(result, (int) newLength);
+      }
+      final int read = read(result, n, Math.min(result.length, limit) - n);
+      if (read < 0) {
+        break;
+      }
+      n += read;
+    }
+    return n == result.length ? result : Arrays.copyOf(result, n);
+  }
+
   @Override
   public long skip(long n) throws IOException {
+    ensureOpen();
     if (n <= 0) {
       return 0;
     }
@@ -380,12 +538,32 @@ public class LZ4FrameInputStream extends FilterInputStream {
 
   @Override
   public int available() throws IOException {
-    return buffer.remaining();
+    return buffer == null ? 0 : buffer.remaining();
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+  }
+
+  private void releaseBuffers() {
+    if (rawBuffer != null) {
+      bufferPool.release(rawBuffer);
+      bufferPool.release(compressedBuffer);
+      rawBuffer = compressedBuffer = null;
+      buffer = null;
+    }
   }
 
   @Override
   public void close() throws IOException {
-    super.close();
+    try {
+      super.close();
+    } finally {
+      closed = true;
+      releaseBuffers();
+    }
   }
 
   @Override
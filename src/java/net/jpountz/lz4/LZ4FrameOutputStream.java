@@ -56,6 +56,13 @@ public class LZ4FrameOutputStream extends FilterOutputStream {
       1; // HC
   static final int LZ4_FRAME_INCOMPRESSIBLE_MASK = 0x80000000;
   static final FLG.Bits[] DEFAULT_FEATURES = new FLG.Bits[]{FLG.Bits.BLOCK_INDEPENDENCE};
+  // the block index is stored in a skippable frame so that other decoders ignore it
+  static final int BLOCK_INDEX_MAGIC = LZ4FrameInputStream.MAGIC_SKIPPABLE_BASE | 0xE;
+  static final int BLOCK_INDEX_FOOTER_MAGIC = 0x4C5A3453;
+  static final int BLOCK_INDEX_FOOTER_LENGTH =
+      8 + // frame length
+      4 + // number of blocks
+      4; // footer magic
 
   static final String CLOSED_STREAM = "The stream is already closed";
 
@@ -81,11 +88,19 @@ public class LZ4FrameOutputStream extends FilterOutputStream {
 
   private final LZ4Compressor compressor;
   private final XXHash32 checksum;
-  private final ByteBuffer buffer; // Buffer for uncompressed input data
-  private final byte[] compressedBuffer; // Only allocated once so it can be reused
+  private final LZ4BufferPool bufferPool;
+  private final LZ4StreamInstrumentation instrumentation; // null if disabled
+  private ByteBuffer buffer; // Buffer for uncompressed input data
+  private byte[] compressedBuffer; // Only allocated once so it can be reused
   private final int maxBlockSize;
   private final long knownSize;
   private final ByteBuffer intLEBuffer = ByteBuffer.allocate(INTEGER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+  private final boolean writeBlockIndex;
+  // per-block sizes, only recorded if writeBlockIndex is set
+  private int[] compressedBlockSizes;
+  private int[] blockSizes;
+  private int blockCount;
+  private long frameLength;
 
   private FrameInfo frameInfo = null;
 
@@ -131,17 +146,72 @@ public class LZ4FrameOutputStream extends FilterOutputStream {
    */
   public LZ4FrameOutputStream(OutputStream out, BLOCKSIZE blockSize, long knownSize,
                               LZ4Compressor compressor, XXHash32 checksum, FLG.Bits... bits) throws IOException {
+    this(out, blockSize, knownSize, compressor, checksum, false, bits);
+  }
+
+  /**
+   * Creates a new {@link OutputStream} that will compress data using the specified instances of {@link LZ4Compressor} and {@link XXHash32}.
+   * <p>
+   * If <code>writeBlockIndex</code> is set, the compressed and uncompressed
+   * sizes of every block are recorded and written on {@link #close()} after
+   * the end of the frame, in a skippable frame which is ignored by LZ4
+   * decoders. {@link LZ4SeekableFrameInputStream} uses this index to seek to
+   * any uncompressed offset without decompressing the preceding blocks.
+   *
+   * @param out the output stream to compress
+   * @param blockSize the BLOCKSIZE to use
+   * @param knownSize the size of the uncompressed data. A value less than zero means unknown.
+   * @param compressor the {@link LZ4Compressor} instance to use to compress data
+   * @param checksum the {@link XXHash32} instance to use to check data for integrity
+   * @param writeBlockIndex whether to append a block index to the frame
+   * @param bits a set of features to use
+   * @throws IOException if an I/O error occurs
+   *
+   * @see LZ4SeekableFrameInputStream
+   */
+  public LZ4FrameOutputStream(OutputStream out, BLOCKSIZE blockSize, long knownSize,
+                              LZ4Compressor compressor, XXHash32 checksum, boolean writeBlockIndex,
+                              FLG.Bits... bits) throws IOException {
+    this(out, blockSize, knownSize, compressor, checksum, writeBlockIndex, LZ4BufferPool.unpooled(), bits);
+  }
+
+  /**
+   * Creates a new {@link OutputStream} that will compress data using the specified instances of {@link LZ4Compressor} and {@link XXHash32},
+   * and borrow its buffers from <code>bufferPool</code>. They are released on {@link #close()}.
+   *
+   * @param out the output stream to compress
+   * @param blockSize the BLOCKSIZE to use
+   * @param knownSize the size of the uncompressed data. A value less than zero means unknown.
+   * @param compressor the {@link LZ4Compressor} instance to use to compress data
+   * @param checksum the {@link XXHash32} instance to use to check data for integrity
+   * @param writeBlockIndex whether to append a block index to the frame
+   * @param bufferPool the {@link LZ4BufferPool} to borrow buffers from
+   * @param bits a set of features to use
+   * @throws IOException if an I/O error occurs
+   *
+   * @see #LZ4FrameOutputStream(OutputStream, BLOCKSIZE, long, LZ4Compressor, XXHash32, boolean, FLG.Bits...)
+   */
+  public LZ4FrameOutputStream(OutputStream out, BLOCKSIZE blockSize, long knownSize,
+                              LZ4Compressor compressor, XXHash32 checksum, boolean writeBlockIndex,
+                              LZ4BufferPool bufferPool, FLG.Bits... bits) throws IOException {
     super(out);
     this.compressor = compressor;
     this.checksum = checksum;
+    this.bufferPool = bufferPool;
+    this.instrumentation = LZ4StreamInstrumentation.forCompression("LZ4FrameOutputStream", compressor);
     frameInfo = new FrameInfo(new FLG(FLG.DEFAULT_VERSION, bits), new BD(blockSize));
     maxBlockSize = frameInfo.getBD().getBlockMaximumSize();
-    buffer = ByteBuffer.allocate(maxBlockSize).order(ByteOrder.LITTLE_ENDIAN);
-    compressedBuffer = new byte[this.compressor.maxCompressedLength(maxBlockSize)];
+    buffer = ByteBuffer.wrap(bufferPool.borrow(maxBlockSize), 0, maxBlockSize).slice().order(ByteOrder.LITTLE_ENDIAN);
+    compressedBuffer = bufferPool.borrow(this.compressor.maxCompressedLength(maxBlockSize));
     if (frameInfo.getFLG().isEnabled(FLG.Bits.CONTENT_SIZE) && knownSize < 0) {
       throw new IllegalArgumentException("Known size must be greater than zero in order to use the known size feature");
     }
     this.knownSize = knownSize;
+    this.writeBlockIndex = writeBlockIndex;
+    if (writeBlockIndex) {
+      compressedBlockSizes = new int[16];
+      blockSizes = new int[16];
+    }
     writeHeader();
   }
 
@@ -188,6 +258,7 @@ public class LZ4FrameOutputStream extends FilterOutputStream {
     headerBuffer.put((byte) hash);
     // write out frame descriptor
     out.write(headerBuffer.array(), 0, headerBuffer.position());
+    frameLength = headerBuffer.position();
   }
 
   /**
@@ -200,38 +271,84 @@ public class LZ4FrameOutputStream extends FilterOutputStream {
     if (buffer.position() == 0) {
       return;
     }
-    // Make sure there's no stale data
-    Arrays.fill(compressedBuffer, (byte) 0);
+    writeBlock(buffer.array(), 0, buffer.position());
+    buffer.rewind();
+  }
 
+  /**
+   * Compresses <code>src[srcOff:srcOff+len]</code> as a block and writes it to the underlying {@link OutputStream}.
+   *
+   * @throws IOException
+   */
+  private void writeBlock(byte[] src, int srcOff, int len) throws IOException {
     if (frameInfo.isEnabled(FLG.Bits.CONTENT_CHECKSUM)) {
-      frameInfo.updateStreamHash(buffer.array(), 0, buffer.position());
+      if (instrumentation != null) {
+        instrumentation.beginHash();
+      }
+      frameInfo.updateStreamHash(src, srcOff, len);
+      if (instrumentation != null) {
+        instrumentation.endHash(len);
+      }
     }
 
-    int compressedLength = compressor.compress(buffer.array(), 0, buffer.position(), compressedBuffer, 0);
+    if (instrumentation != null) {
+      instrumentation.beginCompression();
+    }
+    int compressedLength = compressor.compress(src, srcOff, len, compressedBuffer, 0);
+    if (instrumentation != null) {
+      instrumentation.endCompression(len, compressedLength);
+    }
     final byte[] bufferToWrite;
+    final int bufferToWriteOff;
     final int compressMethod;
 
     // Store block uncompressed if compressed length is greater (incompressible)
-    if (compressedLength >= buffer.position()) {
-      compressedLength = buffer.position();
-      bufferToWrite = Arrays.copyOf(buffer.array(), compressedLength);
+    if (compressedLength >= len) {
+      compressedLength = len;
+      bufferToWrite = src;
+      bufferToWriteOff = srcOff;
       compressMethod = LZ4_FRAME_INCOMPRESSIBLE_MASK;
+      if (instrumentation != null) {
+        instrumentation.incompressibleBlock(len);
+      }
     } else {
       bufferToWrite = compressedBuffer;
+      bufferToWriteOff = 0;
       compressMethod = 0;
     }
 
     // Write content
     intLEBuffer.putInt(0, compressedLength | compressMethod);
     out.write(intLEBuffer.array());
-    out.write(bufferToWrite, 0, compressedLength);
+    out.write(bufferToWrite, bufferToWriteOff, compressedLength);
 
     // Calculate and write block checksum
     if (frameInfo.isEnabled(FLG.Bits.BLOCK_CHECKSUM)) {
-      intLEBuffer.putInt(0, checksum.hash(bufferToWrite, 0, compressedLength, 0));
+      if (instrumentation != null) {
+        instrumentation.beginHash();
+      }
+      intLEBuffer.putInt(0, checksum.hash(bufferToWrite, bufferToWriteOff, compressedLength, 0));
+      if (instrumentation != null) {
+        instrumentation.endHash(compressedLength);
+      }
       out.write(intLEBuffer.array());
     }
-    buffer.rewind();
+    final int blockLength = INTEGER_BYTES + compressedLength
+        + (frameInfo.isEnabled(FLG.Bits.BLOCK_CHECKSUM) ? INTEGER_BYTES : 0);
+    if (writeBlockIndex) {
+      recordBlock(blockLength, len);
+    }
+    frameLength += blockLength;
+  }
+
+  private void recordBlock(int compressedSize, int size) {
+    if (blockCount == blockSizes.length) {
+      compressedBlockSizes = Arrays.copyOf(compressedBlockSizes, blockCount * 2);
+      blockSizes = Arrays.copyOf(blockSizes, blockCount * 2);
+    }
+    compressedBlockSizes[blockCount] = compressedSize;
+    blockSizes[blockCount] = size;
+    ++blockCount;
   }
 
   /**
@@ -246,10 +363,35 @@ public class LZ4FrameOutputStream extends FilterOutputStream {
     if (frameInfo.isEnabled(FLG.Bits.CONTENT_CHECKSUM)) {
       intLEBuffer.putInt(0, frameInfo.currentStreamHash());
       out.write(intLEBuffer.array());
+      frameLength += INTEGER_BYTES;
     }
+    frameLength += INTEGER_BYTES;
     frameInfo.finish();
   }
 
+  /**
+   * Writes the sizes of all blocks of the frame as a skippable frame: the
+   * (compressed, uncompressed) sizes of each block, followed by a footer made of
+   * the length of the indexed frame, the number of blocks and a magic number,
+   * so that the index can be located from the end of the file.
+   *
+   * @throws IOException
+   */
+  private void writeIndexFrame() throws IOException {
+    final int indexLength = 2 * INTEGER_BYTES * blockCount + BLOCK_INDEX_FOOTER_LENGTH;
+    final ByteBuffer indexBuffer = ByteBuffer.allocate(2 * INTEGER_BYTES + indexLength).order(ByteOrder.LITTLE_ENDIAN);
+    indexBuffer.putInt(BLOCK_INDEX_MAGIC);
+    indexBuffer.putInt(indexLength);
+    for (int i = 0; i < blockCount; ++i) {
+      indexBuffer.putInt(compressedBlockSizes[i]);
+      indexBuffer.putInt(blockSizes[i]);
+    }
+    indexBuffer.putLong(frameLength);
+    indexBuffer.putInt(blockCount);
+    indexBuffer.putInt(BLOCK_INDEX_FOOTER_MAGIC);
+    out.write(indexBuffer.array());
+  }
+
   @Override
   public void write(int b) throws IOException {
     ensureNotFinished();
@@ -259,6 +401,11 @@ public class LZ4FrameOutputStream extends FilterOutputStream {
     buffer.put((byte) b);
   }
 
+  /**
+   * Writes <code>len</code> bytes. When nothing is buffered, full blocks of <code>b</code> which are followed by more
+   * data are compressed directly from <code>b</code>, without being copied to the internal buffer first. The output is
+   * the same as if bytes were written one by one.
+   */
   @Override
   public void write(byte[] b, int off, int len) throws IOException {
     if ((off < 0) || (len < 0) || (off + len > b.length)) {
@@ -268,6 +415,13 @@ public class LZ4FrameOutputStream extends FilterOutputStream {
 
     // while b will fill the buffer
     while (len > buffer.remaining()) {
+      if (buffer.position() == 0) {
+        // no need to copy full blocks
+        writeBlock(b, off, maxBlockSize);
+        off += maxBlockSize;
+        len -= maxBlockSize;
+        continue;
+      }
       int sizeWritten = buffer.remaining();
       // fill remaining space in buffer
       buffer.put(b, off, sizeWritten);
@@ -298,15 +452,30 @@ public class LZ4FrameOutputStream extends FilterOutputStream {
 
   @Override
   public void close() throws IOException {
-    if (!frameInfo.isFinished()) {
-      flush();
-      writeEndMark();
+    try {
+      if (!frameInfo.isFinished()) {
+        flush();
+        writeEndMark();
+        if (writeBlockIndex) {
+          writeIndexFrame();
+        }
+      }
+      super.close();
+    } finally {
+      if (buffer != null) {
+        if (!frameInfo.isFinished()) {
+          frameInfo.finish();
+        }
+        bufferPool.release(buffer.array());
+        bufferPool.release(compressedBuffer);
+        buffer = null;
+        compressedBuffer = null;
+      }
     }
-    super.close();
   }
 
   public static class FLG {
-    private static final int DEFAULT_VERSION = 1;
+    static final int DEFAULT_VERSION = 1;
 
     private final BitSet bitSet;
     private final int version;
@@ -380,7 +549,7 @@ public class LZ4FrameOutputStream extends FilterOutputStream {
 
     private final BLOCKSIZE blockSizeValue;
 
-    private BD(BLOCKSIZE blockSizeValue) {
+    BD(BLOCKSIZE blockSizeValue) {
       this.blockSizeValue = blockSizeValue;
     }
 
@@ -0,0 +1,312 @@
+package net.jpountz.lz4;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static net.jpountz.lz4.LZ4FrameInputStream.BLOCK_HASH_MISMATCH;
+import static net.jpountz.lz4.LZ4FrameInputStream.DESCRIPTOR_HASH_MISMATCH;
+import static net.jpountz.lz4.LZ4FrameInputStream.MAGIC_SKIPPABLE_BASE;
+import static net.jpountz.lz4.LZ4FrameInputStream.NOT_SUPPORTED;
+import static net.jpountz.lz4.LZ4FrameInputStream.PREMATURE_EOS;
+import static net.jpountz.lz4.LZ4FrameOutputStream.INTEGER_BYTES;
+import static net.jpountz.lz4.LZ4FrameOutputStream.LONG_BYTES;
+import static net.jpountz.lz4.LZ4FrameOutputStream.LZ4_FRAME_INCOMPRESSIBLE_MASK;
+import static net.jpountz.lz4.LZ4FrameOutputStream.LZ4_MAX_HEADER_LENGTH;
+import static net.jpountz.lz4.LZ4FrameOutputStream.MAGIC;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Locale;
+
+import net.jpountz.lz4.LZ4FrameOutputStream.BD;
+import net.jpountz.lz4.LZ4FrameOutputStream.FLG;
+import net.jpountz.lz4.LZ4FrameOutputStream.FrameInfo;
+import net.jpountz.xxhash.XXHash32;
+import net.jpountz.xxhash.XXHashFactory;
+
+/**
+ * {@link ReadableByteChannel} which decompresses data in the LZ4 Frame format,
+ * like {@link LZ4FrameInputStream}. This class is NOT thread safe.
+ * <p>
+ * The body and checksum of every block are read together, with a single
+ * scattering read when the underlying channel is a
+ * {@link java.nio.channels.ScatteringByteChannel}, but reads never go past the
+ * end of the block which is being returned, so that data is returned as soon
+ * as its block has been written, even if the writer waits for an answer before
+ * writing the next one. Blocks are decompressed
+ * directly into the destination buffer when it has room for a full block, and
+ * into an intermediate direct buffer otherwise. The underlying channel must be
+ * in blocking mode.
+ *
+ * @see LZ4FrameWritableByteChannel
+ */
+public class LZ4FrameReadableByteChannel implements ReadableByteChannel {
+
+  private final ReadableByteChannel channel;
+  private final LZ4SafeDecompressor decompressor;
+  private final XXHash32 checksum;
+  private final boolean readSingleFrame;
+  private final ByteBuffer header = ByteBuffer.allocate(LZ4_MAX_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+  private final ByteBuffer blockHeader = ByteBuffer.allocateDirect(INTEGER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+  private final ByteBuffer blockChecksum = ByteBuffer.allocateDirect(INTEGER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+  private final byte[] hashScratch = new byte[LZ4ChannelUtils.SCRATCH_SIZE];
+  private ByteBuffer buffer; // decompressed data which has not been read yet
+  private ByteBuffer compressedBuffer;
+  private FrameInfo frameInfo;
+  private int maxBlockSize;
+  private long expectedContentSize;
+  private long totalContentSize;
+  private boolean firstFrameHeaderRead;
+  private boolean open = true;
+
+  /**
+   * Creates a new {@link ReadableByteChannel} that will decompress data using fastest instances of
+   * {@link LZ4SafeDecompressor} and {@link XXHash32}. All concatenated frames are decompressed in their sequential
+   * order.
+   *
+   * @param channel the channel to read compressed data from
+   *
+   * @see #LZ4FrameReadableByteChannel(ReadableByteChannel, LZ4SafeDecompressor, XXHash32, boolean)
+   */
+  public LZ4FrameReadableByteChannel(ReadableByteChannel channel) {
+    this(channel, LZ4Factory.fastestInstance().safeDecompressor(), XXHashFactory.fastestInstance().hash32(), false);
+  }
+
+  /**
+   * Creates a new {@link ReadableByteChannel} that will decompress data using the LZ4 algorithm.
+   *
+   * @param channel the channel to read compressed data from
+   * @param decompressor the decompressor to use
+   * @param checksum the hash function to use
+   * @param readSingleFrame whether read is stopped after the first non-skippable frame
+   */
+  public LZ4FrameReadableByteChannel(ReadableByteChannel channel, LZ4SafeDecompressor decompressor, XXHash32 checksum,
+                                     boolean readSingleFrame) {
+    this.channel = channel;
+    this.decompressor = decompressor;
+    this.checksum = checksum;
+    this.readSingleFrame = readSingleFrame;
+  }
+
+  private void readFully(ByteBuffer... dsts) throws IOException {
+    if (!LZ4ChannelUtils.tryReadFully(channel, dsts)) {
+      throw new IOException(PREMATURE_EOS);
+    }
+  }
+
+  /**
+   * Reads the header of the next frame, skipping over skippable frames.
+   * Returns false if there are no more frames.
+   */
+  private boolean nextFrame() throws IOException {
+    while (true) {
+      header.clear();
+      header.limit(INTEGER_BYTES);
+      if (!LZ4ChannelUtils.tryReadFully(channel, header)) {
+        if (!firstFrameHeaderRead || header.position() > 0) {
+          throw new IOException(PREMATURE_EOS);
+        }
+        return false;
+      }
+      final int magic = header.getInt(0);
+      if (magic == MAGIC) {
+        readHeader();
+        return true;
+      } else if ((magic >>> 4) == (MAGIC_SKIPPABLE_BASE >>> 4)) {
+        skipFrame();
+      } else {
+        throw new IOException(NOT_SUPPORTED);
+      }
+    }
+  }
+
+  private void skipFrame() throws IOException {
+    header.clear();
+    header.limit(INTEGER_BYTES);
+    readFully(header);
+    long skipSize = header.getInt(0) & 0xFFFFFFFFL;
+    final ByteBuffer skipBuffer = ByteBuffer.allocate((int) Math.min(skipSize, LZ4ChannelUtils.SCRATCH_SIZE));
+    while (skipSize > 0) {
+      skipBuffer.clear();
+      skipBuffer.limit((int) Math.min(skipSize, skipBuffer.capacity()));
+      readFully(skipBuffer);
+      skipSize -= skipBuffer.limit();
+    }
+    firstFrameHeaderRead = true;
+  }
+
+  private void readHeader() throws IOException {
+    // FLG and BD
+    header.clear();
+    header.limit(2);
+    readFully(header);
+    final FLG flg = FLG.fromByte(header.get(0));
+    final BD bd = BD.fromByte(header.get(1));
+    // optional content size and descriptor checksum
+    final int descriptorLength = 2 + (flg.isEnabled(FLG.Bits.CONTENT_SIZE) ? LONG_BYTES : 0);
+    header.limit(descriptorLength + 1);
+    readFully(header);
+    final int hash = (checksum.hash(header.array(), 0, descriptorLength, 0) >> 8) & 0xFF;
+    if (hash != (header.get(descriptorLength) & 0xFF)) {
+      throw new IOException(DESCRIPTOR_HASH_MISMATCH);
+    }
+    expectedContentSize = flg.isEnabled(FLG.Bits.CONTENT_SIZE) ? header.getLong(2) : -1L;
+    totalContentSize = 0L;
+
+    frameInfo = new FrameInfo(flg, bd);
+    maxBlockSize = bd.getBlockMaximumSize();
+    if (buffer == null || buffer.capacity() < maxBlockSize) {
+      buffer = ByteBuffer.allocateDirect(maxBlockSize);
+      compressedBuffer = ByteBuffer.allocateDirect(maxBlockSize);
+    }
+    buffer.limit(0);
+    firstFrameHeaderRead = true;
+  }
+
+  /**
+   * Reads the next block of the frame, decompresses it into <code>out</code>
+   * and returns the number of decompressed bytes, or 0 if the end of the frame
+   * has been reached. <code>out</code> must have room for a full block.
+   */
+  private int readBlock(ByteBuffer out) throws IOException {
+    blockHeader.clear();
+    readFully(blockHeader);
+    int blockSize = blockHeader.getInt(0);
+    final boolean compressed = (blockSize & LZ4_FRAME_INCOMPRESSIBLE_MASK) == 0;
+    blockSize &= ~LZ4_FRAME_INCOMPRESSIBLE_MASK;
+
+    // Check for EndMark
+    if (blockSize == 0) {
+      if (frameInfo.isEnabled(FLG.Bits.CONTENT_CHECKSUM)) {
+        blockChecksum.clear();
+        readFully(blockChecksum);
+        if (blockChecksum.getInt(0) != frameInfo.currentStreamHash()) {
+          throw new IOException("Content checksum mismatch");
+        }
+      }
+      if (frameInfo.isEnabled(FLG.Bits.CONTENT_SIZE) && expectedContentSize != totalContentSize) {
+        throw new IOException("Size check mismatch");
+      }
+      frameInfo.finish();
+      return 0;
+    }
+    if (blockSize > maxBlockSize) {
+      throw new IOException(String.format(Locale.ROOT, "Block size %s exceeded max: %s", blockSize, maxBlockSize));
+    }
+
+    // read the block and its checksum at once
+    final ByteBuffer target;
+    final int targetOff;
+    if (compressed) {
+      target = compressedBuffer;
+      target.clear();
+      targetOff = 0;
+    } else {
+      target = out.duplicate();
+      targetOff = out.position();
+    }
+    target.limit(targetOff + blockSize);
+    if (frameInfo.isEnabled(FLG.Bits.BLOCK_CHECKSUM)) {
+      blockChecksum.clear();
+      readFully(target, blockChecksum);
+      if (blockChecksum.getInt(0) != checksum.hash(target, targetOff, blockSize, 0)) {
+        throw new IOException(BLOCK_HASH_MISMATCH);
+      }
+    } else {
+      readFully(target);
+    }
+
+    final int size;
+    if (compressed) {
+      try {
+        size = decompressor.decompress(compressedBuffer, 0, blockSize, out, out.position(), maxBlockSize);
+      } catch (LZ4Exception e) {
+        throw new IOException(e);
+      }
+    } else {
+      size = blockSize;
+    }
+    if (frameInfo.isEnabled(FLG.Bits.CONTENT_CHECKSUM)) {
+      LZ4ChannelUtils.updateStreamHash(frameInfo, out, out.position(), size, hashScratch);
+    }
+    totalContentSize += size;
+    out.position(out.position() + size);
+    return size;
+  }
+
+  @Override
+  public int read(ByteBuffer dst) throws IOException {
+    ensureOpen();
+    if (!dst.hasRemaining()) {
+      return 0;
+    }
+    while (buffer == null || !buffer.hasRemaining()) {
+      if (frameInfo == null || frameInfo.isFinished()) {
+        if (frameInfo != null && readSingleFrame) {
+          return -1;
+        }
+        if (!nextFrame()) {
+          return -1;
+        }
+        continue;
+      }
+      if (dst.remaining() >= maxBlockSize) {
+        final int size = readBlock(dst);
+        if (size > 0) {
+          return size;
+        }
+      } else {
+        buffer.clear();
+        readBlock(buffer);
+        buffer.flip();
+      }
+    }
+    final int len = Math.min(dst.remaining(), buffer.remaining());
+    final ByteBuffer slice = buffer.duplicate();
+    slice.limit(slice.position() + len);
+    dst.put(slice);
+    buffer.position(buffer.position() + len);
+    return len;
+  }
+
+  private void ensureOpen() throws IOException {
+    if (!open) {
+      throw new ClosedChannelException();
+    }
+  }
+
+  @Override
+  public boolean isOpen() {
+    return open;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (open) {
+      open = false;
+      channel.close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "(channel=" + channel + ", decompressor=" + decompressor + ", checksum=" + checksum + ")";
+  }
+
+}
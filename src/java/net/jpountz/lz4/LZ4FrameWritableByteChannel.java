@@ -0,0 +1,254 @@
+package net.jpountz.lz4;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static net.jpountz.lz4.LZ4FrameOutputStream.DEFAULT_FEATURES;
+import static net.jpountz.lz4.LZ4FrameOutputStream.INTEGER_BYTES;
+import static net.jpountz.lz4.LZ4FrameOutputStream.LZ4_FRAME_INCOMPRESSIBLE_MASK;
+import static net.jpountz.lz4.LZ4FrameOutputStream.LZ4_MAX_HEADER_LENGTH;
+import static net.jpountz.lz4.LZ4FrameOutputStream.MAGIC;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+
+import net.jpountz.lz4.LZ4FrameOutputStream.BD;
+import net.jpountz.lz4.LZ4FrameOutputStream.BLOCKSIZE;
+import net.jpountz.lz4.LZ4FrameOutputStream.FLG;
+import net.jpountz.lz4.LZ4FrameOutputStream.FrameInfo;
+import net.jpountz.xxhash.XXHash32;
+import net.jpountz.xxhash.XXHashFactory;
+
+/**
+ * {@link WritableByteChannel} which compresses data to the LZ4 Frame format,
+ * like {@link LZ4FrameOutputStream}. This class is NOT thread safe.
+ * <p>
+ * Data is buffered in direct memory, and the size, body and checksum of every
+ * block are written with a single gathering write when the underlying channel
+ * is a {@link java.nio.channels.GatheringByteChannel}. Full blocks are
+ * compressed directly from the source buffer when possible. The underlying
+ * channel must be in blocking mode.
+ *
+ * @see LZ4FrameReadableByteChannel
+ */
+public class LZ4FrameWritableByteChannel implements WritableByteChannel {
+
+  private final WritableByteChannel channel;
+  private final LZ4Compressor compressor;
+  private final XXHash32 checksum;
+  private final FrameInfo frameInfo;
+  private final int maxBlockSize;
+  private final ByteBuffer buffer; // uncompressed data of the current block
+  private final ByteBuffer compressedBuffer;
+  private final ByteBuffer blockHeader = ByteBuffer.allocateDirect(INTEGER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+  private final ByteBuffer blockChecksum = ByteBuffer.allocateDirect(INTEGER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+  private final byte[] hashScratch;
+  private boolean open = true;
+
+  /**
+   * Creates a new {@link WritableByteChannel} that will compress data with 4-MB blocks. The block independence flag is
+   * set, and none of the other flags are set.
+   *
+   * @param channel the channel to write compressed data to
+   * @throws IOException if an I/O error occurs
+   *
+   * @see #LZ4FrameWritableByteChannel(WritableByteChannel, BLOCKSIZE, FLG.Bits...)
+   */
+  public LZ4FrameWritableByteChannel(WritableByteChannel channel) throws IOException {
+    this(channel, BLOCKSIZE.SIZE_4MB, DEFAULT_FEATURES);
+  }
+
+  /**
+   * Creates a new {@link WritableByteChannel} that will compress data of unknown size using fastest instances of
+   * {@link LZ4Compressor} and {@link XXHash32}.
+   *
+   * @param channel the channel to write compressed data to
+   * @param blockSize the BLOCKSIZE to use
+   * @param bits a set of features to use
+   * @throws IOException if an I/O error occurs
+   *
+   * @see #LZ4FrameWritableByteChannel(WritableByteChannel, BLOCKSIZE, long, LZ4Compressor, XXHash32, FLG.Bits...)
+   */
+  public LZ4FrameWritableByteChannel(WritableByteChannel channel, BLOCKSIZE blockSize, FLG.Bits... bits) throws IOException {
+    this(channel, blockSize, -1L, LZ4Factory.fastestInstance().fastCompressor(), XXHashFactory.fastestInstance().hash32(), bits);
+  }
+
+  /**
+   * Creates a new {@link WritableByteChannel} that will compress data using the specified instances of
+   * {@link LZ4Compressor} and {@link XXHash32}.
+   *
+   * @param channel the channel to write compressed data to
+   * @param blockSize the BLOCKSIZE to use
+   * @param knownSize the size of the uncompressed data. A value less than zero means unknown.
+   * @param compressor the {@link LZ4Compressor} instance to use to compress data
+   * @param checksum the {@link XXHash32} instance to use to check data for integrity
+   * @param bits a set of features to use
+   * @throws IOException if an I/O error occurs
+   */
+  public LZ4FrameWritableByteChannel(WritableByteChannel channel, BLOCKSIZE blockSize, long knownSize,
+                                     LZ4Compressor compressor, XXHash32 checksum, FLG.Bits... bits) throws IOException {
+    this.channel = channel;
+    this.compressor = compressor;
+    this.checksum = checksum;
+    frameInfo = new FrameInfo(new FLG(FLG.DEFAULT_VERSION, bits), new BD(blockSize));
+    if (frameInfo.isEnabled(FLG.Bits.CONTENT_SIZE) && knownSize < 0) {
+      throw new IllegalArgumentException("Known size must be greater than zero in order to use the known size feature");
+    }
+    maxBlockSize = frameInfo.getBD().getBlockMaximumSize();
+    buffer = ByteBuffer.allocateDirect(maxBlockSize);
+    compressedBuffer = ByteBuffer.allocateDirect(compressor.maxCompressedLength(maxBlockSize));
+    hashScratch = frameInfo.isEnabled(FLG.Bits.CONTENT_CHECKSUM) ? new byte[LZ4ChannelUtils.SCRATCH_SIZE] : null;
+    writeHeader(knownSize);
+  }
+
+  private void writeHeader(long knownSize) throws IOException {
+    final ByteBuffer header = ByteBuffer.allocate(LZ4_MAX_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(MAGIC);
+    header.put(frameInfo.getFLG().toByte());
+    header.put(frameInfo.getBD().toByte());
+    if (frameInfo.isEnabled(FLG.Bits.CONTENT_SIZE)) {
+      header.putLong(knownSize);
+    }
+    final int hash = (checksum.hash(header.array(), INTEGER_BYTES, header.position() - INTEGER_BYTES, 0) >> 8) & 0xFF;
+    header.put((byte) hash);
+    header.flip();
+    LZ4ChannelUtils.writeFully(channel, header);
+  }
+
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    ensureOpen();
+    final int len = src.remaining();
+    while (src.hasRemaining()) {
+      if (buffer.position() == 0 && src.remaining() >= maxBlockSize) {
+        // no need to copy full blocks
+        writeBlock(src, src.position(), maxBlockSize);
+        src.position(src.position() + maxBlockSize);
+      } else {
+        final int l = Math.min(buffer.remaining(), src.remaining());
+        final ByteBuffer slice = src.duplicate();
+        slice.limit(slice.position() + l);
+        buffer.put(slice);
+        src.position(src.position() + l);
+        if (!buffer.hasRemaining()) {
+          flushBlock();
+        }
+      }
+    }
+    return len;
+  }
+
+  /**
+   * Compresses and writes buffered data as a block, even if it is not full.
+   *
+   * @throws IOException if an I/O error occurs
+   */
+  public void flush() throws IOException {
+    ensureOpen();
+    flushBlock();
+  }
+
+  private void flushBlock() throws IOException {
+    if (buffer.position() > 0) {
+      writeBlock(buffer, 0, buffer.position());
+      buffer.clear();
+    }
+  }
+
+  private void writeBlock(ByteBuffer src, int off, int len) throws IOException {
+    if (frameInfo.isEnabled(FLG.Bits.CONTENT_CHECKSUM)) {
+      LZ4ChannelUtils.updateStreamHash(frameInfo, src, off, len, hashScratch);
+    }
+    // the limit of the previous block would prevent compressors which go
+    // through the ByteBuffer API from using the whole buffer
+    compressedBuffer.clear();
+    int compressedLength = compressor.compress(src, off, len, compressedBuffer, 0, compressedBuffer.capacity());
+    final ByteBuffer payload;
+    final int compressMethod;
+    // Store block uncompressed if compressed length is greater (incompressible)
+    if (compressedLength >= len) {
+      compressedLength = len;
+      payload = src.duplicate();
+      payload.limit(off + len);
+      payload.position(off);
+      compressMethod = LZ4_FRAME_INCOMPRESSIBLE_MASK;
+    } else {
+      payload = compressedBuffer;
+      payload.limit(compressedLength);
+      payload.position(0);
+      compressMethod = 0;
+    }
+    blockHeader.clear();
+    blockHeader.putInt(0, compressedLength | compressMethod);
+    if (frameInfo.isEnabled(FLG.Bits.BLOCK_CHECKSUM)) {
+      blockChecksum.clear();
+      blockChecksum.putInt(0, checksum.hash(payload, payload.position(), compressedLength, 0));
+      LZ4ChannelUtils.writeFully(channel, blockHeader, payload, blockChecksum);
+    } else {
+      LZ4ChannelUtils.writeFully(channel, blockHeader, payload);
+    }
+  }
+
+  private void writeEndMark() throws IOException {
+    blockHeader.clear();
+    blockHeader.putInt(0, 0);
+    if (frameInfo.isEnabled(FLG.Bits.CONTENT_CHECKSUM)) {
+      blockChecksum.clear();
+      blockChecksum.putInt(0, frameInfo.currentStreamHash());
+      LZ4ChannelUtils.writeFully(channel, blockHeader, blockChecksum);
+    } else {
+      LZ4ChannelUtils.writeFully(channel, blockHeader);
+    }
+    frameInfo.finish();
+  }
+
+  private void ensureOpen() throws IOException {
+    if (!open) {
+      throw new ClosedChannelException();
+    }
+  }
+
+  @Override
+  public boolean isOpen() {
+    return open;
+  }
+
+  /**
+   * Writes pending data and the end of the frame, and closes the underlying
+   * channel.
+   */
+  @Override
+  public void close() throws IOException {
+    if (open) {
+      try {
+        flushBlock();
+        writeEndMark();
+      } finally {
+        open = false;
+        channel.close();
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "(channel=" + channel + ", compressor=" + compressor + ", checksum=" + checksum + ")";
+  }
+
+}
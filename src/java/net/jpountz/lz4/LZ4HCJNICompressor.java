@@ -21,6 +21,8 @@ import static net.jpountz.lz4.LZ4Constants.DEFAULT_COMPRESSION_LEVEL;
 import java.nio.ByteBuffer;
 
 import net.jpountz.util.ByteBufferUtils;
+import net.jpountz.util.JNIStaging;
+import net.jpountz.util.LZ4JavaMonitor;
 import net.jpountz.util.SafeUtils;
 
 /**
@@ -39,10 +41,23 @@ final class LZ4HCJNICompressor extends LZ4Compressor {
     this.compressionLevel = compressionLevel;
   }
 
+  @Override
+  int compressionLevel() {
+    return compressionLevel;
+  }
+
+  @Override
+  int implementation(int srcLen) {
+    return LZ4JavaMonitor.JNI;
+  }
+
   @Override
   public int compress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int maxDestLen) {
     SafeUtils.checkRange(src, srcOff, srcLen);
     SafeUtils.checkRange(dest, destOff, maxDestLen);
+    if (JNIStaging.exceedsCriticalLength(Math.max(srcLen, maxDestLen))) {
+      return compress(ByteBuffer.wrap(src), srcOff, srcLen, ByteBuffer.wrap(dest), destOff, maxDestLen);
+    }
     final int result = LZ4JNI.LZ4_compressHC(src, null, srcOff, srcLen, dest, null, destOff, maxDestLen, compressionLevel);
     if (result <= 0) {
       throw new LZ4Exception();
@@ -74,10 +89,30 @@ final class LZ4HCJNICompressor extends LZ4Compressor {
         destBuf = dest;
       }
 
+      // copy large arrays to and from direct memory rather than pinning them
+      if (srcArr != null && JNIStaging.exceedsCriticalLength(srcLen)) {
+        srcBuf = JNIStaging.stage(0, srcArr, srcOff, srcLen);
+        srcArr = null;
+        srcOff = 0;
+      }
+      byte[] unstagedDest = null;
+      int unstagedDestOff = 0;
+      if (destArr != null && JNIStaging.exceedsCriticalLength(maxDestLen)) {
+        unstagedDest = destArr;
+        unstagedDestOff = destOff;
+        maxDestLen = Math.min(maxDestLen, maxCompressedLength(srcLen));
+        destBuf = JNIStaging.stagingBuffer(1, maxDestLen);
+        destArr = null;
+        destOff = 0;
+      }
+
       final int result = LZ4JNI.LZ4_compressHC(srcArr, srcBuf, srcOff, srcLen, destArr, destBuf, destOff, maxDestLen, compressionLevel);
       if (result <= 0) {
         throw new LZ4Exception();
       }
+      if (unstagedDest != null) {
+        JNIStaging.unstage(destBuf, unstagedDest, unstagedDestOff, result);
+      }
       return result;
     } else {
       LZ4Compressor safeInstance = SAFE_INSTANCE;
@@ -87,4 +122,90 @@ final class LZ4HCJNICompressor extends LZ4Compressor {
       return safeInstance.compress(src, srcOff, srcLen, dest, destOff, maxDestLen);
     }
   }
+
+  // the factory caches one compressor per level
+  private LZ4Compressor safeInstance() {
+    return LZ4Factory.safeInstance().highCompressor(compressionLevel);
+  }
+
+  @Override
+  public int compressDestSize(byte[] src, int srcOff, int[] srcLenRef, byte[] dest, int destOff, int destCapacity) {
+    if (!LZ4JNI.DEST_SIZE) {
+      return safeInstance().compressDestSize(src, srcOff, srcLenRef, dest, destOff, destCapacity);
+    }
+    SafeUtils.checkRange(src, srcOff, srcLenRef[0]);
+    SafeUtils.checkRange(dest, destOff, destCapacity);
+    if (destCapacity == 0) {
+      srcLenRef[0] = 0;
+      return 0;
+    }
+    if (JNIStaging.exceedsCriticalLength(Math.max(srcLenRef[0], destCapacity))) {
+      return compressDestSize(ByteBuffer.wrap(src), srcOff, srcLenRef, ByteBuffer.wrap(dest), destOff, destCapacity);
+    }
+    final int result = LZ4JNI.LZ4_compressHC_destSize(src, null, srcOff, srcLenRef, dest, null, destOff, destCapacity, compressionLevel);
+    if (result <= 0) {
+      throw new LZ4Exception();
+    }
+    return result;
+  }
+
+  @Override
+  public int compressDestSize(ByteBuffer src, int srcOff, int[] srcLenRef, ByteBuffer dest, int destOff, int destCapacity) {
+    if (!LZ4JNI.DEST_SIZE) {
+      return safeInstance().compressDestSize(src, srcOff, srcLenRef, dest, destOff, destCapacity);
+    }
+    ByteBufferUtils.checkNotReadOnly(dest);
+    ByteBufferUtils.checkRange(src, srcOff, srcLenRef[0]);
+    ByteBufferUtils.checkRange(dest, destOff, destCapacity);
+
+    if ((src.hasArray() || src.isDirect()) && (dest.hasArray() || dest.isDirect())) {
+      if (destCapacity == 0) {
+        srcLenRef[0] = 0;
+        return 0;
+      }
+      byte[] srcArr = null, destArr = null;
+      ByteBuffer srcBuf = null, destBuf = null;
+      if (src.hasArray()) {
+        srcArr = src.array();
+        srcOff += src.arrayOffset();
+      } else {
+        assert src.isDirect();
+        srcBuf = src;
+      }
+      if (dest.hasArray()) {
+        destArr = dest.array();
+        destOff += dest.arrayOffset();
+      } else {
+        assert dest.isDirect();
+        destBuf = dest;
+      }
+
+      // copy large arrays to and from direct memory rather than pinning them
+      if (srcArr != null && JNIStaging.exceedsCriticalLength(srcLenRef[0])) {
+        srcBuf = JNIStaging.stage(0, srcArr, srcOff, srcLenRef[0]);
+        srcArr = null;
+        srcOff = 0;
+      }
+      byte[] unstagedDest = null;
+      int unstagedDestOff = 0;
+      if (destArr != null && JNIStaging.exceedsCriticalLength(destCapacity)) {
+        unstagedDest = destArr;
+        unstagedDestOff = destOff;
+        destBuf = JNIStaging.stagingBuffer(1, destCapacity);
+        destArr = null;
+        destOff = 0;
+      }
+
+      final int result = LZ4JNI.LZ4_compressHC_destSize(srcArr, srcBuf, srcOff, srcLenRef, destArr, destBuf, destOff, destCapacity, compressionLevel);
+      if (result <= 0) {
+        throw new LZ4Exception();
+      }
+      if (unstagedDest != null) {
+        JNIStaging.unstage(destBuf, unstagedDest, unstagedDestOff, result);
+      }
+      return result;
+    } else {
+      return safeInstance().compressDestSize(src, srcOff, srcLenRef, dest, destOff, destCapacity);
+    }
+  }
 }
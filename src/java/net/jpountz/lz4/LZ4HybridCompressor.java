@@ -0,0 +1,72 @@
+package net.jpountz.lz4;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link LZ4Compressor} which uses a Java implementation for inputs shorter
+ * than a threshold and JNI bindings for longer ones.
+ */
+final class LZ4HybridCompressor extends LZ4Compressor {
+
+  private final LZ4Compressor java;
+  private final LZ4Compressor jni;
+  private final int threshold;
+
+  LZ4HybridCompressor(LZ4Compressor java, LZ4Compressor jni, int threshold) {
+    this.java = java;
+    this.jni = jni;
+    this.threshold = threshold;
+  }
+
+  @Override
+  public int compress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int maxDestLen) {
+    return (srcLen < threshold ? java : jni).compress(src, srcOff, srcLen, dest, destOff, maxDestLen);
+  }
+
+  @Override
+  public int compress(ByteBuffer src, int srcOff, int srcLen, ByteBuffer dest, int destOff, int maxDestLen) {
+    return (srcLen < threshold ? java : jni).compress(src, srcOff, srcLen, dest, destOff, maxDestLen);
+  }
+
+  @Override
+  public int compressDestSize(byte[] src, int srcOff, int[] srcLenRef, byte[] dest, int destOff, int destCapacity) {
+    return (srcLenRef[0] < threshold ? java : jni).compressDestSize(src, srcOff, srcLenRef, dest, destOff, destCapacity);
+  }
+
+  @Override
+  public int compressDestSize(ByteBuffer src, int srcOff, int[] srcLenRef, ByteBuffer dest, int destOff, int destCapacity) {
+    return (srcLenRef[0] < threshold ? java : jni).compressDestSize(src, srcOff, srcLenRef, dest, destOff, destCapacity);
+  }
+
+  @Override
+  int compressionLevel() {
+    return jni.compressionLevel();
+  }
+
+  @Override
+  int implementation(int srcLen) {
+    return (srcLen < threshold ? java : jni).implementation(srcLen);
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "(" + java + " below " + threshold + " bytes, " + jni + " above)";
+  }
+
+}
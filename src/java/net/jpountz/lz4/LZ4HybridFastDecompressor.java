@@ -0,0 +1,58 @@
+package net.jpountz.lz4;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link LZ4FastDecompressor} which uses a Java implementation for
+ * decompressed lengths shorter than a threshold and JNI bindings for longer
+ * ones.
+ */
+final class LZ4HybridFastDecompressor extends LZ4FastDecompressor {
+
+  private final LZ4FastDecompressor java;
+  private final LZ4FastDecompressor jni;
+  private final int threshold;
+
+  LZ4HybridFastDecompressor(LZ4FastDecompressor java, LZ4FastDecompressor jni, int threshold) {
+    this.java = java;
+    this.jni = jni;
+    this.threshold = threshold;
+  }
+
+  @Override
+  public int decompress(byte[] src, int srcOff, byte[] dest, int destOff, int destLen) {
+    return (destLen < threshold ? java : jni).decompress(src, srcOff, dest, destOff, destLen);
+  }
+
+  @Override
+  public int decompress(ByteBuffer src, int srcOff, ByteBuffer dest, int destOff, int destLen) {
+    return (destLen < threshold ? java : jni).decompress(src, srcOff, dest, destOff, destLen);
+  }
+
+  @Override
+  int implementation(int destLen) {
+    return (destLen < threshold ? java : jni).implementation(destLen);
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "(" + java + " below " + threshold + " bytes, " + jni + " above)";
+  }
+
+}
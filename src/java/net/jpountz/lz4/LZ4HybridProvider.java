@@ -0,0 +1,128 @@
+package net.jpountz.lz4;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static net.jpountz.util.JNIThresholds.MAX_CALIBRATED_LENGTH;
+
+import net.jpountz.util.JNIThresholds;
+
+/**
+ * Provides codecs which dispatch between the JNI bindings and a Java
+ * implementation depending on the input length, see
+ * {@link LZ4Factory#hybridInstance()}.
+ */
+final class LZ4HybridProvider extends LZ4Provider {
+
+  private final LZ4Factory java;
+  private final LZ4Factory jni;
+  final int compressThreshold;
+  final int highCompressThreshold;
+  final int safeDecompressThreshold;
+  final int fastDecompressThreshold;
+
+  LZ4HybridProvider(final LZ4Factory java, final LZ4Factory jni) {
+    this.java = java;
+    this.jni = jni;
+
+    // calibration data that compresses about as well as text
+    final byte[] data = new byte[MAX_CALIBRATED_LENGTH];
+    long seed = 42;
+    for (int i = 0; i < data.length; ++i) {
+      seed = seed * 6364136223846793005L + 1442695040888963407L;
+      data[i] = (byte) ('a' + (seed >>> 60));
+    }
+    final byte[] dest = new byte[java.fastCompressor().maxCompressedLength(data.length)];
+    compressThreshold = JNIThresholds.threshold("lz4java.jni.threshold.compress",
+        compressBenchmark(jni.fastCompressor(), data, dest), compressBenchmark(java.fastCompressor(), data, dest));
+    // the Java high compressor is slower than the JNI one on all lengths, it
+    // allocates its hash chains on every call
+    highCompressThreshold = Math.max(0, Integer.getInteger("lz4java.jni.threshold.compresshc", 0));
+
+    // compressed blocks of every calibrated length, by log2 of the length
+    final byte[][] compressed = new byte[Integer.numberOfTrailingZeros(MAX_CALIBRATED_LENGTH) + 1][];
+    for (int len = 1; len <= MAX_CALIBRATED_LENGTH; len <<= 1) {
+      compressed[Integer.numberOfTrailingZeros(len)] = java.fastCompressor().compress(data, 0, len);
+    }
+    // safe decompressors don't know the decompressed length up-front, so
+    // they compare the compressed length to that of the calibration data
+    final int decompressThreshold = JNIThresholds.threshold("lz4java.jni.threshold.decompress",
+        safeDecompressBenchmark(jni.safeDecompressor(), compressed, dest), safeDecompressBenchmark(java.safeDecompressor(), compressed, dest));
+    safeDecompressThreshold = decompressThreshold == Integer.MAX_VALUE ? Integer.MAX_VALUE
+        : (int) ((long) decompressThreshold * compressed[compressed.length - 1].length / MAX_CALIBRATED_LENGTH);
+    fastDecompressThreshold = JNIThresholds.threshold("lz4java.jni.threshold.decompress",
+        fastDecompressBenchmark(jni.fastDecompressor(), compressed, dest), fastDecompressBenchmark(java.fastDecompressor(), compressed, dest));
+  }
+
+  private static JNIThresholds.Benchmark compressBenchmark(final LZ4Compressor compressor, final byte[] data, final byte[] dest) {
+    return new JNIThresholds.Benchmark() {
+      @Override
+      public long run(int len) {
+        return compressor.compress(data, 0, len, dest, 0, dest.length);
+      }
+    };
+  }
+
+  private static JNIThresholds.Benchmark safeDecompressBenchmark(final LZ4SafeDecompressor decompressor, final byte[][] compressed, final byte[] dest) {
+    return new JNIThresholds.Benchmark() {
+      @Override
+      public long run(int len) {
+        final byte[] src = compressed[Integer.numberOfTrailingZeros(len)];
+        return decompressor.decompress(src, 0, src.length, dest, 0, dest.length);
+      }
+    };
+  }
+
+  private static JNIThresholds.Benchmark fastDecompressBenchmark(final LZ4FastDecompressor decompressor, final byte[][] compressed, final byte[] dest) {
+    return new JNIThresholds.Benchmark() {
+      @Override
+      public long run(int len) {
+        return decompressor.decompress(compressed[Integer.numberOfTrailingZeros(len)], 0, dest, 0, len);
+      }
+    };
+  }
+
+  @Override
+  LZ4Compressor fastCompressor() {
+    return new LZ4HybridCompressor(java.fastCompressor(), jni.fastCompressor(), compressThreshold);
+  }
+
+  @Override
+  LZ4Compressor fastCompressor(int memoryUsage) {
+    return new LZ4HybridCompressor(java.fastCompressor(memoryUsage), jni.fastCompressor(memoryUsage), compressThreshold);
+  }
+
+  @Override
+  LZ4Compressor highCompressor() {
+    return new LZ4HybridCompressor(java.highCompressor(), jni.highCompressor(), highCompressThreshold);
+  }
+
+  @Override
+  LZ4Compressor highCompressor(int compressionLevel) {
+    return new LZ4HybridCompressor(java.highCompressor(compressionLevel), jni.highCompressor(compressionLevel), highCompressThreshold);
+  }
+
+  @Override
+  LZ4FastDecompressor fastDecompressor() {
+    return new LZ4HybridFastDecompressor(java.fastDecompressor(), jni.fastDecompressor(), fastDecompressThreshold);
+  }
+
+  @Override
+  LZ4SafeDecompressor safeDecompressor() {
+    return new LZ4HybridSafeDecompressor(java.safeDecompressor(), jni.safeDecompressor(), safeDecompressThreshold);
+  }
+
+}
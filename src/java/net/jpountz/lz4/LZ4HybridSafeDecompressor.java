@@ -0,0 +1,57 @@
+package net.jpountz.lz4;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link LZ4SafeDecompressor} which uses a Java implementation for compressed
+ * inputs shorter than a threshold and JNI bindings for longer ones.
+ */
+final class LZ4HybridSafeDecompressor extends LZ4SafeDecompressor {
+
+  private final LZ4SafeDecompressor java;
+  private final LZ4SafeDecompressor jni;
+  private final int threshold;
+
+  LZ4HybridSafeDecompressor(LZ4SafeDecompressor java, LZ4SafeDecompressor jni, int threshold) {
+    this.java = java;
+    this.jni = jni;
+    this.threshold = threshold;
+  }
+
+  @Override
+  public int decompress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int maxDestLen) {
+    return (srcLen < threshold ? java : jni).decompress(src, srcOff, srcLen, dest, destOff, maxDestLen);
+  }
+
+  @Override
+  public int decompress(ByteBuffer src, int srcOff, int srcLen, ByteBuffer dest, int destOff, int maxDestLen) {
+    return (srcLen < threshold ? java : jni).decompress(src, srcOff, srcLen, dest, destOff, maxDestLen);
+  }
+
+  @Override
+  int implementation(int srcLen) {
+    return (srcLen < threshold ? java : jni).implementation(srcLen);
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "(" + java + " below " + threshold + " bytes, " + jni + " above)";
+  }
+
+}
@@ -35,9 +35,28 @@ enum LZ4JNI {
   static native void init();
   static native int LZ4_compress_limitedOutput(byte[] srcArray, ByteBuffer srcBuffer, int srcOff, int srcLen, byte[] destArray, ByteBuffer destBuffer, int destOff, int maxDestLen);
   static native int LZ4_compressHC(byte[] srcArray, ByteBuffer srcBuffer, int srcOff, int srcLen, byte[] destArray, ByteBuffer destBuffer, int destOff, int maxDestLen, int compressionLevel);
+  static native int LZ4_compress_destSize(byte[] srcArray, ByteBuffer srcBuffer, int srcOff, int[] srcLenRef, byte[] destArray, ByteBuffer destBuffer, int destOff, int maxDestLen);
+  static native int LZ4_compressHC_destSize(byte[] srcArray, ByteBuffer srcBuffer, int srcOff, int[] srcLenRef, byte[] destArray, ByteBuffer destBuffer, int destOff, int maxDestLen, int compressionLevel);
   static native int LZ4_decompress_fast(byte[] srcArray, ByteBuffer srcBuffer, int srcOff, byte[] destArray, ByteBuffer destBuffer, int destOff, int destLen);
   static native int LZ4_decompress_safe(byte[] srcArray, ByteBuffer srcBuffer, int srcOff, int srcLen, byte[] destArray, ByteBuffer destBuffer, int destOff, int maxDestLen);
   static native int LZ4_compressBound(int len);
 
+  /**
+   * Whether the loaded library exports LZ4_compress_destSize and
+   * LZ4_compressHC_destSize. Libraries built before they were added don't,
+   * and the JNI compressors then use the Java implementations instead.
+   */
+  static final boolean DEST_SIZE = hasDestSize();
+
+  private static boolean hasDestSize() {
+    try {
+      LZ4_compress_destSize(new byte[1], null, 0, new int[] { 1 }, new byte[2], null, 0, 2);
+      LZ4_compressHC_destSize(new byte[1], null, 0, new int[] { 1 }, new byte[2], null, 0, 2, LZ4Constants.DEFAULT_COMPRESSION_LEVEL);
+      return true;
+    } catch (UnsatisfiedLinkError e) {
+      return false;
+    }
+  }
+
 }
 
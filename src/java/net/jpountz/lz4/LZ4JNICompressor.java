@@ -22,6 +22,9 @@ import static net.jpountz.util.SafeUtils.checkRange;
 
 import java.nio.ByteBuffer;
 
+import net.jpountz.util.JNIStaging;
+import net.jpountz.util.LZ4JavaMonitor;
+
 /**
  * Fast {@link LZ4FastCompressor}s implemented with JNI bindings to the original C
  * implementation of LZ4.
@@ -35,6 +38,9 @@ final class LZ4JNICompressor extends LZ4Compressor {
   public int compress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int maxDestLen) {
     checkRange(src, srcOff, srcLen);
     checkRange(dest, destOff, maxDestLen);
+    if (JNIStaging.exceedsCriticalLength(Math.max(srcLen, maxDestLen))) {
+      return compress(ByteBuffer.wrap(src), srcOff, srcLen, ByteBuffer.wrap(dest), destOff, maxDestLen);
+    }
     final int result = LZ4JNI.LZ4_compress_limitedOutput(src, null, srcOff, srcLen, dest, null, destOff, maxDestLen);
     if (result <= 0) {
       throw new LZ4Exception("maxDestLen is too small");
@@ -66,10 +72,30 @@ final class LZ4JNICompressor extends LZ4Compressor {
         destBuf = dest;
       }
 
+      // copy large arrays to and from direct memory rather than pinning them
+      if (srcArr != null && JNIStaging.exceedsCriticalLength(srcLen)) {
+        srcBuf = JNIStaging.stage(0, srcArr, srcOff, srcLen);
+        srcArr = null;
+        srcOff = 0;
+      }
+      byte[] unstagedDest = null;
+      int unstagedDestOff = 0;
+      if (destArr != null && JNIStaging.exceedsCriticalLength(maxDestLen)) {
+        unstagedDest = destArr;
+        unstagedDestOff = destOff;
+        maxDestLen = Math.min(maxDestLen, maxCompressedLength(srcLen));
+        destBuf = JNIStaging.stagingBuffer(1, maxDestLen);
+        destArr = null;
+        destOff = 0;
+      }
+
       final int result = LZ4JNI.LZ4_compress_limitedOutput(srcArr, srcBuf, srcOff, srcLen, destArr, destBuf, destOff, maxDestLen);
       if (result <= 0) {
         throw new LZ4Exception("maxDestLen is too small");
       }
+      if (unstagedDest != null) {
+        JNIStaging.unstage(destBuf, unstagedDest, unstagedDestOff, result);
+      }
       return result;
     } else {
       LZ4Compressor safeInstance = SAFE_INSTANCE;
@@ -79,4 +105,98 @@ final class LZ4JNICompressor extends LZ4Compressor {
       return safeInstance.compress(src, srcOff, srcLen, dest, destOff, maxDestLen);
     }
   }
+
+  private static LZ4Compressor safeInstance() {
+    LZ4Compressor safeInstance = SAFE_INSTANCE;
+    if (safeInstance == null) {
+      safeInstance = SAFE_INSTANCE = LZ4Factory.safeInstance().fastCompressor();
+    }
+    return safeInstance;
+  }
+
+  @Override
+  public int compressDestSize(byte[] src, int srcOff, int[] srcLenRef, byte[] dest, int destOff, int destCapacity) {
+    if (!LZ4JNI.DEST_SIZE) {
+      return safeInstance().compressDestSize(src, srcOff, srcLenRef, dest, destOff, destCapacity);
+    }
+    checkRange(src, srcOff, srcLenRef[0]);
+    checkRange(dest, destOff, destCapacity);
+    if (destCapacity == 0) {
+      srcLenRef[0] = 0;
+      return 0;
+    }
+    if (JNIStaging.exceedsCriticalLength(Math.max(srcLenRef[0], destCapacity))) {
+      return compressDestSize(ByteBuffer.wrap(src), srcOff, srcLenRef, ByteBuffer.wrap(dest), destOff, destCapacity);
+    }
+    final int result = LZ4JNI.LZ4_compress_destSize(src, null, srcOff, srcLenRef, dest, null, destOff, destCapacity);
+    if (result <= 0) {
+      throw new LZ4Exception();
+    }
+    return result;
+  }
+
+  @Override
+  public int compressDestSize(ByteBuffer src, int srcOff, int[] srcLenRef, ByteBuffer dest, int destOff, int destCapacity) {
+    if (!LZ4JNI.DEST_SIZE) {
+      return safeInstance().compressDestSize(src, srcOff, srcLenRef, dest, destOff, destCapacity);
+    }
+    checkNotReadOnly(dest);
+    checkRange(src, srcOff, srcLenRef[0]);
+    checkRange(dest, destOff, destCapacity);
+
+    if ((src.hasArray() || src.isDirect()) && (dest.hasArray() || dest.isDirect())) {
+      if (destCapacity == 0) {
+        srcLenRef[0] = 0;
+        return 0;
+      }
+      byte[] srcArr = null, destArr = null;
+      ByteBuffer srcBuf = null, destBuf = null;
+      if (src.hasArray()) {
+        srcArr = src.array();
+        srcOff += src.arrayOffset();
+      } else {
+        assert src.isDirect();
+        srcBuf = src;
+      }
+      if (dest.hasArray()) {
+        destArr = dest.array();
+        destOff += dest.arrayOffset();
+      } else {
+        assert dest.isDirect();
+        destBuf = dest;
+      }
+
+      // copy large arrays to and from direct memory rather than pinning them
+      if (srcArr != null && JNIStaging.exceedsCriticalLength(srcLenRef[0])) {
+        srcBuf = JNIStaging.stage(0, srcArr, srcOff, srcLenRef[0]);
+        srcArr = null;
+        srcOff = 0;
+      }
+      byte[] unstagedDest = null;
+      int unstagedDestOff = 0;
+      if (destArr != null && JNIStaging.exceedsCriticalLength(destCapacity)) {
+        unstagedDest = destArr;
+        unstagedDestOff = destOff;
+        destBuf = JNIStaging.stagingBuffer(1, destCapacity);
+        destArr = null;
+        destOff = 0;
+      }
+
+      final int result = LZ4JNI.LZ4_compress_destSize(srcArr, srcBuf, srcOff, srcLenRef, destArr, destBuf, destOff, destCapacity);
+      if (result <= 0) {
+        throw new LZ4Exception();
+      }
+      if (unstagedDest != null) {
+        JNIStaging.unstage(destBuf, unstagedDest, unstagedDestOff, result);
+      }
+      return result;
+    } else {
+      return safeInstance().compressDestSize(src, srcOff, srcLenRef, dest, destOff, destCapacity);
+    }
+  }
+
+  @Override
+  int implementation(int srcLen) {
+    return LZ4JavaMonitor.JNI;
+  }
 }
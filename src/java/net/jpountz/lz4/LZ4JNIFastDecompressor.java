@@ -20,6 +20,8 @@ package net.jpountz.lz4;
 import java.nio.ByteBuffer;
 
 import net.jpountz.util.ByteBufferUtils;
+import net.jpountz.util.JNIStaging;
+import net.jpountz.util.LZ4JavaMonitor;
 import net.jpountz.util.SafeUtils;
 
 
@@ -36,6 +38,9 @@ final class LZ4JNIFastDecompressor extends LZ4FastDecompressor {
   public final int decompress(byte[] src, int srcOff, byte[] dest, int destOff, int destLen) {
     SafeUtils.checkRange(src, srcOff);
     SafeUtils.checkRange(dest, destOff, destLen);
+    if (JNIStaging.exceedsCriticalLength(destLen)) {
+      return decompress(ByteBuffer.wrap(src), srcOff, ByteBuffer.wrap(dest), destOff, destLen);
+    }
     final int result = LZ4JNI.LZ4_decompress_fast(src, null, srcOff, dest, null, destOff, destLen);
     if (result < 0) {
       throw new LZ4Exception("Error decoding offset " + (srcOff - result) + " of input buffer");
@@ -67,10 +72,31 @@ final class LZ4JNIFastDecompressor extends LZ4FastDecompressor {
         destBuf = dest;
       }
 
-      final int result = LZ4JNI.LZ4_decompress_fast(srcArr, srcBuf, srcOff, destArr, destBuf, destOff, destLen);
+      // copy large arrays to and from direct memory rather than pinning them
+      int nativeSrcOff = srcOff;
+      if (srcArr != null && JNIStaging.exceedsCriticalLength(destLen)) {
+        // the compressed length is unknown, but bounded
+        srcBuf = JNIStaging.stage(0, srcArr, srcOff, Math.min(srcArr.length - srcOff, LZ4Utils.maxCompressedLength(destLen)));
+        srcArr = null;
+        nativeSrcOff = 0;
+      }
+      byte[] unstagedDest = null;
+      int unstagedDestOff = 0;
+      if (destArr != null && JNIStaging.exceedsCriticalLength(destLen)) {
+        unstagedDest = destArr;
+        unstagedDestOff = destOff;
+        destBuf = JNIStaging.stagingBuffer(1, destLen);
+        destArr = null;
+        destOff = 0;
+      }
+
+      final int result = LZ4JNI.LZ4_decompress_fast(srcArr, srcBuf, nativeSrcOff, destArr, destBuf, destOff, destLen);
       if (result < 0) {
         throw new LZ4Exception("Error decoding offset " + (srcOff - result) + " of input buffer");
       }
+      if (unstagedDest != null) {
+        JNIStaging.unstage(destBuf, unstagedDest, unstagedDestOff, destLen);
+      }
       return result;
     } else {
       LZ4FastDecompressor safeInstance = SAFE_INSTANCE;
@@ -81,4 +107,9 @@ final class LZ4JNIFastDecompressor extends LZ4FastDecompressor {
     }
   }
 
+  @Override
+  int implementation(int destLen) {
+    return LZ4JavaMonitor.JNI;
+  }
+
 }
@@ -20,6 +20,8 @@ package net.jpountz.lz4;
 import java.nio.ByteBuffer;
 
 import net.jpountz.util.ByteBufferUtils;
+import net.jpountz.util.JNIStaging;
+import net.jpountz.util.LZ4JavaMonitor;
 import net.jpountz.util.SafeUtils;
 
 /**
@@ -35,6 +37,9 @@ final class LZ4JNISafeDecompressor extends LZ4SafeDecompressor {
   public final int decompress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int maxDestLen) {
     SafeUtils.checkRange(src, srcOff, srcLen);
     SafeUtils.checkRange(dest, destOff, maxDestLen);
+    if (JNIStaging.exceedsCriticalLength(Math.max(srcLen, maxDestLen))) {
+      return decompress(ByteBuffer.wrap(src), srcOff, srcLen, ByteBuffer.wrap(dest), destOff, maxDestLen);
+    }
     final int result = LZ4JNI.LZ4_decompress_safe(src, null, srcOff, srcLen, dest, null, destOff, maxDestLen);
     if (result < 0) {
       throw new LZ4Exception("Error decoding offset " + (srcOff - result) + " of input buffer");
@@ -66,10 +71,30 @@ final class LZ4JNISafeDecompressor extends LZ4SafeDecompressor {
         destBuf = dest;
       }
 
-      final int result = LZ4JNI.LZ4_decompress_safe(srcArr, srcBuf, srcOff, srcLen, destArr, destBuf, destOff, maxDestLen);
+      // copy large arrays to and from direct memory rather than pinning them
+      int nativeSrcOff = srcOff;
+      if (srcArr != null && JNIStaging.exceedsCriticalLength(srcLen)) {
+        srcBuf = JNIStaging.stage(0, srcArr, srcOff, srcLen);
+        srcArr = null;
+        nativeSrcOff = 0;
+      }
+      byte[] unstagedDest = null;
+      int unstagedDestOff = 0;
+      if (destArr != null && JNIStaging.exceedsCriticalLength(maxDestLen)) {
+        unstagedDest = destArr;
+        unstagedDestOff = destOff;
+        destBuf = JNIStaging.stagingBuffer(1, maxDestLen);
+        destArr = null;
+        destOff = 0;
+      }
+
+      final int result = LZ4JNI.LZ4_decompress_safe(srcArr, srcBuf, nativeSrcOff, srcLen, destArr, destBuf, destOff, maxDestLen);
       if (result < 0) {
         throw new LZ4Exception("Error decoding offset " + (srcOff - result) + " of input buffer");
       }
+      if (unstagedDest != null) {
+        JNIStaging.unstage(destBuf, unstagedDest, unstagedDestOff, result);
+      }
       return result;
     } else {
       LZ4SafeDecompressor safeInstance = SAFE_INSTANCE;
@@ -80,4 +105,9 @@ final class LZ4JNISafeDecompressor extends LZ4SafeDecompressor {
     }
   }
 
+  @Override
+  int implementation(int srcLen) {
+    return LZ4JavaMonitor.JNI;
+  }
+
 }
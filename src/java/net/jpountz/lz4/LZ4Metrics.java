@@ -0,0 +1,303 @@
+package net.jpountz.lz4;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.ByteBuffer;
+
+/**
+ * Listener which is notified of the work performed by lz4-java. Metrics are
+ * disabled by default. Once a listener has been installed with
+ * {@link #setDefault(LZ4Metrics)}, streams which are created afterwards
+ * ({@link LZ4BlockOutputStream}, {@link LZ4BlockInputStream},
+ * {@link LZ4FrameOutputStream} and {@link LZ4FrameInputStream}) report to it,
+ * and compressors and decompressors report to it once wrapped with one of the
+ * <code>instrument</code> methods. When metrics are disabled, streams don't
+ * even read the clock.
+ * <p>
+ * All methods do nothing by default, so that subclasses only override what
+ * they need, for instance to forward to the counters and timers of a metrics
+ * library:
+ * <pre>
+ * LZ4Metrics.setDefault(new LZ4Metrics() {
+ *   &#64;Override
+ *   public void compressed(int srcLen, int destLen, long nanos) {
+ *     registry.counter("lz4.compress.bytes.in").increment(srcLen);
+ *     registry.counter("lz4.compress.bytes.out").increment(destLen);
+ *     registry.timer("lz4.compress").record(nanos, TimeUnit.NANOSECONDS);
+ *   }
+ * });
+ * </pre>
+ * {@link LZ4MetricsRecorder} aggregates everything in memory instead.
+ * Implementations must be thread-safe.
+ */
+public abstract class LZ4Metrics {
+
+  private static final LZ4Metrics DISABLED = new LZ4Metrics() {
+
+    @Override
+    public boolean isEnabled() {
+      return false;
+    }
+
+    @Override
+    public String toString() {
+      return "LZ4Metrics.disabled()";
+    }
+  };
+
+  private static volatile LZ4Metrics DEFAULT = DISABLED;
+
+  /**
+   * Returns a {@link LZ4Metrics} instance which ignores everything.
+   *
+   * @return the disabled {@link LZ4Metrics}
+   */
+  public static LZ4Metrics disabled() {
+    return DISABLED;
+  }
+
+  /**
+   * Returns the listener that new streams report to.
+   *
+   * @return the default {@link LZ4Metrics}, {@link #disabled()} unless
+   *         {@link #setDefault(LZ4Metrics)} has been called
+   */
+  public static LZ4Metrics getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Sets the listener that streams which are created from now on report to.
+   * Existing streams keep reporting to the previous listener.
+   *
+   * @param metrics the listener, or {@link #disabled()} to disable metrics
+   */
+  public static void setDefault(LZ4Metrics metrics) {
+    if (metrics == null) {
+      throw new NullPointerException("metrics");
+    }
+    DEFAULT = metrics;
+  }
+
+  // Returns the default listener, or null if disabled, so that streams only
+  // need a null check to skip reporting
+  static LZ4Metrics current() {
+    final LZ4Metrics metrics = DEFAULT;
+    return metrics.isEnabled() ? metrics : null;
+  }
+
+  /**
+   * Sole constructor, for subclasses.
+   */
+  protected LZ4Metrics() {}
+
+  /**
+   * Returns whether this listener records anything. Streams don't report to
+   * listeners which return false.
+   *
+   * @return true unless this is {@link #disabled()}
+   */
+  public boolean isEnabled() {
+    return true;
+  }
+
+  /**
+   * Called after <code>srcLen</code> bytes have been compressed into
+   * <code>destLen</code> bytes. <code>destLen</code> may be greater than
+   * <code>srcLen</code> if the data is incompressible.
+   *
+   * @param srcLen the number of uncompressed bytes
+   * @param destLen the number of compressed bytes
+   * @param nanos the time spent compressing, in nanoseconds
+   */
+  public void compressed(int srcLen, int destLen, long nanos) {}
+
+  /**
+   * Called after <code>srcLen</code> compressed bytes have been decompressed
+   * into <code>destLen</code> bytes.
+   *
+   * @param srcLen the number of compressed bytes
+   * @param destLen the number of decompressed bytes
+   * @param nanos the time spent decompressing, in nanoseconds
+   */
+  public void decompressed(int srcLen, int destLen, long nanos) {}
+
+  /**
+   * Called after a stream has hashed <code>len</code> bytes to compute or
+   * verify a checksum.
+   *
+   * @param len the number of hashed bytes
+   * @param nanos the time spent hashing, in nanoseconds
+   */
+  public void hashed(int len, long nanos) {}
+
+  /**
+   * Called when a stream stores a block of <code>len</code> bytes
+   * uncompressed because compression didn't make it smaller, or because
+   * compression was skipped.
+   *
+   * @param len the size of the block
+   */
+  public void incompressibleBlock(int len) {}
+
+  /**
+   * Called when a stream replaces one of its buffers with a larger one.
+   *
+   * @param oldLength the length of the previous buffer
+   * @param newLength the length of the new buffer
+   */
+  public void bufferReallocated(int oldLength, int newLength) {}
+
+  /**
+   * Returns a compressor which reports every call to <code>compressor</code>
+   * to this listener.
+   *
+   * @param compressor the compressor to instrument
+   * @return an instrumented {@link LZ4Compressor}
+   */
+  public LZ4Compressor instrument(final LZ4Compressor compressor) {
+    final LZ4Metrics metrics = this;
+    return new LZ4Compressor() {
+
+      @Override
+      public int compress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int maxDestLen) {
+        final long start = System.nanoTime();
+        final int result = compressor.compress(src, srcOff, srcLen, dest, destOff, maxDestLen);
+        metrics.compressed(srcLen, result, System.nanoTime() - start);
+        return result;
+      }
+
+      @Override
+      public int compress(ByteBuffer src, int srcOff, int srcLen, ByteBuffer dest, int destOff, int maxDestLen) {
+        final long start = System.nanoTime();
+        final int result = compressor.compress(src, srcOff, srcLen, dest, destOff, maxDestLen);
+        metrics.compressed(srcLen, result, System.nanoTime() - start);
+        return result;
+      }
+
+      @Override
+      public int compressDestSize(byte[] src, int srcOff, int[] srcLenRef, byte[] dest, int destOff, int destCapacity) {
+        final long start = System.nanoTime();
+        final int result = compressor.compressDestSize(src, srcOff, srcLenRef, dest, destOff, destCapacity);
+        metrics.compressed(srcLenRef[0], result, System.nanoTime() - start);
+        return result;
+      }
+
+      @Override
+      public int compressDestSize(ByteBuffer src, int srcOff, int[] srcLenRef, ByteBuffer dest, int destOff, int destCapacity) {
+        final long start = System.nanoTime();
+        final int result = compressor.compressDestSize(src, srcOff, srcLenRef, dest, destOff, destCapacity);
+        metrics.compressed(srcLenRef[0], result, System.nanoTime() - start);
+        return result;
+      }
+
+      @Override
+      int compressionLevel() {
+        return compressor.compressionLevel();
+      }
+
+      @Override
+      int implementation(int srcLen) {
+        return compressor.implementation(srcLen);
+      }
+
+      @Override
+      public String toString() {
+        return compressor.toString();
+      }
+    };
+  }
+
+  /**
+   * Returns a decompressor which reports every call to
+   * <code>decompressor</code> to this listener.
+   *
+   * @param decompressor the decompressor to instrument
+   * @return an instrumented {@link LZ4SafeDecompressor}
+   */
+  public LZ4SafeDecompressor instrument(final LZ4SafeDecompressor decompressor) {
+    final LZ4Metrics metrics = this;
+    return new LZ4SafeDecompressor() {
+
+      @Override
+      public int decompress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int maxDestLen) {
+        final long start = System.nanoTime();
+        final int result = decompressor.decompress(src, srcOff, srcLen, dest, destOff, maxDestLen);
+        metrics.decompressed(srcLen, result, System.nanoTime() - start);
+        return result;
+      }
+
+      @Override
+      public int decompress(ByteBuffer src, int srcOff, int srcLen, ByteBuffer dest, int destOff, int maxDestLen) {
+        final long start = System.nanoTime();
+        final int result = decompressor.decompress(src, srcOff, srcLen, dest, destOff, maxDestLen);
+        metrics.decompressed(srcLen, result, System.nanoTime() - start);
+        return result;
+      }
+
+      @Override
+      int implementation(int len) {
+        return decompressor.implementation(len);
+      }
+
+      @Override
+      public String toString() {
+        return decompressor.toString();
+      }
+    };
+  }
+
+  /**
+   * Returns a decompressor which reports every call to
+   * <code>decompressor</code> to this listener.
+   *
+   * @param decompressor the decompressor to instrument
+   * @return an instrumented {@link LZ4FastDecompressor}
+   */
+  public LZ4FastDecompressor instrument(final LZ4FastDecompressor decompressor) {
+    final LZ4Metrics metrics = this;
+    return new LZ4FastDecompressor() {
+
+      @Override
+      public int decompress(byte[] src, int srcOff, byte[] dest, int destOff, int destLen) {
+        final long start = System.nanoTime();
+        final int result = decompressor.decompress(src, srcOff, dest, destOff, destLen);
+        metrics.decompressed(result, destLen, System.nanoTime() - start);
+        return result;
+      }
+
+      @Override
+      public int decompress(ByteBuffer src, int srcOff, ByteBuffer dest, int destOff, int destLen) {
+        final long start = System.nanoTime();
+        final int result = decompressor.decompress(src, srcOff, dest, destOff, destLen);
+        metrics.decompressed(result, destLen, System.nanoTime() - start);
+        return result;
+      }
+
+      @Override
+      int implementation(int len) {
+        return decompressor.implementation(len);
+      }
+
+      @Override
+      public String toString() {
+        return decompressor.toString();
+      }
+    };
+  }
+
+}
@@ -0,0 +1,240 @@
+package net.jpountz.lz4;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@link LZ4Metrics} which aggregates what it is notified of into counters,
+ * and a histogram of compression ratios. Counters can be read individually or
+ * all at once with {@link #toMap()}, whose keys follow the dotted naming
+ * convention of metrics libraries, so that they can be exported as gauges or
+ * function counters.
+ */
+public final class LZ4MetricsRecorder extends LZ4Metrics {
+
+  private static final double[] RATIO_BUCKET_UPPER_BOUNDS = { 1, 1.25, 1.5, 2, 3, 4, 8 };
+
+  private final AtomicLong compressCount = new AtomicLong();
+  private final AtomicLong compressBytesIn = new AtomicLong();
+  private final AtomicLong compressBytesOut = new AtomicLong();
+  private final AtomicLong compressNanos = new AtomicLong();
+  private final AtomicLong decompressCount = new AtomicLong();
+  private final AtomicLong decompressBytesIn = new AtomicLong();
+  private final AtomicLong decompressBytesOut = new AtomicLong();
+  private final AtomicLong decompressNanos = new AtomicLong();
+  private final AtomicLong hashBytes = new AtomicLong();
+  private final AtomicLong hashNanos = new AtomicLong();
+  private final AtomicLong incompressibleBlocks = new AtomicLong();
+  private final AtomicLong bufferReallocations = new AtomicLong();
+  private final AtomicLongArray ratioHistogram = new AtomicLongArray(RATIO_BUCKET_UPPER_BOUNDS.length + 1);
+
+  @Override
+  public void compressed(int srcLen, int destLen, long nanos) {
+    compressCount.incrementAndGet();
+    compressBytesIn.addAndGet(srcLen);
+    compressBytesOut.addAndGet(destLen);
+    compressNanos.addAndGet(nanos);
+    if (destLen > 0) {
+      ratioHistogram.incrementAndGet(ratioBucket((double) srcLen / destLen));
+    }
+  }
+
+  static int ratioBucket(double ratio) {
+    int bucket = 0;
+    while (bucket < RATIO_BUCKET_UPPER_BOUNDS.length && ratio >= RATIO_BUCKET_UPPER_BOUNDS[bucket]) {
+      ++bucket;
+    }
+    return bucket;
+  }
+
+  @Override
+  public void decompressed(int srcLen, int destLen, long nanos) {
+    decompressCount.incrementAndGet();
+    decompressBytesIn.addAndGet(srcLen);
+    decompressBytesOut.addAndGet(destLen);
+    decompressNanos.addAndGet(nanos);
+  }
+
+  @Override
+  public void hashed(int len, long nanos) {
+    hashBytes.addAndGet(len);
+    hashNanos.addAndGet(nanos);
+  }
+
+  @Override
+  public void incompressibleBlock(int len) {
+    incompressibleBlocks.incrementAndGet();
+  }
+
+  @Override
+  public void bufferReallocated(int oldLength, int newLength) {
+    bufferReallocations.incrementAndGet();
+  }
+
+  /**
+   * Returns the upper bounds, exclusive, of the buckets of the compression
+   * ratio histogram. There is one more bucket for larger ratios. The ratio of
+   * a compression is its uncompressed size divided by its compressed size, so
+   * the first bucket counts compressions which didn't save any space.
+   *
+   * @return a new array of increasing bounds
+   */
+  public static double[] getRatioBucketUpperBounds() {
+    return RATIO_BUCKET_UPPER_BOUNDS.clone();
+  }
+
+  /**
+   * @return the number of compressions
+   */
+  public long getCompressCount() {
+    return compressCount.get();
+  }
+
+  /**
+   * @return the number of bytes which have been compressed
+   */
+  public long getCompressBytesIn() {
+    return compressBytesIn.get();
+  }
+
+  /**
+   * @return the number of bytes which compressions produced
+   */
+  public long getCompressBytesOut() {
+    return compressBytesOut.get();
+  }
+
+  /**
+   * @return the time spent compressing, in nanoseconds
+   */
+  public long getCompressNanos() {
+    return compressNanos.get();
+  }
+
+  /**
+   * @return the number of decompressions
+   */
+  public long getDecompressCount() {
+    return decompressCount.get();
+  }
+
+  /**
+   * @return the number of compressed bytes which have been decompressed
+   */
+  public long getDecompressBytesIn() {
+    return decompressBytesIn.get();
+  }
+
+  /**
+   * @return the number of bytes which decompressions produced
+   */
+  public long getDecompressBytesOut() {
+    return decompressBytesOut.get();
+  }
+
+  /**
+   * @return the time spent decompressing, in nanoseconds
+   */
+  public long getDecompressNanos() {
+    return decompressNanos.get();
+  }
+
+  /**
+   * @return the number of bytes which streams hashed
+   */
+  public long getHashBytes() {
+    return hashBytes.get();
+  }
+
+  /**
+   * @return the time streams spent hashing, in nanoseconds
+   */
+  public long getHashNanos() {
+    return hashNanos.get();
+  }
+
+  /**
+   * @return the number of blocks which streams stored uncompressed
+   */
+  public long getIncompressibleBlocks() {
+    return incompressibleBlocks.get();
+  }
+
+  /**
+   * @return the number of times streams replaced a buffer with a larger one
+   */
+  public long getBufferReallocations() {
+    return bufferReallocations.get();
+  }
+
+  /**
+   * Returns the number of compressions per ratio bucket, see
+   * {@link #getRatioBucketUpperBounds()}.
+   *
+   * @return a new array with one count per bucket
+   */
+  public long[] getRatioHistogram() {
+    final long[] histogram = new long[ratioHistogram.length()];
+    for (int i = 0; i < histogram.length; ++i) {
+      histogram[i] = ratioHistogram.get(i);
+    }
+    return histogram;
+  }
+
+  /**
+   * Returns all counters, keyed by names such as
+   * <code>lz4.compress.bytes.in</code>. The counts of the ratio histogram are
+   * keyed by the upper bound of their bucket, such as
+   * <code>lz4.compress.ratio.lt.2.00</code>, and by
+   * <code>lz4.compress.ratio.lt.inf</code> for the last bucket.
+   *
+   * @return a new map of counter names to their current values
+   */
+  public Map<String, Long> toMap() {
+    final Map<String, Long> map = new LinkedHashMap<String, Long>();
+    map.put("lz4.compress.count", getCompressCount());
+    map.put("lz4.compress.bytes.in", getCompressBytesIn());
+    map.put("lz4.compress.bytes.out", getCompressBytesOut());
+    map.put("lz4.compress.nanos", getCompressNanos());
+    map.put("lz4.decompress.count", getDecompressCount());
+    map.put("lz4.decompress.bytes.in", getDecompressBytesIn());
+    map.put("lz4.decompress.bytes.out", getDecompressBytesOut());
+    map.put("lz4.decompress.nanos", getDecompressNanos());
+    map.put("lz4.hash.bytes", getHashBytes());
+    map.put("lz4.hash.nanos", getHashNanos());
+    map.put("lz4.blocks.incompressible", getIncompressibleBlocks());
+    map.put("lz4.buffers.reallocated", getBufferReallocations());
+    final long[] histogram = getRatioHistogram();
+    for (int i = 0; i < histogram.length; ++i) {
+      final String bound = i < RATIO_BUCKET_UPPER_BOUNDS.length
+          ? String.format(Locale.ROOT, "%.2f", RATIO_BUCKET_UPPER_BOUNDS[i]) : "inf";
+      map.put("lz4.compress.ratio.lt." + bound, histogram[i]);
+    }
+    return map;
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + toMap();
+  }
+
+}
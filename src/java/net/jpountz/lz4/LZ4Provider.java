@@ -0,0 +1,92 @@
+package net.jpountz.lz4;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static net.jpountz.lz4.LZ4Constants.MEMORY_USAGE;
+
+import net.jpountz.util.Native;
+
+/**
+ * Provides the compressors and decompressors of an implementation to
+ * {@link LZ4Factory} without reflecting on their fields and constructors.
+ * The Java implementations are generated, and compiled after this class, so
+ * their providers are looked up by constant class names, which ahead-of-time
+ * compilers such as GraalVM native-image resolve statically.
+ */
+abstract class LZ4Provider {
+
+  static LZ4Provider forName(String impl) throws ClassNotFoundException, InstantiationException, IllegalAccessException {
+    switch (impl) {
+    case "JNI":
+      // fail now rather than on first use if the library can't be loaded
+      Native.load();
+      return new LZ4Provider() {
+
+        @Override
+        LZ4Compressor fastCompressor() {
+          return LZ4JNICompressor.INSTANCE;
+        }
+
+        @Override
+        LZ4Compressor fastCompressor(int memoryUsage) {
+          // the size of the hash table of the C library is set at build time
+          return memoryUsage == MEMORY_USAGE ? LZ4JNICompressor.INSTANCE : LZ4Factory.fastestJavaInstance().fastCompressor(memoryUsage);
+        }
+
+        @Override
+        LZ4Compressor highCompressor() {
+          return LZ4HCJNICompressor.INSTANCE;
+        }
+
+        @Override
+        LZ4Compressor highCompressor(int compressionLevel) {
+          return new LZ4HCJNICompressor(compressionLevel);
+        }
+
+        @Override
+        LZ4FastDecompressor fastDecompressor() {
+          return LZ4JNIFastDecompressor.INSTANCE;
+        }
+
+        @Override
+        LZ4SafeDecompressor safeDecompressor() {
+          return LZ4JNISafeDecompressor.INSTANCE;
+        }
+      };
+    case "JavaSafe":
+      return (LZ4Provider) Class.forName("net.jpountz.lz4.LZ4JavaSafeProvider").newInstance();
+    case "JavaUnsafe":
+      return (LZ4Provider) Class.forName("net.jpountz.lz4.LZ4JavaUnsafeProvider").newInstance();
+    default:
+      throw new IllegalArgumentException(impl);
+    }
+  }
+
+  abstract LZ4Compressor fastCompressor();
+
+  abstract LZ4Compressor fastCompressor(int memoryUsage);
+
+  // the high compressor with the default compression level
+  abstract LZ4Compressor highCompressor();
+
+  abstract LZ4Compressor highCompressor(int compressionLevel);
+
+  abstract LZ4FastDecompressor fastDecompressor();
+
+  abstract LZ4SafeDecompressor safeDecompressor();
+
+}
@@ -19,6 +19,8 @@ package net.jpountz.lz4;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 
+import net.jpountz.util.LZ4JavaMonitor;
+
 /**
  * LZ4 decompressor that requires the size of the compressed data to be known.
  * <p>
@@ -150,6 +152,12 @@ public abstract class LZ4SafeDecompressor implements LZ4UnknownSizeDecompressor
     dest.position(dest.position() + decompressed);
   }
 
+  // The implementation which decompresses blocks of srcLen compressed bytes,
+  // one of the implementation constants of LZ4JavaMonitor, for diagnostics
+  int implementation(int srcLen) {
+    return LZ4JavaMonitor.UNKNOWN;
+  }
+
   @Override
   public String toString() {
     return getClass().getSimpleName();
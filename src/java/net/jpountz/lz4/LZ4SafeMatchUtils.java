@@ -0,0 +1,45 @@
+package net.jpountz.lz4;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Match counting and copies of overlapping matches of the safe
+ * implementation. The JAR ships another version of this class for Java 9 and
+ * later, under <code>META-INF/versions/9</code>, which relies on intrinsics
+ * instead of comparing and copying one byte at a time.
+ */
+enum LZ4SafeMatchUtils {
+  ;
+
+  // the number of equal bytes from b[o1] and b[o2], without reading b[limit]
+  static int commonBytes(byte[] b, int o1, int o2, int limit) {
+    int count = 0;
+    while (o2 < limit && b[o1++] == b[o2++]) {
+      ++count;
+    }
+    return count;
+  }
+
+  // copies dest[matchOff:matchOff+matchLen] to dOff one byte after the other,
+  // so that matches which overlap their destination repeat their first bytes
+  static void incrementalCopy(byte[] dest, int matchOff, int dOff, int matchLen) {
+    for (int i = 0; i < matchLen; ++i) {
+      dest[dOff + i] = dest[matchOff + i];
+    }
+  }
+
+}
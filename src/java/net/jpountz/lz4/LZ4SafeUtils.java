@@ -38,9 +38,7 @@ enum LZ4SafeUtils {
   }
 
   static void safeIncrementalCopy(byte[] dest, int matchOff, int dOff, int matchLen) {
-    for (int i = 0; i < matchLen; ++i) {
-      dest[dOff + i] = dest[matchOff + i];
-    }
+    LZ4SafeMatchUtils.incrementalCopy(dest, matchOff, dOff, matchLen);
   }
 
   static void wildIncrementalCopy(byte[] dest, int matchOff, int dOff, int matchCopyEnd) {
@@ -58,11 +56,7 @@ enum LZ4SafeUtils {
   }
 
   static int commonBytes(byte[] b, int o1, int o2, int limit) {
-    int count = 0;
-    while (o2 < limit && b[o1++] == b[o2++]) {
-      ++count;
-    }
-    return count;
+    return LZ4SafeMatchUtils.commonBytes(b, o1, o2, limit);
   }
 
   static int commonBytesBackward(byte[] b, int o1, int o2, int l1, int l2) {
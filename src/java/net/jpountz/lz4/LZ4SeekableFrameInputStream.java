@@ -0,0 +1,342 @@
+package net.jpountz.lz4;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static net.jpountz.lz4.LZ4FrameInputStream.BLOCK_HASH_MISMATCH;
+import static net.jpountz.lz4.LZ4FrameInputStream.DESCRIPTOR_HASH_MISMATCH;
+import static net.jpountz.lz4.LZ4FrameInputStream.NOT_SUPPORTED;
+import static net.jpountz.lz4.LZ4FrameInputStream.PREMATURE_EOS;
+import static net.jpountz.lz4.LZ4FrameOutputStream.BLOCK_INDEX_FOOTER_LENGTH;
+import static net.jpountz.lz4.LZ4FrameOutputStream.BLOCK_INDEX_FOOTER_MAGIC;
+import static net.jpountz.lz4.LZ4FrameOutputStream.BLOCK_INDEX_MAGIC;
+import static net.jpountz.lz4.LZ4FrameOutputStream.INTEGER_BYTES;
+import static net.jpountz.lz4.LZ4FrameOutputStream.LONG_BYTES;
+import static net.jpountz.lz4.LZ4FrameOutputStream.LZ4_FRAME_INCOMPRESSIBLE_MASK;
+import static net.jpountz.lz4.LZ4FrameOutputStream.MAGIC;
+
+import net.jpountz.util.SafeUtils;
+import net.jpountz.xxhash.XXHash32;
+import net.jpountz.xxhash.XXHashFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
+
+/**
+ * {@link InputStream} which decompresses a frame written by
+ * {@link LZ4FrameOutputStream} with a block index, and which can
+ * {@link #seek(long) seek} to any uncompressed offset by decompressing a
+ * single block. The index is located from the end of the channel, so the
+ * indexed frame must be the last one of the channel. This class is NOT thread
+ * safe.
+ * <pre>
+ * try (FileChannel channel = FileChannel.open(path);
+ *      LZ4SeekableFrameInputStream in = new LZ4SeekableFrameInputStream(channel)) {
+ *   in.seek(offset);
+ *   in.read(bytes);
+ * }
+ * </pre>
+ * Only blocks which are read are verified against their block checksum, if
+ * any. The content checksum is never verified.
+ *
+ * @see LZ4FrameOutputStream#LZ4FrameOutputStream(java.io.OutputStream, LZ4FrameOutputStream.BLOCKSIZE, long, LZ4Compressor, XXHash32, boolean, LZ4FrameOutputStream.FLG.Bits...)
+ */
+public class LZ4SeekableFrameInputStream extends InputStream {
+
+  static final String INDEX_CORRUPTED = "Block index corrupted";
+
+  private final SeekableByteChannel channel;
+  private final LZ4SafeDecompressor decompressor;
+  private final XXHash32 checksum;
+  private final boolean blockChecksum;
+  private final int maxBlockSize;
+  // offsets of blocks in the channel and in the uncompressed data, with an
+  // additional entry which marks the end of the last block
+  private final long[] blockOffsets;
+  private final long[] offsets;
+  private final byte[] compressedBuffer;
+  private final byte[] buffer;
+  private int block = -1; // block currently in buffer
+  private long position;
+  private boolean closed;
+
+  /**
+   * Creates a new {@link InputStream} that will decompress data using fastest instances of {@link LZ4SafeDecompressor} and {@link XXHash32}.
+   *
+   * @param channel the channel to read the frame and its index from
+   * @throws IOException if an I/O error occurs or if the channel does not end with an indexed frame
+   *
+   * @see #LZ4SeekableFrameInputStream(SeekableByteChannel, LZ4SafeDecompressor, XXHash32)
+   */
+  public LZ4SeekableFrameInputStream(SeekableByteChannel channel) throws IOException {
+    this(channel, LZ4Factory.fastestInstance().safeDecompressor(), XXHashFactory.fastestInstance().hash32());
+  }
+
+  /**
+   * Creates a new {@link InputStream} that will decompress data using the LZ4 algorithm.
+   *
+   * @param channel the channel to read the frame and its index from
+   * @param decompressor the decompressor to use
+   * @param checksum the hash function to use
+   * @throws IOException if an I/O error occurs or if the channel does not end with an indexed frame
+   */
+  public LZ4SeekableFrameInputStream(SeekableByteChannel channel, LZ4SafeDecompressor decompressor, XXHash32 checksum) throws IOException {
+    this.channel = channel;
+    this.decompressor = decompressor;
+    this.checksum = checksum;
+
+    // footer
+    final long channelSize = channel.size();
+    if (channelSize < 2 * INTEGER_BYTES + BLOCK_INDEX_FOOTER_LENGTH) {
+      throw new IOException(INDEX_CORRUPTED);
+    }
+    final ByteBuffer footer = read(channelSize - BLOCK_INDEX_FOOTER_LENGTH, BLOCK_INDEX_FOOTER_LENGTH);
+    final long frameLength = footer.getLong();
+    final int blockCount = footer.getInt();
+    if (footer.getInt() != BLOCK_INDEX_FOOTER_MAGIC) {
+      throw new IOException(INDEX_CORRUPTED);
+    }
+    final long indexLength = 2L * INTEGER_BYTES * blockCount + BLOCK_INDEX_FOOTER_LENGTH;
+    final long indexOffset = channelSize - 2 * INTEGER_BYTES - indexLength;
+    final long frameOffset = indexOffset - frameLength;
+    if (blockCount < 0 || blockCount > (Integer.MAX_VALUE - BLOCK_INDEX_FOOTER_LENGTH) / (2 * INTEGER_BYTES) - 1
+        || indexOffset < 0 || frameLength < 0 || frameOffset < 0) {
+      throw new IOException(INDEX_CORRUPTED);
+    }
+    final ByteBuffer index = read(indexOffset, (int) (channelSize - BLOCK_INDEX_FOOTER_LENGTH - indexOffset));
+    if (index.getInt() != BLOCK_INDEX_MAGIC || index.getInt() != indexLength) {
+      throw new IOException(INDEX_CORRUPTED);
+    }
+
+    // frame descriptor
+    final ByteBuffer header = read(frameOffset, (int) Math.min(frameLength, LZ4FrameOutputStream.LZ4_MAX_HEADER_LENGTH));
+    if (header.remaining() < INTEGER_BYTES + 3 || header.getInt() != MAGIC) {
+      throw new IOException(NOT_SUPPORTED);
+    }
+    final LZ4FrameOutputStream.FLG flg = LZ4FrameOutputStream.FLG.fromByte(header.get());
+    final LZ4FrameOutputStream.BD bd = LZ4FrameOutputStream.BD.fromByte(header.get());
+    if (flg.isEnabled(LZ4FrameOutputStream.FLG.Bits.CONTENT_SIZE)) {
+      if (header.remaining() < LONG_BYTES + 1) {
+        throw new IOException(PREMATURE_EOS);
+      }
+      header.getLong();
+    }
+    final int hash = (checksum.hash(header.array(), INTEGER_BYTES, header.position() - INTEGER_BYTES, 0) >> 8) & 0xFF;
+    if (hash != (header.get() & 0xFF)) {
+      throw new IOException(DESCRIPTOR_HASH_MISMATCH);
+    }
+    blockChecksum = flg.isEnabled(LZ4FrameOutputStream.FLG.Bits.BLOCK_CHECKSUM);
+    maxBlockSize = bd.getBlockMaximumSize();
+
+    // block offsets
+    final int minBlockLength = INTEGER_BYTES + 1 + (blockChecksum ? INTEGER_BYTES : 0);
+    final int maxBlockLength = INTEGER_BYTES + maxBlockSize + (blockChecksum ? INTEGER_BYTES : 0);
+    blockOffsets = new long[blockCount + 1];
+    offsets = new long[blockCount + 1];
+    blockOffsets[0] = frameOffset + header.position();
+    for (int i = 0; i < blockCount; ++i) {
+      final int blockLength = index.getInt();
+      final int blockSize = index.getInt();
+      if (blockLength < minBlockLength || blockLength > maxBlockLength || blockSize <= 0 || blockSize > maxBlockSize) {
+        throw new IOException(INDEX_CORRUPTED);
+      }
+      blockOffsets[i + 1] = blockOffsets[i] + blockLength;
+      offsets[i + 1] = offsets[i] + blockSize;
+    }
+    final int endMarkLength = INTEGER_BYTES
+        + (flg.isEnabled(LZ4FrameOutputStream.FLG.Bits.CONTENT_CHECKSUM) ? INTEGER_BYTES : 0);
+    if (blockOffsets[blockCount] + endMarkLength != indexOffset) {
+      throw new IOException(INDEX_CORRUPTED);
+    }
+
+    compressedBuffer = new byte[maxBlockLength];
+    buffer = new byte[maxBlockSize];
+  }
+
+  // Reads channel[offset:offset+len] into a new little-endian buffer.
+  private ByteBuffer read(long offset, int len) throws IOException {
+    final ByteBuffer bytes = ByteBuffer.allocate(len).order(ByteOrder.LITTLE_ENDIAN);
+    readFully(offset, bytes);
+    bytes.flip();
+    return bytes;
+  }
+
+  private void readFully(long offset, ByteBuffer bytes) throws IOException {
+    channel.position(offset);
+    while (bytes.hasRemaining()) {
+      if (channel.read(bytes) < 0) {
+        throw new IOException(PREMATURE_EOS);
+      }
+    }
+  }
+
+  /**
+   * Returns the number of bytes of uncompressed data.
+   *
+   * @return the uncompressed length
+   */
+  public long length() {
+    return offsets[offsets.length - 1];
+  }
+
+  /**
+   * Returns the offset in the uncompressed data of the next byte to read.
+   *
+   * @return the current position
+   */
+  public long position() {
+    return position;
+  }
+
+  /**
+   * Sets the offset in the uncompressed data of the next byte to read. Only
+   * the block which contains this offset will be decompressed on the next
+   * read. Seeking beyond the end of the data is allowed, reads will then
+   * signal the end of the stream.
+   *
+   * @param position the new position
+   * @throws IOException if the stream is closed
+   */
+  public void seek(long position) throws IOException {
+    ensureOpen();
+    if (position < 0) {
+      throw new IllegalArgumentException("position must be >= 0, got " + position);
+    }
+    this.position = position;
+  }
+
+  // Loads the block which contains the current position, returns false if the
+  // position is at or beyond the end of the data.
+  private boolean ensureBlock() throws IOException {
+    ensureOpen();
+    if (position >= length()) {
+      return false;
+    }
+    if (block >= 0 && position >= offsets[block] && position < offsets[block + 1]) {
+      return true;
+    }
+    int i = Arrays.binarySearch(offsets, position);
+    if (i < 0) {
+      i = -2 - i;
+    }
+    readBlock(i);
+    return true;
+  }
+
+  private void readBlock(int i) throws IOException {
+    block = -1;
+    final int blockLength = (int) (blockOffsets[i + 1] - blockOffsets[i]);
+    final int expectedSize = (int) (offsets[i + 1] - offsets[i]);
+    final ByteBuffer compressed = ByteBuffer.wrap(compressedBuffer, 0, blockLength).order(ByteOrder.LITTLE_ENDIAN);
+    readFully(blockOffsets[i], compressed);
+
+    final int sizeAndFlag = SafeUtils.readIntLE(compressedBuffer, 0);
+    final int blockSize = sizeAndFlag & ~LZ4_FRAME_INCOMPRESSIBLE_MASK;
+    if (INTEGER_BYTES + blockSize + (blockChecksum ? INTEGER_BYTES : 0) != blockLength) {
+      throw new IOException(INDEX_CORRUPTED);
+    }
+    if (blockChecksum
+        && SafeUtils.readIntLE(compressedBuffer, INTEGER_BYTES + blockSize) != checksum.hash(compressedBuffer, INTEGER_BYTES, blockSize, 0)) {
+      throw new IOException(BLOCK_HASH_MISMATCH);
+    }
+    final int size;
+    if ((sizeAndFlag & LZ4_FRAME_INCOMPRESSIBLE_MASK) != 0) {
+      System.arraycopy(compressedBuffer, INTEGER_BYTES, buffer, 0, blockSize);
+      size = blockSize;
+    } else {
+      try {
+        size = decompressor.decompress(compressedBuffer, INTEGER_BYTES, blockSize, buffer, 0, maxBlockSize);
+      } catch (LZ4Exception e) {
+        throw new IOException(e);
+      }
+    }
+    if (size != expectedSize) {
+      throw new IOException(INDEX_CORRUPTED);
+    }
+    block = i;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!ensureBlock()) {
+      return -1;
+    }
+    return buffer[(int) (position++ - offsets[block])] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    SafeUtils.checkRange(b, off, len);
+    if (len == 0) {
+      return 0;
+    }
+    if (!ensureBlock()) {
+      return -1;
+    }
+    final int o = (int) (position - offsets[block]);
+    len = (int) Math.min(len, offsets[block + 1] - position);
+    System.arraycopy(buffer, o, b, off, len);
+    position += len;
+    return len;
+  }
+
+  /**
+   * Skips over <code>n</code> bytes of uncompressed data without
+   * decompressing them.
+   */
+  @Override
+  public long skip(long n) throws IOException {
+    ensureOpen();
+    if (n <= 0 || position >= length()) {
+      return 0;
+    }
+    n = Math.min(n, length() - position);
+    position += n;
+    return n;
+  }
+
+  @Override
+  public int available() throws IOException {
+    ensureOpen();
+    if (block >= 0 && position >= offsets[block] && position < offsets[block + 1]) {
+      return (int) (offsets[block + 1] - position);
+    }
+    return 0;
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (!closed) {
+      closed = true;
+      channel.close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "(channel=" + channel + ", decompressor=" + decompressor + ", checksum=" + checksum + ")";
+  }
+}
@@ -0,0 +1,169 @@
+package net.jpountz.lz4;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import net.jpountz.util.FlightRecorderEvents;
+import net.jpountz.util.LZ4JavaMonitor;
+
+/**
+ * Reports the blocks that a stream processes to {@link LZ4Metrics}, Java
+ * Flight Recorder and {@link LZ4JavaMonitor}. What is enabled is resolved
+ * once, when the stream is created, and the factory methods return null if
+ * nothing is, so that the per-block code paths of streams only pay for a null
+ * check when instrumentation is disabled.
+ * <p>
+ * Instances are not thread-safe, like the streams which use them.
+ */
+final class LZ4StreamInstrumentation {
+
+  static LZ4StreamInstrumentation forCompression(String source, LZ4Compressor compressor) {
+    final FlightRecorderEvents events = FlightRecorderEvents.INSTANCE;
+    return create(source, compressor, null, null, compressor.compressionLevel(),
+        events != null && events.isCompressionEnabled() ? events : null);
+  }
+
+  static LZ4StreamInstrumentation forDecompression(String source, LZ4FastDecompressor decompressor) {
+    final FlightRecorderEvents events = FlightRecorderEvents.INSTANCE;
+    return create(source, null, decompressor, null, 0,
+        events != null && events.isDecompressionEnabled() ? events : null);
+  }
+
+  static LZ4StreamInstrumentation forDecompression(String source, LZ4SafeDecompressor decompressor) {
+    final FlightRecorderEvents events = FlightRecorderEvents.INSTANCE;
+    return create(source, null, null, decompressor, 0,
+        events != null && events.isDecompressionEnabled() ? events : null);
+  }
+
+  private static LZ4StreamInstrumentation create(String source, LZ4Compressor compressor,
+      LZ4FastDecompressor fastDecompressor, LZ4SafeDecompressor safeDecompressor, int level,
+      FlightRecorderEvents events) {
+    final LZ4Metrics metrics = LZ4Metrics.current();
+    final boolean count = LZ4JavaMonitor.isRegistered();
+    if (metrics == null && events == null && !count) {
+      return null;
+    }
+    return new LZ4StreamInstrumentation(source, compressor, fastDecompressor, safeDecompressor, level,
+        metrics, events, count);
+  }
+
+  private final String source;
+  // exactly one of the codecs is not null
+  private final LZ4Compressor compressor;
+  private final LZ4FastDecompressor fastDecompressor;
+  private final LZ4SafeDecompressor safeDecompressor;
+  private final int level;
+  private final LZ4Metrics metrics; // null if disabled
+  private final FlightRecorderEvents events; // null if disabled
+  private final boolean count;
+  private long start;
+  private Object event;
+
+  private LZ4StreamInstrumentation(String source, LZ4Compressor compressor,
+      LZ4FastDecompressor fastDecompressor, LZ4SafeDecompressor safeDecompressor, int level,
+      LZ4Metrics metrics, FlightRecorderEvents events, boolean count) {
+    this.source = source;
+    this.compressor = compressor;
+    this.fastDecompressor = fastDecompressor;
+    this.safeDecompressor = safeDecompressor;
+    this.level = level;
+    this.metrics = metrics;
+    this.events = events;
+    this.count = count;
+  }
+
+  // The implementation which processed a block, which depends on its length
+  // with hybrid codecs
+  private int implementation(int srcLen, int destLen) {
+    if (compressor != null) {
+      return compressor.implementation(srcLen);
+    } else if (fastDecompressor != null) {
+      return fastDecompressor.implementation(destLen);
+    } else {
+      return safeDecompressor.implementation(srcLen);
+    }
+  }
+
+  void beginHash() {
+    if (metrics != null) {
+      start = System.nanoTime();
+    }
+  }
+
+  void endHash(int len) {
+    if (metrics != null) {
+      metrics.hashed(len, System.nanoTime() - start);
+    }
+  }
+
+  void beginCompression() {
+    if (metrics != null) {
+      start = System.nanoTime();
+    }
+    if (events != null) {
+      event = events.beginCompression();
+    }
+  }
+
+  void endCompression(int srcLen, int destLen) {
+    if (event != null) {
+      events.endCompression(event, source, compressor, implementation(srcLen, destLen), level, srcLen, destLen);
+      event = null;
+    }
+    if (count) {
+      LZ4JavaMonitor.processed(implementation(srcLen, destLen), srcLen);
+    }
+    if (metrics != null) {
+      metrics.compressed(srcLen, destLen, System.nanoTime() - start);
+    }
+  }
+
+  void beginDecompression() {
+    if (metrics != null) {
+      start = System.nanoTime();
+    }
+    if (events != null) {
+      event = events.beginDecompression();
+    }
+  }
+
+  void endDecompression(int srcLen, int destLen) {
+    if (event != null) {
+      events.endDecompression(event, source, fastDecompressor != null ? fastDecompressor : safeDecompressor,
+          implementation(srcLen, destLen), srcLen, destLen);
+      event = null;
+    }
+    if (count) {
+      LZ4JavaMonitor.processed(implementation(srcLen, destLen), destLen);
+    }
+    if (metrics != null) {
+      metrics.decompressed(srcLen, destLen, System.nanoTime() - start);
+    }
+  }
+
+  void incompressibleBlock(int len) {
+    if (metrics != null) {
+      metrics.incompressibleBlock(len);
+    }
+  }
+
+  void bufferReallocated(int oldLength, int newLength) {
+    if (metrics != null) {
+      metrics.bufferReallocated(oldLength, newLength);
+    }
+  }
+
+}
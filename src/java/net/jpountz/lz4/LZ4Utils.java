@@ -20,6 +20,7 @@ import static net.jpountz.lz4.LZ4Constants.HASH_LOG;
 import static net.jpountz.lz4.LZ4Constants.HASH_LOG_64K;
 import static net.jpountz.lz4.LZ4Constants.HASH_LOG_HC;
 import static net.jpountz.lz4.LZ4Constants.LAST_LITERALS;
+import static net.jpountz.lz4.LZ4Constants.MF_LIMIT;
 import static net.jpountz.lz4.LZ4Constants.MIN_MATCH;
 import static net.jpountz.lz4.LZ4Constants.ML_BITS;
 import static net.jpountz.lz4.LZ4Constants.ML_MASK;
@@ -48,10 +49,55 @@ enum LZ4Utils {
     return (i * -1640531535) >>> ((MIN_MATCH * 8) - HASH_LOG_64K);
   }
 
+  static int hash(int i, int hashLog) {
+    return (i * -1640531535) >>> ((MIN_MATCH * 8) - hashLog);
+  }
+
   static int hashHC(int i) {
     return (i * -1640531535) >>> ((MIN_MATCH * 8) - HASH_LOG_HC);
   }
 
+  // Number of the runLen pending literals that can be written as last literals
+  // into dest[dOff:destEnd], when filling the destination buffer.
+  static int lastLiteralsFillLength(int runLen, int dOff, int destEnd) {
+    if (dOff + runLen + 1 + (runLen + 255 - RUN_MASK) / 255 <= destEnd) {
+      return runLen;
+    }
+    final int fillLen = destEnd - dOff - 1;
+    return fillLen - (fillLen + 256 - RUN_MASK) / 256;
+  }
+
+  // Whether a sequence of runLen literals followed by a match of matchLen bytes
+  // can be written into dest[dOff:oLimit].
+  static boolean sequenceFits(int runLen, int matchLen, int dOff, int oLimit) {
+    dOff += 1; // token
+    if (dOff + runLen / 255 + runLen + (2 + 1 + LAST_LITERALS) > oLimit) {
+      return false;
+    }
+    if (runLen >= RUN_MASK) {
+      dOff += (runLen - RUN_MASK) / 255 + 1;
+    }
+    dOff += runLen + 2;
+    return dOff + (matchLen - MIN_MATCH) / 255 + (1 + LAST_LITERALS) <= oLimit;
+  }
+
+  // Length of the match to write when a sequence does not fit into
+  // dest[dOff:oLimit], so that dest gets filled as much as possible, or 0 if the
+  // sequence should be dropped altogether.
+  static int truncatedMatchLength(int runLen, int matchLen, int dOff, int oLimit) {
+    final int runCost = 1 + (runLen + 240) / 255 + runLen;
+    final int maxLitOff = oLimit - 3; // token + offset
+    if (dOff + runCost > maxLitOff) {
+      return 0;
+    }
+    final int maxMatchLen = MIN_MATCH + (ML_MASK - 1) + (maxLitOff - (dOff + runCost)) * 255;
+    matchLen = Math.min(matchLen, maxMatchLen);
+    if (oLimit + LAST_LITERALS - (dOff + runCost + 2) - 1 + matchLen < MF_LIMIT) {
+      return 0;
+    }
+    return matchLen;
+  }
+
   static class Match {
     int start, ref, len;
 
@@ -0,0 +1,128 @@
+package net.jpountz.util;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * FOR INTERNAL USE ONLY
+ * <p>
+ * Emits Java Flight Recorder events. The events themselves live in
+ * <code>net.jpountz.util.jfr</code>, which is only compiled and loaded when
+ * <code>jdk.jfr</code> is available, so that lz4-java keeps running on JVMs
+ * without it. Callers check {@link #INSTANCE} against null, then call a
+ * <code>begin</code> method, which returns null unless a recording has enabled
+ * the event, before the operation, and the matching <code>end</code> method
+ * after it. Events which last less than their threshold, 1 ms by default for
+ * compression and decompression, are not recorded.
+ * <p>
+ * Streams check whether compression and decompression events are enabled
+ * once, when they are created, so only streams which are created while a
+ * recording is running emit events.
+ */
+public abstract class FlightRecorderEvents {
+
+  /**
+   * The events, or null if Java Flight Recorder is not available.
+   */
+  public static final FlightRecorderEvents INSTANCE = load();
+
+  private static FlightRecorderEvents load() {
+    try {
+      Class.forName("jdk.jfr.Event");
+      return (FlightRecorderEvents) Class.forName("net.jpountz.util.jfr.JFREvents").getDeclaredConstructor().newInstance();
+    } catch (Throwable t) {
+      // no JFR, or built without it
+      return null;
+    }
+  }
+
+  /**
+   * Sole constructor, for subclasses.
+   */
+  protected FlightRecorderEvents() {}
+
+  /**
+   * Returns whether a recording has enabled compression events.
+   *
+   * @return true if compression events are enabled
+   */
+  public abstract boolean isCompressionEnabled();
+
+  /**
+   * Starts a compression event.
+   *
+   * @return the event, or null if it is disabled
+   */
+  public abstract Object beginCompression();
+
+  /**
+   * Ends a compression event and records it if it is long enough.
+   *
+   * @param event the event returned by {@link #beginCompression()}
+   * @param source the class which compressed data
+   * @param compressor the compressor which was used
+   * @param implementation the implementation of the compressor, one of the
+   *        implementation constants of {@link LZ4JavaMonitor}
+   * @param level the high compression level, or 0 for the standard algorithm
+   * @param srcLen the number of uncompressed bytes
+   * @param destLen the number of compressed bytes
+   */
+  public abstract void endCompression(Object event, String source, Object compressor, int implementation, int level, int srcLen, int destLen);
+
+  /**
+   * Returns whether a recording has enabled decompression events.
+   *
+   * @return true if decompression events are enabled
+   */
+  public abstract boolean isDecompressionEnabled();
+
+  /**
+   * Starts a decompression event.
+   *
+   * @return the event, or null if it is disabled
+   */
+  public abstract Object beginDecompression();
+
+  /**
+   * Ends a decompression event and records it if it is long enough.
+   *
+   * @param event the event returned by {@link #beginDecompression()}
+   * @param source the class which decompressed data
+   * @param decompressor the decompressor which was used
+   * @param implementation the implementation of the decompressor, one of the
+   *        implementation constants of {@link LZ4JavaMonitor}
+   * @param srcLen the number of compressed bytes
+   * @param destLen the number of decompressed bytes
+   */
+  public abstract void endDecompression(Object event, String source, Object decompressor, int implementation, int srcLen, int destLen);
+
+  /**
+   * Starts a native library loading event.
+   *
+   * @return the event, or null if it is disabled
+   */
+  public abstract Object beginNativeLoad();
+
+  /**
+   * Ends a native library loading event and records it.
+   *
+   * @param event the event returned by {@link #beginNativeLoad()}
+   * @param library the library which was loaded, or null if loading failed
+   * @param error the reason why loading failed, or null
+   */
+  public abstract void endNativeLoad(Object event, String library, Throwable error);
+
+}
@@ -0,0 +1,115 @@
+package net.jpountz.util;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bounds the time that JNI bindings keep heap arrays pinned with
+ * <code>GetPrimitiveArrayCritical</code>, during which the garbage collector
+ * cannot run. When the <code>lz4java.jni.critical.maxlength</code> system
+ * property is set to a positive number of bytes, hashes process larger arrays
+ * in chunks of at most that many bytes, and compressors and decompressors copy
+ * larger arrays to and from direct buffers, which native code doesn't need to
+ * pin. By default, arrays are always pinned for the whole operation.
+ */
+public enum JNIStaging {
+  ;
+
+  /**
+   * The maximum number of bytes of a heap array that native code may access
+   * at once, or 0 if unbounded.
+   */
+  public static final int MAX_CRITICAL_LENGTH = Math.max(0, Integer.getInteger("lz4java.jni.critical.maxlength", 0));
+
+  // staging buffers are only kept for reuse up to this size
+  private static final int MAX_RETAINED_CAPACITY = 1 << 25;
+
+  private static final ThreadLocal<ByteBuffer[]> BUFFERS = new ThreadLocal<ByteBuffer[]>() {
+    @Override
+    protected ByteBuffer[] initialValue() {
+      return new ByteBuffer[2];
+    }
+  };
+
+  /**
+   * Returns whether native code must not pin <code>len</code> bytes of a heap
+   * array at once.
+   *
+   * @param len the number of bytes to access
+   * @return true if the bytes must be accessed in chunks or staged
+   */
+  public static boolean exceedsCriticalLength(int len) {
+    return MAX_CRITICAL_LENGTH > 0 && len > MAX_CRITICAL_LENGTH;
+  }
+
+  /**
+   * Returns a direct buffer of at least <code>capacity</code> bytes, with
+   * position 0 and limit <code>capacity</code>. There is one such buffer per
+   * thread and per <code>slot</code>, so it may only be used until the next
+   * call with the same <code>slot</code>.
+   *
+   * @param slot 0 for source data, 1 for destination data
+   * @param capacity the number of bytes to stage
+   * @return a direct buffer
+   */
+  public static ByteBuffer stagingBuffer(int slot, int capacity) {
+    final ByteBuffer[] buffers = BUFFERS.get();
+    ByteBuffer buffer = buffers[slot];
+    if (buffer == null || buffer.capacity() < capacity) {
+      buffer = ByteBuffer.allocateDirect(capacity);
+      if (capacity <= MAX_RETAINED_CAPACITY) {
+        buffers[slot] = buffer;
+      }
+    }
+    buffer.clear();
+    buffer.limit(capacity);
+    return buffer;
+  }
+
+  /**
+   * Copies <code>len</code> bytes of <code>src</code> to the beginning of the
+   * staging buffer of <code>slot</code>.
+   *
+   * @param slot 0 for source data, 1 for destination data
+   * @param src the array to copy
+   * @param off the offset of the first byte to copy
+   * @param len the number of bytes to copy
+   * @return a direct buffer whose first <code>len</code> bytes are a copy of the source data
+   */
+  public static ByteBuffer stage(int slot, byte[] src, int off, int len) {
+    final ByteBuffer buffer = stagingBuffer(slot, len);
+    buffer.put(src, off, len);
+    buffer.clear();
+    return buffer;
+  }
+
+  /**
+   * Copies the first <code>len</code> bytes of a staging buffer to
+   * <code>dest</code>.
+   *
+   * @param staged a buffer returned by {@link #stagingBuffer(int, int)}
+   * @param dest the array to copy to
+   * @param off the offset of the first byte to write
+   * @param len the number of bytes to copy
+   */
+  public static void unstage(ByteBuffer staged, byte[] dest, int off, int len) {
+    staged.clear();
+    staged.get(dest, off, len);
+  }
+
+}
@@ -0,0 +1,136 @@
+package net.jpountz.util;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * FOR INTERNAL USE ONLY
+ * <p>
+ * Finds the input length from which JNI bindings are faster than the Java
+ * implementations. Every JNI call has a fixed cost, for the transition and for
+ * pinning arrays, which dominates on small inputs. Thresholds can be set with
+ * system properties, and are otherwise calibrated by timing both
+ * implementations on increasing lengths, which takes up to a second while the
+ * JIT compiles the Java implementations. Calibrated thresholds depend on the
+ * machine and on noise, so applications which need reproducible behaviour
+ * should set them.
+ */
+public enum JNIThresholds {
+  ;
+
+  /**
+   * An operation to time on <code>len</code> bytes.
+   */
+  public interface Benchmark {
+
+    /**
+     * Runs the operation on the first <code>len</code> bytes of the input.
+     *
+     * @param len the number of bytes to process
+     * @return a value which depends on the result, so that it can't be
+     *         optimized away
+     */
+    long run(int len);
+
+  }
+
+  /**
+   * The largest length that calibration times.
+   */
+  public static final int MAX_CALIBRATED_LENGTH = 1 << 16;
+
+  private static final int MIN_CALIBRATED_LENGTH = 16;
+  private static final int ROUND_BYTES = 1 << 14;
+  private static final int WARMUP_ROUNDS = 8;
+  private static final int ROUNDS = 3;
+
+  static volatile long sink;
+
+  /**
+   * Returns the threshold set by <code>property</code>, or calibrates it.
+   *
+   * @param property the system property which overrides calibration
+   * @param jni the JNI implementation
+   * @param java the Java implementation
+   * @return the length from which <code>jni</code> should be used, or
+   *         {@link Integer#MAX_VALUE} if it is never faster
+   */
+  public static int threshold(String property, Benchmark jni, Benchmark java) {
+    final Integer value = Integer.getInteger(property);
+    if (value != null) {
+      return Math.max(0, value);
+    }
+    return calibrate(jni, java);
+  }
+
+  /**
+   * Returns the smallest power of two, between 16 and
+   * {@link #MAX_CALIBRATED_LENGTH}, from which <code>jni</code> is faster than
+   * <code>java</code>, on that length and on the next one, so that noise
+   * doesn't make a single measurement decide.
+   *
+   * @param jni the JNI implementation
+   * @param java the Java implementation
+   * @return the length from which <code>jni</code> should be used, or
+   *         {@link Integer#MAX_VALUE} if it is never faster
+   */
+  public static int calibrate(Benchmark jni, Benchmark java) {
+    // give the JIT a chance to compile the Java implementation, the JNI
+    // bindings don't need it as much
+    warmUp(java);
+    warmUp(jni);
+    int candidate = Integer.MAX_VALUE;
+    for (int len = MIN_CALIBRATED_LENGTH; len <= MAX_CALIBRATED_LENGTH; len <<= 1) {
+      if (time(jni, len) < time(java, len)) {
+        if (candidate == Integer.MAX_VALUE) {
+          candidate = len;
+        } else {
+          return candidate;
+        }
+      } else {
+        candidate = Integer.MAX_VALUE;
+      }
+    }
+    return candidate;
+  }
+
+  private static void warmUp(Benchmark benchmark) {
+    long result = 0;
+    for (int len = MIN_CALIBRATED_LENGTH; len <= MAX_CALIBRATED_LENGTH; len <<= 1) {
+      for (int i = WARMUP_ROUNDS * Math.max(1, ROUND_BYTES / len); i > 0; --i) {
+        result += benchmark.run(len);
+      }
+    }
+    sink += result;
+  }
+
+  // the best time out of a few rounds of calls on about 16KB
+  private static long time(Benchmark benchmark, int len) {
+    final int iterations = Math.max(1, ROUND_BYTES / len);
+    long best = Long.MAX_VALUE;
+    long result = 0;
+    for (int round = 0; round < ROUNDS; ++round) {
+      final long start = System.nanoTime();
+      for (int i = 0; i < iterations; ++i) {
+        result += benchmark.run(len);
+      }
+      best = Math.min(best, System.nanoTime() - start);
+    }
+    sink += result;
+    return best;
+  }
+
+}
@@ -0,0 +1,88 @@
+package net.jpountz.util;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Management interface of {@link LZ4JavaMonitor}, which tells which
+ * implementations lz4-java picked and how much data they processed, for
+ * instance to alert when an application silently fell back to Java because the
+ * native library could not be loaded.
+ */
+public interface LZ4JavaMXBean {
+
+  /**
+   * @return the factory which <code>LZ4Factory.fastestInstance()</code> last
+   *         returned, or null if it has not been called
+   */
+  String getLZ4FastestInstance();
+
+  /**
+   * @return the factory which <code>LZ4Factory.fastestJavaInstance()</code>
+   *         last returned, or null if it has not been called
+   */
+  String getLZ4FastestJavaInstance();
+
+  /**
+   * @return the factory which <code>XXHashFactory.fastestInstance()</code>
+   *         last returned, or null if it has not been called
+   */
+  String getXXHashFastestInstance();
+
+  /**
+   * @return the factory which <code>XXHashFactory.fastestJavaInstance()</code>
+   *         last returned, or null if it has not been called
+   */
+  String getXXHashFastestJavaInstance();
+
+  /**
+   * @return whether the native library is loaded
+   */
+  boolean isNativeLoaded();
+
+  /**
+   * @return the native library which has been loaded, or null
+   */
+  String getNativeLibrary();
+
+  /**
+   * @return why a <code>fastestInstance()</code> method could not use the
+   *         native library, or null if it could or if it has not been called
+   */
+  String getNativeLoadError();
+
+  /**
+   * @return the number of uncompressed bytes which streams created while the
+   *         monitor was registered compressed or decompressed with JNI
+   *         bindings
+   */
+  long getJNIBytesProcessed();
+
+  /**
+   * @return the number of uncompressed bytes which streams created while the
+   *         monitor was registered compressed or decompressed with the
+   *         {@link sun.misc.Unsafe} Java implementation
+   */
+  long getUnsafeBytesProcessed();
+
+  /**
+   * @return the number of uncompressed bytes which streams created while the
+   *         monitor was registered compressed or decompressed with the
+   *         safe Java implementation
+   */
+  long getSafeBytesProcessed();
+
+}
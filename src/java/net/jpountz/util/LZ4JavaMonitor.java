@@ -0,0 +1,277 @@
+package net.jpountz.util;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.management.ObjectName;
+
+/**
+ * Keeps track of the implementations that the <code>fastestInstance()</code>
+ * and <code>fastestJavaInstance()</code> methods of <code>LZ4Factory</code> and
+ * <code>XXHashFactory</code> resolved to, of why the native library could not
+ * be used, and of the number of bytes that streams processed with each
+ * implementation.
+ * <p>
+ * The monitor is not registered with the platform MBean server unless asked
+ * to: either call {@link #register()}, or set the <code>lz4java.jmx</code>
+ * system property to <code>true</code> to register it under
+ * {@link #OBJECT_NAME} the first time one of these methods is called if
+ * lz4-java was loaded by the system class loader. Copies of lz4-java in other
+ * class loaders, such as those of webapps, must be registered explicitly, and
+ * unregistered with {@link #unregister()} before their class loader is
+ * discarded.
+ * <p>
+ * Bytes are only counted by streams which are created while the monitor is
+ * registered, so that streams don't update shared counters for nothing.
+ */
+public final class LZ4JavaMonitor implements LZ4JavaMXBean {
+
+  /**
+   * The name the monitor is registered under.
+   */
+  public static final String OBJECT_NAME = "net.jpountz:type=LZ4Java";
+
+  /** FOR INTERNAL USE ONLY: entry points */
+  public static final int LZ4_FASTEST = 0, LZ4_FASTEST_JAVA = 1,
+                          XXHASH_FASTEST = 2, XXHASH_FASTEST_JAVA = 3;
+
+  /** FOR INTERNAL USE ONLY: implementations */
+  public static final int UNKNOWN = -1, JNI = 0, UNSAFE = 1, SAFE = 2;
+
+  static final String[] IMPLEMENTATIONS = { "JNI", "Unsafe", "Safe" };
+
+  private static final LZ4JavaMonitor INSTANCE = new LZ4JavaMonitor();
+
+  private static volatile boolean registrationAttempted;
+  private static volatile boolean registered;
+
+  // bytes processed per implementation are spread over stripes picked by
+  // thread, 8 longs apart so that they don't share cache lines
+  private static final int STRIPES = 16;
+  private static final int STRIDE = 8;
+
+  /**
+   * Returns the monitor.
+   *
+   * @return the monitor
+   */
+  public static LZ4JavaMonitor getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Returns the name the monitor is registered under: {@link #OBJECT_NAME} if
+   * lz4-java was loaded by the system class loader, and otherwise
+   * {@link #OBJECT_NAME} followed by a <code>classLoader</code> key, so that
+   * copies of lz4-java in different class loaders don't clash.
+   *
+   * @return the name of the monitor
+   */
+  public static String getObjectName() {
+    final ClassLoader loader = LZ4JavaMonitor.class.getClassLoader();
+    if (loader == ClassLoader.getSystemClassLoader()) {
+      return OBJECT_NAME;
+    }
+    return OBJECT_NAME + ",classLoader=" + Integer.toHexString(System.identityHashCode(loader));
+  }
+
+  /**
+   * Registers the monitor with the platform MBean server under
+   * {@link #getObjectName()}. This is done automatically if lz4-java was
+   * loaded by the system class loader and the <code>lz4java.jmx</code>
+   * system property is <code>true</code>.
+   *
+   * @return true if the monitor is registered, false if JMX is not available
+   *         or if another monitor is registered under the same name
+   */
+  public static synchronized boolean register() {
+    registrationAttempted = true;
+    if (!registered) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(getObjectName()));
+        registered = true;
+      } catch (Throwable t) {
+        // no java.management module, or another copy of lz4-java registered first
+      }
+    }
+    return registered;
+  }
+
+  /**
+   * Unregisters the monitor from the platform MBean server, so that the
+   * class loader of lz4-java can be garbage collected.
+   */
+  public static synchronized void unregister() {
+    if (registered) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(getObjectName()));
+      } catch (Throwable t) {
+        // already unregistered
+      }
+      registered = false;
+    }
+  }
+
+  /**
+   * FOR INTERNAL USE ONLY: returns whether the monitor is registered, and
+   * therefore whether streams should count the bytes they process.
+   *
+   * @return true if the monitor is registered
+   */
+  public static boolean isRegistered() {
+    return registered;
+  }
+
+  private static void registerIfEnabled() {
+    if (LZ4JavaMonitor.class.getClassLoader() == ClassLoader.getSystemClassLoader()
+        && Boolean.getBoolean("lz4java.jmx")) {
+      register();
+    } else {
+      registrationAttempted = true;
+    }
+  }
+
+  /**
+   * FOR INTERNAL USE ONLY: records that <code>entryPoint</code> returned
+   * <code>factory</code>.
+   *
+   * @param entryPoint one of the entry point constants
+   * @param factory the factory which has been returned
+   */
+  public static void resolved(int entryPoint, Object factory) {
+    if (INSTANCE.resolved.get(entryPoint) != factory) {
+      INSTANCE.resolved.set(entryPoint, factory);
+    }
+    if (!registrationAttempted) {
+      registerIfEnabled();
+    }
+  }
+
+  /**
+   * FOR INTERNAL USE ONLY: records why a <code>fastestInstance()</code>
+   * method could not use the native library.
+   *
+   * @param error the reason
+   */
+  public static void nativeUnavailable(String error) {
+    INSTANCE.nativeLoadError = error;
+  }
+
+  /**
+   * FOR INTERNAL USE ONLY: returns the name of <code>implementation</code>.
+   *
+   * @param implementation one of the implementation constants
+   * @return JNI, Unsafe, Safe or Unknown
+   */
+  public static String implementationName(int implementation) {
+    return implementation == UNKNOWN ? "Unknown" : IMPLEMENTATIONS[implementation];
+  }
+
+  /**
+   * FOR INTERNAL USE ONLY: records that <code>len</code> uncompressed bytes
+   * have been processed with <code>implementation</code>.
+   *
+   * @param implementation one of the implementation constants
+   * @param len the number of bytes
+   */
+  public static void processed(int implementation, int len) {
+    if (implementation != UNKNOWN) {
+      final int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+      INSTANCE.bytesProcessed.addAndGet((stripe * IMPLEMENTATIONS.length + implementation) * STRIDE, len);
+    }
+  }
+
+  private final AtomicReferenceArray<Object> resolved = new AtomicReferenceArray<Object>(4);
+  private final AtomicLongArray bytesProcessed = new AtomicLongArray(STRIPES * IMPLEMENTATIONS.length * STRIDE);
+  private volatile String nativeLoadError;
+
+  private LZ4JavaMonitor() {}
+
+  private long bytesProcessed(int implementation) {
+    long sum = 0;
+    for (int stripe = 0; stripe < STRIPES; ++stripe) {
+      sum += bytesProcessed.get((stripe * IMPLEMENTATIONS.length + implementation) * STRIDE);
+    }
+    return sum;
+  }
+
+  private String resolved(int entryPoint) {
+    final Object factory = resolved.get(entryPoint);
+    return factory == null ? null : factory.toString();
+  }
+
+  @Override
+  public String getLZ4FastestInstance() {
+    return resolved(LZ4_FASTEST);
+  }
+
+  @Override
+  public String getLZ4FastestJavaInstance() {
+    return resolved(LZ4_FASTEST_JAVA);
+  }
+
+  @Override
+  public String getXXHashFastestInstance() {
+    return resolved(XXHASH_FASTEST);
+  }
+
+  @Override
+  public String getXXHashFastestJavaInstance() {
+    return resolved(XXHASH_FASTEST_JAVA);
+  }
+
+  @Override
+  public boolean isNativeLoaded() {
+    return Native.isLoaded();
+  }
+
+  @Override
+  public String getNativeLibrary() {
+    return Native.getLibrary();
+  }
+
+  @Override
+  public String getNativeLoadError() {
+    return nativeLoadError;
+  }
+
+  @Override
+  public long getJNIBytesProcessed() {
+    return bytesProcessed(JNI);
+  }
+
+  @Override
+  public long getUnsafeBytesProcessed() {
+    return bytesProcessed(UNSAFE);
+  }
+
+  @Override
+  public long getSafeBytesProcessed() {
+    return bytesProcessed(SAFE);
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "(LZ4Factory=" + getLZ4FastestInstance()
+        + ", XXHashFactory=" + getXXHashFastestInstance()
+        + ", nativeLoadError=" + getNativeLoadError() + ")";
+  }
+
+}
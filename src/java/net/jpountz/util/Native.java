@@ -16,13 +16,48 @@ package net.jpountz.util;
  * limitations under the License.
  */
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.FilenameFilter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 
-/** FOR INTERNAL USE ONLY */
+/**
+ * FOR INTERNAL USE ONLY
+ * <p>
+ * Loads the native library. By default, lz4-java first tries to load a
+ * library from the <code>java.library.path</code>, and otherwise extracts the
+ * library bundled in its JAR to a new temporary file. This can be configured
+ * with system properties, or the environment variables in parentheses:
+ * <ul>
+ * <li><code>lz4java.jnilib.system</code>
+ * (<code>LZ4JAVA_JNILIB_SYSTEM</code>): when to load the library from the
+ * <code>java.library.path</code>, <code>first</code> (default),
+ * <code>fallback</code> if the bundled library cannot be loaded,
+ * <code>only</code> or <code>never</code>.</li>
+ * <li><code>lz4java.jnilib.cache.dir</code>
+ * (<code>LZ4JAVA_JNILIB_CACHE_DIR</code>): a directory where the bundled
+ * library is extracted once and reused by later JVMs after its SHA-256 digest
+ * has been verified, instead of a new temporary file per JVM. Copies are
+ * named after their digest, so that several versions of lz4-java can share
+ * the directory, and are never deleted. The directory must only be writable
+ * by trusted users.</li>
+ * <li><code>lz4java.jnilib.isolated</code>
+ * (<code>LZ4JAVA_JNILIB_ISOLATED</code>): <code>false</code> to only load the
+ * library from the system class loader, see
+ * {@link #isClassLoaderSupported()}.</li>
+ * <li><code>lz4java.jnilib.temp.keep</code>
+ * (<code>LZ4JAVA_KEEP_TEMP_JNI_LIB</code>): <code>true</code> to keep the
+ * temporary file when the JVM exits.</li>
+ * </ul>
+ */
 public enum Native {
   ;
 
@@ -65,11 +100,42 @@ public enum Native {
   }
 
   private static boolean loaded = false;
+  // the library which has been loaded, for diagnostics
+  private static String library;
 
   public static synchronized boolean isLoaded() {
     return loaded;
   }
 
+  /**
+   * Returns whether the native library may be loaded from the class loader of
+   * lz4-java. A JVM can only load a native library file from one class
+   * loader, so copies of lz4-java in other class loaders, such as those of
+   * webapps or plugins, load their own copy of the bundled library instead
+   * of the one on the <code>java.library.path</code> or in the cache
+   * directory. This is enabled unless <code>lz4java.jnilib.isolated</code>
+   * is <code>false</code>, in which case only the system class loader loads
+   * the native library.
+   *
+   * @return true if the system class loader loaded lz4-java, or if isolated
+   *         class loaders are allowed to load the native library
+   */
+  public static boolean isClassLoaderSupported() {
+    return Native.class.getClassLoader() == ClassLoader.getSystemClassLoader()
+        || !"false".equals(config("lz4java.jnilib.isolated", "LZ4JAVA_JNILIB_ISOLATED"));
+  }
+
+  /**
+   * Returns the native library which has been loaded, either a library name
+   * if it was found on the <code>java.library.path</code>, or the path of the
+   * bundled library which has been extracted.
+   *
+   * @return the loaded library, or null if it is not loaded
+   */
+  public static synchronized String getLibrary() {
+    return library;
+  }
+
   private static void cleanupOldTempLibs() {
     String tempFolder = new File(System.getProperty("java.io.tmpdir")).getAbsolutePath();
     File dir = new File(tempFolder);
@@ -100,22 +166,162 @@ public enum Native {
       return;
     }
 
-    cleanupOldTempLibs();
+    final FlightRecorderEvents events = FlightRecorderEvents.INSTANCE;
+    final Object event = events == null ? null : events.beginNativeLoad();
+    if (event == null) {
+      doLoad();
+      return;
+    }
+    try {
+      doLoad();
+    } catch (Throwable t) {
+      events.endNativeLoad(event, null, t);
+      throw t;
+    }
+    events.endNativeLoad(event, library, null);
+  }
+
+  private static String config(String property, String env) {
+    final String value = System.getProperty(property);
+    return value != null ? value : System.getenv(env);
+  }
+
+  private static void doLoad() {
+    String system = config("lz4java.jnilib.system", "LZ4JAVA_JNILIB_SYSTEM");
+    if (system == null) {
+      system = "first";
+    } else if (!Arrays.asList("first", "fallback", "only", "never").contains(system)) {
+      throw new IllegalArgumentException("lz4java.jnilib.system must be one of first, fallback, only or never, got " + system);
+    }
 
     // Try to load lz4-java (liblz4-java.so on Linux) from the java.library.path.
+    if (system.equals("first") || system.equals("only")) {
+      try {
+        loadSystemLibrary();
+        return;
+      } catch (UnsatisfiedLinkError ex) {
+        if (system.equals("only")) {
+          throw ex;
+        }
+        // Doesn't exist, so proceed to loading bundled library.
+      }
+    }
+
     try {
-      System.loadLibrary("lz4-java");
-      loaded = true;
-      return;
-    } catch (UnsatisfiedLinkError ex) {
-      // Doesn't exist, so proceed to loading bundled library.
+      loadBundledLibrary();
+    } catch (RuntimeException | Error e) {
+      if (!system.equals("fallback")) {
+        throw e;
+      }
+      try {
+        loadSystemLibrary();
+      } catch (UnsatisfiedLinkError ex) {
+        ex.addSuppressed(e);
+        throw ex;
+      }
     }
+  }
+
+  private static void loadSystemLibrary() {
+    System.loadLibrary("lz4-java");
+    loaded = true;
+    library = System.mapLibraryName("lz4-java");
+  }
 
+  private static void loadBundledLibrary() {
     String resourceName = resourceName();
     InputStream is = Native.class.getResourceAsStream(resourceName);
     if (is == null) {
       throw new UnsupportedOperationException("Unsupported OS/arch, cannot find " + resourceName + ". Please try building from source.");
     }
+    final String cacheDir = config("lz4java.jnilib.cache.dir", "LZ4JAVA_JNILIB_CACHE_DIR");
+    if (cacheDir != null) {
+      try {
+        loadCachedLibrary(new File(cacheDir), is);
+      } catch (IOException e) {
+        throw new ExceptionInInitializerError("Cannot unpack liblz4-java to " + cacheDir + ": " + e);
+      }
+    } else {
+      cleanupOldTempLibs();
+      loadTempLibrary(is);
+    }
+  }
+
+  // Loads the library from dir, where it is named after the digest of its
+  // content so that versions don't overwrite each other and that a copy
+  // extracted by a previous JVM can be reused once its digest is verified.
+  // New copies are written to a temporary file first and then atomically
+  // renamed, so that concurrent JVMs never load a partially written library.
+  private static void loadCachedLibrary(File dir, InputStream is) throws IOException {
+    final byte[] lib;
+    try {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      final byte[] buf = new byte[4096];
+      for (int read = is.read(buf); read != -1; read = is.read(buf)) {
+        bytes.write(buf, 0, read);
+      }
+      lib = bytes.toByteArray();
+    } finally {
+      is.close();
+    }
+    final String digest = sha256(lib);
+    final OS os = os();
+    final File cached = new File(dir, "liblz4-java-" + os.name + "-" + arch() + "-" + digest.substring(0, 16) + "." + os.libExtension);
+    if (!isVerified(cached, digest)) {
+      Files.createDirectories(dir.toPath());
+      final File tmp = File.createTempFile("liblz4-java-", ".tmp", dir);
+      try {
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+          out.write(lib);
+        }
+        try {
+          Files.move(tmp.toPath(), cached.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+          // another JVM might have created it concurrently, and it might not
+          // be replaceable while in use
+          if (!isVerified(cached, digest)) {
+            throw e;
+          }
+        }
+      } finally {
+        Files.deleteIfExists(tmp.toPath());
+      }
+    }
+    try {
+      System.load(cached.getAbsolutePath());
+    } catch (UnsatisfiedLinkError e) {
+      if (e.getMessage() == null || !e.getMessage().contains("another classloader")) {
+        throw e;
+      }
+      // a copy of lz4-java in another class loader uses the cached library,
+      // this one needs its own copy
+      loadTempLibrary(new ByteArrayInputStream(lib));
+      return;
+    }
+    loaded = true;
+    library = cached.getAbsolutePath();
+  }
+
+  private static boolean isVerified(File file, String digest) throws IOException {
+    return file.isFile() && sha256(Files.readAllBytes(file.toPath())).equals(digest);
+  }
+
+  private static String sha256(byte[] bytes) {
+    final byte[] digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+    } catch (NoSuchAlgorithmException e) {
+      // every JVM is required to support SHA-256
+      throw new AssertionError(e);
+    }
+    final StringBuilder hex = new StringBuilder();
+    for (byte b : digest) {
+      hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return hex.toString();
+  }
+
+  private static void loadTempLibrary(InputStream is) {
     File tempLib = null;
     File tempLibLock = null;
     try {
@@ -136,6 +342,7 @@ public enum Native {
       }
       System.load(tempLib.getAbsolutePath());
       loaded = true;
+      library = tempLib.getAbsolutePath();
     } catch (IOException e) {
       throw new ExceptionInInitializerError("Cannot unpack liblz4-java: " + e);
     } finally {
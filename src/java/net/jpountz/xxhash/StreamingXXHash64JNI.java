@@ -16,6 +16,7 @@ package net.jpountz.xxhash;
  * limitations under the License.
  */
 
+import net.jpountz.util.JNIStaging;
 
 /**
  * Fast {@link StreamingXXHash64} implemented with JNI bindings.
@@ -67,6 +68,16 @@ final class StreamingXXHash64JNI extends StreamingXXHash64 {
   @Override
   public synchronized void update(byte[] bytes, int off, int len) {
     checkState();
+    if (JNIStaging.exceedsCriticalLength(len)) {
+      // step on the remaining length, off + MAX_CRITICAL_LENGTH may overflow
+      while (len > 0) {
+        final int chunk = Math.min(JNIStaging.MAX_CRITICAL_LENGTH, len);
+        XXHashJNI.XXH64_update(state, bytes, off, chunk);
+        off += chunk;
+        len -= chunk;
+      }
+      return;
+    }
     XXHashJNI.XXH64_update(state, bytes, off, len);
   }
 
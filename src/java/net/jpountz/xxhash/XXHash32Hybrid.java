@@ -0,0 +1,52 @@
+package net.jpountz.xxhash;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link XXHash32} which uses a Java implementation for inputs shorter than a
+ * threshold and JNI bindings for longer ones.
+ */
+final class XXHash32Hybrid extends XXHash32 {
+
+  private final XXHash32 java;
+  private final XXHash32 jni;
+  private final int threshold;
+
+  XXHash32Hybrid(XXHash32 java, XXHash32 jni, int threshold) {
+    this.java = java;
+    this.jni = jni;
+    this.threshold = threshold;
+  }
+
+  @Override
+  public int hash(byte[] buf, int off, int len, int seed) {
+    return (len < threshold ? java : jni).hash(buf, off, len, seed);
+  }
+
+  @Override
+  public int hash(ByteBuffer buf, int off, int len, int seed) {
+    return (len < threshold ? java : jni).hash(buf, off, len, seed);
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "(" + java + " below " + threshold + " bytes, " + jni + " above)";
+  }
+
+}
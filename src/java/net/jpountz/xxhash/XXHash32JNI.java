@@ -21,6 +21,8 @@ import static net.jpountz.util.SafeUtils.checkRange;
 
 import java.nio.ByteBuffer;
 
+import net.jpountz.util.JNIStaging;
+
 final class XXHash32JNI extends XXHash32 {
 
   public static final XXHash32 INSTANCE = new XXHash32JNI();
@@ -29,6 +31,22 @@ final class XXHash32JNI extends XXHash32 {
   @Override
   public int hash(byte[] buf, int off, int len, int seed) {
     checkRange(buf, off, len);
+    if (JNIStaging.exceedsCriticalLength(len)) {
+      // only pin a bounded number of bytes at once
+      final long state = XXHashJNI.XXH32_init(seed);
+      try {
+        // step on the remaining length, off + MAX_CRITICAL_LENGTH may overflow
+        while (len > 0) {
+          final int chunk = Math.min(JNIStaging.MAX_CRITICAL_LENGTH, len);
+          XXHashJNI.XXH32_update(state, buf, off, chunk);
+          off += chunk;
+          len -= chunk;
+        }
+        return XXHashJNI.XXH32_digest(state);
+      } finally {
+        XXHashJNI.XXH32_free(state);
+      }
+    }
     return XXHashJNI.XXH32(buf, off, len, seed);
   }
 
@@ -0,0 +1,52 @@
+package net.jpountz.xxhash;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link XXHash64} which uses a Java implementation for inputs shorter than a
+ * threshold and JNI bindings for longer ones.
+ */
+final class XXHash64Hybrid extends XXHash64 {
+
+  private final XXHash64 java;
+  private final XXHash64 jni;
+  private final int threshold;
+
+  XXHash64Hybrid(XXHash64 java, XXHash64 jni, int threshold) {
+    this.java = java;
+    this.jni = jni;
+    this.threshold = threshold;
+  }
+
+  @Override
+  public long hash(byte[] buf, int off, int len, long seed) {
+    return (len < threshold ? java : jni).hash(buf, off, len, seed);
+  }
+
+  @Override
+  public long hash(ByteBuffer buf, int off, int len, long seed) {
+    return (len < threshold ? java : jni).hash(buf, off, len, seed);
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "(" + java + " below " + threshold + " bytes, " + jni + " above)";
+  }
+
+}
@@ -21,6 +21,8 @@ import static net.jpountz.util.SafeUtils.checkRange;
 
 import java.nio.ByteBuffer;
 
+import net.jpountz.util.JNIStaging;
+
 final class XXHash64JNI extends XXHash64 {
 
   public static final XXHash64 INSTANCE = new XXHash64JNI();
@@ -29,6 +31,22 @@ final class XXHash64JNI extends XXHash64 {
   @Override
   public long hash(byte[] buf, int off, int len, long seed) {
     checkRange(buf, off, len);
+    if (JNIStaging.exceedsCriticalLength(len)) {
+      // only pin a bounded number of bytes at once
+      final long state = XXHashJNI.XXH64_init(seed);
+      try {
+        // step on the remaining length, off + MAX_CRITICAL_LENGTH may overflow
+        while (len > 0) {
+          final int chunk = Math.min(JNIStaging.MAX_CRITICAL_LENGTH, len);
+          XXHashJNI.XXH64_update(state, buf, off, chunk);
+          off += chunk;
+          len -= chunk;
+        }
+        return XXHashJNI.XXH64_digest(state);
+      } finally {
+        XXHashJNI.XXH64_free(state);
+      }
+    }
     return XXHashJNI.XXH64(buf, off, len, seed);
   }
 
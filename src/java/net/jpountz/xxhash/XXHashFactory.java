@@ -16,9 +16,9 @@ package net.jpountz.xxhash;
  * limitations under the License.
  */
 
-import java.lang.reflect.Field;
 import java.util.Random;
 
+import net.jpountz.util.LZ4JavaMonitor;
 import net.jpountz.util.Native;
 import net.jpountz.util.Utils;
 
@@ -41,6 +41,12 @@ import net.jpountz.util.Utils;
  * All methods from this class are very costly, so you should get an instance
  * once, and then reuse it whenever possible. This is typically done by storing
  * a {@link XXHashFactory} instance in a static field.
+ * <p>
+ * Instances quickly check that their implementation works when they are
+ * created. Applications which need to start as fast as possible, such as
+ * command-line tools compiled with GraalVM native-image, can skip this check
+ * by setting the <code>lz4java.factory.selftest</code> system property to
+ * <code>false</code>.
  */
 public final class XXHashFactory {
 
@@ -54,7 +60,8 @@ public final class XXHashFactory {
 
   private static XXHashFactory NATIVE_INSTANCE,
                                JAVA_UNSAFE_INSTANCE,
-                               JAVA_SAFE_INSTANCE;
+                               JAVA_SAFE_INSTANCE,
+                               HYBRID_INSTANCE;
 
   /**
    * Returns a {@link XXHashFactory} that returns {@link XXHash32} instances that
@@ -64,14 +71,19 @@ public final class XXHashFactory {
    * <li>Upon loading this instance, files will be written to the temporary
    * directory of the system. Although these files are supposed to be deleted
    * when the JVM exits, they might remain on systems that don't support
-   * removal of files being used such as Windows.
-   * <li>The instance can only be loaded once per JVM. This can be a problem
-   * if your application uses multiple class loaders (such as most servlet
-   * containers): this instance will only be available to the children of the
-   * class loader which has loaded it. As a consequence, it is advised to
-   * either not use this instance in webapps or to put this library in the lib
-   * directory of your servlet container so that it is loaded by the system
-   * class loader.
+   * removal of files being used such as Windows. Setting the
+   * <code>lz4java.jnilib.cache.dir</code> system property to a directory
+   * makes JVMs extract the library there once and reuse it afterwards.
+   * <li>A native library file can only be loaded by one class loader per
+   * JVM. If your application uses multiple class loaders (such as most
+   * servlet containers) and each of them has its own copy of lz4-java, every
+   * copy but the first extracts and loads a private copy of the bundled
+   * library, which is deleted when the JVM exits. Putting this library in the
+   * lib directory of your servlet container, so that it is loaded by the
+   * system class loader, avoids these copies. Setting the
+   * <code>lz4java.jnilib.isolated</code> system property to <code>false</code>
+   * restores the previous behaviour, where {@link #fastestInstance()} only
+   * returns this instance if lz4-java was loaded by the system class loader.
    * </ol>
    *
    * @return a {@link XXHashFactory} that returns {@link XXHash32} instances that
@@ -123,49 +135,84 @@ public final class XXHashFactory {
    * rely on JNI bindings.
    */
   public static XXHashFactory fastestJavaInstance() {
+    XXHashFactory factory;
     if (Utils.isUnalignedAccessAllowed()) {
       try {
-        return unsafeInstance();
+        factory = unsafeInstance();
       } catch (Throwable t) {
-        return safeInstance();
+        factory = safeInstance();
       }
     } else {
-      return safeInstance();
+      factory = safeInstance();
     }
+    LZ4JavaMonitor.resolved(LZ4JavaMonitor.XXHASH_FASTEST_JAVA, factory);
+    return factory;
   }
 
   /**
-   * Returns the fastest available {@link XXHashFactory} instance. If the class
-   * loader is the system class loader and if the
+   * Returns the fastest available {@link XXHashFactory} instance. If the
    * {@link #nativeInstance() native instance} loads successfully, then the
    * {@link #nativeInstance() native instance} is returned, otherwise the
    * {@link #fastestJavaInstance() fastest Java instance} is returned.
    * <p>
    * Please read {@link #nativeInstance() javadocs of nativeInstance()} before
    * using this method.
+   * <p>
+   * The instance which has been returned, and the reason why the native
+   * instance could not be used, are reported by {@link LZ4JavaMonitor}.
    *
    * @return the fastest available {@link XXHashFactory} instance.
    */
   public static XXHashFactory fastestInstance() {
-    if (Native.isLoaded()
-        || Native.class.getClassLoader() == ClassLoader.getSystemClassLoader()) {
+    XXHashFactory factory;
+    if (Native.isLoaded() || Native.isClassLoaderSupported()) {
       try {
-        return nativeInstance();
+        factory = nativeInstance();
       } catch (Throwable t) {
-        return fastestJavaInstance();
+        LZ4JavaMonitor.nativeUnavailable(t.toString());
+        factory = fastestJavaInstance();
       }
     } else {
-      return fastestJavaInstance();
+      LZ4JavaMonitor.nativeUnavailable("lz4-java was not loaded by the system class loader and lz4java.jnilib.isolated is false");
+      factory = fastestJavaInstance();
     }
+    LZ4JavaMonitor.resolved(LZ4JavaMonitor.XXHASH_FASTEST, factory);
+    return factory;
   }
 
-  @SuppressWarnings("unchecked")
-  private static <T> T classInstance(String cls) throws NoSuchFieldException, SecurityException, ClassNotFoundException, IllegalArgumentException, IllegalAccessException {
-    ClassLoader loader = XXHashFactory.class.getClassLoader();
-    loader = loader == null ? ClassLoader.getSystemClassLoader() : loader;
-    final Class<?> c = loader.loadClass(cls);
-    Field f = c.getField("INSTANCE");
-    return (T) f.get(null);
+  /**
+   * Returns a {@link XXHashFactory} instance whose hashes use the
+   * {@link #fastestJavaInstance() fastest Java instance} for inputs shorter
+   * than a threshold, and the {@link #nativeInstance() native instance} for
+   * longer inputs, on which the fixed cost of JNI calls is amortized.
+   * Streaming hashes always use the fastest Java instance since they can't
+   * switch implementations between updates.
+   * <p>
+   * Thresholds are calibrated by timing both instances when this method is
+   * first called, which may take up to a second, unless they are set with the
+   * <code>lz4java.jni.threshold.hash</code> system property, in bytes.
+   * <p>
+   * If the native instance can't be used, as in
+   * {@link #fastestInstance()}, then the
+   * {@link #fastestJavaInstance() fastest Java instance} is returned.
+   *
+   * @return a {@link XXHashFactory} instance which dispatches between native
+   * bindings and Java on input length
+   */
+  public static synchronized XXHashFactory hybridInstance() {
+    if (HYBRID_INSTANCE == null) {
+      final XXHashFactory nativeFactory;
+      try {
+        if (!Native.isLoaded() && !Native.isClassLoaderSupported()) {
+          return fastestJavaInstance();
+        }
+        nativeFactory = nativeInstance();
+      } catch (Throwable t) {
+        return fastestJavaInstance();
+      }
+      HYBRID_INSTANCE = new XXHashFactory("Hybrid", new XXHashHybridProvider(fastestJavaInstance(), nativeFactory));
+    }
+    return HYBRID_INSTANCE;
   }
 
   private final String impl;
@@ -174,12 +221,20 @@ public final class XXHashFactory {
   private final StreamingXXHash32.Factory streamingHash32Factory;
   private final StreamingXXHash64.Factory streamingHash64Factory;
 
-  private XXHashFactory(String impl) throws ClassNotFoundException, NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException {
+  private XXHashFactory(String impl) throws ClassNotFoundException, InstantiationException, IllegalAccessException {
+    this(impl, XXHashProvider.forName(impl));
+  }
+
+  private XXHashFactory(String impl, XXHashProvider provider) {
     this.impl = impl;
-    hash32 = classInstance("net.jpountz.xxhash.XXHash32" + impl);
-    streamingHash32Factory = classInstance("net.jpountz.xxhash.StreamingXXHash32" + impl + "$Factory");
-    hash64 = classInstance("net.jpountz.xxhash.XXHash64" + impl);
-    streamingHash64Factory = classInstance("net.jpountz.xxhash.StreamingXXHash64" + impl + "$Factory");
+    hash32 = provider.hash32();
+    streamingHash32Factory = provider.streamingHash32Factory();
+    hash64 = provider.hash64();
+    streamingHash64Factory = provider.streamingHash64Factory();
+
+    if ("false".equals(System.getProperty("lz4java.factory.selftest"))) {
+      return;
+    }
 
     // make sure it can run
     final byte[] bytes = new byte[100];
@@ -0,0 +1,96 @@
+package net.jpountz.xxhash;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static net.jpountz.util.JNIThresholds.MAX_CALIBRATED_LENGTH;
+
+import net.jpountz.util.JNIThresholds;
+
+/**
+ * Provides hashes which dispatch between the JNI bindings and a Java
+ * implementation depending on the input length, see
+ * {@link XXHashFactory#hybridInstance()}.
+ */
+final class XXHashHybridProvider extends XXHashProvider {
+
+  private final XXHashFactory java;
+  private final XXHashFactory jni;
+  final int hash32Threshold;
+  final int hash64Threshold;
+
+  XXHashHybridProvider(XXHashFactory java, XXHashFactory jni) {
+    this.java = java;
+    this.jni = jni;
+    final byte[] data = new byte[MAX_CALIBRATED_LENGTH];
+    hash32Threshold = JNIThresholds.threshold("lz4java.jni.threshold.hash",
+        hash32Benchmark(jni.hash32(), data), hash32Benchmark(java.hash32(), data));
+    hash64Threshold = JNIThresholds.threshold("lz4java.jni.threshold.hash",
+        hash64Benchmark(jni.hash64(), data), hash64Benchmark(java.hash64(), data));
+  }
+
+  private static JNIThresholds.Benchmark hash32Benchmark(final XXHash32 hash, final byte[] data) {
+    return new JNIThresholds.Benchmark() {
+      @Override
+      public long run(int len) {
+        return hash.hash(data, 0, len, 0);
+      }
+    };
+  }
+
+  private static JNIThresholds.Benchmark hash64Benchmark(final XXHash64 hash, final byte[] data) {
+    return new JNIThresholds.Benchmark() {
+      @Override
+      public long run(int len) {
+        return hash.hash(data, 0, len, 0);
+      }
+    };
+  }
+
+  @Override
+  XXHash32 hash32() {
+    return new XXHash32Hybrid(java.hash32(), jni.hash32(), hash32Threshold);
+  }
+
+  @Override
+  XXHash64 hash64() {
+    return new XXHash64Hybrid(java.hash64(), jni.hash64(), hash64Threshold);
+  }
+
+  // streaming hashes keep their state across updates so they can't switch
+  // implementations, the Java ones don't need native memory
+
+  @Override
+  StreamingXXHash32.Factory streamingHash32Factory() {
+    return new StreamingXXHash32.Factory() {
+      @Override
+      public StreamingXXHash32 newStreamingHash(int seed) {
+        return java.newStreamingHash32(seed);
+      }
+    };
+  }
+
+  @Override
+  StreamingXXHash64.Factory streamingHash64Factory() {
+    return new StreamingXXHash64.Factory() {
+      @Override
+      public StreamingXXHash64 newStreamingHash(long seed) {
+        return java.newStreamingHash64(seed);
+      }
+    };
+  }
+
+}
@@ -0,0 +1,74 @@
+package net.jpountz.xxhash;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import net.jpountz.util.Native;
+
+/**
+ * Provides the hashes of an implementation to {@link XXHashFactory} without
+ * reflecting on their fields. The Java implementations are generated, and
+ * compiled after this class, so their providers are looked up by constant
+ * class names, which ahead-of-time compilers such as GraalVM native-image
+ * resolve statically.
+ */
+abstract class XXHashProvider {
+
+  static XXHashProvider forName(String impl) throws ClassNotFoundException, InstantiationException, IllegalAccessException {
+    switch (impl) {
+    case "JNI":
+      // fail now rather than on first use if the library can't be loaded
+      Native.load();
+      return new XXHashProvider() {
+
+        @Override
+        XXHash32 hash32() {
+          return XXHash32JNI.INSTANCE;
+        }
+
+        @Override
+        XXHash64 hash64() {
+          return XXHash64JNI.INSTANCE;
+        }
+
+        @Override
+        StreamingXXHash32.Factory streamingHash32Factory() {
+          return StreamingXXHash32JNI.Factory.INSTANCE;
+        }
+
+        @Override
+        StreamingXXHash64.Factory streamingHash64Factory() {
+          return StreamingXXHash64JNI.Factory.INSTANCE;
+        }
+      };
+    case "JavaSafe":
+      return (XXHashProvider) Class.forName("net.jpountz.xxhash.XXHashJavaSafeProvider").newInstance();
+    case "JavaUnsafe":
+      return (XXHashProvider) Class.forName("net.jpountz.xxhash.XXHashJavaUnsafeProvider").newInstance();
+    default:
+      throw new IllegalArgumentException(impl);
+    }
+  }
+
+  abstract XXHash32 hash32();
+
+  abstract XXHash64 hash64();
+
+  abstract StreamingXXHash32.Factory streamingHash32Factory();
+
+  abstract StreamingXXHash64.Factory streamingHash64Factory();
+
+}
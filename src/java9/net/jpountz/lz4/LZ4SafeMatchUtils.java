@@ -0,0 +1,66 @@
+package net.jpountz.lz4;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+
+/**
+ * Java 9 version of the match utilities of the safe implementation, see
+ * <code>src/java/net/jpountz/lz4/LZ4SafeMatchUtils.java</code>.
+ * {@link Arrays#mismatch(byte[], int, int, byte[], int, int)} and
+ * {@link System#arraycopy(Object, int, Object, int, int)} are intrinsics which
+ * compare and copy several bytes at once.
+ */
+enum LZ4SafeMatchUtils {
+  ;
+
+  // below this length, calls to the intrinsics cost more than they save
+  static final int MIN_ARRAYCOPY_LENGTH = 32;
+
+  static int commonBytes(byte[] b, int o1, int o2, int limit) {
+    final int len = limit - o2;
+    if (len <= 0) {
+      return 0;
+    }
+    final int mismatch = Arrays.mismatch(b, o1, o1 + len, b, o2, limit);
+    return mismatch < 0 ? len : mismatch;
+  }
+
+  static void incrementalCopy(byte[] dest, int matchOff, int dOff, int matchLen) {
+    final int distance = dOff - matchOff;
+    if (matchLen < MIN_ARRAYCOPY_LENGTH || distance <= 0) {
+      // short matches, and malformed input whose match doesn't precede its
+      // destination
+      for (int i = 0; i < matchLen; ++i) {
+        dest[dOff + i] = dest[matchOff + i];
+      }
+      return;
+    } else if (distance >= matchLen) {
+      System.arraycopy(dest, matchOff, dest, dOff, matchLen);
+      return;
+    }
+    // the match repeats its first distance bytes: copy them, then the bytes
+    // that are known so far, which doubles the copied length every time
+    int copied = 0;
+    while (copied < matchLen) {
+      final int len = Math.min(distance + copied, matchLen - copied);
+      System.arraycopy(dest, matchOff, dest, dOff + copied, len);
+      copied += len;
+    }
+  }
+
+}
@@ -14,6 +14,7 @@
  * limitations under the License.
  */
 
+#include <stdlib.h>
 #include "lz4.h"
 #include "lz4hc.h"
 #include "net_jpountz_lz4_LZ4JNI.h"
@@ -132,6 +133,120 @@ JNIEXPORT jint JNICALL Java_net_jpountz_lz4_LZ4JNI_LZ4_1compressHC
 
 }
 
+/*
+ * Class:     net_jpountz_lz4_LZ4JNI
+ * Method:    LZ4_compress_destSize
+ * Signature: ([BLjava/nio/ByteBuffer;I[I[BLjava/nio/ByteBuffer;II)I
+ */
+JNIEXPORT jint JNICALL Java_net_jpountz_lz4_LZ4JNI_LZ4_1compress_1destSize
+  (JNIEnv *env, jclass cls, jbyteArray srcArray, jobject srcBuffer, jint srcOff, jintArray srcLenRef, jbyteArray destArray, jobject destBuffer, jint destOff, jint maxDestLen) {
+
+  char* in;
+  char* out;
+  jint srcLen;
+  jint compressed;
+
+  (*env)->GetIntArrayRegion(env, srcLenRef, 0, 1, &srcLen);
+
+  if (srcArray != NULL) {
+    in = (char*) (*env)->GetPrimitiveArrayCritical(env, srcArray, 0);
+  } else {
+    in = (char*) (*env)->GetDirectBufferAddress(env, srcBuffer);
+  }
+
+  if (in == NULL) {
+    throw_OOM(env);
+    return 0;
+  }
+
+  if (destArray != NULL) {
+    out = (char*) (*env)->GetPrimitiveArrayCritical(env, destArray, 0);
+  } else {
+    out = (char*) (*env)->GetDirectBufferAddress(env, destBuffer);
+  }
+
+  if (out == NULL) {
+    throw_OOM(env);
+    return 0;
+  }
+
+  compressed = LZ4_compress_destSize(in + srcOff, out + destOff, &srcLen, maxDestLen);
+
+  if (srcArray != NULL) {
+    (*env)->ReleasePrimitiveArrayCritical(env, srcArray, in, 0);
+  }
+  if (destArray != NULL) {
+    (*env)->ReleasePrimitiveArrayCritical(env, destArray, out, 0);
+  }
+
+  (*env)->SetIntArrayRegion(env, srcLenRef, 0, 1, &srcLen);
+
+  return compressed;
+
+}
+
+/*
+ * Class:     net_jpountz_lz4_LZ4JNI
+ * Method:    LZ4_compressHC_destSize
+ * Signature: ([BLjava/nio/ByteBuffer;I[I[BLjava/nio/ByteBuffer;III)I
+ */
+JNIEXPORT jint JNICALL Java_net_jpountz_lz4_LZ4JNI_LZ4_1compressHC_1destSize
+  (JNIEnv *env, jclass cls, jbyteArray srcArray, jobject srcBuffer, jint srcOff, jintArray srcLenRef, jbyteArray destArray, jobject destBuffer, jint destOff, jint maxDestLen, jint compressionLevel) {
+
+  char* in;
+  char* out;
+  void* state;
+  jint srcLen;
+  jint compressed;
+
+  (*env)->GetIntArrayRegion(env, srcLenRef, 0, 1, &srcLen);
+
+  state = malloc(LZ4_sizeofStateHC());
+  if (state == NULL) {
+    throw_OOM(env);
+    return 0;
+  }
+
+  if (srcArray != NULL) {
+    in = (char*) (*env)->GetPrimitiveArrayCritical(env, srcArray, 0);
+  } else {
+    in = (char*) (*env)->GetDirectBufferAddress(env, srcBuffer);
+  }
+
+  if (in == NULL) {
+    free(state);
+    throw_OOM(env);
+    return 0;
+  }
+
+  if (destArray != NULL) {
+    out = (char*) (*env)->GetPrimitiveArrayCritical(env, destArray, 0);
+  } else {
+    out = (char*) (*env)->GetDirectBufferAddress(env, destBuffer);
+  }
+
+  if (out == NULL) {
+    free(state);
+    throw_OOM(env);
+    return 0;
+  }
+
+  compressed = LZ4_compress_HC_destSize(state, in + srcOff, out + destOff, &srcLen, maxDestLen, compressionLevel);
+
+  if (srcArray != NULL) {
+    (*env)->ReleasePrimitiveArrayCritical(env, srcArray, in, 0);
+  }
+  if (destArray != NULL) {
+    (*env)->ReleasePrimitiveArrayCritical(env, destArray, out, 0);
+  }
+  free(state);
+
+  (*env)->SetIntArrayRegion(env, srcLenRef, 0, 1, &srcLen);
+
+  return compressed;
+
+}
+
 /*
  * Class:     net_jpountz_lz4_LZ4JNI
  * Method:    LZ4_decompress_fast
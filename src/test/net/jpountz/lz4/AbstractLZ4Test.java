@@ -21,7 +21,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
 
 import com.carrotsearch.randomizedtesting.RandomizedTest;
 
@@ -310,6 +314,90 @@ public abstract class AbstractLZ4Test extends RandomizedTest {
     }
   }
 
+  // A buffer pool which checks that borrowed buffers are released exactly once
+  static class TrackingBufferPool extends LZ4BufferPool {
+
+    private final LZ4BufferPool delegate;
+    private final Set<byte[]> borrowed = Collections.newSetFromMap(new IdentityHashMap<byte[], Boolean>());
+    int borrowCount;
+
+    TrackingBufferPool(LZ4BufferPool delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public synchronized byte[] borrow(int length) {
+      final byte[] buffer = delegate.borrow(length);
+      if (buffer.length < length || !borrowed.add(buffer)) {
+        throw new AssertionError("invalid buffer");
+      }
+      ++borrowCount;
+      return buffer;
+    }
+
+    @Override
+    public synchronized void release(byte[] buffer) {
+      if (!borrowed.remove(buffer)) {
+        // the initial buffers of LZ4BlockInputStream are not borrowed
+        if (buffer.length > LZ4BlockOutputStream.HEADER_LENGTH) {
+          throw new AssertionError("buffer released twice or not borrowed");
+        }
+        return;
+      }
+      delegate.release(buffer);
+    }
+
+    synchronized int outstanding() {
+      return borrowed.size();
+    }
+  }
+
+  // A channel which only has the bytes that have been appended to it so far,
+  // and fails instead of blocking when asked for more, like a socket whose
+  // peer waits for an answer
+  static class AvailableBytesChannel implements ReadableByteChannel {
+
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private ByteBuffer available = ByteBuffer.allocate(0);
+    private boolean ended;
+
+    void append(byte[] bytes) {
+      pending.write(bytes, 0, bytes.length);
+      final ByteBuffer next = ByteBuffer.allocate(available.remaining() + pending.size());
+      next.put(available).put(pending.toByteArray()).flip();
+      pending.reset();
+      available = next;
+    }
+
+    void end() {
+      ended = true;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) {
+      if (!available.hasRemaining()) {
+        if (ended) {
+          return -1;
+        }
+        throw new AssertionError("read would block");
+      }
+      final int len = Math.min(dst.remaining(), available.remaining());
+      final ByteBuffer slice = available.duplicate();
+      slice.limit(slice.position() + len);
+      dst.put(slice);
+      available.position(available.position() + len);
+      return len;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {}
+  }
+
   protected static byte[] readResource(String resource) throws IOException {
     InputStream is = LZ4Test.class.getResourceAsStream(resource);
     if (is == null) {
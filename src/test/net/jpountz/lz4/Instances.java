@@ -26,19 +26,24 @@ enum Instances {
     LZ4Factory.unsafeInstance().fastCompressor(),
     LZ4Factory.unsafeInstance().highCompressor(),
     LZ4Factory.safeInstance().fastCompressor(),
-    LZ4Factory.safeInstance().highCompressor()
+    LZ4Factory.safeInstance().highCompressor(),
+    LZ4Factory.unsafeInstance().fastCompressor(LZ4Constants.MIN_MEMORY_USAGE),
+    LZ4Factory.safeInstance().fastCompressor(LZ4Constants.MAX_MEMORY_USAGE),
+    new LZ4HybridCompressor(LZ4Factory.safeInstance().fastCompressor(), LZ4Factory.nativeInstance().fastCompressor(), 64)
   };
 
   static LZ4FastDecompressor[] FAST_DECOMPRESSORS = new LZ4FastDecompressor[] {
     LZ4Factory.nativeInstance().fastDecompressor(),
     LZ4Factory.unsafeInstance().fastDecompressor(),
-    LZ4Factory.safeInstance().fastDecompressor()
+    LZ4Factory.safeInstance().fastDecompressor(),
+    new LZ4HybridFastDecompressor(LZ4Factory.safeInstance().fastDecompressor(), LZ4Factory.nativeInstance().fastDecompressor(), 64)
   };
 
   static LZ4SafeDecompressor[] SAFE_DECOMPRESSORS = new LZ4SafeDecompressor[] {
     LZ4Factory.nativeInstance().safeDecompressor(),
     LZ4Factory.unsafeInstance().safeDecompressor(),
-    LZ4Factory.safeInstance().safeDecompressor()
+    LZ4Factory.safeInstance().safeDecompressor(),
+    new LZ4HybridSafeDecompressor(LZ4Factory.safeInstance().safeDecompressor(), LZ4Factory.nativeInstance().safeDecompressor(), 64)
   };
 
 }
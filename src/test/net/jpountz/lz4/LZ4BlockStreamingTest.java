@@ -23,21 +23,54 @@ import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.Adler32;
 import java.util.zip.CRC32;
 import java.util.zip.Checksum;
 
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import net.jpountz.util.FlightRecorderEvents;
+import net.jpountz.util.LZ4JavaMonitor;
+import net.jpountz.util.SafeUtils;
 import net.jpountz.xxhash.XXHashFactory;
 
+import org.junit.Assume;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
+import com.carrotsearch.randomizedtesting.ThreadFilter;
 import com.carrotsearch.randomizedtesting.annotations.Repeat;
+import com.carrotsearch.randomizedtesting.annotations.ThreadLeakFilters;
 
+@ThreadLeakFilters(filters = LZ4BlockStreamingTest.FlightRecorderThreadFilter.class)
 public class LZ4BlockStreamingTest extends AbstractLZ4Test {
 
+  // Java Flight Recorder starts threads on the first recording and keeps them
+  public static class FlightRecorderThreadFilter implements ThreadFilter {
+
+    @Override
+    public boolean reject(Thread t) {
+      return t.getName().startsWith("JFR ");
+    }
+
+  }
+
   // An input stream that might read less data than it is able to
   class MockInputStream extends FilterInputStream {
 
@@ -168,9 +201,18 @@ public class LZ4BlockStreamingTest extends AbstractLZ4Test {
       blockSize = randomIntBetween(LZ4BlockOutputStream.MIN_BLOCK_SIZE, LZ4BlockOutputStream.MAX_BLOCK_SIZE);
       break;
     }
-    final LZ4Compressor compressor = randomBoolean()
-        ? LZ4Factory.fastestInstance().fastCompressor()
-        : LZ4Factory.fastestInstance().highCompressor();
+    final LZ4Compressor compressor;
+    switch (randomInt(2)) {
+    case 0:
+      compressor = LZ4Factory.fastestInstance().fastCompressor();
+      break;
+    case 1:
+      compressor = LZ4Factory.fastestInstance().highCompressor();
+      break;
+    default:
+      compressor = new LZ4AdaptiveCompressor(LZ4Factory.fastestInstance(), randomIntBetween(1, 1000));
+      break;
+    }
     final Checksum checksum;
     switch (randomInt(2)) {
     case 0:
@@ -184,7 +226,8 @@ public class LZ4BlockStreamingTest extends AbstractLZ4Test {
       break;
     }
     final boolean syncFlush = randomBoolean();
-    final LZ4BlockOutputStream os = new LZ4BlockOutputStream(wrap(compressed), blockSize, compressor, checksum, syncFlush);
+    final boolean skipIncompressible = randomBoolean();
+    final LZ4BlockOutputStream os = new LZ4BlockOutputStream(wrap(compressed), blockSize, compressor, checksum, syncFlush, skipIncompressible);
     final int half = data.length / 2;
     switch (randomInt(2)) {
     case 0:
@@ -267,6 +310,544 @@ public class LZ4BlockStreamingTest extends AbstractLZ4Test {
     testRoundTrip(data);
   }
 
+  @Test
+  public void testSkipIncompressible() throws IOException {
+    final int blockSize = 1 << 12;
+    final byte[] incompressible = randomArray(blockSize * 100, 256);
+    final byte[] compressible = randomArray(blockSize * 100, 2);
+    final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    final LZ4BlockOutputStream os = new LZ4BlockOutputStream(compressed, blockSize,
+        LZ4Factory.fastestInstance().fastCompressor(), new CRC32(), false, true);
+    os.write(incompressible);
+    os.flush();
+    assertEquals(99, os.getBlockCount()); // the last block is still buffered
+    assertEquals(99, os.getRawBlockCount());
+    // compression is attempted on blocks 1, 3, 6, 11, 20, 37 and 70
+    assertEquals(92, os.getSkippedCompressionCount());
+    os.write(compressible);
+    os.close();
+    assertEquals(200, os.getBlockCount());
+    // blocks 71 to 134 are skipped, block 135 is compressed again
+    assertEquals(134, os.getRawBlockCount());
+    assertEquals(127, os.getSkippedCompressionCount());
+
+    final byte[] data = new byte[incompressible.length + compressible.length];
+    System.arraycopy(incompressible, 0, data, 0, incompressible.length);
+    System.arraycopy(compressible, 0, data, incompressible.length, compressible.length);
+    final InputStream is = new LZ4BlockInputStream(new ByteArrayInputStream(compressed.toByteArray()),
+        LZ4Factory.fastestInstance().fastDecompressor(), new CRC32());
+    final byte[] restored = new byte[data.length];
+    assertEquals(data.length, readFully(is, restored));
+    assertEquals(-1, is.read());
+    is.close();
+    assertArrayEquals(data, restored);
+  }
+
+  @Test
+  public void testSkipWholeBlocks() throws IOException {
+    final int blockSize = 1 << 10;
+    final byte[] data = randomArray(blockSize * 10, 4);
+    final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    final LZ4BlockOutputStream os = new LZ4BlockOutputStream(compressed, blockSize);
+    os.write(data);
+    os.close();
+
+    // corrupt the payload of the first block, which is only ok if it gets skipped
+    final byte[] bytes = compressed.toByteArray();
+    bytes[LZ4BlockOutputStream.HEADER_LENGTH + 1] ^= 0x55;
+
+    final int offset = randomIntBetween(blockSize, data.length);
+    final InputStream is = new LZ4BlockInputStream(open(bytes));
+    long skipped = 0;
+    while (skipped < offset) {
+      final long s = is.skip(offset - skipped);
+      assertTrue(s >= 0);
+      skipped += s;
+    }
+    final byte[] restored = new byte[data.length - offset];
+    assertEquals(restored.length, readFully(is, restored));
+    assertEquals(-1, is.read());
+    assertEquals(0, is.skip(1));
+    is.close();
+    assertArrayEquals(Arrays.copyOfRange(data, offset, data.length), restored);
+
+    final InputStream is2 = new LZ4BlockInputStream(open(bytes));
+    try {
+      is2.read();
+      fail();
+    } catch (IOException e) {
+      // expected
+    }
+    is2.close();
+  }
+
+  @Test
+  @Repeat(iterations=5)
+  public void testRandomAccessFile() throws Exception {
+    final int blockSize = randomIntBetween(64, 1 << 12);
+    final byte[] data = randomArray(randomIntBetween(0, 1 << 16), randomBoolean() ? 4 : 256);
+    // two concatenated streams
+    final int split = randomIntBetween(0, data.length);
+    final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    LZ4BlockOutputStream os = new LZ4BlockOutputStream(compressed, blockSize);
+    os.write(data, 0, split);
+    os.close();
+    os = new LZ4BlockOutputStream(compressed, blockSize);
+    os.write(data, split, data.length - split);
+    os.close();
+
+    final Path path = Files.createTempFile("lz4", ".lz4");
+    try {
+      Files.write(path, compressed.toByteArray());
+      try (final LZ4BlockRandomAccessFile file = new LZ4BlockRandomAccessFile(FileChannel.open(path),
+          LZ4Factory.fastestInstance().fastDecompressor(), XXHashFactory.fastestInstance().hash32(),
+          randomIntBetween(0, 4), randomBoolean())) {
+        assertEquals(data.length, file.length());
+        assertEquals((split + blockSize - 1) / blockSize + (data.length - split + blockSize - 1) / blockSize, file.getBlockCount());
+        final byte[] restored = new byte[data.length];
+        file.readFully(0, restored, 0, restored.length);
+        assertArrayEquals(data, restored);
+        assertEquals(-1, file.read(data.length, new byte[1], 0, 1));
+
+        final Thread[] threads = new Thread[3];
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        for (int t = 0; t < threads.length; ++t) {
+          final Random random = new Random(randomLong());
+          threads[t] = new Thread() {
+            @Override
+            public void run() {
+              try {
+                for (int i = 0; i < 100; ++i) {
+                  final int offset = random.nextInt(data.length + 1);
+                  final int len = random.nextInt(3 * blockSize);
+                  final byte[] b = new byte[len];
+                  final int read = file.read(offset, b, 0, len);
+                  if (offset == data.length) {
+                    assertEquals(len == 0 ? 0 : -1, read);
+                  } else {
+                    assertEquals(Math.min(len, data.length - offset), read);
+                    assertArrayEquals(Arrays.copyOfRange(data, offset, offset + read), Arrays.copyOf(b, read));
+                  }
+                }
+              } catch (Throwable e) {
+                failure.set(e);
+              }
+            }
+          };
+          threads[t].start();
+        }
+        for (Thread thread : threads) {
+          thread.join();
+        }
+        if (failure.get() != null) {
+          throw new AssertionError(failure.get());
+        }
+      }
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  @Test
+  public void testRandomAccessFileCorrupted() throws IOException {
+    final byte[] data = randomArray(1 << 12, 4);
+    final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    final LZ4BlockOutputStream os = new LZ4BlockOutputStream(compressed, 1 << 10);
+    os.write(data);
+    os.close();
+    // corrupt the payload of the second block
+    final byte[] bytes = compressed.toByteArray();
+    final int secondBlock = LZ4BlockOutputStream.HEADER_LENGTH + SafeUtils.readIntLE(bytes, LZ4BlockOutputStream.MAGIC_LENGTH + 1);
+    bytes[secondBlock + LZ4BlockOutputStream.HEADER_LENGTH + 1] ^= 0x55;
+
+    final Path path = Files.createTempFile("lz4", ".lz4");
+    try {
+      Files.write(path, bytes);
+      try (LZ4BlockRandomAccessFile file = new LZ4BlockRandomAccessFile(FileChannel.open(path))) {
+        final byte[] b = new byte[1 << 10];
+        file.readFully(0, b, 0, b.length);
+        assertArrayEquals(Arrays.copyOf(data, b.length), b);
+        try {
+          file.readFully(1 << 10, b, 0, b.length);
+          fail();
+        } catch (IOException e) {
+          // expected
+        }
+      }
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  @Test
+  @Repeat(iterations=5)
+  public void testChannels() throws IOException {
+    final int blockSize = randomIntBetween(64, 1 << 12);
+    final byte[] data = randomArray(randomIntBetween(0, 1 << 16), randomBoolean() ? 4 : 256);
+    testChannels(data, blockSize, LZ4Factory.nativeInstance(), XXHashFactory.nativeInstance());
+    testChannels(data, blockSize, LZ4Factory.unsafeInstance(), XXHashFactory.unsafeInstance());
+    testChannels(data, blockSize, LZ4Factory.safeInstance(), XXHashFactory.safeInstance());
+  }
+
+  private void testChannels(byte[] data, int blockSize, LZ4Factory lz4Factory, XXHashFactory xxHashFactory) throws IOException {
+    final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    final LZ4BlockWritableByteChannel out = new LZ4BlockWritableByteChannel(Channels.newChannel(compressed), blockSize,
+        lz4Factory.fastCompressor(), xxHashFactory.hash32());
+    final ByteBuffer src = randomBoolean() ? ByteBuffer.allocateDirect(data.length) : ByteBuffer.allocate(data.length);
+    src.put(data).flip();
+    while (src.hasRemaining()) {
+      final ByteBuffer slice = src.duplicate();
+      slice.limit(slice.position() + Math.min(src.remaining(), randomIntBetween(0, 3 * blockSize)));
+      src.position(src.position() + slice.remaining());
+      out.write(slice);
+      if (randomInt(10) == 0) {
+        out.flush();
+      }
+    }
+    out.close();
+    assertFalse(out.isOpen());
+
+    // streams and channels are compatible
+    final InputStream is = new LZ4BlockInputStream(new ByteArrayInputStream(compressed.toByteArray()));
+    final byte[] restored = new byte[data.length];
+    assertEquals(data.length, readFully(is, restored));
+    assertEquals(-1, is.read());
+    is.close();
+    assertArrayEquals(data, restored);
+
+    final ReadableByteChannel in = new LZ4BlockReadableByteChannel(Channels.newChannel(new ByteArrayInputStream(compressed.toByteArray())),
+        lz4Factory.safeDecompressor(), xxHashFactory.hash32(), true);
+    final ByteBuffer dst = randomBoolean() ? ByteBuffer.allocateDirect(randomIntBetween(1, 2 * blockSize)) : ByteBuffer.allocate(randomIntBetween(1, 2 * blockSize));
+    final ByteBuffer actual = ByteBuffer.allocate(data.length);
+    while (in.read(dst) >= 0) {
+      dst.flip();
+      actual.put(dst);
+      dst.clear();
+    }
+    in.close();
+    assertArrayEquals(data, actual.array());
+  }
+
+  @Test
+  @Repeat(iterations=5)
+  public void testReadableChannelDoesNotReadAhead() throws IOException {
+    // request/response: every message must be readable as soon as it has been
+    // flushed, without waiting for the next one
+    final int blockSize = randomIntBetween(64, 1 << 12);
+    final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    final LZ4BlockWritableByteChannel out = new LZ4BlockWritableByteChannel(Channels.newChannel(compressed), blockSize);
+    final AvailableBytesChannel channel = new AvailableBytesChannel();
+    final ReadableByteChannel in = new LZ4BlockReadableByteChannel(channel);
+    for (int i = 0; i < 10; ++i) {
+      final byte[] message = randomArray(randomIntBetween(1, 3 * blockSize), 256);
+      out.write(ByteBuffer.wrap(message));
+      out.flush();
+      channel.append(compressed.toByteArray());
+      compressed.reset();
+      final ByteBuffer actual = ByteBuffer.allocate(message.length);
+      while (actual.hasRemaining()) {
+        assertTrue(in.read(actual) > 0);
+      }
+      assertArrayEquals(message, actual.array());
+    }
+    out.close();
+    channel.append(compressed.toByteArray());
+    channel.end();
+    assertEquals(-1, in.read(ByteBuffer.allocate(1)));
+    in.close();
+  }
+
+  @Test
+  public void testReadableChannelConcatenatedStreams() throws IOException {
+    final byte[] data1 = randomArray(1000, 4);
+    final byte[] data2 = randomArray(1000, 4);
+    final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    LZ4BlockOutputStream os = new LZ4BlockOutputStream(compressed, 128);
+    os.write(data1);
+    os.close();
+    os = new LZ4BlockOutputStream(compressed, 128);
+    os.write(data2);
+    os.close();
+
+    final ReadableByteChannel in = new LZ4BlockReadableByteChannel(Channels.newChannel(new ByteArrayInputStream(compressed.toByteArray())),
+        LZ4Factory.fastestInstance().safeDecompressor(), XXHashFactory.fastestInstance().hash32(), false);
+    final ByteBuffer actual = ByteBuffer.allocate(data1.length + data2.length);
+    while (actual.hasRemaining()) {
+      assertTrue(in.read(actual) > 0);
+    }
+    assertEquals(-1, in.read(ByteBuffer.allocate(1)));
+    in.close();
+    assertArrayEquals(data1, Arrays.copyOf(actual.array(), data1.length));
+    assertArrayEquals(data2, Arrays.copyOfRange(actual.array(), data1.length, actual.capacity()));
+  }
+
+  @Test
+  public void testBufferPoolRetainedBytes() {
+    final LZ4BufferPool pool = LZ4BufferPool.newStripedPool(8, 1 << 20, 5 << 10);
+    final Set<byte[]> released = Collections.newSetFromMap(new IdentityHashMap<byte[], Boolean>());
+    for (int i = 0; i < 4; ++i) {
+      released.add(pool.borrow(2 << 10));
+    }
+    for (byte[] buffer : released) {
+      pool.release(buffer);
+    }
+    // only two buffers of 2 KB fit in 5 KB
+    int reused = 0;
+    for (int i = 0; i < 4; ++i) {
+      if (released.contains(pool.borrow(2 << 10))) {
+        ++reused;
+      }
+    }
+    assertEquals(2, reused);
+  }
+
+  @Test
+  @Repeat(iterations=5)
+  public void testBufferPool() throws IOException {
+    final TrackingBufferPool pool = new TrackingBufferPool(LZ4BufferPool.newStripedPool(4, 1 << 20));
+    final int blockSize = randomIntBetween(1 << 10, 1 << 16);
+    final byte[] data = randomArray(randomIntBetween(0, 1 << 18), randomIntBetween(2, 256));
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    try (OutputStream os = new LZ4BlockOutputStream(expected, blockSize)) {
+      os.write(data);
+    }
+    for (int i = 0; i < 3; ++i) {
+      final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      final LZ4BlockOutputStream os = new LZ4BlockOutputStream(compressed, blockSize,
+          LZ4Factory.fastestInstance().fastCompressor(), XXHashFactory.fastestInstance().newStreamingHash32(0x9747b28c).asChecksum(),
+          false, false, pool);
+      os.write(data);
+      os.close();
+      os.close();
+      assertArrayEquals(expected.toByteArray(), compressed.toByteArray());
+      assertEquals(0, pool.outstanding());
+
+      final LZ4BlockInputStream is = new LZ4BlockInputStream(new ByteArrayInputStream(compressed.toByteArray()),
+          LZ4Factory.fastestInstance().fastDecompressor(), XXHashFactory.fastestInstance().newStreamingHash32(0x9747b28c).asChecksum(),
+          true, pool);
+      final byte[] restored = new byte[data.length];
+      assertEquals(data.length, readFully(is, restored));
+      assertArrayEquals(data, restored);
+      is.close();
+      is.close();
+      assertEquals(0, pool.outstanding());
+      try {
+        is.read();
+        fail();
+      } catch (IOException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  @Repeat(iterations=5)
+  public void testReadIntoCallerBuffer() throws IOException {
+    final int blockSize = randomIntBetween(64, 1 << 14);
+    final byte[] data = randomArray(randomIntBetween(0, 1 << 17), randomIntBetween(2, 256));
+    final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (OutputStream os = new LZ4BlockOutputStream(compressed, blockSize)) {
+      os.write(data);
+    }
+
+    // reads of at least a block return exactly one block
+    LZ4BlockInputStream is = new LZ4BlockInputStream(new MockInputStream(new ByteArrayInputStream(compressed.toByteArray())));
+    final byte[] restored = new byte[data.length + blockSize + 10];
+    int off = 0;
+    for (int read = is.read(restored, off, blockSize + randomInt(10)); read != -1; read = is.read(restored, off, blockSize + randomInt(10))) {
+      assertEquals(Math.min(blockSize, data.length - off), read);
+      assertEquals(0, is.available());
+      off += read;
+    }
+    assertEquals(data.length, off);
+    assertArrayEquals(data, Arrays.copyOf(restored, off));
+    is.close();
+
+    is = new LZ4BlockInputStream(new ByteArrayInputStream(compressed.toByteArray()));
+    final int head = randomInt(data.length);
+    if (head > 0) {
+      assertEquals(1, is.read(restored, 0, 1));
+    }
+    final byte[] nBytes = is.readNBytes(Math.max(0, head - 1));
+    assertEquals(Math.max(0, head - 1), nBytes.length);
+    final byte[] rest = is.readAllBytes();
+    assertEquals(data.length, (head > 0 ? 1 : 0) + nBytes.length + rest.length);
+    assertArrayEquals(Arrays.copyOfRange(data, Math.min(1, head), head), nBytes);
+    assertArrayEquals(Arrays.copyOfRange(data, Math.max(1, head), data.length), rest);
+    assertEquals(0, is.readAllBytes().length);
+    is.close();
+  }
+
+  @Test
+  @Repeat(iterations=5)
+  public void testLargeWritesSameOutput() throws IOException {
+    final int blockSize = randomIntBetween(64, 1 << 12);
+    final byte[] data = randomArray(randomIntBetween(0, 1 << 16), randomBoolean() ? 256 : randomIntBetween(2, 10));
+    final boolean skipIncompressible = randomBoolean();
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    try (OutputStream os = new LZ4BlockOutputStream(expected, blockSize, LZ4Factory.fastestInstance().fastCompressor(),
+        new CRC32(), false, skipIncompressible)) {
+      for (byte b : data) {
+        os.write(b);
+      }
+    }
+    final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    try (OutputStream os = new LZ4BlockOutputStream(actual, blockSize, LZ4Factory.fastestInstance().fastCompressor(),
+        new CRC32(), false, skipIncompressible)) {
+      for (int off = 0; off < data.length; ) {
+        final int len = randomBoolean() ? randomInt(data.length - off) : Math.min(blockSize * randomInt(3), data.length - off);
+        os.write(data, off, len);
+        off += len;
+      }
+    }
+    assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+  }
+
+  @Test
+  @Repeat(iterations=5)
+  public void testTransferTo() throws IOException {
+    final int blockSize = randomIntBetween(64, 1 << 14);
+    final byte[] data = randomArray(randomIntBetween(0, 1 << 17), randomBoolean() ? 256 : randomIntBetween(2, 10));
+    final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (OutputStream os = new LZ4BlockOutputStream(compressed, blockSize)) {
+      os.write(data);
+    }
+    try (LZ4BlockInputStream is = new LZ4BlockInputStream(new MockInputStream(new ByteArrayInputStream(compressed.toByteArray())))) {
+      final int head = randomInt(Math.min(data.length, 2 * blockSize));
+      final byte[] restored = new byte[head];
+      assertEquals(head, readFully(is, restored));
+      assertArrayEquals(Arrays.copyOf(data, head), restored);
+      final ByteArrayOutputStream rest = new ByteArrayOutputStream();
+      assertEquals(data.length - head, is.transferTo(rest));
+      assertArrayEquals(Arrays.copyOfRange(data, head, data.length), rest.toByteArray());
+      assertEquals(0, is.transferTo(rest));
+      assertEquals(-1, is.read());
+    }
+  }
+
+  @Test
+  @Repeat(iterations=5)
+  public void testMetrics() throws IOException {
+    final int blockSize = randomIntBetween(64, 1 << 14);
+    final byte[] data = randomArray(randomIntBetween(1, 1 << 17), randomBoolean() ? 256 : randomIntBetween(2, 10));
+    final LZ4MetricsRecorder recorder = new LZ4MetricsRecorder();
+    final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    final LZ4BlockOutputStream os;
+    LZ4Metrics.setDefault(recorder);
+    try {
+      os = new LZ4BlockOutputStream(compressed, blockSize);
+      os.write(data);
+      os.close();
+      final byte[] restored = new byte[data.length];
+      try (LZ4BlockInputStream is = new LZ4BlockInputStream(new ByteArrayInputStream(compressed.toByteArray()))) {
+        assertEquals(data.length, readFully(is, restored));
+      }
+      assertArrayEquals(data, restored);
+    } finally {
+      LZ4Metrics.setDefault(LZ4Metrics.disabled());
+    }
+    assertEquals(os.getBlockCount(), recorder.getCompressCount());
+    assertEquals(data.length, recorder.getCompressBytesIn());
+    assertEquals(os.getRawBlockCount(), recorder.getIncompressibleBlocks());
+    assertEquals(os.getBlockCount() - os.getRawBlockCount(), recorder.getDecompressCount());
+    assertEquals(2L * data.length, recorder.getHashBytes());
+    long histogramCount = 0;
+    for (long count : recorder.getRatioHistogram()) {
+      histogramCount += count;
+    }
+    assertEquals(recorder.getCompressCount(), histogramCount);
+    assertEquals(recorder.getCompressCount(), (long) recorder.toMap().get("lz4.compress.count"));
+
+    // streams which are created while metrics are disabled don't report
+    try (OutputStream os2 = new LZ4BlockOutputStream(new ByteArrayOutputStream(), blockSize)) {
+      os2.write(data);
+    }
+    assertEquals(os.getBlockCount(), recorder.getCompressCount());
+  }
+
+  @Test
+  public void testInstrumentationDisabled() {
+    Assume.assumeTrue(FlightRecorderEvents.INSTANCE == null
+        || !FlightRecorderEvents.INSTANCE.isCompressionEnabled() && !FlightRecorderEvents.INSTANCE.isDecompressionEnabled());
+    Assume.assumeFalse(LZ4JavaMonitor.isRegistered());
+    final LZ4Factory factory = LZ4Factory.fastestInstance();
+    // streams skip all instrumentation with a single null check
+    assertNull(LZ4StreamInstrumentation.forCompression("test", factory.fastCompressor()));
+    assertNull(LZ4StreamInstrumentation.forDecompression("test", factory.fastDecompressor()));
+    assertNull(LZ4StreamInstrumentation.forDecompression("test", factory.safeDecompressor()));
+    LZ4Metrics.setDefault(new LZ4MetricsRecorder());
+    try {
+      assertNotNull(LZ4StreamInstrumentation.forCompression("test", factory.fastCompressor()));
+      assertNotNull(LZ4StreamInstrumentation.forDecompression("test", factory.safeDecompressor()));
+    } finally {
+      LZ4Metrics.setDefault(LZ4Metrics.disabled());
+    }
+  }
+
+  @Test
+  public void testMetricsInstrument() {
+    final LZ4MetricsRecorder recorder = new LZ4MetricsRecorder();
+    final LZ4Compressor compressor = recorder.instrument(LZ4Factory.fastestInstance().fastCompressor());
+    final LZ4SafeDecompressor decompressor = recorder.instrument(LZ4Factory.fastestInstance().safeDecompressor());
+    final byte[] data = randomArray(randomIntBetween(0, 1 << 16), randomIntBetween(2, 10));
+    final byte[] compressed = compressor.compress(data);
+    assertArrayEquals(data, decompressor.decompress(compressed, data.length));
+    assertEquals(1, recorder.getCompressCount());
+    assertEquals(data.length, recorder.getCompressBytesIn());
+    assertEquals(compressed.length, recorder.getCompressBytesOut());
+    assertEquals(1, recorder.getDecompressCount());
+    assertEquals(compressed.length, recorder.getDecompressBytesIn());
+    assertEquals(data.length, recorder.getDecompressBytesOut());
+  }
+
+  @Test
+  public void testFlightRecorderEvents() throws IOException {
+    Assume.assumeTrue(FlightRecorderEvents.INSTANCE != null);
+    final int blockSize = randomIntBetween(64, 1 << 14);
+    final byte[] data = randomArray(randomIntBetween(1, 1 << 17), randomIntBetween(2, 10));
+    final LZ4Compressor compressor = LZ4Factory.fastestInstance().highCompressor(randomIntBetween(1, 17));
+    final Path dump = Files.createTempFile("lz4", ".jfr");
+    final LZ4BlockOutputStream os;
+    try {
+      try (Recording recording = new Recording()) {
+        recording.enable("net.jpountz.lz4.Compression").withThreshold(Duration.ZERO);
+        recording.enable("net.jpountz.lz4.Decompression").withThreshold(Duration.ZERO);
+        recording.start();
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        os = new LZ4BlockOutputStream(compressed, blockSize, compressor);
+        os.write(data);
+        os.close();
+        final byte[] restored = new byte[data.length];
+        try (LZ4BlockInputStream is = new LZ4BlockInputStream(new ByteArrayInputStream(compressed.toByteArray()))) {
+          assertEquals(data.length, readFully(is, restored));
+        }
+        assertArrayEquals(data, restored);
+        recording.stop();
+        recording.dump(dump);
+      }
+      final List<RecordedEvent> events = RecordingFile.readAllEvents(dump);
+      int compressions = 0, decompressions = 0;
+      long compressedBytes = 0;
+      for (RecordedEvent event : events) {
+        if (event.getEventType().getName().equals("net.jpountz.lz4.Compression")) {
+          assertEquals("LZ4BlockOutputStream", event.getString("source"));
+          assertEquals(LZ4JavaMonitor.implementationName(compressor.implementation(event.getInt("srcLen"))), event.getString("implementation"));
+          assertEquals(compressor.compressionLevel(), event.getInt("level"));
+          compressedBytes += event.getInt("srcLen");
+          ++compressions;
+        } else if (event.getEventType().getName().equals("net.jpountz.lz4.Decompression")) {
+          assertEquals("LZ4BlockInputStream", event.getString("source"));
+          ++decompressions;
+        }
+      }
+      assertEquals(os.getBlockCount(), compressions);
+      assertEquals(data.length, compressedBytes);
+      assertEquals(os.getBlockCount() - os.getRawBlockCount(), decompressions);
+    } finally {
+      Files.delete(dump);
+    }
+  }
+
   @Test
   public void testRoundtripEmpty() throws IOException {
     testRoundTrip(new byte[0]);
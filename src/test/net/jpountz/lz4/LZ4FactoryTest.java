@@ -16,7 +16,23 @@ package net.jpountz.lz4;
  * limitations under the License.
  */
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import junit.framework.TestCase;
+import net.jpountz.util.LZ4JavaMonitor;
+import net.jpountz.util.Native;
+import net.jpountz.xxhash.XXHashFactory;
 
 public class LZ4FactoryTest extends TestCase {
 
@@ -37,4 +53,233 @@ public class LZ4FactoryTest extends TestCase {
     assertEquals(LZ4JavaSafeSafeDecompressor.INSTANCE, LZ4Factory.safeInstance().safeDecompressor());
   }
 
+  public void testHighCompressors() {
+    for (LZ4Factory factory : Arrays.asList(LZ4Factory.nativeInstance(), LZ4Factory.unsafeInstance(), LZ4Factory.safeInstance())) {
+      assertSame(factory.highCompressor(), factory.highCompressor(LZ4Constants.DEFAULT_COMPRESSION_LEVEL));
+      for (int level = 1; level <= LZ4Constants.MAX_COMPRESSION_LEVEL; ++level) {
+        final LZ4Compressor compressor = factory.highCompressor(level);
+        assertSame(compressor, factory.highCompressor(level));
+        assertEquals(level, compressor.compressionLevel());
+      }
+      assertSame(factory.highCompressor(LZ4Constants.MAX_COMPRESSION_LEVEL), factory.highCompressor(LZ4Constants.MAX_COMPRESSION_LEVEL + 1));
+      assertSame(factory.highCompressor(), factory.highCompressor(0));
+    }
+  }
+
+  public void testFastCompressors() {
+    for (LZ4Factory factory : Arrays.asList(LZ4Factory.nativeInstance(), LZ4Factory.unsafeInstance(), LZ4Factory.safeInstance())) {
+      assertSame(factory.fastCompressor(), factory.fastCompressor(LZ4Constants.MEMORY_USAGE));
+      for (int memoryUsage = LZ4Constants.MIN_MEMORY_USAGE; memoryUsage <= LZ4Constants.MAX_MEMORY_USAGE; ++memoryUsage) {
+        assertSame(factory.fastCompressor(memoryUsage), factory.fastCompressor(memoryUsage));
+      }
+      for (int memoryUsage : new int[] {LZ4Constants.MIN_MEMORY_USAGE - 1, LZ4Constants.MAX_MEMORY_USAGE + 1}) {
+        try {
+          factory.fastCompressor(memoryUsage);
+          fail();
+        } catch (IllegalArgumentException e) {
+          // expected
+        }
+      }
+    }
+    assertSame(LZ4Factory.fastestJavaInstance().fastCompressor(12), LZ4Factory.nativeInstance().fastCompressor(12));
+
+    // larger tables find more matches in large inputs
+    final Random random = new Random(0);
+    final byte[][] words = new byte[10000][];
+    for (int i = 0; i < words.length; ++i) {
+      words[i] = new byte[4 + random.nextInt(12)];
+      for (int j = 0; j < words[i].length; ++j) {
+        words[i][j] = (byte) ('a' + random.nextInt(26));
+      }
+    }
+    final byte[] data = new byte[1 << 20];
+    for (int i = 0; i < data.length; ) {
+      final byte[] word = words[random.nextInt(words.length)];
+      for (int j = 0; j < word.length && i < data.length; ++j) {
+        data[i++] = word[j];
+      }
+    }
+    int previousLength = Integer.MAX_VALUE;
+    for (int memoryUsage : new int[] {LZ4Constants.MIN_MEMORY_USAGE, LZ4Constants.MEMORY_USAGE, LZ4Constants.MAX_MEMORY_USAGE}) {
+      final byte[] compressed = LZ4Factory.safeInstance().fastCompressor(memoryUsage).compress(data);
+      assertTrue(Arrays.equals(data, LZ4Factory.safeInstance().fastDecompressor().decompress(compressed, data.length)));
+      assertTrue(memoryUsage + ": " + compressed.length, compressed.length <= previousLength);
+      previousLength = compressed.length;
+    }
+  }
+
+  public void testHybridInstance() {
+    final LZ4Factory factory = LZ4Factory.hybridInstance();
+    assertSame(factory, LZ4Factory.hybridInstance());
+    assertTrue(factory.toString(), factory.fastCompressor() instanceof LZ4HybridCompressor);
+    assertTrue(factory.fastDecompressor() instanceof LZ4HybridFastDecompressor);
+    assertTrue(factory.safeDecompressor() instanceof LZ4HybridSafeDecompressor);
+    for (int len : new int[] {0, 1, 15, 100, 1000, 10000, 100000}) {
+      final byte[] data = new byte[len];
+      for (int i = 0; i < len; ++i) {
+        data[i] = (byte) ('a' + (i * 31 + i / 7) % 13);
+      }
+      for (LZ4Compressor compressor : Arrays.asList(factory.fastCompressor(), factory.highCompressor(), factory.highCompressor(3))) {
+        final byte[] compressed = compressor.compress(data);
+        assertTrue(Arrays.equals(data, factory.fastDecompressor().decompress(compressed, len)));
+        assertTrue(Arrays.equals(data, factory.safeDecompressor().decompress(compressed, len)));
+      }
+    }
+  }
+
+  public void testHybridDispatch() {
+    final LZ4Compressor java = LZ4Factory.safeInstance().fastCompressor();
+    final LZ4Compressor jni = LZ4Factory.nativeInstance().fastCompressor();
+    final LZ4Compressor compressor = new LZ4HybridCompressor(java, jni, 100);
+    assertEquals("LZ4HybridCompressor(" + java + " below 100 bytes, " + jni + " above)", compressor.toString());
+    final byte[] data = new byte[1000];
+    assertTrue(Arrays.equals(jni.compress(data), compressor.compress(data)));
+    assertTrue(Arrays.equals(java.compress(data, 0, 10), compressor.compress(data, 0, 10)));
+  }
+
+  public void testImplementation() {
+    final Object[][] factories = {
+        {LZ4Factory.nativeInstance(), LZ4JavaMonitor.JNI},
+        {LZ4Factory.unsafeInstance(), LZ4JavaMonitor.UNSAFE},
+        {LZ4Factory.safeInstance(), LZ4JavaMonitor.SAFE}};
+    for (Object[] entry : factories) {
+      final LZ4Factory factory = (LZ4Factory) entry[0];
+      final int implementation = (Integer) entry[1];
+      for (int len : new int[] { 0, 1 << 20 }) {
+        assertEquals(implementation, factory.fastCompressor().implementation(len));
+        assertEquals(implementation, factory.highCompressor().implementation(len));
+        assertEquals(implementation, factory.highCompressor(3).implementation(len));
+        assertEquals(implementation, factory.fastDecompressor().implementation(len));
+        assertEquals(implementation, factory.safeDecompressor().implementation(len));
+        assertEquals(implementation, new LZ4AdaptiveCompressor(factory, 100).implementation(len));
+        assertEquals(implementation, new LZ4MetricsRecorder().instrument(factory.fastCompressor()).implementation(len));
+        assertEquals(implementation, new LZ4MetricsRecorder().instrument(factory.safeDecompressor()).implementation(len));
+      }
+    }
+    // hybrids report the implementation they dispatch to
+    final LZ4Factory safe = LZ4Factory.safeInstance();
+    final LZ4Factory jni = LZ4Factory.nativeInstance();
+    final LZ4Compressor compressor = new LZ4HybridCompressor(safe.fastCompressor(), jni.fastCompressor(), 100);
+    final LZ4FastDecompressor fastDecompressor = new LZ4HybridFastDecompressor(safe.fastDecompressor(), jni.fastDecompressor(), 100);
+    final LZ4SafeDecompressor safeDecompressor = new LZ4HybridSafeDecompressor(safe.safeDecompressor(), jni.safeDecompressor(), 100);
+    assertEquals(LZ4JavaMonitor.SAFE, compressor.implementation(99));
+    assertEquals(LZ4JavaMonitor.JNI, compressor.implementation(100));
+    assertEquals(LZ4JavaMonitor.SAFE, fastDecompressor.implementation(99));
+    assertEquals(LZ4JavaMonitor.JNI, fastDecompressor.implementation(100));
+    assertEquals(LZ4JavaMonitor.SAFE, safeDecompressor.implementation(99));
+    assertEquals(LZ4JavaMonitor.JNI, safeDecompressor.implementation(100));
+    assertEquals(LZ4JavaMonitor.SAFE, new LZ4MetricsRecorder().instrument(compressor).implementation(99));
+    assertEquals(LZ4JavaMonitor.JNI, new LZ4MetricsRecorder().instrument(compressor).implementation(100));
+    final LZ4Factory hybrid = LZ4Factory.hybridInstance();
+    assertEquals(LZ4Factory.fastestJavaInstance().fastCompressor().implementation(0), hybrid.fastCompressor().implementation(0));
+    assertEquals(LZ4JavaMonitor.JNI, hybrid.fastCompressor().implementation(1 << 20));
+    final LZ4Compressor custom = new LZ4Compressor() {
+      @Override
+      public int compress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int maxDestLen) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public int compress(ByteBuffer src, int srcOff, int srcLen, ByteBuffer dest, int destOff, int maxDestLen) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public String toString() {
+        return "JNI";
+      }
+    };
+    assertEquals(LZ4JavaMonitor.UNKNOWN, custom.implementation(0));
+  }
+
+  public void testMonitor() throws Exception {
+    final LZ4Factory lz4 = LZ4Factory.fastestInstance();
+    final XXHashFactory xxhash = XXHashFactory.fastestInstance();
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    final ObjectName name = new ObjectName(LZ4JavaMonitor.OBJECT_NAME);
+    if (!Boolean.getBoolean("lz4java.jmx")) {
+      // registration is opt-in
+      assertFalse(server.isRegistered(name));
+      // and streams only count bytes while the monitor is registered
+      final long safe = LZ4JavaMonitor.getInstance().getSafeBytesProcessed();
+      compress(LZ4Factory.safeInstance().fastCompressor(), new byte[100000]);
+      assertEquals(safe, LZ4JavaMonitor.getInstance().getSafeBytesProcessed());
+    }
+    assertTrue(LZ4JavaMonitor.register());
+    try {
+      testRegisteredMonitor(lz4, xxhash, server, name);
+    } finally {
+      LZ4JavaMonitor.unregister();
+    }
+    assertFalse(server.isRegistered(name));
+  }
+
+  private static void testRegisteredMonitor(LZ4Factory lz4, XXHashFactory xxhash, MBeanServer server, ObjectName name) throws Exception {
+    assertTrue(server.isRegistered(name));
+    assertEquals(lz4.toString(), server.getAttribute(name, "LZ4FastestInstance"));
+    assertEquals(xxhash.toString(), server.getAttribute(name, "XXHashFastestInstance"));
+    assertEquals(LZ4Factory.fastestJavaInstance().toString(), server.getAttribute(name, "LZ4FastestJavaInstance"));
+    assertEquals(lz4 == LZ4Factory.nativeInstance(), server.getAttribute(name, "NativeLoaded"));
+    if (lz4 == LZ4Factory.nativeInstance()) {
+      assertNotNull(server.getAttribute(name, "NativeLibrary"));
+    } else {
+      assertNotNull(server.getAttribute(name, "NativeLoadError"));
+    }
+
+    final LZ4JavaMonitor monitor = LZ4JavaMonitor.getInstance();
+    final long jni = monitor.getJNIBytesProcessed();
+    final long unsafe = monitor.getUnsafeBytesProcessed();
+    final long safe = monitor.getSafeBytesProcessed();
+    final byte[] data = new byte[100000];
+    Arrays.fill(data, (byte) 'a');
+    compress(LZ4Factory.nativeInstance().fastCompressor(), data);
+    compress(LZ4Factory.unsafeInstance().highCompressor(), data);
+    compress(LZ4Factory.safeInstance().fastCompressor(), data);
+    compress(new LZ4AdaptiveCompressor(LZ4Factory.safeInstance(), 100), data);
+    // blocks are below the threshold, so they are credited to the Java implementation
+    compress(new LZ4HybridCompressor(LZ4Factory.safeInstance().fastCompressor(), LZ4Factory.nativeInstance().fastCompressor(), 1 << 17), data);
+    assertEquals(jni + data.length, monitor.getJNIBytesProcessed());
+    assertEquals(unsafe + data.length, monitor.getUnsafeBytesProcessed());
+    assertEquals(safe + 3 * data.length, monitor.getSafeBytesProcessed());
+    assertEquals(monitor.getJNIBytesProcessed(), server.getAttribute(name, "JNIBytesProcessed"));
+  }
+
+  private static void compress(LZ4Compressor compressor, byte[] data) throws IOException {
+    try (LZ4BlockOutputStream out = new LZ4BlockOutputStream(new ByteArrayOutputStream(), 1 << 16, compressor)) {
+      out.write(data);
+    }
+  }
+
+  public void testIsolatedClassLoaders() throws Exception {
+    LZ4Factory.nativeInstance(); // make sure the system class loader loaded the library first
+    if ("false".equals(System.getProperty("lz4java.jnilib.isolated")) || !hasBundledLibrary()) {
+      return; // the bundled library is required to load private copies
+    }
+    final String[] classPath = System.getProperty("java.class.path").split(File.pathSeparator);
+    final URL[] urls = new URL[classPath.length];
+    for (int i = 0; i < classPath.length; ++i) {
+      urls[i] = new File(classPath[i]).toURI().toURL();
+    }
+    for (int i = 0; i < 2; ++i) {
+      // no parent, like webapps which load their own copy of lz4-java
+      try (URLClassLoader loader = new URLClassLoader(urls, null)) {
+        final Class<?> factory = loader.loadClass(LZ4Factory.class.getName());
+        assertNotSame(LZ4Factory.class, factory);
+        assertEquals("LZ4Factory:JNI", factory.getMethod("fastestInstance").invoke(null).toString());
+        final Class<?> hashFactory = loader.loadClass(XXHashFactory.class.getName());
+        assertEquals("XXHashFactory:JNI", hashFactory.getMethod("fastestInstance").invoke(null).toString());
+      }
+    }
+  }
+
+  private static boolean hasBundledLibrary() {
+    final String arch = System.getProperty("os.arch");
+    for (String lib : new String[] { "linux/" + arch + "/liblz4-java.so", "darwin/" + arch + "/liblz4-java.dylib", "win32/" + arch + "/liblz4-java.so" }) {
+      if (Native.class.getResource("/net/jpountz/util/" + lib) != null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
 }
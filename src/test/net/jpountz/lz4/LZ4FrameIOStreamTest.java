@@ -16,6 +16,7 @@ package net.jpountz.lz4;
  * limitations under the License.
  */
 
+import net.jpountz.xxhash.XXHashFactory;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Assume;
@@ -31,15 +32,20 @@ import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.SequenceInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PrintStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.IntBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
@@ -375,6 +381,533 @@ public class LZ4FrameIOStreamTest {
     }
   }
 
+  @Test
+  public void testSeekableFrame() throws IOException {
+    final File lz4File = Files.createTempFile("lz4test", ".lz4").toFile();
+    try {
+      final LZ4FrameOutputStream.FLG.Bits[] bits = testSize % 2 == 0
+          ? new LZ4FrameOutputStream.FLG.Bits[] {LZ4FrameOutputStream.FLG.Bits.BLOCK_INDEPENDENCE}
+          : new LZ4FrameOutputStream.FLG.Bits[] {LZ4FrameOutputStream.FLG.Bits.BLOCK_INDEPENDENCE,
+                                                  LZ4FrameOutputStream.FLG.Bits.BLOCK_CHECKSUM,
+                                                  LZ4FrameOutputStream.FLG.Bits.CONTENT_CHECKSUM,
+                                                  LZ4FrameOutputStream.FLG.Bits.CONTENT_SIZE};
+      try (OutputStream os = new LZ4FrameOutputStream(new FileOutputStream(lz4File),
+                                                      LZ4FrameOutputStream.BLOCKSIZE.SIZE_64KB,
+                                                      testSize,
+                                                      LZ4Factory.fastestInstance().fastCompressor(),
+                                                      XXHashFactory.fastestInstance().hash32(),
+                                                      true,
+                                                      bits)) {
+        try (InputStream is = new FileInputStream(tmpFile)) {
+          copy(is, os);
+        }
+      }
+      // the block index must be ignored by regular decoders
+      try (InputStream is = new LZ4FrameInputStream(new FileInputStream(lz4File))) {
+        validateStreamEquals(is, tmpFile);
+        Assert.assertEquals(-1, is.read());
+      }
+
+      final byte[] expected = Files.readAllBytes(tmpFile.toPath());
+      try (LZ4SeekableFrameInputStream is = new LZ4SeekableFrameInputStream(FileChannel.open(lz4File.toPath()))) {
+        Assert.assertEquals(testSize, is.length());
+        validateStreamEquals(is, tmpFile);
+        Assert.assertEquals(-1, is.read());
+
+        final Random rnd = new Random(testSize);
+        final byte[] actual = new byte[1 << 17];
+        for (int i = 0; i < 100; ++i) {
+          final int offset = rnd.nextInt(testSize + 1);
+          final int len = Math.min(rnd.nextInt(actual.length), testSize - offset);
+          is.seek(offset);
+          Assert.assertEquals(offset, is.position());
+          int read = 0;
+          while (read < len) {
+            final int r = is.read(actual, read, len - read);
+            Assert.assertTrue(r > 0);
+            read += r;
+          }
+          for (int j = 0; j < len; ++j) {
+            Assert.assertEquals(expected[offset + j], actual[j]);
+          }
+          if (offset + len < testSize) {
+            Assert.assertEquals(expected[offset + len] & 0xFF, is.read());
+          } else {
+            Assert.assertEquals(-1, is.read());
+          }
+        }
+
+        is.seek(0);
+        final long skipped = is.skip(testSize / 2);
+        Assert.assertEquals(testSize / 2, skipped);
+        Assert.assertEquals(testSize == 0 ? -1 : expected[testSize / 2] & 0xFF, is.read());
+      }
+    } finally {
+      lz4File.delete();
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testSeekableFrameWithoutIndex() throws IOException {
+    final File lz4File = Files.createTempFile("lz4test", ".lz4").toFile();
+    try {
+      try (OutputStream os = new LZ4FrameOutputStream(new FileOutputStream(lz4File))) {
+        try (InputStream is = new FileInputStream(tmpFile)) {
+          copy(is, os);
+        }
+      }
+      try (FileChannel channel = FileChannel.open(lz4File.toPath())) {
+        new LZ4SeekableFrameInputStream(channel);
+      }
+    } finally {
+      lz4File.delete();
+    }
+  }
+
+  @Test
+  public void testChannels() throws IOException {
+    testChannels(LZ4Factory.nativeInstance(), XXHashFactory.nativeInstance());
+    testChannels(LZ4Factory.unsafeInstance(), XXHashFactory.unsafeInstance());
+    testChannels(LZ4Factory.safeInstance(), XXHashFactory.safeInstance());
+  }
+
+  private void testChannels(LZ4Factory lz4Factory, XXHashFactory xxHashFactory) throws IOException {
+    final File lz4File = Files.createTempFile("lz4test", ".lz4").toFile();
+    try {
+      final LZ4FrameOutputStream.FLG.Bits[] bits = testSize % 2 == 0
+          ? new LZ4FrameOutputStream.FLG.Bits[] {LZ4FrameOutputStream.FLG.Bits.BLOCK_INDEPENDENCE}
+          : new LZ4FrameOutputStream.FLG.Bits[] {LZ4FrameOutputStream.FLG.Bits.BLOCK_INDEPENDENCE,
+                                                  LZ4FrameOutputStream.FLG.Bits.BLOCK_CHECKSUM,
+                                                  LZ4FrameOutputStream.FLG.Bits.CONTENT_CHECKSUM,
+                                                  LZ4FrameOutputStream.FLG.Bits.CONTENT_SIZE};
+      final byte[] expected = Files.readAllBytes(tmpFile.toPath());
+      try (LZ4FrameWritableByteChannel channel = new LZ4FrameWritableByteChannel(
+          FileChannel.open(lz4File.toPath(), StandardOpenOption.WRITE),
+          LZ4FrameOutputStream.BLOCKSIZE.SIZE_64KB,
+          testSize,
+          lz4Factory.fastCompressor(),
+          xxHashFactory.hash32(),
+          bits)) {
+        // mix of small writes and writes of several blocks from direct memory
+        final ByteBuffer src = ByteBuffer.allocateDirect(expected.length);
+        src.put(expected).flip();
+        final Random rnd = new Random(testSize);
+        while (src.hasRemaining()) {
+          final ByteBuffer slice = src.duplicate();
+          slice.limit(slice.position() + Math.min(src.remaining(), rnd.nextInt(1 << 18)));
+          src.position(src.position() + slice.remaining());
+          Assert.assertEquals(slice.remaining(), channel.write(slice));
+          Assert.assertFalse(slice.hasRemaining());
+        }
+      }
+      try (InputStream is = new LZ4FrameInputStream(new FileInputStream(lz4File))) {
+        validateStreamEquals(is, tmpFile);
+        Assert.assertEquals(-1, is.read());
+      }
+
+      for (int dstSize : new int[] {1 << 10, 1 << 17}) {
+        try (ReadableByteChannel channel = new LZ4FrameReadableByteChannel(FileChannel.open(lz4File.toPath()),
+            lz4Factory.safeDecompressor(), xxHashFactory.hash32(), false)) {
+          final ByteBuffer actual = ByteBuffer.allocate(expected.length);
+          final ByteBuffer dst = ByteBuffer.allocateDirect(dstSize);
+          while (channel.read(dst) >= 0) {
+            dst.flip();
+            actual.put(dst);
+            dst.clear();
+          }
+          Assert.assertArrayEquals(expected, actual.array());
+        }
+      }
+    } finally {
+      lz4File.delete();
+    }
+  }
+
+  @Test
+  public void testReadableChannelReadsStream() throws IOException {
+    final File lz4File = Files.createTempFile("lz4test", ".lz4").toFile();
+    try {
+      try (OutputStream os = new LZ4FrameOutputStream(new FileOutputStream(lz4File),
+                                                      LZ4FrameOutputStream.BLOCKSIZE.SIZE_64KB,
+                                                      LZ4FrameOutputStream.FLG.Bits.BLOCK_INDEPENDENCE,
+                                                      LZ4FrameOutputStream.FLG.Bits.BLOCK_CHECKSUM,
+                                                      LZ4FrameOutputStream.FLG.Bits.CONTENT_CHECKSUM)) {
+        try (InputStream is = new FileInputStream(tmpFile)) {
+          copy(is, os);
+        }
+      }
+      // non-scattering channel
+      try (InputStream is = Channels.newInputStream(new LZ4FrameReadableByteChannel(
+          Channels.newChannel(new FileInputStream(lz4File))))) {
+        validateStreamEquals(is, tmpFile);
+        Assert.assertEquals(-1, is.read());
+      }
+    } finally {
+      lz4File.delete();
+    }
+  }
+
+  @Test
+  public void testReadableChannelDoesNotReadAhead() throws IOException {
+    // request/response: every message must be readable as soon as it has been
+    // flushed, without waiting for the next one
+    final byte[] expected = Files.readAllBytes(tmpFile.toPath());
+    final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    final LZ4FrameWritableByteChannel out = new LZ4FrameWritableByteChannel(Channels.newChannel(compressed),
+        LZ4FrameOutputStream.BLOCKSIZE.SIZE_64KB,
+        LZ4FrameOutputStream.FLG.Bits.BLOCK_INDEPENDENCE,
+        LZ4FrameOutputStream.FLG.Bits.BLOCK_CHECKSUM);
+    final AbstractLZ4Test.AvailableBytesChannel channel = new AbstractLZ4Test.AvailableBytesChannel();
+    final ReadableByteChannel in = new LZ4FrameReadableByteChannel(channel);
+    final Random rnd = new Random(testSize);
+    for (int off = 0; off < expected.length; ) {
+      final int len = Math.min(expected.length - off, 1 + rnd.nextInt(1 << 17));
+      out.write(ByteBuffer.wrap(expected, off, len));
+      out.flush();
+      channel.append(compressed.toByteArray());
+      compressed.reset();
+      final ByteBuffer actual = ByteBuffer.allocate(len);
+      while (actual.hasRemaining()) {
+        Assert.assertTrue(in.read(actual) > 0);
+      }
+      Assert.assertArrayEquals(Arrays.copyOfRange(expected, off, off + len), actual.array());
+      off += len;
+    }
+    out.close();
+    channel.append(compressed.toByteArray());
+    channel.end();
+    Assert.assertEquals(-1, in.read(ByteBuffer.allocate(1)));
+    in.close();
+  }
+
+  @Test
+  public void testCommandLineThreads() throws IOException {
+    // the output must not depend on whether files are compressed in parallel
+    final String[][] options = {
+        {},
+        {"--content-size"},
+        {"--no-frame-crc", "-BX"},
+        {"--content-size", "--no-frame-crc", "-BX"}
+    };
+    final File single = Files.createTempFile("lz4test", ".lz4").toFile();
+    final File parallel = Files.createTempFile("lz4test", ".lz4").toFile();
+    final PrintStream nullStream = new PrintStream(new ByteArrayOutputStream());
+    try {
+      for (String[] option : options) {
+        final List<String> args = new ArrayList<>(Arrays.asList("-q", "-f", "-B4"));
+        args.addAll(Arrays.asList(option));
+        final List<String> singleArgs = new ArrayList<>(args);
+        singleArgs.addAll(Arrays.asList("-T1", tmpFile.getPath(), single.getPath()));
+        Assert.assertEquals(0, LZ4CommandLine.run(singleArgs.toArray(new String[0]), System.in, nullStream, nullStream));
+        final List<String> parallelArgs = new ArrayList<>(args);
+        parallelArgs.addAll(Arrays.asList("-T3", tmpFile.getPath(), parallel.getPath()));
+        Assert.assertEquals(0, LZ4CommandLine.run(parallelArgs.toArray(new String[0]), System.in, nullStream, nullStream));
+        Assert.assertArrayEquals(Arrays.toString(option),
+            Files.readAllBytes(single.toPath()), Files.readAllBytes(parallel.toPath()));
+        try (InputStream is = new LZ4FrameInputStream(new FileInputStream(parallel))) {
+          validateStreamEquals(is, tmpFile);
+        }
+      }
+    } finally {
+      single.delete();
+      parallel.delete();
+    }
+  }
+
+  @Test
+  public void testParallelFiles() throws IOException {
+    final File lz4File = Files.createTempFile("lz4test", ".lz4").toFile();
+    final File restored = Files.createTempFile("lz4test", ".dat").toFile();
+    try {
+      final int threads = 1 + testSize % 4;
+      LZ4Files.compress(tmpFile.toPath(), lz4File.toPath(), LZ4Factory.fastestInstance().fastCompressor(),
+          LZ4FrameOutputStream.BLOCKSIZE.SIZE_64KB, threads);
+      try (InputStream is = new LZ4FrameInputStream(new FileInputStream(lz4File))) {
+        validateStreamEquals(is, tmpFile);
+        Assert.assertEquals(-1, is.read());
+      }
+      LZ4Files.decompress(lz4File.toPath(), restored.toPath(), LZ4Factory.fastestInstance().safeDecompressor(), threads);
+      Assert.assertArrayEquals(Files.readAllBytes(tmpFile.toPath()), Files.readAllBytes(restored.toPath()));
+
+      // frames which have not been written by LZ4Files, concatenated to a skippable frame
+      try (OutputStream os = new FileOutputStream(lz4File)) {
+        os.write(new byte[] {0x50, 0x2A, 0x4D, 0x18, 3, 0, 0, 0, 1, 2, 3});
+        try (OutputStream fos = new LZ4FrameOutputStream(new FilterOutputStream(os) {
+                                                           @Override
+                                                           public void close() {
+                                                             // keep os open
+                                                           }
+                                                         },
+                                                         LZ4FrameOutputStream.BLOCKSIZE.SIZE_256KB,
+                                                         LZ4FrameOutputStream.FLG.Bits.BLOCK_INDEPENDENCE,
+                                                         LZ4FrameOutputStream.FLG.Bits.BLOCK_CHECKSUM,
+                                                         LZ4FrameOutputStream.FLG.Bits.CONTENT_CHECKSUM)) {
+          try (InputStream is = new FileInputStream(tmpFile)) {
+            copy(is, fos);
+          }
+        }
+        try (OutputStream fos = new LZ4FrameOutputStream(os, LZ4FrameOutputStream.BLOCKSIZE.SIZE_64KB)) {
+          fos.write(42);
+        }
+      }
+      LZ4Files.decompress(lz4File.toPath(), restored.toPath());
+      final byte[] expected = Arrays.copyOf(Files.readAllBytes(tmpFile.toPath()), testSize + 1);
+      expected[testSize] = 42;
+      Assert.assertArrayEquals(expected, Files.readAllBytes(restored.toPath()));
+    } finally {
+      lz4File.delete();
+      restored.delete();
+    }
+  }
+
+  @Test
+  public void testCommandLine() throws IOException {
+    final File dir = Files.createTempDirectory("lz4test").toFile();
+    final File lz4File = new File(dir, "data.lz4");
+    final File restored = new File(dir, "data");
+    final ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+    final ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+    final PrintStream out = new PrintStream(stdout);
+    final PrintStream err = new PrintStream(stderr);
+    final byte[] data = Files.readAllBytes(tmpFile.toPath());
+    try {
+      final String threads = "-T" + (1 + testSize % 2);
+      final String blockChecksum = testSize % 3 == 0 ? "-BX" : "-B5";
+      Assert.assertEquals(0, LZ4CommandLine.run(new String[] {"-f", "-B4", blockChecksum, threads,
+          tmpFile.getPath(), lz4File.getPath()}, null, out, err));
+      try (InputStream is = new LZ4FrameInputStream(new FileInputStream(lz4File))) {
+        validateStreamEquals(is, tmpFile);
+        Assert.assertEquals(-1, is.read());
+      }
+      // existing files are not overwritten without -f
+      Assert.assertEquals(1, LZ4CommandLine.run(new String[] {tmpFile.getPath(), lz4File.getPath()}, null, out, err));
+
+      Assert.assertEquals(0, LZ4CommandLine.run(new String[] {"-t", lz4File.getPath()}, null, out, err));
+      Assert.assertEquals(0, LZ4CommandLine.run(new String[] {"-dq", threads, "-m", lz4File.getPath()}, null, out, err));
+      Assert.assertArrayEquals(data, Files.readAllBytes(restored.toPath()));
+      Assert.assertEquals(1, LZ4CommandLine.run(new String[] {"-d", restored.getPath()}, null, out, err));
+      stderr.reset();
+      Assert.assertEquals(1, LZ4CommandLine.run(new String[] {dir.getPath()}, null, out, err));
+      err.flush();
+      Assert.assertTrue(stderr.toString("UTF-8"), stderr.toString("UTF-8").contains(dir.getPath() + ": is a directory"));
+      stderr.reset();
+      Assert.assertEquals(1, LZ4CommandLine.run(new String[] {new File(dir, "missing").getPath()}, null, out, err));
+      err.flush();
+      Assert.assertTrue(stderr.toString("UTF-8"), stderr.toString("UTF-8").contains("missing: no such file"));
+
+      // standard input and output
+      stdout.reset();
+      Assert.assertEquals(0, LZ4CommandLine.run(new String[] {"-9", "--content-size"}, new ByteArrayInputStream(data), out, err));
+      out.flush();
+      final byte[] compressed = stdout.toByteArray();
+      stdout.reset();
+      Assert.assertEquals(0, LZ4CommandLine.run(new String[] {"-d", "-c", "-"}, new ByteArrayInputStream(compressed), out, err));
+      out.flush();
+      Assert.assertArrayEquals(data, stdout.toByteArray());
+      Assert.assertEquals(1, LZ4CommandLine.run(new String[] {"-d"}, new ByteArrayInputStream(data, 0, testSize / 2), out, err));
+      // -0 is the fast level
+      stdout.reset();
+      Assert.assertEquals(0, LZ4CommandLine.run(new String[] {"-0"}, new ByteArrayInputStream(data), out, err));
+      out.flush();
+      final byte[] fast = stdout.toByteArray();
+      stdout.reset();
+      Assert.assertEquals(0, LZ4CommandLine.run(new String[] {"-1"}, new ByteArrayInputStream(data), out, err));
+      out.flush();
+      Assert.assertArrayEquals(stdout.toByteArray(), fast);
+
+      Assert.assertEquals(1, LZ4CommandLine.run(new String[] {"-42"}, null, out, err));
+      Assert.assertEquals(1, LZ4CommandLine.run(new String[] {"-BD"}, null, out, err));
+
+      if (testSize <= 1 << 16) {
+        stdout.reset();
+        Assert.assertEquals(0, LZ4CommandLine.run(new String[] {"-b1", "-e3", "-i0", "-B4", tmpFile.getPath()}, null, out, err));
+        out.flush();
+        final String report = stdout.toString("UTF-8");
+        Assert.assertTrue(report, report.contains("unsafe  3#"));
+        Assert.assertTrue(report, report.contains("safe    1#"));
+      }
+    } finally {
+      lz4File.delete();
+      restored.delete();
+      dir.delete();
+    }
+  }
+
+  @Test
+  public void testBufferPool() throws IOException {
+    final AbstractLZ4Test.TrackingBufferPool pool = new AbstractLZ4Test.TrackingBufferPool(LZ4BufferPool.defaultInstance());
+    final byte[] data = Files.readAllBytes(tmpFile.toPath());
+    final LZ4FrameOutputStream.BLOCKSIZE blockSize = LZ4FrameOutputStream.BLOCKSIZE.values()[testSize % 4];
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    try (OutputStream os = new LZ4FrameOutputStream(expected, blockSize, LZ4FrameOutputStream.FLG.Bits.BLOCK_INDEPENDENCE,
+        LZ4FrameOutputStream.FLG.Bits.CONTENT_CHECKSUM)) {
+      os.write(data);
+    }
+    for (int i = 0; i < 2; ++i) {
+      final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      final OutputStream os = new LZ4FrameOutputStream(compressed, blockSize, -1L, LZ4Factory.fastestInstance().fastCompressor(),
+          XXHashFactory.fastestInstance().hash32(), false, pool, LZ4FrameOutputStream.FLG.Bits.BLOCK_INDEPENDENCE,
+          LZ4FrameOutputStream.FLG.Bits.CONTENT_CHECKSUM);
+      os.write(data);
+      os.close();
+      os.close();
+      Assert.assertArrayEquals(expected.toByteArray(), compressed.toByteArray());
+      Assert.assertEquals(0, pool.outstanding());
+
+      // two concatenated frames reuse the same buffers
+      final byte[] twoFrames = Arrays.copyOf(compressed.toByteArray(), 2 * compressed.size());
+      System.arraycopy(twoFrames, 0, twoFrames, compressed.size(), compressed.size());
+      final int borrowCount = pool.borrowCount;
+      final InputStream is = new LZ4FrameInputStream(new ByteArrayInputStream(twoFrames),
+          LZ4Factory.fastestInstance().safeDecompressor(), XXHashFactory.fastestInstance().hash32(), false, pool);
+      final ByteArrayOutputStream restored = new ByteArrayOutputStream();
+      copy(is, restored);
+      Assert.assertEquals(borrowCount + 2, pool.borrowCount);
+      is.close();
+      is.close();
+      Assert.assertEquals(0, pool.outstanding());
+      final byte[] expectedData = Arrays.copyOf(data, 2 * data.length);
+      System.arraycopy(data, 0, expectedData, data.length, data.length);
+      Assert.assertArrayEquals(expectedData, restored.toByteArray());
+      try {
+        is.read();
+        Assert.fail();
+      } catch (IOException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void testMetrics() throws IOException {
+    final byte[] data = Files.readAllBytes(tmpFile.toPath());
+    final LZ4FrameOutputStream.BLOCKSIZE blockSize = LZ4FrameOutputStream.BLOCKSIZE.values()[testSize % 2];
+    final int maxBlockSize = 1 << (2 * blockSize.getIndicator() + 8);
+    final LZ4MetricsRecorder recorder = new LZ4MetricsRecorder();
+    final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    LZ4Metrics.setDefault(recorder);
+    try {
+      try (OutputStream os = new LZ4FrameOutputStream(compressed, blockSize, LZ4FrameOutputStream.FLG.Bits.BLOCK_INDEPENDENCE,
+          LZ4FrameOutputStream.FLG.Bits.CONTENT_CHECKSUM)) {
+        os.write(data);
+      }
+      // a second frame with larger blocks requires larger buffers
+      try (OutputStream os = new LZ4FrameOutputStream(compressed, LZ4FrameOutputStream.BLOCKSIZE.SIZE_4MB,
+          LZ4FrameOutputStream.FLG.Bits.BLOCK_INDEPENDENCE)) {
+        os.write(data, 0, Math.min(data.length, 1000));
+      }
+      try (InputStream is = new LZ4FrameInputStream(new ByteArrayInputStream(compressed.toByteArray()))) {
+        final ByteArrayOutputStream restored = new ByteArrayOutputStream();
+        copy(is, restored);
+        Assert.assertEquals(data.length + Math.min(data.length, 1000), restored.size());
+      }
+    } finally {
+      LZ4Metrics.setDefault(LZ4Metrics.disabled());
+    }
+    final long blocks = (data.length + maxBlockSize - 1) / maxBlockSize + (data.length > 0 ? 1 : 0);
+    Assert.assertEquals(blocks, recorder.getCompressCount());
+    Assert.assertEquals(data.length + Math.min(data.length, 1000), recorder.getCompressBytesIn());
+    Assert.assertEquals(blocks, recorder.getDecompressCount() + recorder.getIncompressibleBlocks());
+    // content checksums of the first frame, when writing and when reading
+    Assert.assertEquals(2L * data.length, recorder.getHashBytes());
+    Assert.assertEquals(1, recorder.getBufferReallocations());
+  }
+
+  @Test
+  public void testReadIntoCallerBuffer() throws IOException {
+    final byte[] data = Files.readAllBytes(tmpFile.toPath());
+    final LZ4FrameOutputStream.BLOCKSIZE blockSize = LZ4FrameOutputStream.BLOCKSIZE.values()[testSize % 2];
+    final int maxBlockSize = 1 << (2 * blockSize.getIndicator() + 8);
+    final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (OutputStream os = new LZ4FrameOutputStream(compressed, blockSize, LZ4FrameOutputStream.FLG.Bits.BLOCK_INDEPENDENCE,
+        LZ4FrameOutputStream.FLG.Bits.BLOCK_CHECKSUM, LZ4FrameOutputStream.FLG.Bits.CONTENT_CHECKSUM)) {
+      os.write(data);
+    }
+
+    // reads of at least a block return exactly one block
+    try (InputStream is = new LZ4FrameInputStream(new ByteArrayInputStream(compressed.toByteArray()))) {
+      final byte[] restored = new byte[data.length + maxBlockSize];
+      int off = 0;
+      for (int read = is.read(restored, off, maxBlockSize); read != -1; read = is.read(restored, off, maxBlockSize)) {
+        Assert.assertEquals(Math.min(maxBlockSize, data.length - off), read);
+        Assert.assertEquals(0, is.available());
+        off += read;
+      }
+      Assert.assertEquals(data.length, off);
+      Assert.assertArrayEquals(data, Arrays.copyOf(restored, off));
+    }
+
+    try (LZ4FrameInputStream is = new LZ4FrameInputStream(new ByteArrayInputStream(compressed.toByteArray()))) {
+      final int head = testSize / 3;
+      Assert.assertArrayEquals(Arrays.copyOf(data, head), is.readNBytes(head));
+      Assert.assertArrayEquals(Arrays.copyOfRange(data, head, data.length), is.readAllBytes());
+      Assert.assertEquals(0, is.readAllBytes().length);
+    }
+  }
+
+  @Test
+  public void testLargeWritesSameOutput() throws IOException {
+    final byte[] data = Files.readAllBytes(tmpFile.toPath());
+    final LZ4FrameOutputStream.BLOCKSIZE blockSize = LZ4FrameOutputStream.BLOCKSIZE.values()[testSize % 2];
+    final int maxBlockSize = 1 << (2 * blockSize.getIndicator() + 8);
+    final LZ4FrameOutputStream.FLG.Bits[] bits = {LZ4FrameOutputStream.FLG.Bits.BLOCK_INDEPENDENCE,
+        LZ4FrameOutputStream.FLG.Bits.BLOCK_CHECKSUM, LZ4FrameOutputStream.FLG.Bits.CONTENT_CHECKSUM};
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    try (OutputStream os = new LZ4FrameOutputStream(expected, blockSize, bits)) {
+      for (int off = 0; off < data.length; off += 1000) {
+        os.write(data, off, Math.min(1000, data.length - off));
+      }
+    }
+    final Random random = new Random(testSize);
+    final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    try (OutputStream os = new LZ4FrameOutputStream(actual, blockSize, bits)) {
+      for (int off = 0; off < data.length; ) {
+        final int len = Math.min(data.length - off, random.nextBoolean() ? random.nextInt(3 * maxBlockSize) : maxBlockSize);
+        os.write(data, off, len);
+        off += len;
+      }
+    }
+    Assert.assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+  }
+
+  @Test
+  public void testTransferTo() throws IOException {
+    final byte[] data = Files.readAllBytes(tmpFile.toPath());
+    final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    for (int i = 0; i < 2; ++i) {
+      try (OutputStream os = new LZ4FrameOutputStream(new FilterOutputStream(compressed) {
+                                                        @Override
+                                                        public void close() {
+                                                          // keep compressed open
+                                                        }
+                                                      }, LZ4FrameOutputStream.BLOCKSIZE.SIZE_64KB,
+                                                      LZ4FrameOutputStream.FLG.Bits.BLOCK_INDEPENDENCE,
+                                                      LZ4FrameOutputStream.FLG.Bits.CONTENT_CHECKSUM)) {
+        os.write(data);
+      }
+    }
+    final int head = testSize / 2;
+    try (LZ4FrameInputStream is = new LZ4FrameInputStream(new ByteArrayInputStream(compressed.toByteArray()))) {
+      final byte[] restored = new byte[head];
+      int off = 0;
+      while (off < head) {
+        off += is.read(restored, off, head - off);
+      }
+      final ByteArrayOutputStream rest = new ByteArrayOutputStream();
+      Assert.assertEquals(2L * testSize - head, is.transferTo(rest));
+      final byte[] expected = Arrays.copyOf(data, 2 * testSize);
+      System.arraycopy(data, 0, expected, testSize, testSize);
+      Assert.assertArrayEquals(Arrays.copyOfRange(expected, head, expected.length), rest.toByteArray());
+      Assert.assertEquals(0L, is.transferTo(rest));
+      Assert.assertEquals(-1, is.read());
+    }
+    try (LZ4FrameInputStream is = new LZ4FrameInputStream(new ByteArrayInputStream(compressed.toByteArray()), true)) {
+      final ByteArrayOutputStream single = new ByteArrayOutputStream();
+      Assert.assertEquals(testSize, is.transferTo(single));
+      Assert.assertArrayEquals(data, single.toByteArray());
+    }
+  }
+
   @Test
   public void testInputOutputMultipleFrames() throws IOException {
     final File lz4File = Files.createTempFile("lz4test", ".lz4").toFile();
@@ -0,0 +1,192 @@
+package net.jpountz.lz4;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import net.jpountz.util.JNIStaging;
+import net.jpountz.xxhash.StreamingXXHash32;
+import net.jpountz.xxhash.StreamingXXHash64;
+import net.jpountz.xxhash.XXHashFactory;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.carrotsearch.randomizedtesting.annotations.Repeat;
+
+/**
+ * Runs the JNI bindings with inputs larger than
+ * <code>lz4java.jni.critical.maxlength</code>. The limit is read once, so the
+ * build runs this class in its own JVM with a small limit and it is skipped
+ * everywhere else.
+ */
+public class LZ4JNIStagingTest extends AbstractLZ4Test {
+
+  @BeforeClass
+  public static void checkLimit() {
+    assumeTrue("lz4java.jni.critical.maxlength is not set", JNIStaging.MAX_CRITICAL_LENGTH > 0);
+  }
+
+  private byte[] randomInput() {
+    // sometimes below the limit, mostly several times above it
+    final int len = randomBoolean()
+        ? randomIntBetween(0, JNIStaging.MAX_CRITICAL_LENGTH)
+        : randomIntBetween(JNIStaging.MAX_CRITICAL_LENGTH + 1, 10 * JNIStaging.MAX_CRITICAL_LENGTH);
+    return randomArray(len, randomIntBetween(1, 256));
+  }
+
+  private static ByteBuffer copyOf(byte[] bytes, int off, int len, boolean direct) {
+    final ByteBuffer buf = direct ? ByteBuffer.allocateDirect(off + len) : ByteBuffer.allocate(off + len);
+    buf.position(off);
+    buf.put(bytes, 0, len);
+    buf.clear();
+    return buf;
+  }
+
+  private static byte[] toArray(ByteBuffer buf, int off, int len) {
+    final byte[] bytes = new byte[len];
+    final ByteBuffer dup = buf.duplicate();
+    dup.position(off);
+    dup.get(bytes);
+    return bytes;
+  }
+
+  private void testCompress(LZ4Compressor compressor) {
+    final byte[] data = randomInput();
+    final int off = randomInt(10);
+    final int maxCompressedLength = compressor.maxCompressedLength(data.length);
+
+    // direct buffers are never staged, so they give the reference output
+    final ByteBuffer directSrc = copyOf(data, off, data.length, true);
+    final ByteBuffer directDest = ByteBuffer.allocateDirect(off + maxCompressedLength);
+    final int compressedLen = compressor.compress(directSrc, off, data.length, directDest, off, maxCompressedLength);
+    final byte[] expected = toArray(directDest, off, compressedLen);
+
+    final byte[] src = new byte[off + data.length];
+    System.arraycopy(data, 0, src, off, data.length);
+    final byte[] dest = new byte[off + maxCompressedLength];
+    assertEquals(compressedLen, compressor.compress(src, off, data.length, dest, off, maxCompressedLength));
+    assertArrayEquals(expected, Arrays.copyOfRange(dest, off, off + compressedLen));
+
+    final ByteBuffer heapSrc = copyOf(data, off, data.length, false);
+    final ByteBuffer heapDest = ByteBuffer.allocate(off + maxCompressedLength);
+    assertEquals(compressedLen, compressor.compress(heapSrc, off, data.length, heapDest, off, maxCompressedLength));
+    assertArrayEquals(expected, toArray(heapDest, off, compressedLen));
+
+    final LZ4SafeDecompressor safeDecompressor = LZ4Factory.nativeInstance().safeDecompressor();
+    final byte[] restored = new byte[off + data.length];
+    assertEquals(data.length, safeDecompressor.decompress(dest, off, compressedLen, restored, off, data.length));
+    assertArrayEquals(data, Arrays.copyOfRange(restored, off, off + data.length));
+    ByteBuffer restoredBuf = ByteBuffer.allocate(off + data.length);
+    assertEquals(data.length, safeDecompressor.decompress(heapDest, off, compressedLen, restoredBuf, off, data.length));
+    assertArrayEquals(data, toArray(restoredBuf, off, data.length));
+
+    final LZ4FastDecompressor fastDecompressor = LZ4Factory.nativeInstance().fastDecompressor();
+    Arrays.fill(restored, (byte) 0);
+    assertEquals(compressedLen, fastDecompressor.decompress(dest, off, restored, off, data.length));
+    assertArrayEquals(data, Arrays.copyOfRange(restored, off, off + data.length));
+    restoredBuf = ByteBuffer.allocate(off + data.length);
+    assertEquals(compressedLen, fastDecompressor.decompress(heapDest, off, restoredBuf, off, data.length));
+    assertArrayEquals(data, toArray(restoredBuf, off, data.length));
+  }
+
+  private void testCompressDestSize(LZ4Compressor compressor) {
+    final byte[] data = randomInput();
+    final int destCapacity = randomIntBetween(1, compressor.maxCompressedLength(data.length));
+
+    final ByteBuffer directDest = ByteBuffer.allocateDirect(destCapacity);
+    final int[] expectedSrcLen = new int[] { data.length };
+    final int expectedLen = compressor.compressDestSize(copyOf(data, 0, data.length, true), 0, expectedSrcLen, directDest, 0, destCapacity);
+    final byte[] expected = toArray(directDest, 0, expectedLen);
+
+    final byte[] dest = new byte[destCapacity];
+    final int[] srcLen = new int[] { data.length };
+    assertEquals(expectedLen, compressor.compressDestSize(data, 0, srcLen, dest, 0, destCapacity));
+    assertEquals(expectedSrcLen[0], srcLen[0]);
+    assertArrayEquals(expected, Arrays.copyOf(dest, expectedLen));
+
+    final ByteBuffer heapDest = ByteBuffer.allocate(destCapacity);
+    srcLen[0] = data.length;
+    assertEquals(expectedLen, compressor.compressDestSize(ByteBuffer.wrap(data), 0, srcLen, heapDest, 0, destCapacity));
+    assertEquals(expectedSrcLen[0], srcLen[0]);
+    assertArrayEquals(expected, toArray(heapDest, 0, expectedLen));
+  }
+
+  @Test
+  @Repeat(iterations = 10)
+  public void testCompress() {
+    testCompress(LZ4Factory.nativeInstance().fastCompressor());
+    testCompress(LZ4Factory.nativeInstance().highCompressor(randomIntBetween(1, 17)));
+  }
+
+  @Test
+  @Repeat(iterations = 10)
+  public void testCompressDestSize() {
+    testCompressDestSize(LZ4Factory.nativeInstance().fastCompressor());
+    testCompressDestSize(LZ4Factory.nativeInstance().highCompressor(randomIntBetween(1, 17)));
+  }
+
+  @Test
+  @Repeat(iterations = 10)
+  public void testHash() {
+    final byte[] data = randomInput();
+    final int off = randomInt(10);
+    final int seed = randomInt();
+    final byte[] src = new byte[off + data.length];
+    System.arraycopy(data, 0, src, off, data.length);
+    final XXHashFactory safe = XXHashFactory.safeInstance();
+    final XXHashFactory jni = XXHashFactory.nativeInstance();
+
+    final int expected32 = safe.hash32().hash(data, 0, data.length, seed);
+    assertEquals(expected32, jni.hash32().hash(src, off, data.length, seed));
+    assertEquals(expected32, jni.hash32().hash(copyOf(data, off, data.length, false), off, data.length, seed));
+    assertEquals(expected32, jni.hash32().hash(copyOf(data, off, data.length, true), off, data.length, seed));
+
+    final long expected64 = safe.hash64().hash(data, 0, data.length, seed);
+    assertEquals(expected64, jni.hash64().hash(src, off, data.length, seed));
+    assertEquals(expected64, jni.hash64().hash(copyOf(data, off, data.length, false), off, data.length, seed));
+    assertEquals(expected64, jni.hash64().hash(copyOf(data, off, data.length, true), off, data.length, seed));
+  }
+
+  @Test
+  @Repeat(iterations = 10)
+  public void testStreamingHash() {
+    final byte[] data = randomInput();
+    final int seed = randomInt();
+    final XXHashFactory safe = XXHashFactory.safeInstance();
+    final StreamingXXHash32 h32 = XXHashFactory.nativeInstance().newStreamingHash32(seed);
+    final StreamingXXHash64 h64 = XXHashFactory.nativeInstance().newStreamingHash64(seed);
+    try {
+      for (int off = 0; off < data.length; ) {
+        final int len = randomIntBetween(1, data.length - off);
+        h32.update(data, off, len);
+        h64.update(data, off, len);
+        off += len;
+      }
+      assertEquals(safe.hash32().hash(data, 0, data.length, seed), h32.getValue());
+      assertEquals(safe.hash64().hash(data, 0, data.length, seed), h64.getValue());
+    } finally {
+      h32.close();
+      h64.close();
+    }
+  }
+
+}
@@ -23,11 +23,14 @@ import static net.jpountz.lz4.Instances.SAFE_DECOMPRESSORS;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.ReadOnlyBufferException;
 import java.util.Arrays;
 import java.io.File;
 import java.io.FilenameFilter;
 
+import net.jpountz.xxhash.XXHashFactory;
+
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -418,6 +421,36 @@ public class LZ4Test extends AbstractLZ4Test {
     }
   }
 
+  @Test
+  @Repeat(iterations=20)
+  public void testCorruptedInput() {
+    // far from the end of buffers, short sequences are decoded without
+    // checking every copy: corrupted blocks must still be rejected, or
+    // decoded to the same length by all decompressors (not always the same
+    // bytes, matches at offset 0 copy undefined bytes)
+    final byte[] data = randomArray(randomIntBetween(100, 10000), randomIntBetween(2, 10));
+    final byte[] compressed = LZ4Factory.fastestInstance().fastCompressor().compress(data);
+    for (int i = randomIntBetween(1, 3); i > 0; --i) {
+      compressed[randomInt(compressed.length - 1)] = randomByte();
+    }
+
+    Integer expected = null;
+    for (LZ4SafeDecompressor decompressor : SAFE_DECOMPRESSORS) {
+      final byte[] restored = new byte[data.length + 100];
+      int actual;
+      try {
+        actual = decompressor.decompress(compressed, 0, compressed.length, restored, 0);
+      } catch (LZ4Exception e) {
+        actual = -1;
+      }
+      if (expected == null) {
+        expected = actual;
+      } else {
+        assertEquals(decompressor.toString(), expected.intValue(), actual);
+      }
+    }
+  }
+
   @Test
   public void testWriteToReadOnlyBuffer() {
     for (LZ4Compressor compressor : COMPRESSORS) {
@@ -484,6 +517,249 @@ public class LZ4Test extends AbstractLZ4Test {
     testRoundTrip(data, off, len);
   }
 
+  private static void assertDestSizeRoundTrip(byte[] data, int off, int len, byte[] compressed, int compressedLen, int consumed) {
+    assertTrue(consumed >= 0 && consumed <= len);
+    if (compressedLen == 0) {
+      // nothing fits, not even a token
+      assertEquals(0, consumed);
+      return;
+    }
+    final byte[] expected = Arrays.copyOfRange(data, off, off + consumed);
+    for (LZ4SafeDecompressor decompressor : SAFE_DECOMPRESSORS) {
+      final byte[] restored = new byte[consumed + randomInt(10)];
+      assertEquals(decompressor.toString(), consumed, decompressor.decompress(compressed, 0, compressedLen, restored, 0));
+      assertArrayEquals(decompressor.toString(), expected, Arrays.copyOf(restored, consumed));
+    }
+    for (LZ4FastDecompressor decompressor : FAST_DECOMPRESSORS) {
+      final byte[] restored = new byte[consumed];
+      assertEquals(decompressor.toString(), compressedLen, decompressor.decompress(compressed, 0, restored, 0, consumed));
+      assertArrayEquals(decompressor.toString(), expected, restored);
+    }
+  }
+
+  public void testCompressDestSize(byte[] data, int off, int len, int destCapacity) {
+    for (LZ4Compressor compressor : COMPRESSORS) {
+      final int[] srcLenRef = new int[] { len };
+      final byte[] compressed = new byte[destCapacity];
+      final int compressedLen = compressor.compressDestSize(data, off, srcLenRef, compressed, 0, destCapacity);
+      assertTrue(compressor.toString(), compressedLen <= destCapacity);
+      if (destCapacity >= compressor.maxCompressedLength(len)) {
+        assertEquals(compressor.toString(), len, srcLenRef[0]);
+      }
+      assertDestSizeRoundTrip(data, off, len, compressed, compressedLen, srcLenRef[0]);
+
+      // ByteBuffers must produce the same output
+      final ByteBuffer src = randomBoolean() ? ByteBuffer.allocate(data.length) : ByteBuffer.allocateDirect(data.length);
+      src.put(data).clear();
+      final ByteBuffer dest = randomBoolean() ? ByteBuffer.allocate(destCapacity) : ByteBuffer.allocateDirect(destCapacity);
+      final int[] srcLenRef2 = new int[] { len };
+      assertEquals(compressor.toString(), compressedLen, compressor.compressDestSize(src, off, srcLenRef2, dest, 0, destCapacity));
+      assertEquals(compressor.toString(), srcLenRef[0], srcLenRef2[0]);
+      assertEquals(0, src.position());
+      assertEquals(0, dest.position());
+      final byte[] compressed2 = new byte[compressedLen];
+      dest.get(compressed2);
+      assertArrayEquals(compressor.toString(), Arrays.copyOf(compressed, compressedLen), compressed2);
+    }
+  }
+
+  @Test
+  @Repeat(iterations=10)
+  public void testCompressDestSize() {
+    final int n = randomIntBetween(1, 256);
+    final int off = randomInt(1000);
+    final int len = randomBoolean() ? randomInt(1 << 12) : randomInt(1 << 18);
+    final byte[] data = randomArray(off + len + randomInt(100), n);
+    final int destCapacity = randomBoolean() ? randomInt(64) : randomInt(LZ4Utils.maxCompressedLength(len) + 10);
+    testCompressDestSize(data, off, len, destCapacity);
+  }
+
+  @Test
+  @Repeat(iterations=10)
+  public void testCompressDestSizeGeneric() {
+    // compressors which only implement compress get a generic compressDestSize
+    final LZ4Compressor delegate = LZ4Factory.safeInstance().fastCompressor();
+    final LZ4Compressor compressor = new LZ4Compressor() {
+
+      @Override
+      public int compress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int maxDestLen) {
+        return delegate.compress(src, srcOff, srcLen, dest, destOff, maxDestLen);
+      }
+
+      @Override
+      public int compress(ByteBuffer src, int srcOff, int srcLen, ByteBuffer dest, int destOff, int maxDestLen) {
+        return delegate.compress(src, srcOff, srcLen, dest, destOff, maxDestLen);
+      }
+    };
+    final int n = randomIntBetween(1, 256);
+    final int len = randomInt(1 << 14);
+    final byte[] data = randomArray(len, n);
+    final int destCapacity = randomBoolean() ? randomInt(64) : randomInt(LZ4Utils.maxCompressedLength(len) + 10);
+
+    final int[] srcLenRef = new int[] { len };
+    final byte[] compressed = new byte[destCapacity];
+    final int compressedLen = compressor.compressDestSize(data, 0, srcLenRef, compressed, 0, destCapacity);
+    assertTrue(compressedLen <= destCapacity);
+    if (destCapacity >= compressor.maxCompressedLength(len)) {
+      assertEquals(len, srcLenRef[0]);
+    }
+    assertDestSizeRoundTrip(data, 0, len, compressed, compressedLen, srcLenRef[0]);
+
+    final ByteBuffer dest = ByteBuffer.allocateDirect(destCapacity);
+    final int[] srcLenRef2 = new int[] { len };
+    assertEquals(compressedLen, compressor.compressDestSize(ByteBuffer.wrap(data), 0, srcLenRef2, dest, 0, destCapacity));
+    assertEquals(srcLenRef[0], srcLenRef2[0]);
+    final byte[] compressed2 = new byte[compressedLen];
+    dest.get(compressed2);
+    assertArrayEquals(Arrays.copyOf(compressed, compressedLen), compressed2);
+  }
+
+  @Test
+  public void testCompressDestSizeAllEqual() {
+    final byte[] data = new byte[1 << 20];
+    Arrays.fill(data, randomByte());
+    testCompressDestSize(data, 0, data.length, randomIntBetween(1, 1 << 12));
+  }
+
+  @Test
+  public void testCompressDestSizePages() throws IOException {
+    // fill fixed-size pages one after the other
+    final byte[] data = readResource("/calgary/book1");
+    final int pageSize = 4096;
+    for (LZ4Compressor compressor : COMPRESSORS) {
+      final ByteArrayOutputStream restored = new ByteArrayOutputStream();
+      final byte[] page = new byte[pageSize];
+      final LZ4SafeDecompressor decompressor = LZ4Factory.safeInstance().safeDecompressor();
+      final byte[] decompressed = new byte[pageSize * 255];
+      int off = 0;
+      while (off < data.length) {
+        final int[] srcLenRef = new int[] { data.length - off };
+        final int compressedLen = compressor.compressDestSize(data, off, srcLenRef, page, 0, pageSize);
+        assertTrue(srcLenRef[0] > 0);
+        if (off + srcLenRef[0] < data.length) {
+          // pages must be nearly full
+          assertTrue(compressor + ", " + compressedLen, compressedLen > pageSize - 16);
+        }
+        final int decompressedLen = decompressor.decompress(page, 0, compressedLen, decompressed, 0);
+        assertEquals(srcLenRef[0], decompressedLen);
+        restored.write(decompressed, 0, decompressedLen);
+        off += srcLenRef[0];
+      }
+      assertArrayEquals(compressor.toString(), data, restored.toByteArray());
+    }
+  }
+
+  @Test
+  public void testSafeMatchUtils() {
+    final byte[] buf = randomArray(randomIntBetween(1, 200), randomIntBetween(1, 3));
+    for (int o2 = 0; o2 < buf.length; ++o2) {
+      for (int o1 = 0; o1 <= o2; ++o1) {
+        final int limit = randomIntBetween(o2, buf.length);
+        int expected = 0;
+        while (o2 + expected < limit && buf[o1 + expected] == buf[o2 + expected]) {
+          ++expected;
+        }
+        assertEquals(expected, LZ4SafeMatchUtils.commonBytes(buf, o1, o2, limit));
+      }
+    }
+    for (int distance = 0; distance < 20; ++distance) {
+      for (int matchLen = 0; matchLen < 50; ++matchLen) {
+        final byte[] expected = randomArray(distance + matchLen, 256);
+        final byte[] actual = expected.clone();
+        for (int i = 0; i < matchLen; ++i) {
+          expected[distance + i] = expected[i];
+        }
+        LZ4SafeMatchUtils.incrementalCopy(actual, 0, distance, matchLen);
+        assertArrayEquals(expected, actual);
+      }
+    }
+  }
+
+  @Test
+  public void testDirectBuffers() {
+    final LZ4Factory factory = LZ4Factory.unsafeInstance();
+    final byte[] data = randomArray(randomInt(1 << 18), randomIntBetween(1, 10));
+    final byte[] compressed = factory.fastCompressor().compress(data);
+    // slices and both byte orders go through the address-based code paths
+    final ByteBuffer src = ByteBuffer.allocateDirect(data.length + 10).order(randomBoolean() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+    src.position(10);
+    src.slice().put(data);
+    final ByteBuffer dest = ByteBuffer.allocateDirect(compressed.length + 10);
+    dest.position(10);
+    final ByteBuffer destSlice = dest.slice().order(src.order());
+    assertEquals(compressed.length, factory.fastCompressor().compress(src.slice(), 0, data.length, destSlice, 0, compressed.length));
+    final byte[] directCompressed = new byte[compressed.length];
+    destSlice.get(directCompressed);
+    assertArrayEquals(compressed, directCompressed);
+
+    final ByteBuffer restored = ByteBuffer.allocateDirect(data.length);
+    destSlice.rewind();
+    assertEquals(compressed.length, factory.fastDecompressor().decompress(destSlice, 0, restored, 0, data.length));
+    final byte[] fastRestored = new byte[data.length];
+    restored.get(fastRestored);
+    assertArrayEquals(data, fastRestored);
+    restored.clear();
+    assertEquals(data.length, factory.safeDecompressor().decompress(destSlice, 0, compressed.length, restored, 0, data.length));
+    final byte[] safeRestored = new byte[data.length];
+    restored.get(safeRestored);
+    assertArrayEquals(data, safeRestored);
+
+    try {
+      factory.fastCompressor().compress(src.slice(), 0, data.length, destSlice, 1, compressed.length);
+      fail();
+    } catch (IndexOutOfBoundsException e) {
+      // expected
+    }
+    try {
+      factory.safeDecompressor().decompress(destSlice, 0, compressed.length, restored.asReadOnlyBuffer(), 0, data.length);
+      fail();
+    } catch (ReadOnlyBufferException e) {
+      // expected
+    }
+
+    final ByteBuffer hashed = src.slice();
+    assertEquals(XXHashFactory.safeInstance().hash32().hash(data, 0, data.length, 42), XXHashFactory.unsafeInstance().hash32().hash(hashed, 0, data.length, 42));
+    assertEquals(XXHashFactory.safeInstance().hash64().hash(data, 0, data.length, 42), XXHashFactory.unsafeInstance().hash64().hash(hashed, 0, data.length, 42));
+  }
+
+  @Test
+  public void testAdaptiveCompressor() {
+    final LZ4AdaptiveCompressor compressor = new LZ4AdaptiveCompressor(LZ4Factory.safeInstance(), 100, 3);
+    final int len = 1 << 16;
+    assertEquals(0, compressor.getCompressionLevel());
+    // small inputs are ignored
+    compressor.record(0, 100, 50, 1);
+    assertEquals(0, compressor.getCompressionLevel());
+    // 1000 MB/s: enough headroom to probe the next level
+    compressor.record(0, len, len / 2, len);
+    assertEquals(1, compressor.getCompressionLevel());
+    // 500 MB/s
+    compressor.record(1, len, len / 3, 2 * len);
+    assertEquals(2, compressor.getCompressionLevel());
+    // 50 MB/s: too slow
+    compressor.record(2, len, len / 4, 20 * len);
+    assertEquals(1, compressor.getCompressionLevel());
+    // level 2 is known to be too slow
+    for (int i = 1; i < LZ4AdaptiveCompressor.PROBE_INTERVAL; ++i) {
+      compressor.record(1, len, len / 3, 2 * len);
+      assertEquals(1, compressor.getCompressionLevel());
+    }
+    // ... but it gets probed again eventually
+    compressor.record(1, len, len / 3, 2 * len);
+    assertEquals(2, compressor.getCompressionLevel());
+    // the highest level is never exceeded
+    compressor.record(2, len, len / 4, len);
+    assertEquals(3, compressor.getCompressionLevel());
+    compressor.record(3, len, len / 5, len);
+    assertEquals(3, compressor.getCompressionLevel());
+
+    final byte[] data = randomArray(randomInt(1 << 20), randomIntBetween(1, 10));
+    for (int i = 0; i < 10; ++i) {
+      final byte[] compressed = compressor.compress(data);
+      assertArrayEquals(data, LZ4Factory.safeInstance().fastDecompressor().decompress(compressed, data.length));
+    }
+  }
+
   @Test
   // https://github.com/jpountz/lz4-java/issues/12
   public void testRoundtripIssue12() {
@@ -0,0 +1,227 @@
+package net.jpountz.util;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests how {@link Native} finds the library. The loaded library can't be
+ * unloaded, so every case runs {@link Loader} in a new JVM.
+ */
+public class NativeTest {
+
+  /**
+   * Loads the native library and prints which one has been loaded, or why
+   * loading failed.
+   */
+  public static class Loader {
+
+    public static void main(String[] args) {
+      try {
+        Native.load();
+        System.out.println("loaded " + Native.getLibrary());
+      } catch (Throwable t) {
+        System.out.println("failed " + t);
+      }
+    }
+
+  }
+
+  private byte[] bundled;
+  private Path tmp, cacheDir, systemDir, emptyDir;
+
+  @Before
+  public void setUp() throws IOException {
+    final String os = System.getProperty("os.name");
+    final String arch = System.getProperty("os.arch");
+    assumeTrue("only tested on Linux", os.contains("Linux"));
+    try (InputStream in = Native.class.getResourceAsStream("/net/jpountz/util/linux/" + arch + "/liblz4-java.so")) {
+      assumeTrue("no bundled library", in != null);
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      final byte[] buf = new byte[4096];
+      for (int read = in.read(buf); read != -1; read = in.read(buf)) {
+        bytes.write(buf, 0, read);
+      }
+      bundled = bytes.toByteArray();
+    }
+    tmp = Files.createTempDirectory("lz4-java-native");
+    cacheDir = tmp.resolve("cache");
+    systemDir = Files.createDirectory(tmp.resolve("system"));
+    Files.write(systemDir.resolve(System.mapLibraryName("lz4-java")), bundled);
+    emptyDir = Files.createDirectory(tmp.resolve("empty"));
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    if (tmp != null) {
+      delete(tmp.toFile());
+    }
+  }
+
+  private static void delete(File file) throws IOException {
+    final File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    Files.deleteIfExists(file.toPath());
+  }
+
+  // Loads the library in a new JVM and returns what Loader printed
+  private String load(String system, Path cacheDir, Path libraryPath) throws Exception {
+    final List<String> command = new ArrayList<String>();
+    command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add("-Djava.library.path=" + libraryPath);
+    command.add("-Djava.io.tmpdir=" + tmp);
+    if (system != null) {
+      command.add("-Dlz4java.jnilib.system=" + system);
+    }
+    if (cacheDir != null) {
+      command.add("-Dlz4java.jnilib.cache.dir=" + cacheDir);
+    }
+    command.add(Loader.class.getName());
+    final ProcessBuilder builder = new ProcessBuilder(command).redirectErrorStream(true);
+    final Map<String, String> env = builder.environment();
+    env.remove("LZ4JAVA_JNILIB_SYSTEM");
+    env.remove("LZ4JAVA_JNILIB_CACHE_DIR");
+    final Process process = builder.start();
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    try (InputStream in = process.getInputStream()) {
+      final byte[] buf = new byte[1024];
+      for (int read = in.read(buf); read != -1; read = in.read(buf)) {
+        output.write(buf, 0, read);
+      }
+    }
+    assertEquals(output.toString(), 0, process.waitFor());
+    final String[] lines = output.toString().trim().split("\n");
+    return lines[lines.length - 1].trim();
+  }
+
+  private Path cachedLibrary() throws IOException {
+    final File[] files = cacheDir.toFile().listFiles();
+    assertNotNull(files);
+    assertEquals(Arrays.toString(files), 1, files.length);
+    final Path cached = files[0].toPath();
+    assertTrue(cached.toString(), cached.getFileName().toString().startsWith("liblz4-java-linux-"));
+    return cached;
+  }
+
+  @Test
+  public void testCacheDir() throws Exception {
+    // first extraction
+    assertFalse(Files.exists(cacheDir));
+    String result = load("never", cacheDir, emptyDir);
+    final Path cached = cachedLibrary();
+    assertEquals("loaded " + cached.toAbsolutePath(), result);
+    assertArrayEquals(bundled, Files.readAllBytes(cached));
+
+    // a valid copy is reused as is
+    final FileTime modified = FileTime.fromMillis(1000000000000L);
+    Files.setLastModifiedTime(cached, modified);
+    result = load("never", cacheDir, emptyDir);
+    assertEquals("loaded " + cached.toAbsolutePath(), result);
+    assertEquals(cached, cachedLibrary());
+    assertEquals(modified, Files.getLastModifiedTime(cached));
+
+    // a tampered copy of the same length is replaced
+    final byte[] tampered = bundled.clone();
+    tampered[tampered.length / 2] ^= 1;
+    Files.write(cached, tampered);
+    result = load("never", cacheDir, emptyDir);
+    assertEquals("loaded " + cached.toAbsolutePath(), result);
+    assertArrayEquals(bundled, Files.readAllBytes(cachedLibrary()));
+
+    // and so is a truncated one
+    Files.write(cached, Arrays.copyOf(bundled, bundled.length / 2));
+    result = load("never", cacheDir, emptyDir);
+    assertEquals("loaded " + cached.toAbsolutePath(), result);
+    assertArrayEquals(bundled, Files.readAllBytes(cachedLibrary()));
+  }
+
+  @Test
+  public void testCacheDirIsNotADirectory() throws Exception {
+    final Path file = Files.write(tmp.resolve("file"), new byte[0]);
+    final String result = load("never", file, emptyDir);
+    assertTrue(result, result.startsWith("failed java.lang.ExceptionInInitializerError"));
+    assertTrue(result, result.contains("Cannot unpack liblz4-java to " + file));
+  }
+
+  @Test
+  public void testSystemFirst() throws Exception {
+    final String system = "loaded " + System.mapLibraryName("lz4-java");
+    assertEquals(system, load("first", cacheDir, systemDir));
+    assertEquals(system, load(null, cacheDir, systemDir));
+    // falls back to the bundled library
+    final String result = load("first", cacheDir, emptyDir);
+    assertEquals("loaded " + cachedLibrary().toAbsolutePath(), result);
+  }
+
+  @Test
+  public void testSystemFallback() throws Exception {
+    // the bundled library is preferred
+    String result = load("fallback", cacheDir, systemDir);
+    assertEquals("loaded " + cachedLibrary().toAbsolutePath(), result);
+    // and the system library is used if the bundled one can't be loaded
+    final Path file = Files.write(tmp.resolve("file"), new byte[0]);
+    assertEquals("loaded " + System.mapLibraryName("lz4-java"), load("fallback", file, systemDir));
+    // the last error is reported if neither can be loaded
+    result = load("fallback", file, emptyDir);
+    assertTrue(result, result.startsWith("failed java.lang.UnsatisfiedLinkError"));
+  }
+
+  @Test
+  public void testSystemOnly() throws Exception {
+    assertEquals("loaded " + System.mapLibraryName("lz4-java"), load("only", cacheDir, systemDir));
+    // the bundled library is never used
+    final String result = load("only", cacheDir, emptyDir);
+    assertTrue(result, result.startsWith("failed java.lang.UnsatisfiedLinkError"));
+    assertFalse(Files.exists(cacheDir));
+  }
+
+  @Test
+  public void testSystemNever() throws Exception {
+    final String result = load("never", cacheDir, systemDir);
+    assertEquals("loaded " + cachedLibrary().toAbsolutePath(), result);
+  }
+
+  @Test
+  public void testInvalidSystem() throws Exception {
+    final String result = load("sometimes", cacheDir, systemDir);
+    assertTrue(result, result.startsWith("failed java.lang.IllegalArgumentException: lz4java.jnilib.system must be one of"));
+  }
+
+}
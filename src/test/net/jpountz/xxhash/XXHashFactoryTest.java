@@ -35,4 +35,22 @@ public class XXHashFactoryTest extends TestCase {
     assertTrue(XXHashFactory.safeInstance().newStreamingHash64(0) instanceof StreamingXXHash64JavaSafe);
   }
 
+  public void testHybridInstance() {
+    final XXHashFactory factory = XXHashFactory.hybridInstance();
+    assertSame(factory, XXHashFactory.hybridInstance());
+    assertTrue(factory.hash32() instanceof XXHash32Hybrid);
+    assertTrue(factory.hash64() instanceof XXHash64Hybrid);
+    final byte[] data = new byte[100000];
+    for (int i = 0; i < data.length; ++i) {
+      data[i] = (byte) (i * 31);
+    }
+    for (int len : new int[] {0, 1, 15, 100, 1000, 10000, 100000}) {
+      assertEquals(XXHashFactory.safeInstance().hash32().hash(data, 0, len, 42), factory.hash32().hash(data, 0, len, 42));
+      assertEquals(XXHashFactory.safeInstance().hash64().hash(data, 0, len, 42), factory.hash64().hash(data, 0, len, 42));
+      final StreamingXXHash64 streamingHash64 = factory.newStreamingHash64(42);
+      streamingHash64.update(data, 0, len);
+      assertEquals(XXHashFactory.safeInstance().hash64().hash(data, 0, len, 42), streamingHash64.getValue());
+    }
+  }
+
 }